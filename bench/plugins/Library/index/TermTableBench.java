@@ -0,0 +1,194 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.index;
+
+import org.openjdk.jmh.annotations.*;
+
+import plugins.Library.util.Corpus;
+import plugins.Library.util.SkeletonBTreeSet;
+import plugins.Library.util.TaskAbortExceptionConvertor;
+import plugins.Library.util.exec.TaskAbortException;
+import plugins.Library.util.func.Closure;
+import plugins.Library.io.serial.FileArchiver;
+import plugins.Library.io.serial.SimulatedArchiver;
+import plugins.Library.io.serial.Serialiser.PullTask;
+import plugins.Library.io.serial.Serialiser.PushTask;
+
+import freenet.keys.FreenetURI;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+** Inflating, deflating and updating the term table of a {@link ProtoIndex}
+** stored through a {@link plugins.Library.io.serial.FileArchiver} in a
+** temporary directory. This is the same path as an index being written or
+** read locally, without the network; if {@link #latency} is set, a {@link
+** SimulatedArchiver} stands in for the network, to measure how well the
+** requests overlap.
+**
+** Each invocation starts from the same stored index, so the invocations are
+** independent of each other.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TermTableBench {
+
+	@Param({"16"})
+	public int node_min;
+
+	/** Number of terms in the stored index */
+	@Param({"512"})
+	public int terms;
+
+	/** Number of entries for each term */
+	@Param({"32"})
+	public int entries;
+
+	/** Median latency of each request in ms, or 0 to use the files directly */
+	@Param({"0"})
+	public int latency;
+
+	/** Maximum number of simulated requests at once, or 0 for no limit */
+	@Param({"0"})
+	public int max_requests;
+
+	private File dir;
+	private ProtoIndexSerialiser srl;
+	private ProtoIndexComponentSerialiser csrl;
+	private Object root;
+
+	/** Terms to merge in by {@link #update()}, about half of them new */
+	private SortedSet<String> putkeys;
+	private Map<String, SortedSet<TermEntry>> puttrees;
+
+	@Setup(Level.Trial) public void store() throws IOException, TaskAbortException {
+		ProtoIndex.BTREE_NODE_MIN = node_min;
+		dir = Files.createTempDirectory("TermTableBench").toFile();
+		Corpus corpus = new Corpus();
+		SimulatedArchiver<Map<String, Object>> sim = null;
+		if (latency > 0) {
+			sim = new SimulatedArchiver<Map<String, Object>>(new FileArchiver<Map<String, Object>>(
+			  ProtoIndexComponentSerialiser.yamlrw, true, ProtoIndexSerialiser.FILE_EXTENSION, "", "", dir), corpus.rand.nextLong());
+			srl = new ProtoIndexSerialiser(sim);
+		} else {
+			srl = ProtoIndexSerialiser.forIndex(dir);
+		}
+		csrl = ProtoIndexComponentSerialiser.get(ProtoIndexComponentSerialiser.FMT_FILE_LOCAL, srl.getChildSerialiser());
+
+		ProtoIndex idx = new ProtoIndex(new FreenetURI("CHK@bench"), "bench", null, null, 0);
+		csrl.setSerialiserFor(idx);
+		String[] keys = corpus.keys(terms + (terms>>1));
+		for (int i=0; i<terms; ++i) {
+			SkeletonBTreeSet<TermEntry> tree = makeEntryTree();
+			tree.addAll(corpus.entries(keys[i], entries));
+			idx.ttab.put(keys[i], tree);
+		}
+		for (SkeletonBTreeSet<TermEntry> tree: idx.ttab.values()) { tree.deflate(); }
+		idx.ttab.deflate();
+		PushTask<ProtoIndex> task = new PushTask<ProtoIndex>(idx);
+		srl.push(task);
+		root = task.meta;
+
+		// the index is stored without delays
+		if (sim != null) {
+			sim.setLatency(SimulatedArchiver.Latency.logNormal(latency, 0.5), SimulatedArchiver.Latency.logNormal(latency<<1, 0.5));
+			sim.setMaxRequests(max_requests);
+		}
+
+		putkeys = new TreeSet<String>();
+		puttrees = new HashMap<String, SortedSet<TermEntry>>();
+		for (int i=terms>>1; i<keys.length; ++i) {
+			putkeys.add(keys[i]);
+			puttrees.put(keys[i], corpus.entries(keys[i], entries>>2));
+		}
+	}
+
+	@TearDown(Level.Trial) public void delete() {
+		delete(dir);
+	}
+
+	protected static void delete(File f) {
+		File[] children = f.listFiles();
+		if (children != null) {
+			for (File c: children) { delete(c); }
+		}
+		f.delete();
+	}
+
+	protected SkeletonBTreeSet<TermEntry> makeEntryTree() {
+		SkeletonBTreeSet<TermEntry> tree = new SkeletonBTreeSet<TermEntry>(ProtoIndex.BTREE_NODE_MIN);
+		csrl.setSerialiserFor(tree);
+		return tree;
+	}
+
+	protected ProtoIndex pull() throws TaskAbortException {
+		PullTask<ProtoIndex> task = new PullTask<ProtoIndex>(root);
+		srl.pull(task);
+		return task.data;
+	}
+
+	@State(Scope.Thread)
+	public static class Bare {
+		ProtoIndex idx;
+		@Setup(Level.Invocation) public void pull(TermTableBench bench) throws TaskAbortException {
+			idx = bench.pull();
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Live {
+		ProtoIndex idx;
+		@Setup(Level.Invocation) public void pull(TermTableBench bench) throws TaskAbortException {
+			idx = bench.pull();
+			idx.ttab.inflate();
+		}
+	}
+
+	/**
+	** Loads every node of the term table, but not the entry trees.
+	*/
+	@Benchmark public ProtoIndex inflate(Bare bare) throws TaskAbortException {
+		bare.idx.ttab.inflate();
+		return bare.idx;
+	}
+
+	/**
+	** Stores every node of the term table, and the root.
+	*/
+	@Benchmark public Object deflate(Live live) throws TaskAbortException {
+		live.idx.ttab.deflate();
+		PushTask<ProtoIndex> task = new PushTask<ProtoIndex>(live.idx);
+		srl.push(task);
+		return task.meta;
+	}
+
+	/**
+	** Merges new entries into half of the existing terms, and as many new
+	** terms, then stores the root.
+	*/
+	@Benchmark public Object update(Bare bare) throws TaskAbortException {
+		bare.idx.ttab.update(putkeys, null, new Closure<Map.Entry<String, SkeletonBTreeSet<TermEntry>>, TaskAbortException>() {
+			/*@Override**/ public void invoke(Map.Entry<String, SkeletonBTreeSet<TermEntry>> en) throws TaskAbortException {
+				SkeletonBTreeSet<TermEntry> tree = en.getValue();
+				if (tree == null) { en.setValue(tree = makeEntryTree()); }
+				tree.update(puttrees.get(en.getKey()), null);
+			}
+		}, new TaskAbortExceptionConvertor());
+		PushTask<ProtoIndex> task = new PushTask<ProtoIndex>(bare.idx);
+		srl.push(task);
+		return task.meta;
+	}
+
+}
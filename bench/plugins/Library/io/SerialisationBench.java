@@ -0,0 +1,109 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.io;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import plugins.Library.util.Corpus;
+import plugins.Library.index.TermEntry;
+import plugins.Library.index.TermEntryReaderWriter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+** Encoding and decoding {@link TermEntry}s, with each of the formats an index
+** can be stored in.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerialisationBench {
+
+	/** Number of entries, split between a few terms */
+	@Param({"1024"})
+	public int entries;
+
+	final public static int TERMS = 8;
+
+	final private TermEntryReaderWriter terw = TermEntryReaderWriter.getInstance();
+	final private YamlReaderWriter yamlrw = new YamlReaderWriter();
+
+	private List<TermEntry> list;
+	private Map<String, Object> node;
+
+	private byte[] entriesBytes;
+	private byte[] streamBytes;
+	private byte[] yamlBytes;
+
+	@Setup public void setup() throws IOException {
+		Corpus corpus = new Corpus();
+		list = new ArrayList<TermEntry>(entries);
+		for (String key: corpus.keys(TERMS)) {
+			list.addAll(corpus.entries(key, entries / TERMS));
+		}
+		// same shape as a node of an entry tree
+		node = new HashMap<String, Object>();
+		node.put("entries", list);
+
+		entriesBytes = encodeEntries().toByteArray();
+		streamBytes = encodeStream().toByteArray();
+		yamlBytes = encodeYaml().toByteArray();
+	}
+
+	/**
+	** Each entry written separately, in the original format.
+	*/
+	@Benchmark public ByteArrayOutputStream encodeEntries() throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(entries<<6);
+		DataOutputStream dos = new DataOutputStream(bos);
+		for (TermEntry en: list) { terw.writeObject(en, dos); }
+		dos.flush();
+		return bos;
+	}
+
+	@Benchmark public void decodeEntries(Blackhole bh) throws IOException {
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(entriesBytes));
+		for (int i=0; i<list.size(); ++i) { bh.consume(terw.readObject(dis)); }
+	}
+
+	/**
+	** The compact stream format.
+	*/
+	@Benchmark public ByteArrayOutputStream encodeStream() throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(entries<<5);
+		TermEntryReaderWriter.StreamWriter w = new TermEntryReaderWriter.StreamWriter(bos);
+		for (TermEntry en: list) { w.writeObject(en); }
+		w.close();
+		return bos;
+	}
+
+	@Benchmark public void decodeStream(Blackhole bh) throws IOException {
+		TermEntryReaderWriter.StreamReader r = new TermEntryReaderWriter.StreamReader(new ByteArrayInputStream(streamBytes));
+		for (int i=0; i<list.size(); ++i) { bh.consume(r.readObject()); }
+	}
+
+	@Benchmark public ByteArrayOutputStream encodeYaml() throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(entries<<7);
+		yamlrw.writeObject(node, bos);
+		return bos;
+	}
+
+	@Benchmark public Object decodeYaml() throws IOException {
+		return yamlrw.readObject(new ByteArrayInputStream(yamlBytes));
+	}
+
+}
@@ -0,0 +1,92 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.io.serial;
+
+import org.openjdk.jmh.annotations.*;
+
+import plugins.Library.util.Corpus;
+import plugins.Library.util.exec.TaskAbortException;
+import plugins.Library.io.serial.Serialiser.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+** Bin-packing done by {@link Packer#push(Map, Object)}, with a child
+** serialiser that does nothing, so only the packing itself is measured.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PackerBench {
+
+	/** Capacity of each bin */
+	@Param({"64", "1024"})
+	public int capacity;
+
+	/** Number of elements to pack */
+	@Param({"256", "4096"})
+	public int elements;
+
+	@Param({"BEST_FIT_DECREASING", "LEAST_REWRITE"})
+	public Packer.Strategy strategy;
+
+	final public static IterableSerialiser<Map<String, Integer>> nullsrl = new IterableSerialiser<Map<String, Integer>>() {
+		/*@Override**/ public void pull(Iterable<PullTask<Map<String, Integer>>> tasks) { }
+		/*@Override**/ public void push(Iterable<PushTask<Map<String, Integer>>> tasks) { }
+		/*@Override**/ public void pull(PullTask<Map<String, Integer>> task) { }
+		/*@Override**/ public void push(PushTask<Map<String, Integer>> task) { }
+	};
+
+	/**
+	** Elements are weighed by their value, so that the weights can be
+	** generated without building the actual objects.
+	*/
+	final public static Packer.Scale<Integer> scale = new Packer.Scale<Integer>() {
+		@Override public int weigh(Integer element) {
+			return element;
+		}
+	};
+
+	private Packer<String, Integer> packer;
+	private String[] keys;
+	private int[] weights;
+
+	private Map<String, PushTask<Integer>> tasks;
+
+	@Setup(Level.Trial) public void setup() {
+		packer = new Packer<String, Integer>(nullsrl, scale, capacity);
+		packer.setStrategy(strategy);
+		Corpus corpus = new Corpus();
+		Random rand = corpus.rand;
+		keys = corpus.keys(elements);
+		weights = new int[elements];
+		for (int i=0; i<elements; ++i) {
+			// mostly small elements, with a few large ones, as in a term table
+			weights[i] = 1 + (rand.nextInt(8) == 0? rand.nextInt(capacity): rand.nextInt(Math.max(1, capacity>>4)));
+		}
+	}
+
+	/**
+	** {@link Packer#push(Map, Object)} clears the data of the tasks it pushes,
+	** so they are made again for every invocation.
+	*/
+	@Setup(Level.Invocation) public void makeTasks() {
+		tasks = new HashMap<String, PushTask<Integer>>(elements<<1);
+		for (int i=0; i<elements; ++i) {
+			tasks.put(keys[i], new PushTask<Integer>(weights[i]));
+		}
+	}
+
+	@Benchmark public Map<String, PushTask<Integer>> push() throws TaskAbortException {
+		packer.push(tasks, null);
+		return tasks;
+	}
+
+}
@@ -0,0 +1,66 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.search;
+
+import org.openjdk.jmh.annotations.*;
+
+import plugins.Library.util.Corpus;
+import plugins.Library.util.exec.Execution;
+import plugins.Library.util.exec.TaskAbortException;
+import plugins.Library.index.TermEntry;
+import plugins.Library.index.TermResultCache;
+
+import freenet.keys.FreenetURI;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+** Combining the results of the terms of a query in a {@link ResultSet}.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResultSetBench {
+
+	@Param({"INTERSECTION", "UNION", "REMOVE", "PHRASE"})
+	public ResultSet.ResultOperation op;
+
+	/** Number of pages in the index */
+	@Param({"4096"})
+	public int pages;
+
+	/** Number of pages each term is on */
+	@Param({"256", "2048"})
+	public int matches;
+
+	/** If positive, only keep this many of the most relevant results */
+	@Param({"0", "20"})
+	public int limit;
+
+	private List<Execution<Set<TermEntry>>> results;
+
+	@Setup public void setup() {
+		Corpus corpus = new Corpus();
+		FreenetURI[] uris = corpus.pages(pages);
+		// REMOVE takes exactly two, the others are more typical with three
+		int terms = (op == ResultSet.ResultOperation.REMOVE)? 2: 3;
+		results = new ArrayList<Execution<Set<TermEntry>>>(terms);
+		for (String term: corpus.keys(terms)) {
+			results.add(new TermResultCache.CachedResult(term, corpus.result(term, uris, matches)));
+		}
+	}
+
+	@Benchmark public ResultSet run() throws TaskAbortException {
+		ResultSet rs = new ResultSet("bench", op, results, false, limit);
+		rs.run();
+		return rs;
+	}
+
+}
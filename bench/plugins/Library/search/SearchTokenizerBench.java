@@ -0,0 +1,42 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.search;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import plugins.Library.util.Corpus;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+** Splitting queries and page text into terms with {@link SearchTokenizer}.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchTokenizerBench {
+
+	/** Number of words in the text; a query, and a page */
+	@Param({"8", "4096"})
+	public int words;
+
+	/** Whether CJK text is split into pairs of characters */
+	@Param({"false", "true"})
+	public boolean pairs;
+
+	private String text;
+
+	@Setup public void setup() {
+		text = new Corpus().text(words);
+	}
+
+	@Benchmark public void tokenize(Blackhole bh) {
+		for (String term: new SearchTokenizer(text, pairs)) { bh.consume(term); }
+	}
+
+}
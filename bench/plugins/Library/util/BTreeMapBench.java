@@ -0,0 +1,66 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.util;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+** In-memory operations on {@link BTreeMap}.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BTreeMapBench {
+
+	@Param({"4", "64", "1024"})
+	public int node_min;
+
+	@Param({"4096", "65536"})
+	public int size;
+
+	private String[] keys;
+	private Map<String, Integer> sorted;
+	private BTreeMap<String, Integer> full;
+
+	@Setup public void setup() {
+		keys = new Corpus().keys(size);
+		sorted = new TreeMap<String, Integer>();
+		full = new BTreeMap<String, Integer>(node_min);
+		for (int i=0; i<keys.length; ++i) {
+			sorted.put(keys[i], i);
+			full.put(keys[i], i);
+		}
+	}
+
+	/**
+	** Puts every key one at a time, in random order.
+	*/
+	@Benchmark public BTreeMap<String, Integer> put() {
+		BTreeMap<String, Integer> map = new BTreeMap<String, Integer>(node_min);
+		for (int i=0; i<keys.length; ++i) { map.put(keys[i], i); }
+		return map;
+	}
+
+	@Benchmark public void get(Blackhole bh) {
+		for (String key: keys) { bh.consume(full.get(key)); }
+	}
+
+	/**
+	** Puts every key at once from a sorted map.
+	*/
+	@Benchmark public BTreeMap<String, Integer> putAll() {
+		BTreeMap<String, Integer> map = new BTreeMap<String, Integer>(node_min);
+		map.putAll(sorted);
+		return map;
+	}
+
+}
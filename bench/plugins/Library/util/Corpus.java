@@ -0,0 +1,118 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.util;
+
+import plugins.Library.index.TermEntry;
+import plugins.Library.index.TermPageEntry;
+
+import freenet.keys.FreenetURI;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+** Generated data for the benchmarks. Unlike {@link Generators}, everything is
+** drawn from a source with a fixed seed, so that every run (and every release
+** being compared) works on exactly the same data.
+**
+** The seed can be changed with the {@code bench.seed} system property.
+*/
+final public class Corpus {
+
+	final public static long DEFAULT_SEED = 0x4C494252415259L;
+
+	final public static String[] LATIN_WORDS = {
+		"lorem", "ipsum", "dolor", "sit", "amet", "consectetur", "adipisicing",
+		"elit", "sed", "do", "eiusmod", "tempor", "incididunt", "labore",
+		"magna", "aliqua", "enim", "minim", "veniam", "quis", "nostrud",
+		"exercitation", "ullamco", "laboris", "nisi", "aliquip", "commodo",
+		"freenet", "index", "search", "library", "darknet", "opennet"
+	};
+
+	final public static String[] CJK_WORDS = {
+		"\u81ea\u7531", "\u7f51\u7edc", "\u641c\u7d22", "\u7d22\u5f15", "\u56f3\u66f8\u9928", "\u691c\u7d22", "\u6587\u66f8"
+	};
+
+	final public Random rand;
+
+	public Corpus() {
+		this(Long.getLong("bench.seed", DEFAULT_SEED));
+	}
+
+	public Corpus(long seed) {
+		rand = new Random(seed);
+	}
+
+	/**
+	** Returns {@code n} distinct keys, in the order they were generated.
+	*/
+	public String[] keys(int n) {
+		Set<String> seen = new HashSet<String>(n<<1);
+		String[] keys = new String[n];
+		for (int i=0; i<n;) {
+			String key = Generators.rndKey(rand);
+			if (seen.add(key)) { keys[i++] = key; }
+		}
+		return keys;
+	}
+
+	public FreenetURI[] pages(int n) {
+		FreenetURI[] pages = new FreenetURI[n];
+		for (int i=0; i<n; ++i) { pages[i] = FreenetURI.generateRandomCHK(rand); }
+		return pages;
+	}
+
+	/**
+	** Returns {@code n} entries for the given term, each for a different
+	** random page.
+	*/
+	public SortedSet<TermEntry> entries(String key, int n) {
+		SortedSet<TermEntry> entries = new TreeSet<TermEntry>();
+		while (entries.size() < n) { entries.add(Generators.rndEntry(key, rand)); }
+		return entries;
+	}
+
+	/**
+	** Returns the result of a lookup for the given term: entries for {@code n}
+	** of the given pages, each at up to 8 positions, so that results for
+	** different terms overlap as they would in a real index.
+	*/
+	public Set<TermEntry> result(String term, FreenetURI[] pages, int n) {
+		List<FreenetURI> ps = new ArrayList<FreenetURI>(Arrays.asList(pages));
+		Collections.shuffle(ps, rand);
+		Set<TermEntry> res = new HashSet<TermEntry>();
+		for (int i=0; i<n && i<ps.size(); ++i) {
+			Set<Integer> pos = new HashSet<Integer>();
+			for (int j=0; j<8; ++j) { pos.add(rand.nextInt(64)); }
+			res.add(new TermPageEntry(term, rand.nextFloat(), ps.get(i), null, pos, null));
+		}
+		return res;
+	}
+
+	/**
+	** Returns some text of the given number of words, mostly latin with some
+	** CJK and punctuation, as a page or a query would have.
+	*/
+	public String text(int words) {
+		StringBuilder sb = new StringBuilder();
+		for (int i=0; i<words; ++i) {
+			if (i > 0) { sb.append(rand.nextInt(8) == 0? ", ": " "); }
+			if (rand.nextInt(8) == 0) {
+				sb.append(CJK_WORDS[rand.nextInt(CJK_WORDS.length)]);
+			} else {
+				String w = LATIN_WORDS[rand.nextInt(LATIN_WORDS.length)];
+				sb.append(rand.nextInt(4) == 0? Character.toUpperCase(w.charAt(0)) + w.substring(1): w);
+			}
+		}
+		return sb.toString();
+	}
+
+}
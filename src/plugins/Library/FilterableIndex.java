@@ -0,0 +1,37 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library;
+
+import plugins.Library.index.TermEntry;
+import plugins.Library.util.exec.Execution;
+
+import freenet.keys.FreenetURI;
+
+import java.util.Set;
+
+/**
+** Represents an index which can estimate how many entries a term has without
+** loading them, and can load only the entries of a term for given pages. This
+** lets a search look up its rarest term first, and then only the parts of the
+** other terms that could match it.
+*/
+public interface FilterableIndex extends Index {
+
+	/**
+	** Non-blocking fetch of the number of entries associated with a given
+	** term. This should be much cheaper than fetching the entries.
+	*/
+	public Execution<Long> getTermSize(String term);
+
+	/**
+	** Non-blocking fetch of the entries associated with a given term which
+	** refer to one of the given pages. Entries which do not refer to a page
+	** (eg. related terms) are always included.
+	**
+	** Implementations should stop loading the term's entries once they have
+	** found one for each page.
+	*/
+	public Execution<Set<TermEntry>> getTermEntries(String term, Set<FreenetURI> pages);
+
+}
@@ -13,19 +13,26 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import plugins.Library.client.BlockCache;
 import plugins.Library.client.FreenetArchiver;
 import plugins.Library.index.ProtoIndex;
 import plugins.Library.index.ProtoIndexSerialiser;
+import plugins.Library.index.TermResultCache;
 import plugins.Library.index.xml.URLUpdateHook;
 import plugins.Library.index.xml.XMLIndex;
 import plugins.Library.io.ObjectStreamReader;
 import plugins.Library.io.ObjectStreamWriter;
-import plugins.Library.io.serial.Serialiser.PullTask;
 import plugins.Library.search.InvalidSearchException;
+import plugins.Library.util.exec.AbstractExecution;
+import plugins.Library.util.exec.Execution;
+import plugins.Library.util.exec.ExecutionAcceptor;
+import plugins.Library.util.exec.ProgressParts;
 import plugins.Library.util.exec.TaskAbortException;
 
 import freenet.client.FetchContext;
@@ -92,6 +99,17 @@ final public class Library implements URLUpdateHook {
 	final private PluginRespirator pr;
 	final private Executor exec;
 
+	/**
+	** Directory that the results of term lookups are kept in, between
+	** searches and restarts. See {@link TermResultCache}.
+	*/
+	public static final String TERM_CACHE_DIR = "library-term-cache";
+
+	/**
+	** Maximum size of {@link #TERM_CACHE_DIR}.
+	*/
+	public static final long TERM_CACHE_MAX_SIZE = 256L * 1024 * 1024;
+
 	static volatile boolean logMINOR;
 	static volatile boolean logDEBUG;
 	
@@ -137,6 +155,7 @@ final public class Library implements URLUpdateHook {
 		}
 		USKManager uskManager = pr.getNode().clientCore.clientContext.uskManager;
 		store = ps;
+		TermResultCache.getInstance().setDiskCache(new BlockCache(new File(TERM_CACHE_DIR), TERM_CACHE_MAX_SIZE));
 		if(store != null && store.subStores.containsKey(STOREKEY)) {
 			for(Map.Entry<String, String> entry : store.subStores.get(STOREKEY).strings.entrySet()) {
 				String name = entry.getKey();
@@ -482,6 +501,9 @@ final public class Library implements URLUpdateHook {
 			if(u.isUSK()) {
 				uskNew = USK.create(u);
 				edition = uskNew.suggestedEdition;
+				// results from older editions will not be asked for again
+				TermResultCache.getInstance().invalidate(u);
+				refreshIndexHandles(u);
 			}
 		} catch (MalformedURLException e) {
 			Logger.error(this, "Invalid new uri "+uri);
@@ -626,94 +648,320 @@ final public class Library implements URLUpdateHook {
 	 * @throws plugins.Library.util.InvalidSearchException
 	 */
 	/**
-	 * Returns an Index object for the uri specified,
-	 * gets an existing one if its there else makes a new one
+	 * Returns an Index object for the uri specified, waiting for it to load
+	 * if necessary. See {@link #getIndexAsync(String, String)}.
 	 *
-	 * TODO : identify all index types so index doesn't need to refer to them directly
 	 * @param indexuri index specifier
 	 * @return Index object
 	 */
 	public final Index getIndex(String indexuri, String origIndexName) throws InvalidSearchException, TaskAbortException {
+		Execution<Index> request = getIndexAsync(indexuri, origIndexName);
+		try {
+			request.join();
+		} catch (InterruptedException e) {
+			throw new TaskAbortException("Interrupted while loading index " + indexuri, e, true); // can retry
+		}
+		return request.getResult();
+	}
+
+	/**
+	 * Returns an Execution which completes with an Index object for the uri
+	 * specified. The index root is fetched in the background, once for each
+	 * (uri, edition); concurrent and later requests for the same index share
+	 * the fetch.
+	 *
+	 * Each ProtoIndex returned is a separate copy constructed from the shared
+	 * root, see the FIXME near {@link #handles}. XMLIndexes are shared. Local
+	 * indexes are loaded again once their files change.
+	 *
+	 * TODO : identify all index types so index doesn't need to refer to them directly
+	 * @param indexuri index specifier
+	 * @param origIndexName name of the bookmark the uri came from, if any
+	 */
+	public final Execution<Index> getIndexAsync(String indexuri, String origIndexName) throws InvalidSearchException, TaskAbortException {
 		Logger.normal(this, "Getting index "+indexuri);
 		indexuri = indexuri.trim();
 		if (indexuri.startsWith(BOOKMARK_PREFIX)){
 			indexuri = indexuri.substring(BOOKMARK_PREFIX.length());
-			if (bookmarks.containsKey(indexuri))
-				return getIndex(bookmarks.get(indexuri), indexuri);
+			String target = getBookmark(indexuri);
+			if (target != null)
+				return getIndexAsync(target, indexuri);
 			else
 				throw new InvalidSearchException("Index bookmark '"+indexuri+" does not exist");
 		}
 
-		// See comments near rtab. Can't use in parallel so caching is dangerous.
-//		if (rtab.containsKey(indexuri))
-//			return rtab.get(indexuri);
-//
-		Class<?> indextype;
-		Index index;
 		Object indexkey;
-
 		try{
 			indexkey = getAddressTypeFromString(indexuri);
 		}catch(UnsupportedOperationException e){
 			throw new TaskAbortException("Did not recognise index type in : \""+indexuri+"\"", e);
 		}
 
-		long edition = -1;
+		IndexHandle handle = getIndexHandle(indexuri, indexkey, origIndexName);
+		return new IndexRequest(handle);
+	}
 
-		try {
-			if (indexkey instanceof File) {
-				indextype = getIndexType((File)indexkey);
-			} else if (indexkey instanceof FreenetURI) {
-				// TODO HIGH make this non-blocking
+	/**
+	 * Returns the handle for the given index, starting a new one if there is
+	 * none, or if the last one failed.
+	 */
+	private IndexHandle getIndexHandle(String indexuri, Object indexkey, String origIndexName) {
+		String key = indexHandleKey(indexkey);
+		IndexHandle handle;
+		synchronized(handles) {
+			handle = handles.get(key);
+			if(handle != null && !handle.failed() && !handle.modified())
+				return handle;
+			handle = new IndexHandle(indexuri, indexkey, origIndexName);
+			handles.put(key, handle);
+		}
+		if(exec != null)
+			exec.execute(handle, "Library: loading index " + indexuri);
+		else
+			handle.run();
+		return handle;
+	}
+
+	/**
+	 * Drop the handles for editions of the given index older than the edition
+	 * of the given URI, and if any were dropped, start loading the new
+	 * edition in the background, so the next search doesn't have to wait for
+	 * it.
+	 */
+	private void refreshIndexHandles(FreenetURI uri) {
+		if(!uri.isUSK())
+			return;
+		String index = TermResultCache.indexId(uri);
+		long edition = uri.getEdition();
+		String indexuri = null, origIndexName = null;
+		synchronized(handles) {
+			for(Iterator<IndexHandle> it = handles.values().iterator(); it.hasNext();) {
+				IndexHandle handle = it.next();
+				if(handle.edition < edition && index.equals(handle.index)) {
+					it.remove();
+					indexuri = handle.indexuri;
+					origIndexName = handle.origIndexName;
+				}
+			}
+		}
+		if(indexuri == null)
+			return;
+		if(logMINOR) Logger.minor(this, "Refreshing index "+indexuri+" to edition "+edition);
+		getIndexHandle(uri.toString(), uri, origIndexName);
+	}
+
+	/* FIXME
+	 * Parallel fetch from the same ProtoIndex is still not supported (see the FIXME near rtab), so each
+	 * handle only keeps the serialised root of the index, and every search gets its own ProtoIndex (and
+	 * serialisers) constructed from it. Lookups of the same term are shared by TermResultCache anyway.
+	 */
+	/**
+	** Handles for the indexes that have been loaded, by {@link #indexHandleKey(Object)}, in order
+	** of least recent use.
+	*/
+	private final Map<String, IndexHandle> handles = new LinkedHashMap<String, IndexHandle>(0x10, 0.75f, true) {
+		@Override protected boolean removeEldestEntry(Map.Entry<String, IndexHandle> eldest) {
+			return size() > MAX_INDEX_HANDLES;
+		}
+	};
+
+	/**
+	** Maximum number of index handles to keep.
+	*/
+	final public static int MAX_INDEX_HANDLES = 32;
+
+	/**
+	** Key for {@link #handles}: the index and its edition, or the path of a
+	** local index.
+	*/
+	private static String indexHandleKey(Object indexkey) {
+		if(indexkey instanceof FreenetURI) {
+			FreenetURI uri = (FreenetURI)indexkey;
+			return TermResultCache.indexId(uri) + "@" + (uri.isUSK()? uri.getEdition(): -1);
+		} else {
+			return "file:" + indexkey;
+		}
+	}
+
+	/**
+	** Last modification time of a local index, or 0 for an index on Freenet.
+	*/
+	private static long lastModified(Object indexkey) {
+		if(!(indexkey instanceof File))
+			return 0;
+		File f = (File)indexkey;
+		if(f.isDirectory())
+			f = new File(f, XMLIndex.DEFAULT_FILE);
+		return f.lastModified();
+	}
+
+	/**
+	** Loads the root of an index, once. The result is the serialised root of
+	** a ProtoIndex, or the index itself for other types; use {@link
+	** #newIndex(Object)} to get an index to search.
+	*/
+	private class IndexHandle extends AbstractExecution<Object> implements Runnable {
+
+		final String indexuri;
+		final Object indexkey;
+		final String origIndexName;
+		/** {@link TermResultCache#indexId(FreenetURI)}, or the path of a local index */
+		final String index;
+		final long edition;
+		/** {@link Library#lastModified(Object)} of the index when the handle was made */
+		final long mtime;
+
+		IndexHandle(String indexuri, Object indexkey, String origIndexName) {
+			super(indexuri);
+			this.indexuri = indexuri;
+			this.indexkey = indexkey;
+			this.origIndexName = origIndexName;
+			if(indexkey instanceof FreenetURI) {
 				FreenetURI uri = (FreenetURI)indexkey;
-				if(uri.isUSK())
-					edition = uri.getEdition();
-				indextype = getIndexType(uri);
+				index = TermResultCache.indexId(uri);
+				edition = uri.isUSK()? uri.getEdition(): -1;
 			} else {
-				throw new AssertionError();
+				index = indexkey.toString();
+				edition = -1;
 			}
+			mtime = lastModified(indexkey);
+		}
+
+		/*@Override**/ public void run() {
+			Class<?> indextype;
+			Object index;
+			try {
+				if (indexkey instanceof File) {
+					indextype = getIndexType((File)indexkey);
+				} else if (indexkey instanceof FreenetURI) {
+					// TODO NORM this still blocks a thread, but not the caller's
+					indextype = getIndexType((FreenetURI)indexkey);
+				} else {
+					throw new AssertionError();
+				}
 
-			if (indextype == ProtoIndex.class) {
-				// TODO HIGH this *must* be non-blocking as it fetches the whole index root
-				PullTask<ProtoIndex> task = new PullTask<ProtoIndex>(indexkey);
-				ProtoIndexSerialiser.forIndex(indexkey, RequestStarter.INTERACTIVE_PRIORITY_CLASS).pull(task);
-				index = task.data;
+				if (indextype == ProtoIndex.class) {
+					// each search constructs its own index from this, see newIndex()
+					ProtoIndexSerialiser srl = ProtoIndexSerialiser.forIndex(indexkey, RequestStarter.INTERACTIVE_PRIORITY_CLASS);
+					index = srl.pullRoot(indexkey).data;
 
-			} else if (indextype == XMLIndex.class) {
-				index = new XMLIndex(indexuri, edition, pr, this, origIndexName);
+				} else if (indextype == XMLIndex.class) {
+					index = new XMLIndex(indexuri, edition, pr, Library.this, origIndexName);
 
-			} else {
-				throw new AssertionError();
+				} else {
+					throw new AssertionError();
+				}
+
+				Logger.normal(this, "Loaded index type " + indextype.getName() + " at " + indexuri);
+				setResult(index);
+
+			} catch (TaskAbortException e) {
+				setError(e);
+
+			} catch (InvalidSearchException e) {
+				setError(new TaskAbortException("Failed to load index  " + indexuri+" : "+e, e));
+
+			} catch (FetchException e) {
+				setError(new TaskAbortException("Failed to fetch index " + indexuri+" : "+e, e, true)); // can retry
+
+			} catch (UnsupportedOperationException e) {
+				setError(new TaskAbortException("Failed to parse index  " + indexuri+" : "+e, e));
+
+			} catch (RuntimeException e) {
+				setError(new TaskAbortException("Failed to load index  " + indexuri+" : "+e, e));
+
+			}
+		}
+
+		/**
+		** Whether the index failed to load.
+		*/
+		synchronized boolean failed() {
+			try {
+				isDone();
+				return false;
+			} catch (TaskAbortException e) {
+				return true;
 			}
+		}
 
-			// See comments near rtab. Can't use in parallel so caching is dangerous.
-			//rtab.put(indexuri, index);
-			Logger.normal(this, "Loaded index type " + indextype.getName() + " at " + indexuri);
+		/**
+		** Whether the files of a local index have changed since the handle
+		** was made.
+		*/
+		boolean modified() {
+			return mtime != lastModified(indexkey);
+		}
 
-			return index;
+		/**
+		** Returns an index to search.
+		**
+		** @param result The result of this handle
+		*/
+		Index newIndex(Object result) throws TaskAbortException {
+			if (result instanceof Index) { return (Index)result; }
+			@SuppressWarnings("unchecked") Map<String, Object> data = (Map<String, Object>)result;
+			return ProtoIndexSerialiser.forIndex(indexkey, RequestStarter.INTERACTIVE_PRIORITY_CLASS).rev(data);
+		}
 
-		} catch (FetchException e) {
-			throw new TaskAbortException("Failed to fetch index " + indexuri+" : "+e, e, true); // can retry
-/* KEYEXPLORER
-		} catch (IOException e) {
-			throw new TaskAbortException("Failed to fetch index " + indexuri, e, true); // can retry
+		@Override public String getStatus() {
+			return "Loading index root";
+		}
 
-		} catch (LowLevelGetException e) {
-			throw new TaskAbortException("Failed to fetch index " + indexuri, e, true); // can retry
+		@Override public ProgressParts getParts() throws TaskAbortException {
+			return isDone()? new ProgressParts(1, 1, 1, ProgressParts.TOTAL_FINALIZED): new ProgressParts(0, 1, 1, 1);
+		}
 
-		} catch (KeyListenerConstructionException e) {
-			throw new TaskAbortException("Failed to fetch index " + indexuri, e, true); // can retry
+	}
 
-		} catch (MetadataParseException e) {
-			throw new TaskAbortException("Failed to parse index  " + indexuri, e);
-*/
-		} catch (UnsupportedOperationException e) {
-			throw new TaskAbortException("Failed to parse index  " + indexuri+" : "+e, e);
+	/**
+	** A request for an index to search, which completes when its {@link
+	** IndexHandle} does.
+	*/
+	private class IndexRequest extends AbstractExecution<Index> implements ExecutionAcceptor<Object> {
 
-		} catch (RuntimeException e) {
-			throw new TaskAbortException("Failed to load index  " + indexuri+" : "+e, e);
+		final IndexHandle handle;
 
+		IndexRequest(IndexHandle h) {
+			super(h.getSubject());
+			handle = h;
+			handle.addAcceptor(this);
 		}
+
+		/*@Override**/ public void acceptStarted(Execution<Object> opn) { }
+
+		/*@Override**/ public void acceptDone(Execution<Object> opn, final Object result) {
+			// this is called with the lock of the handle held, so construct
+			// the index elsewhere, rather than hold up the other requests
+			Runnable r = new Runnable() {
+				/*@Override**/ public void run() {
+					try {
+						setResult(handle.newIndex(result));
+					} catch (TaskAbortException e) {
+						setError(e);
+					} catch (RuntimeException e) {
+						setError(new TaskAbortException("Failed to load index  " + handle.indexuri+" : "+e, e));
+					}
+				}
+			};
+			if(exec != null)
+				exec.execute(r, "Library: constructing index " + handle.indexuri);
+			else
+				r.run();
+		}
+
+		/*@Override**/ public void acceptAborted(Execution<Object> opn, TaskAbortException abort) {
+			setError(abort);
+		}
+
+		@Override public String getStatus() {
+			return handle.getStatus();
+		}
+
+		@Override public ProgressParts getParts() throws TaskAbortException {
+			return handle.getParts();
+		}
+
 	}
 
 
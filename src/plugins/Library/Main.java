@@ -25,10 +25,12 @@ import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.logging.Level;
 
+import plugins.Library.client.BlockCache;
 import plugins.Library.client.FreenetArchiver;
 import plugins.Library.index.ProtoIndex;
 import plugins.Library.index.ProtoIndexComponentSerialiser;
 import plugins.Library.index.ProtoIndexSerialiser;
+import plugins.Library.index.TermDictionary;
 import plugins.Library.index.TermEntry;
 import plugins.Library.index.TermPageEntry;
 import plugins.Library.search.Search;
@@ -36,6 +38,7 @@ import plugins.Library.ui.WebInterface;
 import plugins.Library.util.SkeletonBTreeMap;
 import plugins.Library.util.SkeletonBTreeSet;
 import plugins.Library.util.TaskAbortExceptionConvertor;
+import plugins.Library.util.concurrent.ExecutionConfig;
 import plugins.Library.util.concurrent.Executors;
 import plugins.Library.util.exec.SimpleProgress;
 import plugins.Library.util.exec.TaskAbortException;
@@ -141,7 +144,7 @@ public class Main implements FredPlugin, FredPluginVersioned, freenet.pluginmana
 		Main.pr = pr;
 		Executor exec = pr.getNode().executor;
 		library = Library.init(pr);
-		Search.setup(library, exec);
+		Search.setup(library);
 		Executors.setDefaultExecutor(exec);
 		webinterface = new WebInterface(library, pr);
 		webinterface.load();
@@ -151,6 +154,10 @@ public class Main implements FredPlugin, FredPluginVersioned, freenet.pluginmana
 
 	public void terminate() {
 		webinterface.unload();
+		Logger.normal(this, "Thread pools at shutdown:\n"+ExecutionConfig.status());
+		TermDictionary.flushAll();
+		BlockCache cache = FreenetArchiver.getCache();
+		if (cache != null) { cache.save(); }
 	}
 
 	public String getString(String key) {
@@ -189,11 +196,43 @@ public class Main implements FredPlugin, FredPluginVersioned, freenet.pluginmana
 	public void handle(PluginReplySender replysender, SimpleFieldSet params, final Bucket data, int accesstype) {
 		if("pushBuffer".equals(params.get("command"))){
 			uploader.handlePushBuffer(params, data);
+		} else if("dropPages".equals(params.get("command"))) {
+			uploader.handleDropPages(params, data);
 		} else if("getSpiderURI".equals(params.get("command"))) {
 			uploader.handleGetSpiderURI(replysender);
+		} else if("uriTable".equals(params.get("command"))) {
+			uploader.handleURITable(replysender, params);
+		} else if("executionConfig".equals(params.get("command"))) {
+			handleExecutionConfig(replysender, params);
 		} else {
 			Logger.error(this, "Unknown command : \""+params.get("command"));
 		}
 	}
 
+	/**
+	 * Switches the roles which wait for I/O to or from virtual threads, if
+	 * virtualThreads is given, and replies with the metrics of each pool.
+	 * @see ExecutionConfig#setVirtualThreads(boolean)
+	 */
+	private void handleExecutionConfig(PluginReplySender replysender, SimpleFieldSet params) {
+		String virtual = params.get("virtualThreads");
+		if(virtual != null) {
+			boolean on = ExecutionConfig.setVirtualThreads(Boolean.parseBoolean(virtual));
+			Logger.normal(this, "Virtual threads "+(on ? "enabled" : "disabled")+", pools:\n"+ExecutionConfig.status());
+		}
+		SimpleFieldSet sfs = new SimpleFieldSet(true);
+		sfs.putSingle("reply", "executionConfig");
+		sfs.putSingle("virtualThreads", Boolean.toString(ExecutionConfig.getVirtualThreads()));
+		sfs.putSingle("virtualThreadsSupported", Boolean.toString(ExecutionConfig.virtualThreadsSupported()));
+		String[] pools = ExecutionConfig.status().split("\n");
+		for (int i = 0; i < pools.length; i++) {
+			if(pools[i].length() > 0) sfs.putSingle("pool"+i, pools[i]);
+		}
+		try {
+			replysender.send(sfs);
+		} catch (PluginNotFoundException e) {
+			// Race condition, ignore.
+		}
+	}
+
 }
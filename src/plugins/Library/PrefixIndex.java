@@ -0,0 +1,25 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library;
+
+import plugins.Library.util.exec.Execution;
+
+import java.util.SortedSet;
+
+/**
+** Represents an index which can list the terms it contains that start with a
+** given prefix, eg. for wildcard searches and suggesting completions.
+*/
+public interface PrefixIndex extends Index {
+
+	/**
+	** Non-blocking fetch of the terms starting with the given prefix, in
+	** order.
+	**
+	** @param prefix The prefix
+	** @param limit If positive, return at most this many terms
+	*/
+	public Execution<SortedSet<String>> getTerms(String prefix, int limit);
+
+}
@@ -0,0 +1,28 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library;
+
+import plugins.Library.index.TermEntry;
+import plugins.Library.util.exec.Execution;
+
+import java.util.Set;
+
+/**
+** Represents an index which keeps the entries of a term in order of relevance,
+** so that the most relevant ones can be fetched without loading the rest, eg.
+** for a search which only shows the best few results.
+*/
+public interface RankedIndex extends Index {
+
+	/**
+	** Non-blocking fetch of the most relevant entries associated with a given
+	** term.
+	**
+	** @param term The term
+	** @param limit If positive, return at most this many entries, the most
+	**        relevant first; otherwise return all of them
+	*/
+	public Execution<Set<TermEntry>> getTermEntries(String term, int limit);
+
+}
@@ -13,26 +13,45 @@ import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.SortedMap;
 import java.util.SortedSet;
+import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 
+import plugins.Library.client.BlockCache;
 import plugins.Library.client.FreenetArchiver;
 import plugins.Library.index.ProtoIndex;
 import plugins.Library.index.ProtoIndexComponentSerialiser;
 import plugins.Library.index.ProtoIndexSerialiser;
 import plugins.Library.index.TermEntry;
 import plugins.Library.index.TermEntryReaderWriter;
+import plugins.Library.index.TermEntrySorter;
+import plugins.Library.index.TermPageEntry;
+import plugins.Library.index.URIEntry;
+import plugins.Library.index.URIKey;
+import plugins.Library.io.serial.Packer;
 import plugins.Library.io.serial.LiveArchiver;
 import plugins.Library.io.serial.Serialiser.PullTask;
 import plugins.Library.io.serial.Serialiser.PushTask;
+import plugins.Library.util.DataNotLoadedException;
 import plugins.Library.util.SkeletonBTreeMap;
+import plugins.Library.util.SkeletonSortedMap;
 import plugins.Library.util.SkeletonBTreeSet;
 import plugins.Library.util.TaskAbortExceptionConvertor;
+import plugins.Library.util.concurrent.PipelineStage;
 import plugins.Library.util.exec.SimpleProgress;
 import plugins.Library.util.exec.TaskAbortException;
 import plugins.Library.util.func.Closure;
@@ -55,9 +74,52 @@ import freenet.support.io.LineReadingInputStream;
 
 public class SpiderIndexUploader {
 	
-	SpiderIndexUploader(PluginRespirator pr) {
+	SpiderIndexUploader(final PluginRespirator pr) {
 		this.pr = pr;
 		spiderIndexURIs = new SpiderIndexURIs(pr);
+		Executor exec = new Executor() {
+			public void execute(Runnable r) {
+				pr.getNode().executor.execute(r, r.toString());
+			}
+		};
+		diskStage = new PipelineStage<Bucket>("merge to disk", MAX_HANDLING_COUNT, 1, exec) {
+			protected void process(List<Bucket> batch) {
+				for(Bucket data : batch)
+					mergeToDisk(data);
+			}
+			protected void failed(List<Bucket> batch, Throwable t) {
+				Logger.error(this, "Merge to disk failed: ", t);
+				setPushBroken();
+			}
+		};
+		freenetStage = new PipelineStage<DiskIndex>("merge to Freenet", MAX_DISK_INDEXES_QUEUED, 1, exec) {
+			protected List<DiskIndex> takeBatch(LinkedList<DiskIndex> q) {
+				return coalesce(q);
+			}
+			protected void process(List<DiskIndex> batch) {
+				mergeToFreenet(batch);
+				if(!isPushBroken())
+					lastMergedToFreenet = System.currentTimeMillis();
+			}
+			protected void failed(List<DiskIndex> batch, Throwable t) {
+				Logger.error(this, "Merge to Freenet failed: ", t);
+				t.printStackTrace();
+				setPushBroken();
+			}
+		};
+		uskStage = new PipelineStage<FreenetURI>("publish USK", 2, 1, exec) {
+			protected List<FreenetURI> takeBatch(LinkedList<FreenetURI> q) {
+				// Only the newest root matters; older ones are superseded.
+				List<FreenetURI> batch = new ArrayList<FreenetURI>(q);
+				q.clear();
+				return batch;
+			}
+			protected void process(List<FreenetURI> batch) {
+				if(batch.size() > 1)
+					Logger.normal(this, "Skipping "+(batch.size()-1)+" superseded USK updates");
+				uploadUSKForFreenetIndex(batch.get(batch.size()-1));
+			}
+		};
 	}
 	
 	static boolean logMINOR;
@@ -67,16 +129,34 @@ public class SpiderIndexUploader {
 	
 	private final PluginRespirator pr;
 	private Object freenetMergeSync = new Object();
-	private boolean freenetMergeRunning = false;
-	private boolean diskMergeRunning = false;
 	
-	private final ArrayList<Bucket> toMergeToDisk = new ArrayList<Bucket>();
+	/* The upload is a pipeline of bounded stages. Each stage blocks the one before it when its
+	 * queue is full, and keeps counters so we can see where the backlog is:
+	 * 1. ingest: handlePushBuffer() backs up each bucket from Spider to disk, on Spider's thread.
+	 * 2. diskStage: merges buckets into the on-disk index idxDisk, one at a time.
+	 * 3. freenetStage: merges full on-disk indexes into the on-Freenet index. Several can be
+	 *    queued, and small ones are merged together before the new root is uploaded.
+	 * 4. uskStage: points the USK at the newest root. */
+	
+	/** Merges buckets of data from Spider into idxDisk. Single-threaded, as idxDisk is. */
+	private final PipelineStage<Bucket> diskStage;
+	/** Merges on-disk indexes into idxFreenet. Single-threaded, as idxFreenet is. */
+	private final PipelineStage<DiskIndex> freenetStage;
+	/** Inserts the USK redirect to the latest uploaded root. */
+	private final PipelineStage<FreenetURI> uskStage;
+	
+	/** Maximum number of buckets waiting to be merged to disk before we block Spider. */
 	static final int MAX_HANDLING_COUNT = 5; 
+	/** Maximum number of full on-disk indexes waiting to be merged to Freenet before we stop
+	 * merging to disk. */
+	static final int MAX_DISK_INDEXES_QUEUED = 4;
 	// When pushing is broken, allow max handling to reach this level before stalling forever to prevent running out of disk space.
 	private int PUSH_BROKEN_MAX_HANDLING_COUNT = 10;
 	// Don't use too much disk space, take into account fact that Spider slows down over time.
 	
 	private boolean pushBroken;
+	/** Number of buckets received since pushing broke. */
+	private int pushedWhileBroken;
 	
 	/** The temporary on-disk index. We merge stuff into this until it exceeds a threshold size, then
 	 * we create a new diskIdx and merge the old one into the idxFreenet. */
@@ -101,6 +181,11 @@ public class SpiderIndexUploader {
 	/** Like pushNumber, the number of the current disk dir, used to create idxDiskDir. */
 	private int dirNumber;
 	static final String DISK_DIR_PREFIX = "library-temp-index-";
+	/** Directory for the sorted runs of entries read from a push bucket. */
+	static final String SORT_DIR = "library-temp-sort";
+	/** Maximum number of entries read from a push bucket to hold in memory. Beyond this,
+	 * they are written to sorted runs in SORT_DIR and merged back term by term. */
+	static final int MAX_BUFFERED_ENTRIES = 100*1000;
 	/** Directory the current idxDisk is saved in. */
 	File idxDiskDir;
 	private int mergedToDisk;
@@ -123,62 +208,108 @@ public class SpiderIndexUploader {
 	
 	static final String BASE_FILENAME_PUSH_DATA = "library.index.data.";
 	
-	/** Merge from the Bucket chain to the on-disk idxDisk. */
-	protected void wrapMergeToDisk() {
-		spiderIndexURIs.loadSSKURIs();
-		boolean first = true;
-		while(true) {
-		final Bucket data;
-		synchronized(freenetMergeSync) {
-			if(pushBroken) {
-				Logger.error(this, "Pushing broken");
-				return;
-			}
-			if(first && diskMergeRunning) {
-				Logger.error(this, "Already running a handler!");
-				return;
-			} else if((!first) && (!diskMergeRunning)) {
-				Logger.error(this, "Already running yet runningHandler is false?!");
-				return;
-			}
-			first = false;
-			if(toMergeToDisk.size() == 0) {
-				if(logMINOR) Logger.minor(this, "Nothing to handle");
-				diskMergeRunning = false;
-				freenetMergeSync.notifyAll();
-				return;
-			}
-			data = toMergeToDisk.remove(0);
-			freenetMergeSync.notifyAll();
-			diskMergeRunning = true;
+	/** If this file exists, the uri table is filled in; see fillURITable. */
+	static final String FILL_URI_TABLE_FILENAME = "library.index.fill-uri-table";
+	
+	/** Whether to fill in the uri table with the terms of each page merged. This is off by
+	 * default, since it inserts a second tree on every merge: a merge then also pulls and
+	 * pushes the uri table nodes for every page in it, not just the term nodes. It lets pages be
+	 * dropped without reading every term, and filtered lookups skip pages cheaply; without it,
+	 * both still work, through the term trees. Set from FILL_URI_TABLE_FILENAME on start(), and
+	 * by handleURITable(). */
+	private volatile boolean fillURITable;
+	
+	/** Pages waiting to be dropped from the on-Freenet index, one URI per line. */
+	static final String DROP_PAGES_FILENAME = "library.index.drop-pages";
+	
+	/** Pages to drop from the on-Freenet index on the next merge. Protected by freenetMergeSync,
+	 * and saved to DROP_PAGES_FILENAME so they are still dropped after a restart. */
+	private final Set<FreenetURI> pagesToDrop = new HashSet<FreenetURI>();
+	
+	/** Whether DROP_PAGES is queued and its merge hasn't taken pagesToDrop yet, so more pages to
+	 * drop can wait for it rather than queueing another. Protected by freenetMergeSync. */
+	private boolean dropQueued;
+	
+	/** Maximum size of the on-disk cache of blocks uploaded to Freenet. Blocks belonging to 
+	 * the index currently being uploaded are kept even if this is exceeded. */
+	static final long CACHE_MAX_SIZE = 4L*1024*1024*1024;
+	
+	/** An on-disk index waiting to be merged to Freenet, or DROP_PAGES. */
+	private static class DiskIndex {
+		/** The index, or null if it has to be loaded from dir. */
+		final ProtoIndex index;
+		final File dir;
+		DiskIndex(ProtoIndex index, File dir) {
+			this.index = index;
+			this.dir = dir;
 		}
-		try {
-			mergeToDisk(data);
-		} catch (Throwable t) {
-			// Failed.
-			synchronized(freenetMergeSync) {
-				diskMergeRunning = false;
-				pushBroken = true;
-				freenetMergeSync.notifyAll();
-			}
-			if(t instanceof RuntimeException)
-				throw (RuntimeException)t;
-			if(t instanceof Error)
-				throw (Error)t;
+		/** Number of terms, or -1 if not loaded yet. */
+		long size() {
+			if(dir == null) return 0;
+			return index == null ? -1 : index.ttab.size();
+		}
+		public String toString() {
+			return dir == null ? "(drop pages)" : dir.toString();
+		}
+	}
+	
+	/** Queued to make the Freenet stage run a merge for pagesToDrop, even if there is no new data
+	 * from Spider. It doesn't carry the pages itself: each merge drops whatever is pending. */
+	private static final DiskIndex DROP_PAGES = new DiskIndex(null, null);
+	
+	/** Take the next on-disk indexes to merge to Freenet: as many as will fit in MAX_TERMS
+	 * together, or just one if it is big or isn't loaded yet. */
+	private static List<DiskIndex> coalesce(LinkedList<DiskIndex> q) {
+		List<DiskIndex> batch = new ArrayList<DiskIndex>();
+		long total = 0;
+		while(!q.isEmpty()) {
+			long size = q.getFirst().size();
+			if(!batch.isEmpty() && (size < 0 || total + size > MAX_TERMS)) break;
+			batch.add(q.removeFirst());
+			if(size < 0) break;
+			total += size;
 		}
+		if(batch.size() > 1)
+			Logger.normal(SpiderIndexUploader.class, "Merging "+batch.size()+" disk indexes to Freenet together: "+batch);
+		return batch;
+	}
+	
+	private boolean isPushBroken() {
+		synchronized(freenetMergeSync) {
+			return pushBroken;
 		}
 	}
+	
+	/** Something went wrong that we can't recover from without a restart. Stop processing; data
+	 * received from now on is still backed up to disk, and will be merged after a restart. */
+	private void setPushBroken() {
+		synchronized(freenetMergeSync) {
+			pushBroken = true;
+			freenetMergeSync.notifyAll();
+		}
+		diskStage.close();
+		freenetStage.close();
+	}
+	
+	/** Status of each stage of the upload pipeline, for logging. */
+	public String getPipelineStatus() {
+		return diskStage+", "+freenetStage+", "+uskStage;
+	}
 
 	// This is a member variable because it is huge, and having huge stuff in local variables seems to upset the default garbage collector.
 	// It doesn't need to be synchronized because it's always used from mergeToDisk, which never runs in parallel.
-	private Map<String, SortedSet<TermEntry>> newtrees;
+	// Only MAX_BUFFERED_ENTRIES of the entries are held in memory; the rest are sorted on disk.
+	private TermEntrySorter newtrees;
 	// Ditto
 	private SortedSet<String> terms;
+	// The terms of each page whose entries have been taken from newtrees, for the uri table, or
+	// null if fillURITable is off. Synchronized on itself, since terms are merged in parallel.
+	private Map<FreenetURI, Set<String>> newpages;
 	
 	ProtoIndexSerialiser srlDisk = null;
 	private ProtoIndexComponentSerialiser leafsrlDisk;
 	
-	private long lastMergedToFreenet = -1;
+	private volatile long lastMergedToFreenet = -1;
 	
 	/** Merge a bucket of TermEntry's into an on-disk index. */
 	private void mergeToDisk(Bucket data) {
@@ -197,10 +328,7 @@ public class SpiderIndexUploader {
 		
 		if(terms.size() == 0) {
 			Logger.debug(this, "Nothing to merge");
-			synchronized(this) {
-				newtrees = null;
-				terms = null;
-			}
+			releaseNewTrees();
 			return;
 		}
 		
@@ -222,11 +350,8 @@ public class SpiderIndexUploader {
 				idxDisk.ttab.update(terms, null, clo, new TaskAbortExceptionConvertor());
 			
 			}		
-			// Synchronize anyway so garbage collector knows about it.
-			synchronized(this) {
-				newtrees = null;
-				terms = null;
-			}
+			mergeURIsToDisk();
+			releaseNewTrees();
 			assert(idxDisk.ttab.isBare());
 			PushTask<ProtoIndex> task4 = new PushTask<ProtoIndex>(idxDisk);
 			srlDisk.push(task4);
@@ -245,11 +370,27 @@ public class SpiderIndexUploader {
 			
 			maybeMergeToFreenet(maxDiskEntrySizeExceeded);
 		} catch (TaskAbortException e) {
+			releaseNewTrees();
 			Logger.error(this, "Failed to upload index for spider: ", e);
 			e.printStackTrace();
-			synchronized(freenetMergeSync) {
-				pushBroken = true;
+			setPushBroken();
+		}
+	}
+
+	/** Forget the data read by readTermsFrom, and delete any temporary files holding it. */
+	private void releaseNewTrees() {
+		// Synchronize anyway so garbage collector knows about it.
+		synchronized(this) {
+			if(newtrees != null) {
+				try {
+					newtrees.close();
+				} catch (IOException e) {
+					Logger.error(this, "Failed to delete sorted runs in "+newtrees.dir+" : "+e, e);
+				}
 			}
+			newtrees = null;
+			terms = null;
+			newpages = null;
 		}
 	}
 
@@ -284,46 +425,13 @@ public class SpiderIndexUploader {
             idxDiskDir = null;
             lastDiskIndexName = null;
             
-        synchronized(freenetMergeSync) {
-            while(freenetMergeRunning) {
-                if(pushBroken) return;
-                Logger.normal(this, "Need to merge to Freenet, but last merge not finished yet. Waiting...");
-                try {
-                    freenetMergeSync.wait();
-                } catch (InterruptedException e) {
-                    // Ignore
-                }
-            }
-            if(pushBroken) return;
-            freenetMergeRunning = true;
-        }
-        
-        Runnable r = new Runnable() {
-            
-            public void run() {
-                try {
-                    mergeToFreenet(diskToMerge, dir);
-                } catch (Throwable t) {
-                    Logger.error(this, "Merge to Freenet failed: ", t);
-                    t.printStackTrace();
-                    synchronized(freenetMergeSync) {
-                        pushBroken = true;
-                    }
-                } finally {
-                    synchronized(freenetMergeSync) {
-                        freenetMergeRunning = false;
-                        if(!pushBroken)
-                            lastMergedToFreenet = System.currentTimeMillis();
-                        freenetMergeSync.notifyAll();
-                    }
-                }
-            }
-            
-        };
-        pr.getNode().executor.execute(r, "Library: Merge data from disk to Freenet");
+        // Queue it for the Freenet merge. This only blocks if several are already waiting.
+        if(!freenetStage.put(new DiskIndex(diskToMerge, dir)))
+            Logger.error(this, "Pushing broken or interrupted, not merging "+dir+" to Freenet until restart");
         } else {
             Logger.debug(this, "Not merging to Freenet yet: "+idxDisk.ttab.size()+" terms in index, "+mergedToDisk+" merges, "+(lastMergedToFreenet <= 0 ? "never merged to Freenet" : ("last merged to Freenet "+TimeUtil.formatTime(System.currentTimeMillis() - lastMergedToFreenet))+"ago"));
         }
+        Logger.normal(this, "Upload pipeline: "+getPipelineStatus());
     }
 
     private boolean writeURITo(File filename, FreenetURI uri) {
@@ -399,14 +507,13 @@ public class SpiderIndexUploader {
                     entry.setValue(tree = makeEntryTree(leafsrlDisk));
                 }
                 assert(tree.isBare());
-                SortedSet<TermEntry> toMerge = newtrees.get(key);
+                SortedSet<TermEntry> toMerge = takeNewEntries(key);
                 tree.update(toMerge, null);
                 if(toMerge.size() > MAX_DISK_ENTRY_SIZE)
                     synchronized(maxDiskEntrySizeExceeded) {
                         maxDiskEntrySizeExceeded.value = true;
                     }
                 toMerge = null;
-                newtrees.remove(key);
                 assert(tree.isBare());
                 if(logMINOR) Logger.minor(this, "Updated: "+key+" : "+tree);
                 //System.out.println("handled " + key);
@@ -425,7 +532,7 @@ public class SpiderIndexUploader {
         // FIXME throw in update() if it will deadlock.
         for(String key : terms) {
             SkeletonBTreeSet<TermEntry> tree = makeEntryTree(leafsrlDisk);
-            SortedSet<TermEntry> toMerge = newtrees.get(key);
+            SortedSet<TermEntry> toMerge = takeNewEntries(key);
             tree.addAll(toMerge);
             if(toMerge.size() > MAX_DISK_ENTRY_SIZE)
                 tooBig = true;
@@ -438,14 +545,101 @@ public class SpiderIndexUploader {
         return tooBig;
     }
 
+    /** Get the new entries for a term from newtrees, which then forgets them.
+     * @throws TaskAbortException If they can't be read back from disk. */
+    private SortedSet<TermEntry> takeNewEntries(String key) throws TaskAbortException {
+        try {
+            SortedSet<TermEntry> toMerge = newtrees.take(key);
+            if(toMerge == null)
+                throw new TaskAbortException("No new entries for term "+key, new IllegalStateException("term read twice: "+key));
+            if(newpages != null) synchronized(newpages) {
+                for(TermEntry e : toMerge) {
+                    if(!(e instanceof TermPageEntry)) continue;
+                    FreenetURI page = ((TermPageEntry)e).page;
+                    Set<String> t = newpages.get(page);
+                    if(t == null) newpages.put(page, t = new HashSet<String>());
+                    t.add(key);
+                }
+            }
+            return toMerge;
+        } catch (IOException e) {
+            throw new TaskAbortException("Failed to read new entries for term "+key, e);
+        }
+    }
+
+    /** Add the pages of the entries just merged to the uri table of the on-disk index, with the
+     * terms they were merged under, so that a page's terms can be found without visiting every
+     * term. As for the terms, a page which is already in the table keeps its old terms too.
+     * @throws TaskAbortException If something broke catastrophically. */
+    private void mergeURIsToDisk() throws TaskAbortException {
+        if(newpages == null) return;
+        final SortedMap<URIKey, Map<FreenetURI, Set<String>>> keys = groupByKey(newpages);
+        if(keys.isEmpty()) return;
+        Logger.debug(this, "Merging "+newpages.size()+" pages under "+keys.size()+" keys to disk");
+        if(idxDisk.utab.isEmpty()) {
+            // DON'T MERGE, as in createDiskIndex().
+            for(Map.Entry<URIKey, Map<FreenetURI, Set<String>>> en : keys.entrySet()) {
+                SkeletonBTreeMap<FreenetURI, URIEntry> tree = makeURITree(leafsrlDisk);
+                mergeURIs(tree, en.getValue());
+                tree.deflate();
+                idxDisk.utab.put(en.getKey(), tree);
+            }
+            idxDisk.utab.deflate();
+        } else {
+            idxDisk.utab.update(new TreeSet<URIKey>(keys.keySet()), null, new
+            Closure<Map.Entry<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>>, TaskAbortException>() {
+                /*@Override**/ public void invoke(Map.Entry<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>> entry) throws TaskAbortException {
+                    SkeletonBTreeMap<FreenetURI, URIEntry> tree = entry.getValue();
+                    if(tree == null) {
+                        entry.setValue(tree = makeURITree(leafsrlDisk));
+                    } else {
+                        tree.inflate();
+                    }
+                    mergeURIs(tree, keys.get(entry.getKey()));
+                    tree.deflate();
+                    assert(tree.isBare());
+                }
+            }, new TaskAbortExceptionConvertor());
+        }
+        assert(idxDisk.utab.isBare());
+    }
+
+    /** Group pages by their key in the uri table. Pages which can't have a key, such as those
+     * which aren't CHKs, SSKs, USKs or KSKs, are left out. */
+    private SortedMap<URIKey, Map<FreenetURI, Set<String>>> groupByKey(Map<FreenetURI, Set<String>> pages) {
+        SortedMap<URIKey, Map<FreenetURI, Set<String>>> keys = new TreeMap<URIKey, Map<FreenetURI, Set<String>>>();
+        for(Map.Entry<FreenetURI, Set<String>> en : pages.entrySet()) {
+            URIKey key = ProtoIndex.keyOf(en.getKey());
+            if(key == null) {
+                if(logMINOR) Logger.minor(this, "Not adding page to the uri table: "+en.getKey());
+                continue;
+            }
+            Map<FreenetURI, Set<String>> same = keys.get(key);
+            if(same == null) keys.put(key, same = new HashMap<FreenetURI, Set<String>>());
+            same.put(en.getKey(), en.getValue());
+        }
+        return keys;
+    }
+
+    /** Add the given terms to the entries of the given pages, which must be loaded. */
+    private static void mergeURIs(SkeletonBTreeMap<FreenetURI, URIEntry> tree, Map<FreenetURI, Set<String>> pages) {
+        for(Map.Entry<FreenetURI, Set<String>> en : pages.entrySet()) {
+            URIEntry u = tree.get(en.getKey());
+            if(u == null) tree.put(en.getKey(), u = new URIEntry(en.getKey()));
+            u.getTerms().addAll(en.getValue());
+        }
+    }
+
     /** Read the TermEntry's from the Bucket into newtrees and terms, and set up the index
-	 * properties.
-	 * @param data The Bucket containing TermPageEntry's etc serialised with TermEntryReaderWriter.
+	 * properties. Entries are spilled to sorted runs on disk once there are more than
+	 * MAX_BUFFERED_ENTRIES of them, so memory use doesn't grow with the size of the push.
+	 * @param data The Bucket containing TermPageEntry's etc serialised with TermEntryReaderWriter,
+	 * either one at a time or as a TermEntryReaderWriter.StreamWriter stream.
 	 */
     private long readTermsFrom(Bucket data) {
         FileWriter w = null;
-        newtrees = new HashMap<String, SortedSet<TermEntry>>();
-        terms = new TreeSet<String>();
+        newtrees = new TermEntrySorter(new File(SORT_DIR), MAX_BUFFERED_ENTRIES);
+        newpages = fillURITable ? new HashMap<FreenetURI, Set<String>>() : null;
         int entriesAdded = 0;
         InputStream is = null;
         try {
@@ -457,13 +651,12 @@ public class SpiderIndexUploader {
             idxDisk.setOwner(fs.get("index.owner.name"));
             idxDisk.setTotalPages(fs.getLong("totalPages", -1));
             try{
+                // Either the compact format, or the original one entry at a time
+                TermEntryReaderWriter.StreamReader reader = new TermEntryReaderWriter.StreamReader(is);
+                Logger.normal(this, "Reading terms in stream format version "+reader.version);
                 while(true){    // Keep going til an EOFExcepiton is thrown
-                    TermEntry readObject = TermEntryReaderWriter.getInstance().readObject(is);
-                    SortedSet<TermEntry> set = newtrees.get(readObject.subj);
-                    if(set == null)
-                        newtrees.put(readObject.subj, set = new TreeSet<TermEntry>());
-                    set.add(readObject);
-                    terms.add(readObject.subj);
+                    TermEntry readObject = reader.readObject();
+                    newtrees.add(readObject);
                     entriesAdded++;
                 }
             }catch(EOFException e){
@@ -474,6 +667,16 @@ public class SpiderIndexUploader {
         } finally {
             Closer.close(is);
         }
+        // As before, merge whatever we managed to read.
+        try {
+            newtrees.finish();
+            terms = newtrees.terms();
+            if(newtrees.isSpilled())
+                Logger.normal(this, entriesAdded+" entries in "+terms.size()+" terms sorted on disk in "+SORT_DIR);
+        } catch (IOException ex) {
+            Logger.error(this, "Failed to sort new entries: "+ex, ex);
+            terms = new TreeSet<String>();
+        }
         return entriesAdded;
     }
 
@@ -485,10 +688,8 @@ public class SpiderIndexUploader {
         Logger.normal(this, "Created new disk dir for merging: "+idxDiskDir);
         if(!(idxDiskDir.mkdir() || idxDiskDir.isDirectory())) {
             Logger.error(this, "Unable to create new disk dir: "+idxDiskDir);
-            synchronized(this) {
-                pushBroken = true;
-                return false;
-            }
+            setPushBroken();
+            return false;
         }
         return true;
     }
@@ -503,12 +704,11 @@ public class SpiderIndexUploader {
             leafsrlDisk = ProtoIndexComponentSerialiser.get(ProtoIndexComponentSerialiser.FMT_FILE_LOCAL, archiver);
             if(lastDiskIndexName == null) {
                 try {
-                    idxDisk = new ProtoIndex(new FreenetURI("CHK@"), "test", null, null, 0L);
+                    // FIXME more hacks: It's essential that we use the same FileArchiver instance here.
+                    idxDisk = new ProtoIndex(new FreenetURI("CHK@"), "test", null, null, 0L, leafsrlDisk);
                 } catch (java.net.MalformedURLException e) {
                     throw new AssertionError(e);
                 }
-                // FIXME more hacks: It's essential that we use the same FileArchiver instance here.
-                leafsrlDisk.setSerialiserFor(idxDisk);
             } else {
                 try {
                     PullTask<ProtoIndex> pull = new PullTask<ProtoIndex>(lastDiskIndexName);
@@ -521,9 +721,7 @@ public class SpiderIndexUploader {
                 } catch (TaskAbortException e) {
                     Logger.error(this, "Failed to download previous index for spider update: "+e, e);
                     e.printStackTrace();
-                    synchronized(freenetMergeSync) {
-                        pushBroken = true;
-                    }
+                    setPushBroken();
                     return false;
                 }
             }
@@ -535,9 +733,10 @@ public class SpiderIndexUploader {
 	
 	private ProtoIndexComponentSerialiser leafsrl;
 	
-	/** Merge a disk dir to an on-Freenet index. Usually called on startup, i.e. we haven't just
-	 * created the on-disk index so we need to setup the ProtoIndex etc. */
-	protected void mergeToFreenet(File diskDir) {
+	/** Load an on-disk index from a disk dir. Usually called on startup, i.e. we haven't just
+	 * created the on-disk index so we need to setup the ProtoIndex etc.
+	 * @return The index, or null if there is nothing to merge or it can't be loaded. */
+	protected ProtoIndex loadDiskIndex(File diskDir) {
 		ProtoIndexSerialiser s = ProtoIndexSerialiser.forIndex(diskDir);
 		LiveArchiver<Map<String,Object>,SimpleProgress> archiver = 
 			(LiveArchiver<Map<String,Object>,SimpleProgress>)(s.getChildSerialiser());
@@ -547,11 +746,11 @@ public class SpiderIndexUploader {
             if(diskDir.list().length == 0) {
                 Logger.debug(this, "Directory "+diskDir+" is empty. Nothing to merge.");
                 diskDir.delete();
-                return;
+                return null;
             }
             // Ignore
             Logger.error(this, "Unable to merge old data "+diskDir);
-            return;
+            return null;
 		} else {
             Logger.debug(this, "Continuing old bucket: "+f);
 		}
@@ -568,56 +767,68 @@ public class SpiderIndexUploader {
 		} catch (TaskAbortException e) {
 			Logger.error(this, "Failed to download previous index for spider update: "+e, e);
 			e.printStackTrace();
-			synchronized(freenetMergeSync) {
-				pushBroken = true;
-			}
-			return;
+			setPushBroken();
+			return null;
 		}
-		mergeToFreenet(idxDisk, diskDir);
+		return idxDisk;
 	}
 
 	private final Object inflateSync = new Object();
 	
-	/** Merge from an on-disk index to an on-Freenet index.
-	 * @param diskToMerge The on-disk index.
-	 * @param diskDir The folder the on-disk index is stored in.
+	/** Merge one or more on-disk indexes to the on-Freenet index, then upload the new root and
+	 * queue the USK update. Merging several small indexes together means we only upload the
+	 * upper levels of the tree, and wait for the inserts, once.
+	 * @param batch The on-disk indexes, and the folders they are stored in.
 	 */
-	protected void mergeToFreenet(ProtoIndex diskToMerge, File diskDir) {
-	    Logger.debug(this, "Merging on-disk index to Freenet: "+diskDir);
+	protected void mergeToFreenet(List<DiskIndex> batch) {
+	    Logger.debug(this, "Merging on-disk indexes to Freenet: "+batch);
 		if(lastUploadURI == null) {
 		    lastUploadURI = readURIFrom(new File(LAST_URL_FILENAME));
 		}
 		setupFreenetCacheDir();
-		
+		// Pin every block we touch while producing the new root, so the
+		// cache can't evict them while we still need them.
+		BlockCache cache = FreenetArchiver.getCache();
+		if(cache != null) cache.startPinning();
+		try {
+		    mergeToFreenet(batch, cache);
+		} finally {
+		    if(cache != null) cache.finishPinning();
+		}
+	}
+
+	/** The part of {@link #mergeToFreenet(List)} done while the blocks in the cache are pinned. */
+	private void mergeToFreenet(List<DiskIndex> batch, BlockCache cache) {
 		makeFreenetSerialisers();
-			
-		updateOverallMetadata(diskToMerge);
-		
-		final SkeletonBTreeMap<String, SkeletonBTreeSet<TermEntry>> newtrees = diskToMerge.ttab;
+		if(isPushBroken()) return;
 		
-		// Do the upload
+		Set<FreenetURI> drop;
+		synchronized(freenetMergeSync) {
+		    drop = new HashSet<FreenetURI>(pagesToDrop);
+		    // pages added from now on need another merge
+		    dropQueued = false;
+		}
 		
-		// async merge
-		Closure<Map.Entry<String, SkeletonBTreeSet<TermEntry>>, TaskAbortException> clo =
-		    createMergeFromTreeClosure(newtrees);
+		List<File> merged = new ArrayList<File>(batch.size());
 		try {
 		    long mergeStartTime = System.currentTimeMillis();
-		    assert(idxFreenet.ttab.isBare());
-			Iterator<String> it =
-				diskToMerge.ttab.keySetAutoDeflate().iterator();
-			TreeSet<String> terms = new TreeSet<String>();
-			while(it.hasNext()) terms.add(it.next());
-			Logger.debug(this, "Merging "+terms.size()+" terms from disk to Freenet...");
-			assert(terms.size() == diskToMerge.ttab.size());
-			assert(idxFreenet.ttab.isBare());
-			assert(diskToMerge.ttab.isBare());
-			long entriesAdded = terms.size();
-			// Run the actual merge.
-			idxFreenet.ttab.update(terms, null, clo, new TaskAbortExceptionConvertor());
-			assert(idxFreenet.ttab.isBare());
-			// Deflate the main tree.
-			newtrees.deflate();
-			assert(diskToMerge.ttab.isBare());
+		    long entriesAdded = 0;
+		    for(DiskIndex d : batch) {
+		        if(d.dir == null) continue; // DROP_PAGES
+		        ProtoIndex diskToMerge = (d.index != null) ? d.index : loadDiskIndex(d.dir);
+		        if(isPushBroken()) return;
+		        if(diskToMerge == null) continue;
+		        entriesAdded += mergeToFreenet(diskToMerge, d.dir);
+		        merged.add(d.dir);
+		    }
+		    long entriesDropped = 0;
+		    if(!drop.isEmpty()) {
+		        entriesDropped = dropFromFreenet(drop);
+		        if(isPushBroken()) return;
+		    }
+		    if(merged.isEmpty() && drop.isEmpty()) {
+		        return;
+		    }
 			
 			// Push the top node to a CHK.
 			PushTask<ProtoIndex> task4 = new PushTask<ProtoIndex>(idxFreenet);
@@ -630,30 +841,260 @@ public class SpiderIndexUploader {
 			arch.waitForAsyncInserts();
 			
 			long mergeEndTime = System.currentTimeMillis();
-			Logger.debug(this, entriesAdded + " entries merged in " + (mergeEndTime-mergeStartTime) + " ms, root at " + task4.meta + ", ");
+			Logger.debug(this, entriesAdded + " entries merged and " + entriesDropped + " dropped in " + (mergeEndTime-mergeStartTime) + " ms, root at " + task4.meta + ", ");
 			FreenetURI uri = (FreenetURI)task4.meta;
 			lastUploadURI = uri;
 			Logger.debug(this, "Uploaded new index to "+uri);
 			if(writeURITo(new File(LAST_URL_FILENAME), uri)) {
-                newtrees.deflate();
-                diskToMerge = null;
-                terms = null;
-                Logger.debug(this, "Finished with disk index "+diskDir);
-                FileUtil.removeAll(diskDir);
+			    for(File diskDir : merged) {
+			        Logger.debug(this, "Finished with disk index "+diskDir);
+			        FileUtil.removeAll(diskDir);
+			    }
+			    forgetDroppedPages(drop);
 			}
 			
 			// Create the USK to redirect to the CHK at the top of the index.
-			uploadUSKForFreenetIndex(uri);
+			if(!uskStage.put(uri))
+			    Logger.error(this, "Could not queue the USK update to "+uri+", the next upload will include it");
+			
+			if(cache != null) {
+			    Logger.debug(this, "Disk cache after upload: "+cache);
+			}
 			
 		} catch (TaskAbortException e) {
 		    Logger.error(this, "Failed to upload index for spider: "+e, e);
 		    e.printStackTrace();
-		    synchronized(freenetMergeSync) {
-		        pushBroken = true;
-		    }
+		    setPushBroken();
 		}
 	}
 
+	/** Merge the terms from an on-disk index into the on-Freenet index. The new subtrees are
+	 * inserted asynchronously; the caller must push the root and wait for the inserts.
+	 * @param diskToMerge The on-disk index.
+	 * @param diskDir The folder the on-disk index is stored in.
+	 * @return The number of terms merged.
+	 */
+	private long mergeToFreenet(ProtoIndex diskToMerge, File diskDir) throws TaskAbortException {
+	    Logger.debug(this, "Merging on-disk index to Freenet: "+diskDir);
+		updateOverallMetadata(diskToMerge);
+		
+		final SkeletonSortedMap<String, SkeletonBTreeSet<TermEntry>> newtrees = diskToMerge.ttab;
+		
+		// async merge
+		Closure<Map.Entry<String, SkeletonBTreeSet<TermEntry>>, TaskAbortException> clo =
+		    createMergeFromTreeClosure(newtrees);
+	    assert(idxFreenet.ttab.isBare());
+		Iterator<String> it =
+			diskToMerge.ttab.keySetAutoDeflate().iterator();
+		TreeSet<String> terms = new TreeSet<String>();
+		while(it.hasNext()) terms.add(it.next());
+		Logger.debug(this, "Merging "+terms.size()+" terms from disk to Freenet...");
+		assert(terms.size() == diskToMerge.ttab.size());
+		assert(idxFreenet.ttab.isBare());
+		assert(diskToMerge.ttab.isBare());
+		// Run the actual merge.
+		idxFreenet.ttab.update(terms, null, clo, new TaskAbortExceptionConvertor());
+		assert(idxFreenet.ttab.isBare());
+		// Deflate the main tree.
+		newtrees.deflate();
+		assert(diskToMerge.ttab.isBare());
+		mergeURIsToFreenet(diskToMerge);
+		return terms.size();
+	}
+
+	/** Merge the uri table from an on-disk index into the on-Freenet index, in the same way as
+	 * the terms. The table is empty, and nothing is done, unless fillURITable was on when the
+	 * on-disk index was built.
+	 * @param diskToMerge The on-disk index.
+	 */
+	private void mergeURIsToFreenet(ProtoIndex diskToMerge) throws TaskAbortException {
+	    final SkeletonSortedMap<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>> newpages = diskToMerge.utab;
+	    TreeSet<URIKey> keys = new TreeSet<URIKey>();
+	    Iterator<URIKey> it = newpages.keySetAutoDeflate().iterator();
+	    while(it.hasNext()) keys.add(it.next());
+	    if(keys.isEmpty()) return;
+	    Logger.debug(this, "Merging "+keys.size()+" uri keys from disk to Freenet...");
+	    assert(idxFreenet.utab.isBare());
+	    idxFreenet.utab.update(keys, null, new
+	    Closure<Map.Entry<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>>, TaskAbortException>() {
+	        /*@Override**/ public void invoke(Map.Entry<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>> entry) throws TaskAbortException {
+	            URIKey key = entry.getKey();
+	            Map<FreenetURI, Set<String>> data = new HashMap<FreenetURI, Set<String>>();
+	            // Can't be run in parallel, see createMergeFromTreeClosure().
+	            synchronized(inflateSync) {
+	                newpages.inflate(key, true);
+	                SkeletonBTreeMap<FreenetURI, URIEntry> entries = newpages.get(key);
+	                entries.inflate();
+	                for(URIEntry u : entries.values())
+	                    data.put(u.getSubject(), new HashSet<String>(u.getTerms()));
+	                entries.deflate();
+	                assert(entries.isBare());
+	            }
+	            SkeletonBTreeMap<FreenetURI, URIEntry> tree = entry.getValue();
+	            if(tree == null) {
+	                entry.setValue(tree = makeURITree(leafsrl));
+	            } else {
+	                tree.inflate();
+	            }
+	            mergeURIs(tree, data);
+	            tree.deflate();
+	            assert(tree.isBare());
+	        }
+	    }, new TaskAbortExceptionConvertor());
+	    assert(idxFreenet.utab.isBare());
+	    newpages.deflate();
+	}
+
+	/** Remove all the entries for the given pages from the on-Freenet index. The terms a page was
+	 * indexed under are looked up in the uri table. For a page which isn't in the uri table, eg. one
+	 * merged before the table was filled in, we don't know its terms, so every term is read.
+	 * The term trees are first read without changing the index (see SkeletonSortedMap.scan()), to
+	 * find the entries to remove; only the terms which have such entries are then visited, in one
+	 * update pass over the main tree, and only the nodes of their trees which hold those entries
+	 * are pulled and pushed again. Terms which are left with no entries are then removed from the
+	 * main tree. The caller must push the root and wait for the inserts, as for a merge.
+	 * @param pages The pages to drop.
+	 * @return The number of entries removed.
+	 */
+	private long dropFromFreenet(final Set<FreenetURI> pages) throws TaskAbortException {
+	    Logger.normal(this, "Dropping "+pages.size()+" pages from the index on Freenet");
+	    assert(idxFreenet.ttab.isBare());
+	    TreeSet<String> terms = new TreeSet<String>();
+	    Set<FreenetURI> unlisted = dropURIsFromFreenet(pages, terms);
+	    if(!unlisted.isEmpty()) {
+	        Logger.normal(this, unlisted.size()+" pages to drop are not in the uri table, reading every term");
+	        terms = null;
+	    } else if(terms.isEmpty()) {
+	        return 0;
+	    }
+	    
+	    // find the entries to remove, without changing the index
+	    final SortedMap<String, SortedSet<TermEntry>> removals = new TreeMap<String, SortedSet<TermEntry>>();
+	    idxFreenet.ttab.scan(terms, new Closure<Map<String, SkeletonBTreeSet<TermEntry>>, TaskAbortException>() {
+	        /*@Override**/ public void invoke(Map<String, SkeletonBTreeSet<TermEntry>> trees) throws TaskAbortException {
+	            for(Map.Entry<String, SkeletonBTreeSet<TermEntry>> en : trees.entrySet()) {
+	                final SortedSet<TermEntry> remove = new TreeSet<TermEntry>();
+	                en.getValue().scan(new Closure<Collection<TermEntry>, TaskAbortException>() {
+	                    /*@Override**/ public void invoke(Collection<TermEntry> batch) {
+	                        for(TermEntry e : batch) {
+	                            if(e instanceof TermPageEntry && pages.contains(((TermPageEntry)e).page))
+	                                remove.add(e);
+	                        }
+	                    }
+	                });
+	                if(!remove.isEmpty()) removals.put(en.getKey(), remove);
+	            }
+	        }
+	    });
+	    assert(idxFreenet.ttab.isBare());
+	    if(removals.isEmpty()) {
+	        Logger.normal(this, "None of the "+pages.size()+" pages to drop have any entries");
+	        return 0;
+	    }
+	    
+	    final SortedSet<String> emptied = Collections.synchronizedSortedSet(new TreeSet<String>());
+	    final Set<FreenetURI> found = Collections.synchronizedSet(new HashSet<FreenetURI>());
+	    final AtomicLong dropped = new AtomicLong();
+	    Closure<Map.Entry<String, SkeletonBTreeSet<TermEntry>>, TaskAbortException> clo = new
+	    Closure<Map.Entry<String, SkeletonBTreeSet<TermEntry>>, TaskAbortException>() {
+	        /*@Override**/ public void invoke(Map.Entry<String, SkeletonBTreeSet<TermEntry>> entry) throws TaskAbortException {
+	            SkeletonBTreeSet<TermEntry> tree = entry.getValue();
+	            if(tree == null) return;
+	            SortedSet<TermEntry> remove = removals.get(entry.getKey());
+	            assert(tree.isBare());
+	            tree.update(new TreeSet<TermEntry>(), remove);
+	            assert(tree.isBare());
+	            dropped.addAndGet(remove.size());
+	            for(TermEntry e : remove)
+	                found.add(((TermPageEntry)e).page);
+	            if(tree.size() == 0)
+	                emptied.add(entry.getKey());
+	            if(logMINOR) Logger.minor(this, "Dropped "+remove.size()+" entries from term "+entry.getKey());
+	        }
+	    };
+	    idxFreenet.ttab.update(new TreeSet<String>(removals.keySet()), null, clo, new TaskAbortExceptionConvertor());
+	    assert(idxFreenet.ttab.isBare());
+	    if(!emptied.isEmpty()) {
+	        Logger.normal(this, "Removing "+emptied.size()+" terms with no entries left");
+	        idxFreenet.ttab.update(new TreeMap<String, SkeletonBTreeSet<TermEntry>>(), new TreeSet<String>(emptied));
+	        assert(idxFreenet.ttab.isBare());
+	    }
+	    idxFreenet.setTotalPages(Math.max(0, idxFreenet.getTotalPages() - found.size()));
+	    Logger.normal(this, "Dropped "+dropped.get()+" entries for "+found.size()+" of "+pages.size()+" pages");
+	    return dropped.get();
+	}
+
+	/** Remove the given pages from the uri table of the on-Freenet index.
+	 * @param pages The pages to drop.
+	 * @param terms Filled in with the terms the dropped pages were listed under.
+	 * @return The pages which were not in the table.
+	 */
+	private Set<FreenetURI> dropURIsFromFreenet(Set<FreenetURI> pages, final SortedSet<String> terms) throws TaskAbortException {
+	    final Set<FreenetURI> unlisted = Collections.synchronizedSet(new HashSet<FreenetURI>());
+	    final SortedMap<URIKey, Set<FreenetURI>> keys = new TreeMap<URIKey, Set<FreenetURI>>();
+	    for(FreenetURI page : pages) {
+	        URIKey key = ProtoIndex.keyOf(page);
+	        if(key == null) {
+	            unlisted.add(page);
+	            continue;
+	        }
+	        Set<FreenetURI> same = keys.get(key);
+	        if(same == null) keys.put(key, same = new HashSet<FreenetURI>());
+	        same.add(page);
+	    }
+	    // only visit the keys which are in the table
+	    for(Iterator<Map.Entry<URIKey, Set<FreenetURI>>> it = keys.entrySet().iterator(); it.hasNext();) {
+	        Map.Entry<URIKey, Set<FreenetURI>> en = it.next();
+	        if(containsKey(idxFreenet.utab, en.getKey())) continue;
+	        unlisted.addAll(en.getValue());
+	        it.remove();
+	    }
+	    idxFreenet.utab.deflate();
+	    if(keys.isEmpty()) return unlisted;
+	    final SortedSet<URIKey> emptied = Collections.synchronizedSortedSet(new TreeSet<URIKey>());
+	    assert(idxFreenet.utab.isBare());
+	    idxFreenet.utab.update(new TreeSet<URIKey>(keys.keySet()), null, new
+	    Closure<Map.Entry<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>>, TaskAbortException>() {
+	        /*@Override**/ public void invoke(Map.Entry<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>> entry) throws TaskAbortException {
+	            SkeletonBTreeMap<FreenetURI, URIEntry> tree = entry.getValue();
+	            Set<FreenetURI> drop = keys.get(entry.getKey());
+	            tree.inflate();
+	            for(FreenetURI page : drop) {
+	                URIEntry u = tree.remove(page);
+	                if(u == null) {
+	                    unlisted.add(page);
+	                } else {
+	                    synchronized(terms) {
+	                        terms.addAll(u.getTerms());
+	                    }
+	                }
+	            }
+	            if(tree.size() == 0) emptied.add(entry.getKey());
+	            tree.deflate();
+	            assert(tree.isBare());
+	        }
+	    }, new TaskAbortExceptionConvertor());
+	    assert(idxFreenet.utab.isBare());
+	    if(!emptied.isEmpty()) {
+	        idxFreenet.utab.update(new TreeMap<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>>(), new TreeSet<URIKey>(emptied));
+	        assert(idxFreenet.utab.isBare());
+	    }
+	    return unlisted;
+	}
+
+	/** Whether a skeleton map has the key, loading the nodes on the way to it. The caller must
+	 * deflate the map afterwards. */
+	@SuppressWarnings("unchecked")
+	private static <K> boolean containsKey(Map<K, ?> map, K key) throws TaskAbortException {
+	    for(;;) {
+	        try {
+	            return map.containsKey(key);
+	        } catch (DataNotLoadedException e) {
+	            e.getParent().inflate(e.getKey());
+	        }
+	    }
+	}
+
 	private void uploadUSKForFreenetIndex(FreenetURI uri) {
         FreenetURI privUSK = spiderIndexURIs.getPrivateUSK();
         try {
@@ -679,7 +1120,7 @@ public class SpiderIndexUploader {
 	 * @param newtrees The on-disk tree of trees to get data from.
 	 * @return
 	 */
-	private Closure<Entry<String, SkeletonBTreeSet<TermEntry>>, TaskAbortException> createMergeFromTreeClosure(final SkeletonBTreeMap<String, SkeletonBTreeSet<TermEntry>> newtrees) {
+	private Closure<Entry<String, SkeletonBTreeSet<TermEntry>>, TaskAbortException> createMergeFromTreeClosure(final SkeletonSortedMap<String, SkeletonBTreeSet<TermEntry>> newtrees) {
         return new
         Closure<Map.Entry<String, SkeletonBTreeSet<TermEntry>>, TaskAbortException>() {
             /*@Override**/ public void invoke(Map.Entry<String, SkeletonBTreeSet<TermEntry>> entry) throws TaskAbortException {
@@ -745,14 +1186,16 @@ public class SpiderIndexUploader {
             LiveArchiver<Map<String,Object>,SimpleProgress> archiver = 
                 (LiveArchiver<Map<String,Object>,SimpleProgress>)(srl.getChildSerialiser());
             leafsrl = ProtoIndexComponentSerialiser.get(ProtoIndexComponentSerialiser.FMT_DEFAULT, archiver);
+            // each merge changes only a few entries of each node, and every bin
+            // pushed again is another insert, so leave the untouched ones alone
+            leafsrl.setPackingStrategy(Packer.Strategy.LEAST_REWRITE);
             if(lastUploadURI == null) {
                 try {
-                    idxFreenet = new ProtoIndex(new FreenetURI("CHK@"), "test", null, null, 0L);
+                    // FIXME more hacks: It's essential that we use the same FreenetArchiver instance here.
+                    idxFreenet = new ProtoIndex(new FreenetURI("CHK@"), "test", null, null, 0L, leafsrl);
                 } catch (java.net.MalformedURLException e) {
                     throw new AssertionError(e);
                 }
-                // FIXME more hacks: It's essential that we use the same FreenetArchiver instance here.
-                leafsrl.setSerialiserFor(idxFreenet);
             } else {
                 try {
                     PullTask<ProtoIndex> pull = new PullTask<ProtoIndex>(lastUploadURI);
@@ -765,22 +1208,20 @@ public class SpiderIndexUploader {
                 } catch (TaskAbortException e) {
                     Logger.error(this, "Failed to download previous index for spider update: "+e, e);
                     e.printStackTrace();
-                    synchronized(freenetMergeSync) {
-                        pushBroken = true;
-                    }
+                    setPushBroken();
                     return;
                 }
             }
         }
     }
 
-    /** Set up the on-disk cache, which keeps a copy of everything we upload to Freenet, so we 
-	 * won't need to re-download it, which can be very slow and doesn't always succeed. */
+    /** Set up the on-disk cache, which keeps a copy of everything we upload to (or download 
+	 * from) Freenet, so we won't need to re-download it, which can be very slow and doesn't 
+	 * always succeed. It is limited to CACHE_MAX_SIZE bytes. */
     private void setupFreenetCacheDir() {
-        if(FreenetArchiver.getCacheDir() == null) {
+        if(FreenetArchiver.getCache() == null) {
             File dir = new File("library-spider-pushed-data-cache");
-            dir.mkdir();
-            FreenetArchiver.setCacheDir(dir);
+            FreenetArchiver.setCache(new BlockCache(dir, CACHE_MAX_SIZE));
         }
     }
 
@@ -790,7 +1231,15 @@ public class SpiderIndexUploader {
 		return tree;
 	}
 
+	protected static SkeletonBTreeMap<FreenetURI, URIEntry> makeURITree(ProtoIndexComponentSerialiser leafsrl) {
+		SkeletonBTreeMap<FreenetURI, URIEntry> tree = new SkeletonBTreeMap<FreenetURI, URIEntry>(ProtoIndex.BTREE_NODE_MIN);
+		leafsrl.setSerialiserFor(tree);
+		return tree;
+	}
+
 	public void start() {
+		fillURITable = new File(FILL_URI_TABLE_FILENAME).exists();
+		if(fillURITable) Logger.normal(this, "Filling in the uri table");
 		final String[] oldToMerge;
 		synchronized(freenetMergeSync) {
 			oldToMerge = new File(".").list(new FilenameFilter() {
@@ -821,59 +1270,122 @@ public class SpiderIndexUploader {
 				
 			});
 		}
+		// Work left over from the previous run goes in regardless of the queue limits.
 		if(oldToMerge != null && oldToMerge.length > 0) {
 			Logger.debug(this, "Found "+oldToMerge.length+" buckets of old index data to merge...");
-			Runnable r = new Runnable() {
-
-				public void run() {
-					synchronized(freenetMergeSync) {
-						for(String filename : oldToMerge) {
-							File f = new File(filename);
-							toMergeToDisk.add(new FileBucket(f, true, false, false, true));
-						}
-					}
-					wrapMergeToDisk();
-				}
-				
-			};
-			pr.getNode().executor.execute(r, "Library: handle index data from previous run");
+			for(String filename : oldToMerge) {
+				File f = new File(filename);
+				diskStage.force(new FileBucket(f, true, false, false, true));
+			}
 		}
 		if(dirsToMerge != null && dirsToMerge.length > 0) {
 			Logger.debug(this, "Found "+dirsToMerge.length+" disk trees of old index data to merge...");
-			Runnable r = new Runnable() {
-
-				public void run() {
-					synchronized(freenetMergeSync) {
-						while(freenetMergeRunning) {
-							if(pushBroken) return;
-							Logger.normal(this, "Need to merge to Freenet, but last merge not finished yet. Waiting...");
-							try {
-								freenetMergeSync.wait();
-							} catch (InterruptedException e) {
-								// Ignore
-							}
-						}
-						if(pushBroken) return;
-						freenetMergeRunning = true;
-					}
-					try {
-						for(String filename : dirsToMerge) {
-							File f = new File(filename);
-							mergeToFreenet(f);
-						}
-					} finally {
-						synchronized(freenetMergeSync) {
-							freenetMergeRunning = false;
-							if(!pushBroken)
-								lastMergedToFreenet = System.currentTimeMillis();
-							freenetMergeSync.notifyAll();
-						}
-					}
+			for(String filename : dirsToMerge) {
+				freenetStage.force(new DiskIndex(null, new File(filename)));
+			}
+		}
+		boolean drop;
+		synchronized(freenetMergeSync) {
+			readPagesToDrop();
+			drop = !pagesToDrop.isEmpty();
+			if(drop) dropQueued = true;
+		}
+		if(drop) {
+			Logger.debug(this, "Found pages to drop from the index on Freenet");
+			freenetStage.force(DROP_PAGES);
+		}
+	}
 
+	/** Drop all the entries for one or more pages from the on-Freenet index, eg. for a site that
+	 * has been removed, or an old edition of a USK site. The page is given in the "page" field, or 
+	 * the data holds a list of pages, one per line. The pages are dropped in the next merge to 
+	 * Freenet; a merge is queued for them unless one is queued already, so pages dropped one at
+	 * a time are dropped together. */
+	public void handleDropPages(SimpleFieldSet params, Bucket data) {
+		Set<FreenetURI> pages = new HashSet<FreenetURI>();
+		try {
+			String page = params.get("page");
+			if(page != null) pages.add(new FreenetURI(page));
+			if(data != null && data.size() > 0) {
+				BufferedReader br = new BufferedReader(new InputStreamReader(data.getInputStream(), "UTF-8"));
+				try {
+					String line;
+					while((line = br.readLine()) != null) {
+						line = line.trim();
+						if(line.length() > 0) pages.add(new FreenetURI(line));
+					}
+				} finally {
+					br.close();
 				}
-				
-			};
-			pr.getNode().executor.execute(r, "Library: handle trees from previous run");
+			}
+		} catch (MalformedURLException e) {
+			Logger.error(this, "Invalid page URI to drop from index: "+e, e);
+			return;
+		} catch (IOException e) {
+			Logger.error(this, "Unable to read pages to drop from index: "+e, e);
+			return;
+		} finally {
+			if(data != null) data.free();
+		}
+		if(pages.isEmpty()) return;
+		boolean queue;
+		synchronized(freenetMergeSync) {
+			pagesToDrop.addAll(pages);
+			writePagesToDrop();
+			queue = !dropQueued;
+			dropQueued = true;
+		}
+		Logger.normal(this, "Will drop "+pages.size()+" pages from the index on Freenet");
+		if(queue && (isPushBroken() || !freenetStage.put(DROP_PAGES))) {
+			synchronized(freenetMergeSync) {
+				dropQueued = false;
+			}
+		}
+	}
+	
+	/** Forget about pages that have been dropped, once the index without them has been uploaded. 
+	 * Pages added in the meantime are kept. */
+	private void forgetDroppedPages(Set<FreenetURI> dropped) {
+		if(dropped.isEmpty()) return;
+		synchronized(freenetMergeSync) {
+			pagesToDrop.removeAll(dropped);
+			writePagesToDrop();
+		}
+	}
+	
+	/** Caller must hold freenetMergeSync. */
+	private void writePagesToDrop() {
+		File f = new File(DROP_PAGES_FILENAME);
+		if(pagesToDrop.isEmpty()) {
+			f.delete();
+			return;
+		}
+		StringBuilder sb = new StringBuilder();
+		for(FreenetURI uri : pagesToDrop)
+			sb.append(uri.toString()).append('\n');
+		writeStringTo(f, sb.toString());
+	}
+	
+	private void readPagesToDrop() {
+		File f = new File(DROP_PAGES_FILENAME);
+		if(!f.exists()) return;
+		BufferedReader br = null;
+		try {
+			br = new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF-8"));
+			String line;
+			while((line = br.readLine()) != null) {
+				line = line.trim();
+				if(line.length() == 0) continue;
+				try {
+					pagesToDrop.add(new FreenetURI(line));
+				} catch (MalformedURLException e) {
+					Logger.error(this, "Ignoring invalid page URI in "+f+" : "+line);
+				}
+			}
+		} catch (IOException e) {
+			Logger.error(this, "Unable to read pages to drop from "+f+" : "+e, e);
+		} finally {
+			Closer.close(br);
 		}
 	}
 
@@ -885,7 +1397,7 @@ public class SpiderIndexUploader {
 			return;
 		}
 		
-		// Process data off-thread, but only one load at a time.
+		// Process data off-thread, in the disk merge stage.
 		// Hence it won't stall Spider unless we get behind.
 		
 		long pn;
@@ -905,56 +1417,69 @@ public class SpiderIndexUploader {
 			output = data;
 		}
 		
+		if(!isPushBroken()) {
+			long waits = diskStage.getPutWaits();
+			// Blocks Spider if we are too far behind.
+			if(diskStage.put(output)) {
+				if(diskStage.getPutWaits() != waits)
+					Logger.error(this, "Spider feeding us data too fast, waited for background process: "+getPipelineStatus());
+				return;
+			}
+		}
+		int count;
+		synchronized(freenetMergeSync) {
+			count = ++pushedWhileBroken;
+		}
+		if(count < PUSH_BROKEN_MAX_HANDLING_COUNT) {
+			// We have written the data, it will be recovered after restart.
+			Logger.error(this, "Pushing is broken, failing");
+			return;
+		}
+		// Wait forever to prevent running out of disk space.
+		// Spider is single threaded.
+		// FIXME: Use an error return or a throwable to shut down Spider.
 		synchronized(freenetMergeSync) {
-			boolean waited = false;
-			while(toMergeToDisk.size() > MAX_HANDLING_COUNT && !pushBroken) {
-				Logger.error(this, "Spider feeding us data too fast, waiting for background process to finish. Ahead of us in the queue: "+toMergeToDisk.size());
+			while(true) {
 				try {
-					waited = true;
 					freenetMergeSync.wait();
 				} catch (InterruptedException e) {
 					// Ignore
 				}
 			}
-			toMergeToDisk.add(output);
-			if(pushBroken) {
-				if(toMergeToDisk.size() < PUSH_BROKEN_MAX_HANDLING_COUNT)
-					// We have written the data, it will be recovered after restart.
-					Logger.error(this, "Pushing is broken, failing");
-				else {
-					// Wait forever to prevent running out of disk space.
-					// Spider is single threaded.
-					// FIXME: Use an error return or a throwable to shut down Spider.
-					while(true) {
-						try {
-							freenetMergeSync.wait();
-						} catch (InterruptedException e) {
-							// Ignore
-						}
-					}
-				}
-				return;
-			}
-			if(waited)
-				Logger.error(this, "Waited for previous handler to go away, moving on...");
-			//if(freenetMergeRunning) return; // Already running, no need to restart it.
-			if(diskMergeRunning) return; // Already running, no need to restart it.
 		}
-		Runnable r = new Runnable() {
-			
-			public void run() {
-//				wrapMergeToFreenet();
-				wrapMergeToDisk();
-			}
-			
-		};
-		pr.getNode().executor.execute(r, "Library: Handle data from Spider");
 	}
 
 	public FreenetURI getPublicUSKURI() {
 		return spiderIndexURIs.getPublicUSK();
 	}
 
+	/** Turn filling in the uri table on or off, if the "fill" field is given, and reply with
+	 * whether it is on. The setting is kept in FILL_URI_TABLE_FILENAME, and takes effect from the
+	 * next bucket merged to disk. See fillURITable. */
+	public void handleURITable(PluginReplySender replysender, SimpleFieldSet params) {
+		String fill = params.get("fill");
+		if(fill != null) {
+			boolean on = Boolean.parseBoolean(fill);
+			File f = new File(FILL_URI_TABLE_FILENAME);
+			try {
+				if(on) f.createNewFile();
+				else f.delete();
+			} catch (IOException e) {
+				Logger.error(this, "Unable to save the uri table setting to "+f+": "+e, e);
+			}
+			fillURITable = on;
+			Logger.normal(this, "Filling in the uri table "+(on ? "enabled" : "disabled"));
+		}
+		SimpleFieldSet sfs = new SimpleFieldSet(true);
+		sfs.putSingle("reply", "uriTable");
+		sfs.putSingle("fill", Boolean.toString(fillURITable));
+		try {
+			replysender.send(sfs);
+		} catch (PluginNotFoundException e) {
+			// Race condition, ignore.
+		}
+	}
+
 	public void handleGetSpiderURI(PluginReplySender replysender) {
 		FreenetURI uri = getPublicUSKURI();
 		SimpleFieldSet sfs = new SimpleFieldSet(true);
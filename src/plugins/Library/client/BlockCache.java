@@ -0,0 +1,429 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.client;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import freenet.support.Logger;
+
+/**
+** A bounded on-disk cache of blocks, used by {@link FreenetArchiver} to avoid
+** having to fetch the same block from freenet more than once.
+**
+** Each block is stored in its own file in the cache directory, named after
+** its key. When the total size of the blocks goes over the limit, the least
+** recently used blocks are deleted, except for those that are ''pinned''.
+**
+** The order of use, and the set of pinned blocks, is kept in an index file
+** in the cache directory, so that it survives restarts. Files in the
+** directory which are not in the index (eg. from older versions, which did
+** not limit the size of the cache) are added to the index when it is loaded,
+** oldest first. The index is written after every {@link #SAVE_INTERVAL}
+** changes, and by {@link #save()}; an index that is out of date only loses
+** some of the order of use, since files which no longer exist are dropped
+** from it when it is loaded. It is written without holding the lock on the
+** cache, so lookups do not wait for the disk.
+**
+** Pinning is done in rounds: between {@link #startPinning()} and {@link
+** #finishPinning()}, every block that is stored or retrieved is recorded; when
+** the round finishes, those blocks become the pinned set, replacing the one
+** from the previous round. This is used by the spider to keep all the blocks
+** of the index it is currently uploading.
+*/
+public class BlockCache {
+
+	/**
+	** Name of the index file within the cache directory.
+	*/
+	final public static String INDEX_FILENAME = ".index";
+
+	/**
+	** How many changes to make before writing the index to disk.
+	*/
+	final public static int SAVE_INTERVAL = 0x40;
+
+	final protected File dir;
+	final protected File indexFile;
+
+	protected long maxSize;
+	protected long totalSize;
+
+	/**
+	** Map of keys to block sizes, in order of least recent use.
+	*/
+	final protected LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(0x100, 0.75f, true);
+
+	/**
+	** Keys of the blocks which cannot be evicted.
+	*/
+	protected Set<String> pinned = new HashSet<String>();
+
+	/**
+	** Keys of the blocks used in the current pinning round, or null if no
+	** round is in progress.
+	*/
+	protected Set<String> pinning;
+
+	protected int unsaved;
+
+	/**
+	** Held while writing the index, so that writes happen in order.
+	*/
+	final protected Object saveLock = new Object();
+
+	/**
+	** Whether {@link #saveIfDue()} is writing the index.
+	*/
+	protected boolean saving;
+
+	protected long hits;
+	protected long misses;
+	protected long stores;
+	protected long evictions;
+
+	/**
+	** Opens (or creates) a cache in the given directory.
+	**
+	** @param d The cache directory
+	** @param max The maximum total size of the blocks, in bytes
+	*/
+	public BlockCache(File d, long max) {
+		if (max < 0) {
+			throw new IllegalArgumentException("Cache size must not be negative: " + max);
+		}
+		dir = d;
+		dir.mkdirs();
+		indexFile = new File(dir, INDEX_FILENAME);
+		maxSize = max;
+		load();
+		evict();
+		save();
+	}
+
+	public File getDir() {
+		return dir;
+	}
+
+	public synchronized long getMaxSize() {
+		return maxSize;
+	}
+
+	public void setMaxSize(long max) {
+		synchronized (this) {
+			maxSize = max;
+			evict();
+		}
+		saveIfDue();
+	}
+
+	public synchronized long getTotalSize() {
+		return totalSize;
+	}
+
+	public synchronized int getCount() {
+		return entries.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getStores() {
+		return stores;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	public synchronized boolean isPinned(String key) {
+		return pinned.contains(key);
+	}
+
+	/**
+	** Returns a stream of the block for the given key, or {@code null} if the
+	** block is not in the cache. The caller must close it.
+	**
+	** The file is opened before the lock is released, so the stream can still
+	** be read if the block is evicted or replaced in the meantime; both only
+	** unlink the file.
+	*/
+	public InputStream get(String key) {
+		InputStream is = null;
+		synchronized (this) {
+			Long size = entries.get(key);
+			if (size != null) {
+				File f = new File(dir, key);
+				if (f.length() == size && size != 0) {
+					try {
+						is = new FileInputStream(f);
+					} catch (FileNotFoundException e) {
+						// fall through
+					}
+				}
+				if (is != null) {
+					++hits;
+					touched(key);
+				} else {
+					// file was changed or deleted behind our back
+					remove(key, false);
+				}
+			}
+			if (is == null) { ++misses; }
+		}
+		saveIfDue();
+		return is;
+	}
+
+	/**
+	** Stores a block in the cache, replacing any previous block for the key.
+	** The stream is read to the end, but not closed.
+	*/
+	public void put(String key, InputStream is) throws IOException {
+		File tmp = File.createTempFile("tmp-", ".part", dir);
+		try {
+			OutputStream os = new FileOutputStream(tmp);
+			try {
+				byte[] buf = new byte[0x2000];
+				int r;
+				while ((r = is.read(buf)) >= 0) {
+					os.write(buf, 0, r);
+				}
+			} finally {
+				os.close();
+			}
+			synchronized (this) {
+				File f = new File(dir, key);
+				remove(key, true);
+				if (!tmp.renameTo(f)) {
+					throw new IOException("Could not move " + tmp + " to " + f);
+				}
+				long size = f.length();
+				entries.put(key, size);
+				totalSize += size;
+				++stores;
+				touched(key);
+				evict();
+			}
+		} finally {
+			tmp.delete();
+		}
+		saveIfDue();
+	}
+
+	/**
+	** Start a new pinning round. Blocks used from now on will be pinned when
+	** {@link #finishPinning()} is called.
+	*/
+	public synchronized void startPinning() {
+		pinning = new HashSet<String>();
+	}
+
+	/**
+	** Finish the current pinning round. The blocks used during the round
+	** replace the previously pinned blocks, which may then be evicted.
+	*/
+	public void finishPinning() {
+		synchronized (this) {
+			if (pinning == null) { return; }
+			pinned = pinning;
+			pinning = null;
+			pinning_changed();
+		}
+		saveIfDue();
+	}
+
+	/**
+	** Pin a single block, outside of a pinning round. It stays pinned until
+	** the next round finishes.
+	*/
+	public void pin(String key) {
+		synchronized (this) {
+			pinned.add(key);
+			if (pinning != null) { pinning.add(key); }
+			pinning_changed();
+		}
+		saveIfDue();
+	}
+
+	private void pinning_changed() {
+		pinned.retainAll(entries.keySet());
+		++unsaved;
+		evict();
+	}
+
+	protected void touched(String key) {
+		if (pinning != null) { pinning.add(key); }
+		++unsaved;
+	}
+
+	/**
+	** Evict the least recently used unpinned blocks until the cache is within
+	** its size limit.
+	*/
+	protected synchronized void evict() {
+		if (totalSize <= maxSize) { return; }
+		for (Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator(); it.hasNext() && totalSize > maxSize;) {
+			Map.Entry<String, Long> en = it.next();
+			String key = en.getKey();
+			if (pinned.contains(key) || pinning != null && pinning.contains(key)) { continue; }
+			it.remove();
+			totalSize -= en.getValue();
+			++evictions;
+			++unsaved;
+			File f = new File(dir, key);
+			if (!f.delete() && f.exists()) {
+				Logger.error(this, "Could not delete evicted cache block " + f);
+			}
+		}
+		if (totalSize > maxSize) {
+			Logger.normal(this, "Block cache is over its limit because of pinned blocks: " + this);
+		}
+	}
+
+	protected void remove(String key, boolean delete) {
+		Long size = entries.remove(key);
+		if (size != null) {
+			totalSize -= size;
+			++unsaved;
+		}
+		if (delete) { new File(dir, key).delete(); }
+	}
+
+	/**
+	** Write the index to disk, if enough changes have been made since it was
+	** last written and no other thread is already doing this. This must not
+	** be called with the lock held.
+	*/
+	protected void saveIfDue() {
+		synchronized (this) {
+			if (unsaved < SAVE_INTERVAL || saving) { return; }
+			saving = true;
+		}
+		try {
+			save();
+		} finally {
+			synchronized (this) { saving = false; }
+		}
+	}
+
+	/**
+	** Write the index to disk. Only the copying of the index is done with the
+	** lock held.
+	*/
+	public void save() {
+		synchronized (saveLock) {
+			List<String> lines;
+			int changes;
+			synchronized (this) {
+				lines = new ArrayList<String>(entries.size());
+				for (Map.Entry<String, Long> en: entries.entrySet()) {
+					String key = en.getKey();
+					lines.add(en.getValue() + "\t" + (pinned.contains(key)? "P": "-") + "\t" + key + "\n");
+				}
+				changes = unsaved;
+				unsaved = 0;
+			}
+			File tmp = new File(dir, INDEX_FILENAME + ".tmp");
+			try {
+				Writer w = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+				try {
+					for (String line: lines) { w.write(line); }
+				} finally {
+					w.close();
+				}
+				indexFile.delete();
+				if (!tmp.renameTo(indexFile)) {
+					throw new IOException("Could not move " + tmp + " to " + indexFile);
+				}
+			} catch (IOException e) {
+				Logger.error(this, "Could not save block cache index: " + e, e);
+				synchronized (this) {
+					// try again after the next change
+					unsaved += changes;
+				}
+			}
+		}
+	}
+
+	/**
+	** Read the index from disk, and reconcile it with the files that are
+	** actually in the directory.
+	*/
+	protected synchronized void load() {
+		if (indexFile.exists()) {
+			try {
+				BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), "UTF-8"));
+				try {
+					String line;
+					while ((line = r.readLine()) != null) {
+						String[] parts = line.split("\t", 3);
+						if (parts.length != 3) { continue; }
+						File f = new File(dir, parts[2]);
+						if (!f.exists()) { continue; }
+						entries.put(parts[2], f.length());
+						if (parts[1].equals("P")) { pinned.add(parts[2]); }
+					}
+				} finally {
+					r.close();
+				}
+			} catch (IOException e) {
+				Logger.error(this, "Could not read block cache index, rebuilding it: " + e, e);
+			}
+		}
+
+		File[] files = dir.listFiles();
+		if (files != null) {
+			// add unindexed files as the least recently used, oldest first
+			Arrays.sort(files, new Comparator<File>() {
+				/*@Override**/ public int compare(File a, File b) {
+					long x = a.lastModified(), y = b.lastModified();
+					return (x < y)? -1: (x == y)? 0: 1;
+				}
+			});
+			LinkedHashMap<String, Long> indexed = new LinkedHashMap<String, Long>(entries);
+			entries.clear();
+			for (File f: files) {
+				String name = f.getName();
+				if (!f.isFile() || name.startsWith(INDEX_FILENAME)) { continue; }
+				if (name.startsWith("tmp-") && name.endsWith(".part")) { f.delete(); continue; }
+				if (!indexed.containsKey(name)) { entries.put(name, f.length()); }
+			}
+			entries.putAll(indexed);
+		}
+
+		totalSize = 0;
+		for (long size: entries.values()) { totalSize += size; }
+	}
+
+	@Override public synchronized String toString() {
+		return "BlockCache[" + dir + ": " + entries.size() + " blocks, " + totalSize + "/" + maxSize
+		  + " bytes, " + pinned.size() + " pinned, " + hits + " hits, " + misses + " misses, "
+		  + evictions + " evictions]";
+	}
+
+}
@@ -3,6 +3,7 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package plugins.Library.client;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -13,12 +14,20 @@ import java.util.HashSet;
 import plugins.Library.Library;
 import plugins.Library.io.ObjectStreamReader;
 import plugins.Library.io.ObjectStreamWriter;
+import plugins.Library.io.serial.AsyncArchiver;
 import plugins.Library.io.serial.LiveArchiver;
+import plugins.Library.io.serial.ParallelSerialiser;
+import plugins.Library.io.serial.TwoPhaseArchiver;
+import plugins.Library.util.concurrent.Executors;
+import plugins.Library.util.concurrent.MemoryBudget;
 import plugins.Library.util.exec.ProgressParts;
 import plugins.Library.util.exec.SimpleProgress;
 import plugins.Library.util.exec.TaskAbortException;
+import plugins.Library.util.func.SafeClosure;
+import static plugins.Library.util.func.Tuples.X2; // also imports the class
 
 import freenet.client.ClientMetadata;
+import freenet.client.FetchContext;
 import freenet.client.FetchException;
 import freenet.client.FetchException.FetchExceptionMode;
 import freenet.client.FetchResult;
@@ -28,6 +37,8 @@ import freenet.client.InsertContext;
 import freenet.client.InsertException;
 import freenet.client.async.BaseClientPutter;
 import freenet.client.async.ClientContext;
+import freenet.client.async.ClientGetCallback;
+import freenet.client.async.ClientGetter;
 import freenet.client.async.ClientPutCallback;
 import freenet.client.async.ClientPutter;
 import freenet.client.async.PersistenceDisabledException;
@@ -48,7 +59,6 @@ import freenet.support.api.Bucket;
 import freenet.support.api.RandomAccessBucket;
 import freenet.support.io.BucketTools;
 import freenet.support.io.Closer;
-import freenet.support.io.FileBucket;
 import freenet.support.io.ResumeFailedException;
 
 /**
@@ -57,13 +67,14 @@ import freenet.support.io.ResumeFailedException;
 ** used to do the hard work once the relevant streams have been established,
 ** from temporary {@link Bucket}s.
 **
-** Supports a local cache.
-** FIXME: NOT GARBAGE COLLECTED! Eventually will fill up all available disk space!
+** Supports a local {@link BlockCache}, which holds blocks that were inserted
+** or fetched, up to a size limit. Only blocks under a CHK (or CHK metadata)
+** are cached, since the content under any other key may change.
 **
 ** @author infinity0
 */
 public class FreenetArchiver<T>
-implements LiveArchiver<T, SimpleProgress> {
+implements LiveArchiver<T, SimpleProgress>, TwoPhaseArchiver<T, SimpleProgress>, AsyncArchiver<T, SimpleProgress> {
 
 	final protected NodeClientCore core;
 	final protected ObjectStreamReader reader;
@@ -73,7 +84,12 @@ implements LiveArchiver<T, SimpleProgress> {
 	final protected int expected_bytes;
 	public final short priorityClass;
 	public final boolean realTimeFlag;
-	private static File cacheDir;
+	private static BlockCache cache;
+
+	/**
+	** Default size limit of the cache set up by {@link #setCacheDir(File)}.
+	*/
+	final public static long DEFAULT_CACHE_SIZE = 1L<<30;
 	/** If true, we will insert data semi-asynchronously. That is, we will start the
 	 * insert, with ForceEncode enabled, and return the URI as soon as possible. The
 	 * inserts will continue in the background, and before inserting the final USK,
@@ -94,12 +110,26 @@ implements LiveArchiver<T, SimpleProgress> {
 	private final ArrayList<InsertException> pushesFailed = new ArrayList<InsertException>();
 	private long totalBytesPushing;
 	
+	/**
+	** Use a cache in the given directory, with the {@link #DEFAULT_CACHE_SIZE
+	** default size limit}.
+	*/
 	public static void setCacheDir(File dir) {
-		cacheDir = dir;
+		setCache((dir == null)? null: new BlockCache(dir, DEFAULT_CACHE_SIZE));
 	}
 	
 	public static File getCacheDir() {
-		return cacheDir;
+		BlockCache c = cache;
+		return (c == null)? null: c.getDir();
+	}
+
+	public static synchronized void setCache(BlockCache c) {
+		if (cache != null && cache != c) { cache.save(); }
+		cache = c;
+	}
+
+	public static BlockCache getCache() {
+		return cache;
 	}
 
 	public FreenetArchiver(NodeClientCore c, ObjectStreamReader r, ObjectStreamWriter w, String mime, int size, short priority) {
@@ -127,18 +157,24 @@ implements LiveArchiver<T, SimpleProgress> {
 	** {@inheritDoc}
 	**
 	** This implementation expects metdata of type {@link FreenetURI}.
-	*
-	* FIXME OPT NORM: Two-phase pull: First pull to a bucket, then construct the data.
-	* The reason for this is memory usage: We can limit the number in the second
-	* phase according to downstream demand (e.g. blocking queues in ObjectProcessor's),
-	* so that the amount of stuff kept in memory is limited, while still allowing an
-	* (almost?) unlimited number in the fetching data phase. See comments in ParallelSerialiser.createPullJob.
 	*/
 	/*@Override**/ public void pullLive(PullTask<T> task, final SimpleProgress progress) throws TaskAbortException {
+		decodeLive(task, fetchLive(task, progress), progress);
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** This implementation expects metdata of type {@link FreenetURI}, or a
+	** byte array containing the metadata for a CHK. The data is fetched into
+	** a temporary {@link Bucket} (or read from the local cache), so that many
+	** fetches may be in progress without using much memory.
+	*/
+	/*@Override**/ public TwoPhaseArchiver.Fetched fetchLive(PullTask<T> task, final SimpleProgress progress) throws TaskAbortException {
 		// FIXME make retry count configgable by client metadata somehow
 		// clearly a web UI fetch wants it limited; a merge might want it unlimited
 		HighLevelSimpleClient hlsc = core.makeClient(priorityClass, false, false);
-		Bucket tempB = null; InputStream is = null;
+		Bucket tempB = null;
 
 		long startTime = System.currentTimeMillis();
 		
@@ -149,7 +185,7 @@ implements LiveArchiver<T, SimpleProgress> {
 		if(task.meta instanceof FreenetURI) {
 			u = (FreenetURI) task.meta;
 			initialMetadata = null;
-			cacheKey = u.toString(false, true);
+			cacheKey = cacheKeyFor(u);
 		} else {
 			initialMetadata = (byte[]) task.meta;
 			u = FreenetURI.EMPTY_CHK_URI;
@@ -162,12 +198,10 @@ implements LiveArchiver<T, SimpleProgress> {
 		try {
 			try {
 
-				if(cacheDir != null && cacheDir.exists() && cacheDir.canRead()) {
-					File cached = new File(cacheDir, cacheKey);
-					if(cached.exists() && cached.length() != 0) {
-						tempB = new FileBucket(cached, true, false, false, false);
-						Logger.debug(this, "Fetching block for FreenetArchiver from disk cache: "+cacheKey);
-					}
+				BlockCache c = cache;
+				tempB = readCache(c, cacheKey);
+				if(tempB != null) {
+					Logger.debug(this, "Fetching block for FreenetArchiver from disk cache: "+cacheKey);
 				}
 				
 				if(tempB == null) {
@@ -212,6 +246,10 @@ implements LiveArchiver<T, SimpleProgress> {
 					}
 					
 					tempB = res.asBucket();
+					if(c != null) {
+						// read-through, so the next pull doesn't have to go to the network
+						putCache(c, cacheKey, tempB);
+					}
 				} else {
 					// Make sure SimpleProgress.join() doesn't stall.
 					if(progress != null) {
@@ -221,17 +259,45 @@ implements LiveArchiver<T, SimpleProgress> {
 				}
 				long endTime = System.currentTimeMillis();
 				Logger.debug(this, "Fetched block for FreenetArchiver in "+(endTime-startTime)+"ms.");
-				is = tempB.getInputStream();
-				task.data = (T)reader.readObject(is);
-				is.close();
+				FetchedBucket fetched = new FetchedBucket(tempB);
+				tempB = null;
+				return fetched;
 
 			} catch (FetchException e) {
 				if(e.mode == FetchExceptionMode.PERMANENT_REDIRECT && e.newURI != null) {
 					u = e.newURI;
+					initialMetadata = null;
+					cacheKey = cacheKeyFor(u);
 					continue;
 				}
 				throw new TaskAbortException("Failed to fetch content", e, true);
 
+			} catch (RuntimeException e) {
+				throw new TaskAbortException("Failed to complete task: ", e);
+
+			}
+		} catch (TaskAbortException e) {
+			if (progress != null) { progress.abort(e); }
+			throw e;
+
+		} finally {
+			Closer.close(tempB);
+		}
+		}
+		TaskAbortException e = new TaskAbortException("Too many redirects while fetching " + task.meta, null, false);
+		if (progress != null) { progress.abort(e); }
+		throw e;
+	}
+
+	/*@Override**/ public void decodeLive(PullTask<T> task, TwoPhaseArchiver.Fetched raw, final SimpleProgress progress) throws TaskAbortException {
+		Bucket tempB = ((FetchedBucket)raw).bucket;
+		InputStream is = null;
+		try {
+			try {
+				is = tempB.getInputStream();
+				task.data = (T)reader.readObject(is);
+				is.close();
+
 			} catch (IOException e) {
 				throw new TaskAbortException("Failed to read content from local tempbucket", e, true);
 
@@ -245,10 +311,207 @@ implements LiveArchiver<T, SimpleProgress> {
 
 		} finally {
 			Closer.close(is);
-			Closer.close(tempB);
+			raw.free();
+		}
+	}
+
+	/**
+	** A fetched block which has not yet been decoded.
+	*/
+	protected static class FetchedBucket implements TwoPhaseArchiver.Fetched {
+
+		final protected Bucket bucket;
+
+		protected FetchedBucket(Bucket b) {
+			bucket = b;
+		}
+
+		/*@Override**/ public long size() {
+			return bucket.size();
+		}
+
+		/*@Override**/ public void free() {
+			Closer.close(bucket);
+		}
+
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** This implementation starts an asynchronous request for the block,
+	** unless it is in the local cache. The block is decoded in {@link
+	** Executors#CPU_EXECUTOR}.
+	*/
+	/*@Override**/ public void pullAsync(PullTask<T> task, SimpleProgress progress, SafeClosure<X2<PullTask<T>, TaskAbortException>> done) {
+		AsyncFetch fetch;
+		try {
+			fetch = new AsyncFetch(task, progress, done);
+		} catch (RuntimeException e) {
+			failed(task, progress, new TaskAbortException("Failed to complete task: ", e), done);
+			return;
+		}
+		fetch.start();
+	}
+
+	/**
+	** Aborts the progress for a task which could not be started or completed
+	** asynchronously, and reports the error to the callback.
+	*/
+	protected <K extends Task<?>> void failed(K task, SimpleProgress progress, TaskAbortException e, SafeClosure<X2<K, TaskAbortException>> done) {
+		try {
+			if (progress != null) { progress.abort(e); }
+		} catch (TaskAbortException x) {
+			// abort() always rethrows its argument
+		}
+		if (done != null) { done.invoke(X2(task, e)); }
+	}
+
+	/**
+	** A fetch started by {@link #pullAsync(Serialiser.PullTask,
+	** SimpleProgress, SafeClosure)}.
+	*/
+	protected class AsyncFetch implements ClientGetCallback {
+
+		final protected PullTask<T> task;
+		final protected SimpleProgress progress;
+		final protected SafeClosure<X2<PullTask<T>, TaskAbortException>> done;
+		final protected long startTime = System.currentTimeMillis();
+		final protected HighLevelSimpleClient hlsc;
+
+		protected String cacheKey;
+		protected FreenetURI uri;
+		protected byte[] initialMetadata;
+		protected int redirects;
+
+		protected AsyncFetch(PullTask<T> t, SimpleProgress p, SafeClosure<X2<PullTask<T>, TaskAbortException>> d) {
+			task = t;
+			progress = p;
+			done = d;
+			hlsc = core.makeClient(priorityClass, false, false);
+			if(task.meta instanceof FreenetURI) {
+				uri = (FreenetURI) task.meta;
+				cacheKey = cacheKeyFor(uri);
+			} else {
+				initialMetadata = (byte[]) task.meta;
+				uri = FreenetURI.EMPTY_CHK_URI;
+				cacheKey = Base64.encode(SHA256.digest(initialMetadata));
+			}
+		}
+
+		protected void start() {
+			Bucket cached = readCache(cache, cacheKey);
+			if(cached != null) {
+				Logger.debug(this, "Fetching block for FreenetArchiver from disk cache: "+cacheKey);
+				// Make sure SimpleProgress.join() doesn't stall.
+				if(progress != null) {
+					progress.addPartKnown(1, true);
+					progress.addPartDone();
+				}
+				decode(cached);
+				return;
+			}
+			if (progress != null) {
+				hlsc.addEventHook(new SimpleProgressUpdater(progress));
+			}
+			request();
+		}
+
+		protected void request() {
+			try {
+				FetchContext fctx = hlsc.getFetchContext();
+				if(initialMetadata != null) {
+					Logger.debug(this, "Fetching block for FreenetArchiver from metadata ("+cacheKey+")");
+					ClientGetter getter = new ClientGetter(this, uri, fctx, priorityClass, null, null, new SimpleReadOnlyArrayBucket(initialMetadata));
+					core.clientContext.start(getter);
+				} else {
+					Logger.debug(this, "Fetching block for FreenetArchiver from network: "+uri);
+					hlsc.fetch(uri, -1, this, fctx);
+				}
+			} catch (FetchException e) {
+				onFailure(e, null);
+			} catch (PersistenceDisabledException e) {
+				// Impossible
+			} catch (RuntimeException e) {
+				fail(new TaskAbortException("Failed to complete task: ", e));
+			}
+		}
+
+		/**
+		** Decodes the fetched data in {@link Executors#CPU_EXECUTOR}, and
+		** reports the result.
+		*/
+		protected void decode(final Bucket data) {
+			Executors.CPU_EXECUTOR.execute(new Runnable() {
+				public void run() {
+					decodeNow(data);
+				}
+			});
+		}
+
+		/**
+		** Decodes the fetched data and reports the result, holding a share of
+		** the {@link ParallelSerialiser#getDecodeBudget() decode budget} until
+		** the callback returns.
+		*/
+		protected void decodeNow(Bucket data) {
+			FetchedBucket raw = new FetchedBucket(data);
+			MemoryBudget budget = ParallelSerialiser.getDecodeBudget();
+			long w = budget.acquireUninterruptibly(raw.size());
+			try {
+				TaskAbortException ex = null;
+				try { decodeLive(task, raw, progress); }
+				catch (TaskAbortException e) { ex = e; }
+				if (done != null) { done.invoke(X2(task, ex)); }
+			} finally {
+				budget.release(w);
+			}
+		}
+
+		protected void fail(TaskAbortException e) {
+			failed(task, progress, e, done);
+		}
+
+		/*@Override**/ public void onSuccess(final FetchResult res, ClientGetter state) {
+			Executors.CPU_EXECUTOR.execute(new Runnable() {
+				public void run() {
+					Bucket data = res.asBucket();
+					BlockCache c = cache;
+					if(c != null) {
+						// read-through, so the next pull doesn't have to go to the network
+						putCache(c, cacheKey, data);
+					}
+					if (progress != null) { progress.addPartKnown(0, true); }
+					Logger.debug(this, "Fetched block for FreenetArchiver in "+(System.currentTimeMillis()-startTime)+"ms.");
+					decodeNow(data);
+				}
+			});
+		}
+
+		/*@Override**/ public void onFailure(FetchException e, ClientGetter state) {
+			if(e.mode == FetchExceptionMode.PERMANENT_REDIRECT && e.newURI != null) {
+				// USK redirects should not happen really but can occasionally due to race conditions.
+				if(++redirects < 10) {
+					uri = e.newURI;
+					initialMetadata = null;
+					cacheKey = cacheKeyFor(uri);
+					request();
+				} else {
+					fail(new TaskAbortException("Too many redirects while fetching " + task.meta, e));
+				}
+				return;
+			}
+			fail(new TaskAbortException("Failed to fetch content", e, true));
+		}
+
+		/*@Override**/ public void onResume(ClientContext context) throws ResumeFailedException {
+			// Ignore.
 		}
-		break;
+
+		/*@Override**/ public RequestClient getRequestClient() {
+			return Library.REQUEST_CLIENT;
 		}
+
 	}
 
 	/**
@@ -263,10 +526,22 @@ implements LiveArchiver<T, SimpleProgress> {
 	** incremented.
 	*/
 	/*@Override**/ public void pushLive(PushTask<T> task, final SimpleProgress progress) throws TaskAbortException {
+		PushCallback cb = startPush(task, progress, null);
+		cb.waitFor();
+		finishPush(task, progress, cb);
+	}
+
+	/**
+	** Encodes the data for a task into a temporary {@link Bucket}, and starts
+	** inserting it. {@code generated} (if non-null) is called once the insert
+	** has generated its key, or has failed before doing so; after that, {@link
+	** #finishPush(Serialiser.PushTask, SimpleProgress, PushCallback)} will not
+	** block.
+	*/
+	protected PushCallback startPush(PushTask<T> task, final SimpleProgress progress, SafeClosure<PushCallback> generated) throws TaskAbortException {
 		HighLevelSimpleClient hlsc = core.makeClient(priorityClass, false, false);
 		RandomAccessBucket tempB = null; OutputStream os = null;
 
-		
 		try {
 			ClientPutter putter = null;
 			PushCallback cb = null;
@@ -290,7 +565,6 @@ implements LiveArchiver<T, SimpleProgress> {
 				InsertBlock ib = new InsertBlock(tempB, new ClientMetadata(default_mime), target);
 
 				Logger.debug(this, "Inserting block for FreenetArchiver...");
-				long startTime = System.currentTimeMillis();
 				
 				// code for async insert - maybe be useful elsewhere
 				//ClientContext cctx = core.clientContext;
@@ -313,8 +587,6 @@ implements LiveArchiver<T, SimpleProgress> {
                 // Hopefully it isn't here.
 				ctx.earlyEncode = true;
 				
-				String cacheKey = null;
-				
 //				if(!SEMI_ASYNC_PUSH) {
 //					// Actually report progress.
 //					if (progress != null) {
@@ -330,38 +602,84 @@ implements LiveArchiver<T, SimpleProgress> {
 					// doing it properly. FIXME
 					if(progress != null)
 						progress.addPartKnown(1, true);
-					cb = new PushCallback(progress, ib);
+					cb = new PushCallback(progress, ib, generated);
+					cb.partsBefore = prog_old;
 					putter = new ClientPutter(cb, ib.getData(), FreenetURI.EMPTY_CHK_URI, ib.clientMetadata,
 							ctx, priorityClass,
 							false, null, false, core.clientContext, null, insertAsMetadata ? CHKBlock.DATA_LENGTH : -1);
 					cb.setPutter(putter);
-					long tStart = System.currentTimeMillis();
 					try {
 						core.clientContext.start(putter);
 					} catch (PersistenceDisabledException e) {
 						// Impossible
 					}
-					WAIT_STATUS status = cb.waitFor();
-					if(status == WAIT_STATUS.FAILED) {
-						cb.throwError();
-					} else if(status == WAIT_STATUS.GENERATED_URI) {
-						FreenetURI uri = cb.getURI();
-						task.meta = uri;
-						cacheKey = uri.toString(false, true);
-						Logger.debug(this, "Got URI for asynchronous insert: "+uri+" size "+tempB.size()+" in "+(System.currentTimeMillis() - cb.startTime));
-					} else {
-						Bucket data = cb.getGeneratedMetadata();
-						byte[] buf = BucketTools.toByteArray(data);
-						data.free();
-						task.meta = buf;
-						cacheKey = Base64.encode(SHA256.digest(buf));
-						Logger.debug(this, "Got generated metadata ("+buf.length+" bytes) for asynchronous insert size "+tempB.size()+" in "+(System.currentTimeMillis() - cb.startTime));
-					}
-					if(progress != null)
-						progress.addPartDone();
 //				}
+
+				if(SEMI_ASYNC_PUSH)
+					tempB = null; // Don't free it here.
+				return cb;
+
+			} catch (InsertException e) {
+				if(cb != null) {
+					if(!cb.claim()) {
+						// the callback already failed, and has reported it
+						return cb;
+					}
+					synchronized(this) {
+						if(semiAsyncPushes.remove(cb))
+							totalBytesPushing -= cb.size();
+					}
+				}
+				throw new TaskAbortException("Failed to insert content", e, true);
+
+			} catch (IOException e) {
+				throw new TaskAbortException("Failed to write content to local tempbucket", e, true);
+
+			} catch (RuntimeException e) {
+				throw new TaskAbortException("Failed to complete task: ", e);
+
+			}
+		} catch (TaskAbortException e) {
+			if (progress != null) { progress.abort(e); }
+			throw e;
+
+		} finally {
+			Closer.close(os);
+			Closer.close(tempB);
+		}
+	}
+
+	/**
+	** Completes a task started by {@link #startPush(Serialiser.PushTask,
+	** SimpleProgress, SafeClosure)}, once its insert has generated a key or
+	** has failed. The data is cached, if there is a cache.
+	*/
+	protected void finishPush(PushTask<T> task, final SimpleProgress progress, PushCallback cb) throws TaskAbortException {
+		try {
+			try {
+				String cacheKey;
+				WAIT_STATUS status = cb.waitFor();
+				if(status == WAIT_STATUS.FAILED) {
+					cb.throwError();
+				}
+				if(status == WAIT_STATUS.GENERATED_URI) {
+					FreenetURI uri = cb.getURI();
+					task.meta = uri;
+					cacheKey = cacheKeyFor(uri);
+					Logger.debug(this, "Got URI for asynchronous insert: "+uri+" size "+cb.size()+" in "+(System.currentTimeMillis() - cb.startTime));
+				} else {
+					Bucket data = cb.getGeneratedMetadata();
+					byte[] buf = BucketTools.toByteArray(data);
+					data.free();
+					task.meta = buf;
+					cacheKey = Base64.encode(SHA256.digest(buf));
+					Logger.debug(this, "Got generated metadata ("+buf.length+" bytes) for asynchronous insert size "+cb.size()+" in "+(System.currentTimeMillis() - cb.startTime));
+				}
+				if(progress != null)
+					progress.addPartDone();
 					
 				if(progress != null) {
+					ProgressParts prog_old = cb.partsBefore;
 					ProgressParts prog_new = progress.getParts();
 					if (prog_old.known - prog_old.done != prog_new.known - prog_new.done) {
 						Logger.error(this, "Inconsistency when tracking split file progress (pushing): "+prog_old.known+" of "+prog_old.done+" -> "+prog_new.known+" of "+prog_new.done);
@@ -371,26 +689,20 @@ implements LiveArchiver<T, SimpleProgress> {
 
 				task.data = null;
 				
-				if(cacheKey != null && cacheDir != null && cacheDir.exists() && cacheDir.canRead()) {
-					File cached = new File(cacheDir, cacheKey);
-					Bucket cachedBucket = new FileBucket(cached, false, false, false, false);
-					BucketTools.copy(tempB, cachedBucket);
+				BlockCache c = cache;
+				if(c != null) {
+					putCache(c, cacheKey, cb.ib.getData());
 				}
-				
-				if(SEMI_ASYNC_PUSH)
-					tempB = null; // Don't free it here.
 
 			} catch (InsertException e) {
-				if(cb != null) {
-					synchronized(this) {
-						if(semiAsyncPushes.remove(cb))
-							totalBytesPushing -= cb.size();
-					}
+				synchronized(this) {
+					if(semiAsyncPushes.remove(cb))
+						totalBytesPushing -= cb.size();
 				}
 				throw new TaskAbortException("Failed to insert content", e, true);
 
 			} catch (IOException e) {
-				throw new TaskAbortException("Failed to write content to local tempbucket", e, true);
+				throw new TaskAbortException("Failed to read generated metadata", e, true);
 
 			} catch (RuntimeException e) {
 				throw new TaskAbortException("Failed to complete task: ", e);
@@ -401,11 +713,86 @@ implements LiveArchiver<T, SimpleProgress> {
 			throw e;
 
 		} finally {
-			Closer.close(os);
-			Closer.close(tempB);
+			cb.release();
+		}
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** The data is encoded and the insert is started in the current thread.
+	** As for {@link #pushLive(Serialiser.PushTask, SimpleProgress)}, the task
+	** is complete once the insert has generated its key; the insert carries
+	** on in the background (see {@link #waitForAsyncInserts()}). The rest of
+	** the task is done in {@link Executors#CPU_EXECUTOR}.
+	*/
+	/*@Override**/ public void pushAsync(final PushTask<T> task, final SimpleProgress progress, final SafeClosure<X2<PushTask<T>, TaskAbortException>> done) {
+		try {
+			startPush(task, progress, new SafeClosure<PushCallback>() {
+				/*@Override**/ public void invoke(final PushCallback cb) {
+					Executors.CPU_EXECUTOR.execute(new Runnable() {
+						public void run() {
+							TaskAbortException ex = null;
+							try { finishPush(task, progress, cb); }
+							catch (TaskAbortException e) { ex = e; }
+							if (done != null) { done.invoke(X2(task, ex)); }
+						}
+					});
+				}
+			});
+		} catch (TaskAbortException e) {
+			if (done != null) { done.invoke(X2(task, e)); }
 		}
 	}
 	
+	/**
+	** Returns the key to cache the block for the given URI under, or {@code
+	** null} if it is not a CHK, and so must not be cached.
+	*/
+	protected static String cacheKeyFor(FreenetURI uri) {
+		return uri.isCHK()? uri.toString(false, true): null;
+	}
+
+	/**
+	** Reads a block from the cache into memory, or returns {@code null} if it
+	** is not there. It is read straight away, because the cache may evict the
+	** block before it is decoded.
+	*/
+	private Bucket readCache(BlockCache c, String cacheKey) {
+		if (c == null || cacheKey == null) { return null; }
+		InputStream is = c.get(cacheKey);
+		if (is == null) { return null; }
+		try {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream(0x1000);
+			byte[] buf = new byte[0x2000];
+			int r;
+			while ((r = is.read(buf)) >= 0) {
+				bos.write(buf, 0, r);
+			}
+			return new SimpleReadOnlyArrayBucket(bos.toByteArray());
+		} catch (IOException e) {
+			// not fatal, we just fetch it again
+			Logger.error(this, "Failed to read block from disk cache: "+cacheKey, e);
+			return null;
+		} finally {
+			Closer.close(is);
+		}
+	}
+
+	private void putCache(BlockCache c, String cacheKey, Bucket data) {
+		if (cacheKey == null) { return; }
+		InputStream is = null;
+		try {
+			is = data.getInputStream();
+			c.put(cacheKey, is);
+		} catch (IOException e) {
+			// not fatal, we just won't have it cached
+			Logger.error(this, "Failed to store block in disk cache: "+cacheKey, e);
+		} finally {
+			Closer.close(is);
+		}
+	}
+
 	enum WAIT_STATUS {
 		FAILED,
 		GENERATED_URI,
@@ -424,11 +811,49 @@ implements LiveArchiver<T, SimpleProgress> {
 //		private final SimpleProgress progress;
 		private final long size;
 		private final InsertBlock ib;
+		/** Called once the key has been generated, or the insert failed before that. */
+		private final SafeClosure<PushCallback> generated;
+		private boolean claimed;
+		/** The insert and {@link #finishPush} each hold the data until they are done with it. */
+		private int holds = 2;
+		/** Progress before the insert was started, for bookkeeping. */
+		ProgressParts partsBefore;
 		
 		public PushCallback(SimpleProgress progress, InsertBlock ib) {
+			this(progress, ib, null);
+		}
+
+		public PushCallback(SimpleProgress progress, InsertBlock ib, SafeClosure<PushCallback> gen) {
 //			this.progress = progress;
 			this.ib = ib;
 			size = ib.getData().size();
+			generated = gen;
+		}
+
+		/**
+		** Claims the right to report the outcome of the insert, so that it is
+		** only reported once.
+		**
+		** @return false if it was already claimed
+		*/
+		synchronized boolean claim() {
+			if(claimed) return false;
+			claimed = true;
+			return true;
+		}
+
+		void release() {
+			boolean free;
+			synchronized(this) {
+				free = (--holds == 0);
+			}
+			if(free && ib != null)
+				ib.free();
+		}
+
+		private void reportGenerated() {
+			if(generated != null && claim())
+				generated.invoke(this);
 		}
 
 		public long size() {
@@ -482,8 +907,8 @@ implements LiveArchiver<T, SimpleProgress> {
 				pushesFailed.add(e);
 				FreenetArchiver.this.notifyAll();
 			}
-			if(ib != null)
-				ib.free();
+			release();
+			reportGenerated();
 		}
 
 		@Override
@@ -492,9 +917,12 @@ implements LiveArchiver<T, SimpleProgress> {
 		}
 
 		@Override
-		public synchronized void onGeneratedURI(FreenetURI uri, BaseClientPutter state) {
-			generatedURI = uri;
-			notifyAll();
+		public void onGeneratedURI(FreenetURI uri, BaseClientPutter state) {
+			synchronized(this) {
+				generatedURI = uri;
+				notifyAll();
+			}
+			reportGenerated();
 		}
 
 		@Override
@@ -505,17 +933,19 @@ implements LiveArchiver<T, SimpleProgress> {
 				Logger.debug(this, "Completed background insert ("+generatedURI+") in "+(System.currentTimeMillis()-startTime)+"ms, now running: "+semiAsyncPushes.size()+" ("+SizeUtil.formatSize(totalBytesPushing)+").");
 				FreenetArchiver.this.notifyAll();
 			}
-			if(ib != null)
-				ib.free();
+			release();
 //			if(progress != null) progress.addPartKnown(0, true);
 
 		}
 
 		@Override
-		public synchronized void onGeneratedMetadata(Bucket metadata,
+		public void onGeneratedMetadata(Bucket metadata,
 				BaseClientPutter state) {
-			generatedMetadata = metadata;
-			notifyAll();
+			synchronized(this) {
+				generatedMetadata = metadata;
+				notifyAll();
+			}
+			reportGenerated();
 		}
 
         @Override
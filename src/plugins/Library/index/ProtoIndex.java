@@ -4,34 +4,48 @@
 package plugins.Library.index;
 
 import plugins.Library.Index;
+import plugins.Library.FilterableIndex;
+import plugins.Library.PrefixIndex;
+import plugins.Library.RankedIndex;
 import plugins.Library.io.serial.Serialiser;
 import plugins.Library.io.serial.ProgressTracker;
 import plugins.Library.util.Skeleton;
 import plugins.Library.util.SkeletonTreeMap;
 import plugins.Library.util.SkeletonBTreeMap;
 import plugins.Library.util.SkeletonBTreeSet;
+import plugins.Library.util.SkeletonSortedMap;
 import plugins.Library.util.DataNotLoadedException;
 import plugins.Library.util.exec.Progress;
 import plugins.Library.util.exec.ProgressParts;
 import plugins.Library.util.exec.ChainedProgress;
 import plugins.Library.util.exec.Execution;
+import plugins.Library.util.exec.StreamingExecution;
 import plugins.Library.util.exec.AbstractExecution;
 import plugins.Library.util.exec.TaskAbortException;
-import plugins.Library.util.concurrent.Executors;
+import plugins.Library.util.exec.TaskCompleteException;
+import plugins.Library.util.concurrent.ExecutionConfig;
+import plugins.Library.util.func.Closure;
+import plugins.Library.util.func.SafeClosure;
 
 import freenet.keys.FreenetURI;
 import freenet.support.Logger;
 
 import java.util.AbstractSet;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 import java.util.Map;
+import java.util.SortedMap;
 import java.util.SortedSet;
+import java.util.TreeMap;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.TreeSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Date;
 
 import java.util.concurrent.Executor;
@@ -41,7 +55,7 @@ import java.util.concurrent.Executor;
 **
 ** @author infinity0
 */
-final public class ProtoIndex implements Index {
+final public class ProtoIndex implements FilterableIndex, PrefixIndex, RankedIndex {
 
 	final static long serialVersionUID = 0xf8ea40b26c1e5b37L;
 
@@ -58,9 +72,20 @@ final public class ProtoIndex implements Index {
 	/*final*/ public static int BTREE_NODE_MIN = 0x400;
 	final public static int BTREE_ENT_MAX = (BTREE_NODE_MIN<<1) - 1;
 
-	protected static Executor exec = Executors.DEFAULT_EXECUTOR;
+	/**
+	** Executor for term lookups. By default, the {@link
+	** ExecutionConfig.Role#SEARCH} pool.
+	*/
+	protected static Executor exec = ExecutionConfig.get(ExecutionConfig.Role.SEARCH);
 	public static void setExecutor(Executor e) { exec = e; }
 
+	/**
+	** Maximum number of nodes to pull at once when inflating the B-tree for a
+	** term. The tree is inflated level-by-level, so this costs about one
+	** round-trip per level. See {@link SkeletonBTreeMap#setParallelism(int)}.
+	*/
+	public static int TERM_INFLATE_PARALLELISM = 0x20;
+
 	/**
 	** Request ID for this index
 	*/
@@ -98,8 +123,8 @@ final public class ProtoIndex implements Index {
 
 
 
-	final public /* DEBUG protected*/ SkeletonBTreeMap<String, SkeletonBTreeSet<TermEntry>> ttab;
-	final protected SkeletonBTreeMap<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>> utab;
+	final public /* DEBUG protected*/ SkeletonSortedMap<String, SkeletonBTreeSet<TermEntry>> ttab;
+	final public /* DEBUG protected*/ SkeletonSortedMap<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>> utab;
 
 
 	public ProtoIndex(FreenetURI id, String n, String owner, String ownerEmail, long pages) {
@@ -110,9 +135,23 @@ final public class ProtoIndex implements Index {
 		);
 	}
 
+	/**
+	** Creates a new index whose tables are of the type used by the given
+	** serialiser's format (see {@link
+	** ProtoIndexComponentSerialiser#newTermTable()}), and sets the serialiser
+	** on it.
+	*/
+	public ProtoIndex(FreenetURI id, String n, String owner, String ownerEmail, long pages, ProtoIndexComponentSerialiser srl) {
+		this(id, n, owner, ownerEmail, pages, new Date(), new HashMap<String, Object>(),
+			srl.newURITable(),
+			srl.newTermTable()
+		);
+		srl.setSerialiserFor(this);
+	}
+
 	protected ProtoIndex(FreenetURI id, String n, String owner, String ownerEmail, long pages, Date m, Map<String, Object> x,
-		SkeletonBTreeMap<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>> u,
-		SkeletonBTreeMap<String, SkeletonBTreeSet<TermEntry>> t/*,
+		SkeletonSortedMap<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>> u,
+		SkeletonSortedMap<String, SkeletonBTreeSet<TermEntry>> t/*,
 		SkeletonMap<Token, TokenFilter> f*/
 		) {
 		reqID = id;
@@ -145,28 +184,197 @@ final public class ProtoIndex implements Index {
 
 
 
-	private Map<String, Execution<Set<TermEntry>>> getTermEntriesProgress = new
-	HashMap<String, Execution<Set<TermEntry>>>();
+	/**
+	** Cache for term lookups on an index without a {@link #reqID}, which
+	** cannot go in the shared {@link TermResultCache}.
+	*/
+	private TermResultCache localTermCache;
+
+	/**
+	** Returns the cache that lookups on this index are kept in.
+	*/
+	protected synchronized TermResultCache getTermCache() {
+		if (reqID != null) { return TermResultCache.getInstance(); }
+		if (localTermCache == null) { localTermCache = new TermResultCache(TermResultCache.DEFAULT_MAX_WEIGHT); }
+		return localTermCache;
+	}
+
+	protected TermResultCache.Key getTermCacheKey(String term, int limit) {
+		return (reqID != null)? new TermResultCache.Key(reqID, term, limit): new TermResultCache.Key("", -1, term, limit);
+	}
 
-	public Execution<Set<TermEntry>> getTermEntries(String term) {
-		Execution<Set<TermEntry>> request = getTermEntriesProgress.get(term);
+	/**
+	** Returns the lookup for the given key from the cache, or else adds the
+	** given one to the cache and starts it.
+	*/
+	protected Execution<Set<TermEntry>> getTermEntries(TermResultCache.Key key, getTermEntriesHandler handler) {
+		Execution<Set<TermEntry>> request = getTermCache().putIfAbsent(key, handler);
 		if (request == null) {
-			request = new getTermEntriesHandler(term);
-			getTermEntriesProgress.put(term, request);
-			exec.execute((getTermEntriesHandler)request);
+			request = handler;
+			exec.execute(handler);
 		}
 		return request;
 	}
 
+	/**
+	** {@inheritDoc}
+	**
+	** This shares its cache entry with {@link #getTermEntries(String, int)}
+	** for all the entries, but inflates the whole tree at once rather than in
+	** order, so the entries are only made available once they are all loaded.
+	*/
+	public Execution<Set<TermEntry>> getTermEntries(String term) {
+		return getTermEntries(getTermCacheKey(term, 0), new streamTermEntriesHandler(term, 0, false));
+	}
+
+	/**
+	** Retrieves the entries for a term in order of relevance, making them
+	** available as soon as the nodes of the tree holding them are loaded,
+	** rather than only once the whole tree is loaded.
+	**
+	** @param term The term
+	** @param limit If positive, stop after this many entries. This gives the
+	**        top {@code limit} entries by relevance, without loading the rest
+	**        of the tree.
+	** @see StreamingExecution
+	*/
+	public StreamingExecution<Set<TermEntry>, TermEntry> getTermEntries(String term, int limit) {
+		if (limit < 0) { limit = 0; }
+		// every lookup cached under these keys streams its entries
+		@SuppressWarnings("unchecked") StreamingExecution<Set<TermEntry>, TermEntry> rq = (StreamingExecution<Set<TermEntry>, TermEntry>)getTermEntries(getTermCacheKey(term, limit), new streamTermEntriesHandler(term, limit, true));
+		return rq;
+	}
 
 
 
+
+	/**
+	** {@inheritDoc}
+	**
+	** The size of the tree for a term is kept in its root, so this only loads
+	** the nodes of the term table on the way to it.
+	*/
+	public Execution<Long> getTermSize(String term) {
+		termSizeHandler handler = new termSizeHandler(term);
+		exec.execute(handler);
+		return handler;
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** The entries of a term are sorted by relevance rather than by page, so
+	** they cannot be looked up by page directly. Instead the tree is inflated
+	** in order, as for {@link #getTermEntries(String, int)}, and this stops
+	** as soon as an entry has been found for every page. If there are only a
+	** few pages, they are first looked up in the uri table, so that pages
+	** which do not contain the term are not searched for at all. The result
+	** is only part of the term's entries, so it is not cached.
+	*/
+	public Execution<Set<TermEntry>> getTermEntries(String term, Set<FreenetURI> pages) {
+		filterTermEntriesHandler handler = new filterTermEntriesHandler(term, pages);
+		exec.execute(handler);
+		return handler;
+	}
+
+	/**
+	** Terms of this index which have been listed so far.
+	*/
+	private TermDictionary termDictionary;
+
+	/**
+	** Returns the dictionary that terms listed from this index are kept in.
+	** If the index has a {@link #reqID}, this is shared with other instances
+	** of the same edition, and kept on disk.
+	*/
+	protected synchronized TermDictionary getTermDictionary() {
+		if (termDictionary == null) {
+			termDictionary = (reqID != null)? TermDictionary.forIndex(reqID): new TermDictionary(null);
+		}
+		return termDictionary;
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** The terms are listed from the keys of the nodes of the term table, so
+	** no entries are loaded, and only the nodes whose range overlaps the
+	** prefix are pulled. They are then kept in the {@link TermDictionary} for
+	** this index, and lookups for the same prefix, or a longer one, are
+	** answered from it straight away.
+	*/
+	public Execution<SortedSet<String>> getTerms(String prefix, int limit) {
+		listTermsHandler handler = new listTermsHandler(prefix, limit);
+		if (getTermDictionary().isCovered(prefix)) {
+			handler.run();
+		} else {
+			exec.execute(handler);
+		}
+		return handler;
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** The result is null if the index has no entry for the page.
+	*/
 	public Execution<URIEntry> getURIEntry(FreenetURI uri) {
-		throw new UnsupportedOperationException("not implemented");
+		getURIEntryHandler handler = new getURIEntryHandler(uri);
+		exec.execute(handler);
+		return handler;
+	}
+
+	/**
+	** Finds the entry for a page in {@link #utab}, loading the nodes on the
+	** way to it. Like the other lookups, this must not run at the same time
+	** as another lookup on this index.
+	**
+	** @return The entry, or null if the index has none for the page
+	*/
+	protected URIEntry findURIEntry(FreenetURI uri) throws TaskAbortException {
+		URIKey key = keyOf(uri);
+		return (key == null)? null: findURIEntry(key, uri);
+	}
+
+	protected URIEntry findURIEntry(URIKey key, FreenetURI uri) throws TaskAbortException {
+		SkeletonBTreeMap<FreenetURI, URIEntry> entries = getLoaded(utab, key);
+		return (entries == null)? null: getLoaded(entries, uri);
+	}
+
+	/**
+	** Returns the key of a page in {@link #utab}, or null if it cannot have
+	** one, eg. if it is not a CHK, SSK, USK or KSK.
+	*/
+	public static URIKey keyOf(FreenetURI uri) {
+		try {
+			return new URIKey(uri);
+		} catch (java.net.MalformedURLException e) {
+			return null;
+		} catch (UnsupportedOperationException e) {
+			return null;
+		}
 	}
 
+	/**
+	** Gets a value from a skeleton map, loading the nodes on the way to it.
+	*/
+	@SuppressWarnings("unchecked")
+	protected static <K, V> V getLoaded(Map<K, V> map, K key) throws TaskAbortException {
+		for (;;) {
+			try {
+				return map.get(key);
+			} catch (DataNotLoadedException d) {
+				d.getParent().inflate(d.getKey());
+			}
+		}
+	}
 
-	public class getTermEntriesHandler extends AbstractExecution<Set<TermEntry>> implements Runnable, ChainedProgress {
+
+	/**
+	** Base class for lookups which start by finding the tree of entries for a
+	** term in {@link #ttab}.
+	*/
+	abstract public class termLookupHandler<V> extends AbstractExecution<V> implements Runnable, ChainedProgress {
 		// TODO NORM have a Runnable field instead of extending Runnable
 		// basically, redesign this entire class and series of classes
 
@@ -174,13 +382,13 @@ final public class ProtoIndex implements Index {
 		Object current_meta;
 		ProgressTracker current_tracker;
 
-		protected getTermEntriesHandler(String t) {
+		protected termLookupHandler(String t) {
 			super(t);
 		}
 
 		@Override public ProgressParts getParts() throws TaskAbortException {
 			// TODO NORM tidy this up
-			Set<TermEntry> result = getResult();
+			V result = getResult();
 			int started = trackers.size();
 			int known = started;
 			int done = started - 1;
@@ -203,27 +411,66 @@ final public class ProtoIndex implements Index {
 
 		// TODO HIGH tidy this - see SkeletonBTreeMap.inflate() for details
 		Progress last = null;
+
+		/**
+		** Gets the root of the tree of entries for the term, loading the nodes
+		** of {@link #ttab} on the way to it.
+		**
+		** @throws TaskAbortException if the index does not contain the term
+		*/
+		protected SkeletonBTreeSet<TermEntry> getRoot() throws TaskAbortException {
+			SkeletonBTreeSet<TermEntry> root;
+			for (;;) {
+				try {
+					root = ttab.get(subject);
+					break;
+				} catch (DataNotLoadedException d) {
+					Skeleton p = d.getParent();
+					trackers.put(current_meta = d.getValue(), current_tracker = ((Serialiser.Trackable)p.getSerialiser()).getTracker());
+					p.inflate(d.getKey());
+				}
+			}
+
+			if (root == null) {
+				// TODO HIGH better way to handle this
+				throw new TaskAbortException("Index does not contain term " + subject, new Exception("Index does not contain term " + subject));
+			}
+			return root;
+		}
+
+	}
+
+	/**
+	** Finds the number of entries for a term. See {@link
+	** ProtoIndex#getTermSize(String)}.
+	*/
+	public class termSizeHandler extends termLookupHandler<Long> {
+
+		protected termSizeHandler(String t) {
+			super(t);
+		}
+
 		/*@Override**/ public void run() {
 			try {
-				// get the root container
-				SkeletonBTreeSet<TermEntry> root;
-				for (;;) {
-					try {
-						root = ttab.get(subject);
-						break;
-					} catch (DataNotLoadedException d) {
-						Skeleton p = d.getParent();
-						trackers.put(current_meta = d.getValue(), current_tracker = ((Serialiser.Trackable)p.getSerialiser()).getTracker());
-						p.inflate(d.getKey());
-					}
-				}
+				// the size of a tree is kept in its root, so this loads nothing else
+				setResult((long)getRoot().size());
+			} catch (TaskAbortException e) {
+				setError(e);
+			}
+		}
 
-				if (root == null) {
-					// TODO HIGH better way to handle this
-					throw new TaskAbortException("Index does not contain term " + subject, new Exception("Index does not contain term " + subject));
-				}
-				last = root.getProgressInflate(); // REMOVE ME
-				root.inflate();
+	}
+
+	public class getTermEntriesHandler extends termLookupHandler<Set<TermEntry>> {
+
+		protected getTermEntriesHandler(String t) {
+			super(t);
+		}
+
+		/*@Override**/ public void run() {
+			try {
+				// get the root container
+				SkeletonBTreeSet<TermEntry> root = getRoot();
 
 				// Post-process relevance.
 				double multiplier = 1.0;
@@ -237,9 +484,8 @@ final public class ProtoIndex implements Index {
 					} else
 						Logger.normal(this, "Correcting results: "+multiplier);
 				}
-				Set<TermEntry> entries = wrapper(root, multiplier);
-				
-				setResult(entries);
+
+				setResult(retrieve(root, multiplier));
 
 			} catch (TaskAbortException e) {
 				setError(e);
@@ -247,7 +493,31 @@ final public class ProtoIndex implements Index {
 			}
 		}
 
-		private Set<TermEntry> wrapper(final SkeletonBTreeSet<TermEntry> root, final double relAdjustment) {
+		/**
+		** Loads the entries for the term, once the root of its tree has been
+		** found, and returns the result of the execution.
+		**
+		** This implementation inflates the whole tree.
+		**
+		** @param root The tree of entries for the term
+		** @param multiplier Factor to adjust the relevance of each entry by
+		*/
+		protected Set<TermEntry> retrieve(SkeletonBTreeSet<TermEntry> root, double multiplier) throws TaskAbortException {
+			last = root.getProgressInflate(); // REMOVE ME
+			root.setParallelism(TERM_INFLATE_PARALLELISM);
+			root.inflate();
+			return wrapper(root, multiplier);
+		}
+
+		protected TermEntry adjust(TermEntry t, double relAdjustment) {
+			if(t instanceof TermPageEntry && relAdjustment != 1.0) {
+				// Adjust relevance
+				return new TermPageEntry((TermPageEntry)t, (float)(relAdjustment*t.rel));
+			} else
+				return t;
+		}
+
+		protected Set<TermEntry> wrapper(final SkeletonBTreeSet<TermEntry> root, final double relAdjustment) {
 			return new AbstractSet<TermEntry>() {
 
 				public boolean add(TermEntry arg0) {
@@ -282,12 +552,7 @@ final public class ProtoIndex implements Index {
 						}
 
 						public TermEntry next() {
-							TermEntry t = entries.next();
-							if(t instanceof TermPageEntry && relAdjustment != 1.0) {
-								// Adjust relevance
-								return new TermPageEntry((TermPageEntry)t, (float)(relAdjustment*t.rel));
-							} else
-								return t;
+							return adjust(entries.next(), relAdjustment);
 						}
 
 						public void remove() {
@@ -318,6 +583,247 @@ final public class ProtoIndex implements Index {
 
 	}
 
+	/**
+	** Retrieves the entries for a term in order of relevance, making them
+	** available in batches as the nodes of the tree are loaded. See {@link
+	** ProtoIndex#getTermEntries(String, int)}.
+	*/
+	public class streamTermEntriesHandler extends getTermEntriesHandler implements StreamingExecution<Set<TermEntry>, TermEntry> {
+
+		/**
+		** Maximum number of entries to retrieve, or non-positive for all.
+		*/
+		final protected int limit;
+
+		/**
+		** Whether to inflate the tree in order, making the entries available
+		** as they are loaded, or to inflate it all at once, which is quicker
+		** when all the entries are wanted anyway.
+		*/
+		final protected boolean inOrder;
+
+		/**
+		** Batches of entries received so far, with relevance adjusted.
+		*/
+		final protected List<List<TermEntry>> batches = new ArrayList<List<TermEntry>>();
+
+		final protected Set<SafeClosure<List<TermEntry>>> batch_accept = new LinkedHashSet<SafeClosure<List<TermEntry>>>();
+
+		protected streamTermEntriesHandler(String t, int k, boolean o) {
+			super(t);
+			limit = k;
+			inOrder = o || k > 0;
+		}
+
+		/**
+		** {@inheritDoc}
+		**
+		** This implementation inflates the tree in order, stopping after
+		** {@link #limit} entries. The entries of a term all have the same
+		** subject, so they are sorted by relevance; any subtree which is not
+		** loaded could not have beaten the entries already retrieved. Unless
+		** {@link #inOrder} is set, the whole tree is inflated at once, and the
+		** entries are made available as a single batch.
+		*/
+		@Override protected Set<TermEntry> retrieve(SkeletonBTreeSet<TermEntry> root, final double multiplier) throws TaskAbortException {
+			if (!inOrder) {
+				Set<TermEntry> all = super.retrieve(root, multiplier);
+				addBatch(Collections.unmodifiableList(new ArrayList<TermEntry>(all)));
+				return all;
+			}
+			last = root.getProgressInflate();
+			root.setParallelism(TERM_INFLATE_PARALLELISM);
+			root.inflateInOrder(limit, new Closure<List<TermEntry>, TaskAbortException>() {
+				/*@Override**/ public void invoke(List<TermEntry> batch) {
+					List<TermEntry> adjusted = new ArrayList<TermEntry>(batch.size());
+					for (TermEntry t: batch) { adjusted.add(adjust(t, multiplier)); }
+					addBatch(Collections.unmodifiableList(adjusted));
+				}
+			});
+			if (limit <= 0) { return wrapper(root, multiplier); }
+			// only part of the tree was loaded, so just return what we got
+			return Collections.unmodifiableSet(new LinkedHashSet<TermEntry>(getPartialResult()));
+		}
+
+		protected synchronized void addBatch(List<TermEntry> batch) {
+			batches.add(batch);
+			for (SafeClosure<List<TermEntry>> acc: batch_accept) { offerBatch(acc, batch); }
+		}
+
+		protected void offerBatch(SafeClosure<List<TermEntry>> acc, List<TermEntry> batch) {
+			try {
+				acc.invoke(batch);
+			} catch (RuntimeException e) {
+				Logger.error(this, "Error in batch acceptor for " + subject + ": " + e, e);
+			}
+		}
+
+		/*@Override**/ public synchronized List<TermEntry> getPartialResult() {
+			List<TermEntry> entries = new ArrayList<TermEntry>();
+			for (List<TermEntry> batch: batches) { entries.addAll(batch); }
+			return entries;
+		}
+
+		/*@Override**/ public synchronized void addBatchAcceptor(SafeClosure<List<TermEntry>> acc) {
+			if (!batch_accept.add(acc)) { return; }
+			for (List<TermEntry> batch: batches) { offerBatch(acc, batch); }
+		}
+
+	}
+
+	/**
+	** Retrieves the entries for a term which refer to one of a set of pages.
+	** See {@link ProtoIndex#getTermEntries(String, Set)}.
+	*/
+	public class filterTermEntriesHandler extends getTermEntriesHandler {
+
+		/**
+		** Pages to retrieve the entries for.
+		*/
+		final protected Set<FreenetURI> pages;
+
+		protected filterTermEntriesHandler(String t, Set<FreenetURI> p) {
+			super(t);
+			pages = p;
+		}
+
+		/**
+		** {@inheritDoc}
+		**
+		** This implementation first drops the pages which {@link #probe} rules
+		** out, then inflates the tree in order, stopping once every remaining
+		** page has been seen; nodes are only pulled after the entries before
+		** them have been checked, so the rest of the tree is left unloaded.
+		*/
+		@Override protected Set<TermEntry> retrieve(SkeletonBTreeSet<TermEntry> root, final double multiplier) throws TaskAbortException {
+			final Set<TermEntry> found = new LinkedHashSet<TermEntry>();
+			final Set<FreenetURI> wanted = probe(root);
+			if (wanted.isEmpty()) { return Collections.unmodifiableSet(found); }
+			final Set<FreenetURI> seen = new HashSet<FreenetURI>();
+			last = root.getProgressInflate();
+			root.setParallelism(TERM_INFLATE_PARALLELISM);
+			root.inflateInOrder(0, new Closure<List<TermEntry>, TaskAbortException>() {
+				/*@Override**/ public void invoke(List<TermEntry> batch) throws TaskAbortException {
+					for (TermEntry t: batch) {
+						if (t instanceof TermPageEntry) {
+							FreenetURI page = ((TermPageEntry)t).page;
+							if (!wanted.contains(page)) { continue; }
+							seen.add(page);
+						}
+						found.add(adjust(t, multiplier));
+					}
+					if (seen.size() == wanted.size()) {
+						throw new TaskCompleteException("Found all " + wanted.size() + " pages for " + subject);
+					}
+				}
+			});
+			return Collections.unmodifiableSet(found);
+		}
+
+		/**
+		** Drops the pages which {@link #utab} says do not contain the term,
+		** so that the tree of a common term need not be walked for pages
+		** which are not in it. Each probe loads a few nodes, so this is only
+		** done when there are fewer pages than nodes in the term's tree.
+		** Pages without an entry in the table are kept, since the table may
+		** not list every page of an older index.
+		**
+		** @return The pages which may still have an entry for the term
+		*/
+		protected Set<FreenetURI> probe(SkeletonBTreeSet<TermEntry> root) throws TaskAbortException {
+			if (pages.isEmpty() || utab.isEmpty() || pages.size() >= root.size() / BTREE_NODE_MIN) {
+				return pages;
+			}
+			Set<FreenetURI> left = new HashSet<FreenetURI>();
+			// probe in key order, so that pages in the same nodes are together
+			SortedMap<URIKey, List<FreenetURI>> keys = new TreeMap<URIKey, List<FreenetURI>>();
+			for (FreenetURI page: pages) {
+				URIKey key = keyOf(page);
+				if (key == null) { left.add(page); continue; }
+				List<FreenetURI> same = keys.get(key);
+				if (same == null) { keys.put(key, same = new ArrayList<FreenetURI>(1)); }
+				same.add(page);
+			}
+			for (Map.Entry<URIKey, List<FreenetURI>> en: keys.entrySet()) {
+				for (FreenetURI page: en.getValue()) {
+					URIEntry entry = findURIEntry(en.getKey(), page);
+					if (entry == null || entry.getTerms().contains(subject)) { left.add(page); }
+				}
+			}
+			return left;
+		}
+
+	}
+
+	/**
+	** Finds the entry for a page. See {@link ProtoIndex#getURIEntry(FreenetURI)}.
+	*/
+	public class getURIEntryHandler extends AbstractExecution<URIEntry> implements Runnable {
+
+		final protected FreenetURI uri;
+
+		protected getURIEntryHandler(FreenetURI u) {
+			super(u.toString());
+			uri = u;
+		}
+
+		@Override public ProgressParts getParts() throws TaskAbortException {
+			return (isDone())? ProgressParts.normalise(1, 1): ProgressParts.normalise(0, 1);
+		}
+
+		@Override public String getStatus() {
+			return "Looking up page " + subject;
+		}
+
+		/*@Override**/ public void run() {
+			try {
+				setResult(findURIEntry(uri));
+			} catch (TaskAbortException e) {
+				setError(e);
+			}
+		}
+
+	}
+
+	/**
+	** Lists the terms starting with a prefix. See {@link
+	** ProtoIndex#getTerms(String, int)}.
+	*/
+	public class listTermsHandler extends AbstractExecution<SortedSet<String>> implements Runnable {
+
+		final protected int limit;
+
+		protected listTermsHandler(String prefix, int k) {
+			super(prefix);
+			limit = k;
+		}
+
+		@Override public ProgressParts getParts() throws TaskAbortException {
+			return (getResult() != null)? ProgressParts.normalise(1, 1): ProgressParts.normalise(0, 1);
+		}
+
+		@Override public String getStatus() {
+			return "Listing terms starting with " + subject;
+		}
+
+		/*@Override**/ public void run() {
+			try {
+				TermDictionary dict = getTermDictionary();
+				SortedSet<String> terms = dict.get(subject, limit);
+				if (terms == null) {
+					dict.put(subject, ttab.keysInRange(subject, TermDictionary.successor(subject)));
+					terms = dict.get(subject, limit);
+				}
+				setResult(terms);
+			} catch (TaskAbortException e) {
+				setError(e);
+			} catch (RuntimeException e) {
+				setError(new TaskAbortException("Could not list terms starting with " + subject, e));
+			}
+		}
+
+	}
+
 
 	public void setName(String indexName) {
 		this.name = indexName;
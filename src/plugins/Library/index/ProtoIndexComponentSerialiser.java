@@ -8,12 +8,16 @@ import plugins.Library.client.FreenetArchiver;
 import plugins.Library.util.SkeletonTreeMap;
 import plugins.Library.util.SkeletonBTreeMap;
 import plugins.Library.util.SkeletonBTreeSet;
+import plugins.Library.util.SkeletonBPlusTreeMap;
+import plugins.Library.util.SkeletonSortedMap;
 import plugins.Library.util.exec.ProgressParts;
 import plugins.Library.util.exec.Progress;
 import plugins.Library.util.exec.SimpleProgress;
 import plugins.Library.util.exec.BaseCompositeProgress;
 import plugins.Library.util.exec.TaskAbortException;
 import plugins.Library.util.exec.TaskInProgressException;
+import plugins.Library.util.func.SafeClosure;
+import static plugins.Library.util.func.Tuples.X2; // also imports the class
 import plugins.Library.io.serial.Serialiser.*;
 import plugins.Library.io.serial.Serialiser;
 import plugins.Library.io.serial.Translator;
@@ -22,18 +26,23 @@ import plugins.Library.io.serial.Archiver;
 import plugins.Library.io.serial.IterableSerialiser;
 import plugins.Library.io.serial.MapSerialiser;
 import plugins.Library.io.serial.LiveArchiver;
+import plugins.Library.io.serial.AsyncArchiver;
+import plugins.Library.io.serial.TwoPhaseArchiver;
 import plugins.Library.io.serial.ParallelSerialiser;
 import plugins.Library.io.serial.Packer;
 import plugins.Library.io.serial.Packer.Scale; // WORKAROUND javadoc bug #4464323
 import plugins.Library.io.serial.FileArchiver;
 import plugins.Library.io.DataFormatException;
 import plugins.Library.io.YamlReaderWriter;
+import plugins.Library.io.BinaryReaderWriter;
 
 import freenet.keys.FreenetURI;
 import freenet.node.RequestStarter;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Set;
 import java.util.Map;
 import java.util.SortedMap;
@@ -58,6 +67,10 @@ public class ProtoIndexComponentSerialiser {
 
 	final protected static int FMT_FREENET_SIMPLE = 0x2db3c940;
 	public final static int FMT_FILE_LOCAL = 0xd439e29a;
+	final protected static int FMT_FREENET_BINARY = 0x5e1b7a03;
+	public final static int FMT_FILE_LOCAL_BINARY = 0x8c3f6d15;
+	final protected static int FMT_FREENET_BPLUS = 0x71c0e84b;
+	public final static int FMT_FILE_LOCAL_BPLUS = 0x2a6fd359;
 
 	public final static int FMT_DEFAULT = FMT_FREENET_SIMPLE;
 
@@ -66,6 +79,12 @@ public class ProtoIndexComponentSerialiser {
 	*/
 	final protected static YamlReaderWriter yamlrw = new YamlReaderWriter();
 
+	/**
+	** Converts between a low-level object and a compact binary byte stream.
+	** Streams which are not in this format are read as YAML.
+	*/
+	final protected static BinaryReaderWriter binrw = new BinaryReaderWriter(yamlrw);
+
 	/**
 	** Translator for the local entries of a node of the ''term table''.
 	*/
@@ -84,8 +103,9 @@ public class ProtoIndexComponentSerialiser {
 	*/
 	final protected static Translator<URIKey, String>
 	utab_keys_ktr = new Translator<URIKey, String>() {
-		public String app(URIKey k) { return k.toString(); }
-		public URIKey rev(String s) { return new URIKey(URIKey.hexToBytes(s)); }
+		// the edge keys of a node may be null
+		public String app(URIKey k) { return (k == null)? null: k.toString(); }
+		public URIKey rev(String s) { return (s == null)? null: new URIKey(URIKey.hexToBytes(s)); }
 	};
 
 	/**
@@ -94,6 +114,29 @@ public class ProtoIndexComponentSerialiser {
 	final protected static Translator<SkeletonTreeMap<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>>, Map<String, Object>>
 	utab_keys_mtr = new TreeMapTranslator<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>>(utab_keys_ktr);
 
+	/**
+	** Translator for the {@link FreenetURI} keys of the local entries of a
+	** node of the ''B-tree'' for a ''urikey''.
+	*/
+	final protected static Translator<FreenetURI, String>
+	uri_data_ktr = new Translator<FreenetURI, String>() {
+		public String app(FreenetURI u) { return u.toString(); }
+		public FreenetURI rev(String s) throws DataFormatException {
+			try {
+				return new FreenetURI(s);
+			} catch (java.net.MalformedURLException e) {
+				throw new DataFormatException("Bad FreenetURI " + s, e, s);
+			}
+		}
+	};
+
+	/**
+	** Translator for the local entries of a node of the ''B-tree'' for a
+	** ''urikey''.
+	*/
+	final protected static Translator<SkeletonTreeMap<FreenetURI, URIEntry>, Map<String, Object>>
+	uri_data_mtr = new TreeMapTranslator<FreenetURI, URIEntry>(uri_data_ktr);
+
 	/**
 	** Serialiser for the ''targets'' of the values stored in a node of the
 	** ''B-tree'' for a ''term''. In this case, the values are the actual
@@ -163,6 +206,16 @@ public class ProtoIndexComponentSerialiser {
 	*/
 	final protected int serialFormatUID;
 
+	/**
+	** Whether the ''term table'' and the ''uri table'' are B+-trees (ie.
+	** {@link SkeletonBPlusTreeMap}s) rather than B-trees.
+	*/
+	final protected boolean bplus;
+
+	public boolean isBPlusTree() {
+		return bplus;
+	}
+
 	/**
 	** Archiver for the lowest level (leaf).
 	*/
@@ -191,6 +244,25 @@ public class ProtoIndexComponentSerialiser {
 	final protected BTreePacker<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>, EntryGroupSerialiser<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>>>
 	utab_data;
 
+	/**
+	** Set the {@link Packer.Strategy} that the ''term table'' and the ''uri
+	** table'' use to pack their values into bins. This is {@link
+	** Packer.Strategy#BEST_FIT_DECREASING} by default, which gives the same
+	** layout as before; {@link Packer.Strategy#LEAST_REWRITE} pushes fewer
+	** bins when only a few of the values in each node have changed.
+	**
+	** Instances for a {@code null} archiver are shared between callers, so
+	** only change this on an instance made for your own archiver.
+	*/
+	public void setPackingStrategy(Packer.Strategy s) {
+		ttab_data.setStrategy(s);
+		utab_data.setStrategy(s);
+	}
+
+	public Packer.Strategy getPackingStrategy() {
+		return ttab_data.getStrategy();
+	}
+
 	/**
 	** Constructs a new instance using the given format.
 	 * @param archiver
@@ -200,19 +272,38 @@ public class ProtoIndexComponentSerialiser {
 	**         instance (eg. existence of a freenet node) are not met.
 	*/
 	protected ProtoIndexComponentSerialiser(int fmtid, LiveArchiver<Map<String, Object>, SimpleProgress> archiver) {
+		bplus = fmtid == FMT_FREENET_BPLUS || fmtid == FMT_FILE_LOCAL_BPLUS;
 		if(archiver != null) {
-			leaf_arx = archiver;
+			switch (fmtid) {
+			case FMT_FREENET_BINARY:
+			case FMT_FILE_LOCAL_BINARY:
+				// the archiver given is the one for the index root, which is
+				// always YAML, so make one for the same place that uses binrw
+				leaf_arx = binaryArchiverFor(archiver);
+				break;
+			default:
+				leaf_arx = archiver;
+			}
 		} else {
+			short priorityClass = RequestStarter.INTERACTIVE_PRIORITY_CLASS;
 			switch (fmtid) {
 			case FMT_FREENET_SIMPLE:
-				short priorityClass = RequestStarter.INTERACTIVE_PRIORITY_CLASS;
+			case FMT_FREENET_BPLUS:
 				if(archiver instanceof FreenetArchiver)
 					priorityClass = ((FreenetArchiver)archiver).priorityClass;
 				leaf_arx = Library.makeArchiver(yamlrw, ProtoIndex.MIME_TYPE, 0x180 * ProtoIndex.BTREE_NODE_MIN, priorityClass);
 				break;
 			case FMT_FILE_LOCAL:
+			case FMT_FILE_LOCAL_BPLUS:
 				leaf_arx = new FileArchiver<Map<String, Object>>(yamlrw, true, YamlReaderWriter.FILE_EXTENSION, "", "", null);
 				break;
+			case FMT_FREENET_BINARY:
+				// binary nodes are much smaller than YAML ones
+				leaf_arx = Library.makeArchiver(binrw, BinaryReaderWriter.MIME_TYPE, 0x80 * ProtoIndex.BTREE_NODE_MIN, priorityClass);
+				break;
+			case FMT_FILE_LOCAL_BINARY:
+				leaf_arx = new FileArchiver<Map<String, Object>>(binrw, true, BinaryReaderWriter.FILE_EXTENSION, "", "", null);
+				break;
 			default:
 				throw new UnsupportedOperationException("Unknown serial format id");
 			}
@@ -237,8 +328,8 @@ public class ProtoIndexComponentSerialiser {
 		utab_data = new BTreePacker<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>, EntryGroupSerialiser<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>>>(
 			new EntryGroupSerialiser<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>>(
 				leaf_arx,
-				null,
-				new SkeletonBTreeMap.TreeTranslator<FreenetURI, URIEntry>(null, null) {
+				utab_keys_ktr,
+				new SkeletonBTreeMap.TreeTranslator<FreenetURI, URIEntry>(null, uri_data_mtr) {
 					@Override public SkeletonBTreeMap<FreenetURI, URIEntry> rev(Map<String, Object> tree) throws DataFormatException {
 						return setSerialiserFor(super.rev(tree));
 					}
@@ -249,32 +340,106 @@ public class ProtoIndexComponentSerialiser {
 		);
 	}
 
+	/**
+	** Returns an archiver that stores nodes in the same place as the given
+	** one, in the binary format.
+	**
+	** @throws UnsupportedOperationException if the archiver is not a {@link
+	**         FileArchiver} or a {@link FreenetArchiver}
+	*/
+	protected static LiveArchiver<Map<String, Object>, SimpleProgress> binaryArchiverFor(LiveArchiver<Map<String, Object>, SimpleProgress> archiver) {
+		if (archiver instanceof FileArchiver) {
+			return ((FileArchiver<Map<String, Object>>)archiver).withReaderWriter(binrw, BinaryReaderWriter.FILE_EXTENSION);
+		} else if (archiver instanceof FreenetArchiver) {
+			short priorityClass = ((FreenetArchiver<Map<String, Object>>)archiver).priorityClass;
+			return Library.makeArchiver(binrw, BinaryReaderWriter.MIME_TYPE, 0x80 * ProtoIndex.BTREE_NODE_MIN, priorityClass);
+		} else {
+			throw new UnsupportedOperationException("Cannot store binary nodes through " + archiver);
+		}
+	}
+
 	/**
 	** Set the serialisers for the ''uri table'' and the ''term table'' on an
 	** index.
 	*/
 	public ProtoIndex setSerialiserFor(ProtoIndex index) {
 		// set serialisers on the ttab
-		BTreeNodeSerialiser<String, SkeletonBTreeSet<TermEntry>> ttab_keys = new BTreeNodeSerialiser<String, SkeletonBTreeSet<TermEntry>>(
-			"term listings",
-			leaf_arx,
-			index.ttab.makeNodeTranslator(null, ttab_keys_mtr)
-		);
-		index.ttab.setSerialiser(ttab_keys, ttab_data);
+		if (index.ttab instanceof SkeletonBPlusTreeMap) {
+			setSerialiserFor((SkeletonBPlusTreeMap<String, SkeletonBTreeSet<TermEntry>>)index.ttab, "term listings", null, ttab_data);
+		} else {
+			SkeletonBTreeMap<String, SkeletonBTreeSet<TermEntry>> ttab = (SkeletonBTreeMap<String, SkeletonBTreeSet<TermEntry>>)index.ttab;
+			BTreeNodeSerialiser<String, SkeletonBTreeSet<TermEntry>> ttab_keys = new BTreeNodeSerialiser<String, SkeletonBTreeSet<TermEntry>>(
+				"term listings",
+				leaf_arx,
+				ttab.makeNodeTranslator(null, ttab_keys_mtr)
+			);
+			ttab.setSerialiser(ttab_keys, ttab_data);
+		}
 
 		// set serialisers on the utab
-		BTreeNodeSerialiser<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>> utab_keys = new BTreeNodeSerialiser<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>>(
-			"uri listings",
-			leaf_arx,
-			index.utab.makeNodeTranslator(utab_keys_ktr, utab_keys_mtr)
-		);
-		index.utab.setSerialiser(utab_keys, utab_data);
+		if (index.utab instanceof SkeletonBPlusTreeMap) {
+			setSerialiserFor((SkeletonBPlusTreeMap<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>>)index.utab, "uri listings", utab_keys_ktr, utab_data);
+		} else {
+			SkeletonBTreeMap<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>> utab = (SkeletonBTreeMap<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>>)index.utab;
+			BTreeNodeSerialiser<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>> utab_keys = new BTreeNodeSerialiser<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>>(
+				"uri listings",
+				leaf_arx,
+				utab.makeNodeTranslator(utab_keys_ktr, utab_keys_mtr)
+			);
+			utab.setSerialiser(utab_keys, utab_data);
+		}
 
 		// set serialiser on the index
 		index.setSerialiser(this);
 		return index;
 	}
 
+	/**
+	** Set the serialisers for a table of an index that is a B+-tree. The
+	** nodes of its index and its leaves are both pushed through {@link
+	** #leaf_arx}.
+	**
+	** @param name Description of what the table stores
+	** @param ktr Translator for the keys
+	** @param vsrl Serialiser for the values
+	*/
+	protected <K, V> void setSerialiserFor(SkeletonBPlusTreeMap<K, V> tab, String name, Translator<K, String> ktr, MapSerialiser<K, V> vsrl) {
+		BTreeNodeSerialiser<K, SkeletonTreeMap<K, V>> keys = new BTreeNodeSerialiser<K, SkeletonTreeMap<K, V>>(
+			name + " (index)",
+			leaf_arx,
+			tab.makeNodeTranslator(ktr, new TreeMapTranslator<K, SkeletonTreeMap<K, V>>(ktr))
+		);
+		BPlusLeafSerialiser<K, V> leaves = new BPlusLeafSerialiser<K, V>(
+			name,
+			leaf_arx,
+			new TreeMapTranslator<K, V>(ktr),
+			vsrl
+		);
+		tab.setSerialiser(keys, leaves, vsrl);
+	}
+
+	/**
+	** Returns a new empty ''term table'', of the type used by this format.
+	** The leaves of a B+-tree hold about as many entries as the nodes of a
+	** B-tree.
+	*/
+	public SkeletonSortedMap<String, SkeletonBTreeSet<TermEntry>> newTermTable() {
+		if (bplus) {
+			return new SkeletonBPlusTreeMap<String, SkeletonBTreeSet<TermEntry>>(ProtoIndex.BTREE_NODE_MIN, ProtoIndex.BTREE_NODE_MIN);
+		}
+		return new SkeletonBTreeMap<String, SkeletonBTreeSet<TermEntry>>(ProtoIndex.BTREE_NODE_MIN);
+	}
+
+	/**
+	** Returns a new empty ''uri table'', of the type used by this format.
+	*/
+	public SkeletonSortedMap<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>> newURITable() {
+		if (bplus) {
+			return new SkeletonBPlusTreeMap<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>>(ProtoIndex.BTREE_NODE_MIN, ProtoIndex.BTREE_NODE_MIN);
+		}
+		return new SkeletonBTreeMap<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>>(ProtoIndex.BTREE_NODE_MIN);
+	}
+
 	/**
 	** Set the serialiser for the ''B-tree'' that holds the ''uri-entry
 	** mappings'' for a ''urikey''.
@@ -283,7 +448,7 @@ public class ProtoIndexComponentSerialiser {
 		BTreeNodeSerialiser<FreenetURI, URIEntry> uri_keys = new BTreeNodeSerialiser<FreenetURI, URIEntry>(
 			"uri entries",
 			leaf_arx,
-			entries.makeNodeTranslator(null, null) // no translator needed as FreenetURI and URIEntry are both directly serialisable by YamlReaderWriter
+			entries.makeNodeTranslator(null, uri_data_mtr) // FreenetURI and URIEntry are both directly serialisable by YamlReaderWriter
 		);
 		entries.setSerialiser(uri_keys, uri_dummy);
 		return entries;
@@ -338,6 +503,8 @@ public class ProtoIndexComponentSerialiser {
 	public static class BTreeNodeSerialiser<K, V>
 	extends ParallelSerialiser<SkeletonBTreeMap<K, V>.SkeletonNode, SimpleProgress>
 	implements Archiver<SkeletonBTreeMap<K, V>.SkeletonNode>,
+	           TwoPhaseArchiver<SkeletonBTreeMap<K, V>.SkeletonNode, SimpleProgress>,
+	           AsyncArchiver<SkeletonBTreeMap<K, V>.SkeletonNode, SimpleProgress>,
 	           Serialiser.Translate<SkeletonBTreeMap<K, V>.SkeletonNode, Map<String, Object>>,
 	           Serialiser.Composite<LiveArchiver<Map<String, Object>, SimpleProgress>> {
 
@@ -371,12 +538,42 @@ public class ProtoIndexComponentSerialiser {
 		}
 
 		/*@Override**/ public void pullLive(PullTask<SkeletonBTreeMap<K, V>.SkeletonNode> task, SimpleProgress p) throws TaskAbortException {
+			decodeLive(task, fetchLive(task, p), p);
+		}
+
+		/**
+		** {@inheritDoc}
+		**
+		** If the child archiver is not a {@link TwoPhaseArchiver}, the whole
+		** pull is done here, and only the translation is left for {@link
+		** #decodeLive(Serialiser.PullTask, TwoPhaseArchiver.Fetched,
+		** SimpleProgress)}.
+		*/
+		/*@Override**/ public TwoPhaseArchiver.Fetched fetchLive(PullTask<SkeletonBTreeMap<K, V>.SkeletonNode> task, SimpleProgress p) throws TaskAbortException {
 			p.enteredSerialiser();
 			try {
-				SkeletonBTreeMap<K, V>.GhostNode ghost = (SkeletonBTreeMap.GhostNode)task.meta;
+				@SuppressWarnings("unchecked") SkeletonBTreeMap<K, V>.GhostNode ghost = (SkeletonBTreeMap<K, V>.GhostNode)task.meta;
 				p.setSubject("Pulling " + name + ": " + ghost.getRange());
 				PullTask<Map<String, Object>> serialisable = new PullTask<Map<String, Object>>(ghost.getMeta());
+				if (subsrl instanceof TwoPhaseArchiver) {
+					return new FetchedNode(serialisable, ((TwoPhaseArchiver<Map<String, Object>, SimpleProgress>)subsrl).fetchLive(serialisable, p));
+				}
 				subsrl.pullLive(serialisable, p);
+				return new FetchedNode(serialisable, null);
+			} catch (RuntimeException e) {
+				p.abort(new TaskAbortException("Could not pull B-tree node", e));
+				return null;
+			}
+		}
+
+		/*@Override**/ public void decodeLive(PullTask<SkeletonBTreeMap<K, V>.SkeletonNode> task, TwoPhaseArchiver.Fetched raw, SimpleProgress p) throws TaskAbortException {
+			FetchedNode fetched = (FetchedNode)raw;
+			try {
+				PullTask<Map<String, Object>> serialisable = fetched.serialisable;
+				if (fetched.raw != null) {
+					((TwoPhaseArchiver<Map<String, Object>, SimpleProgress>)subsrl).decodeLive(serialisable, fetched.raw, p);
+				}
+				@SuppressWarnings("unchecked") SkeletonBTreeMap<K, V>.GhostNode ghost = (SkeletonBTreeMap<K, V>.GhostNode)task.meta;
 				ghost.setMeta(serialisable.meta); task.data = trans.rev(serialisable.data);
 				p.exitingSerialiser();
 			} catch (RuntimeException e) {
@@ -386,6 +583,29 @@ public class ProtoIndexComponentSerialiser {
 			}
 		}
 
+		/**
+		** Raw data for a node, along with the task for the child archiver.
+		*/
+		protected static class FetchedNode implements TwoPhaseArchiver.Fetched {
+
+			final protected PullTask<Map<String, Object>> serialisable;
+			final protected TwoPhaseArchiver.Fetched raw;
+
+			protected FetchedNode(PullTask<Map<String, Object>> s, TwoPhaseArchiver.Fetched r) {
+				serialisable = s;
+				raw = r;
+			}
+
+			/*@Override**/ public long size() {
+				return (raw == null)? -1: raw.size();
+			}
+
+			/*@Override**/ public void free() {
+				if (raw != null) { raw.free(); }
+			}
+
+		}
+
 		/*@Override**/ public void pushLive(PushTask<SkeletonBTreeMap<K, V>.SkeletonNode> task, SimpleProgress p) throws TaskAbortException {
 			p.enteredSerialiser();
 			try {
@@ -400,6 +620,187 @@ public class ProtoIndexComponentSerialiser {
 			}
 		}
 
+		/**
+		** {@inheritDoc}
+		**
+		** This implementation is asynchronous if the child archiver is.
+		*/
+		@Override protected boolean isAsync() {
+			return subsrl instanceof AsyncArchiver;
+		}
+
+		/**
+		** {@inheritDoc}
+		**
+		** The node is translated in whichever thread the child archiver
+		** completes in.
+		*/
+		/*@Override**/ public void pullAsync(final PullTask<SkeletonBTreeMap<K, V>.SkeletonNode> task, final SimpleProgress p, final SafeClosure<X2<PullTask<SkeletonBTreeMap<K, V>.SkeletonNode>, TaskAbortException>> done) {
+			if (!isAsync()) { pullNow(task, p, done); return; }
+			final PullTask<Map<String, Object>> serialisable;
+			p.enteredSerialiser();
+			try {
+				@SuppressWarnings("unchecked") SkeletonBTreeMap<K, V>.GhostNode ghost = (SkeletonBTreeMap<K, V>.GhostNode)task.meta;
+				p.setSubject("Pulling " + name + ": " + ghost.getRange());
+				serialisable = new PullTask<Map<String, Object>>(ghost.getMeta());
+			} catch (RuntimeException e) {
+				failed(task, p, new TaskAbortException("Could not pull B-tree node", e), done);
+				return;
+			}
+			((AsyncArchiver<Map<String, Object>, SimpleProgress>)subsrl).pullAsync(serialisable, p, new SafeClosure<X2<PullTask<Map<String, Object>>, TaskAbortException>>() {
+				/*@Override**/ public void invoke(X2<PullTask<Map<String, Object>>, TaskAbortException> res) {
+					if (res._1 != null) {
+						if (done != null) { done.invoke(X2(task, res._1)); }
+						return;
+					}
+					try {
+						@SuppressWarnings("unchecked") SkeletonBTreeMap<K, V>.GhostNode ghost = (SkeletonBTreeMap<K, V>.GhostNode)task.meta;
+						ghost.setMeta(serialisable.meta); task.data = trans.rev(serialisable.data);
+						p.exitingSerialiser();
+					} catch (RuntimeException e) {
+						failed(task, p, new TaskAbortException("Could not pull B-tree node", e), done);
+						return;
+					} catch (DataFormatException e) {
+						failed(task, p, new TaskAbortException("Could not pull B-tree node", e), done);
+						return;
+					}
+					if (done != null) { done.invoke(X2(task, (TaskAbortException)null)); }
+				}
+			});
+		}
+
+		/**
+		** {@inheritDoc}
+		**
+		** The node is translated in the current thread, before the child
+		** archiver starts its push.
+		*/
+		/*@Override**/ public void pushAsync(final PushTask<SkeletonBTreeMap<K, V>.SkeletonNode> task, final SimpleProgress p, final SafeClosure<X2<PushTask<SkeletonBTreeMap<K, V>.SkeletonNode>, TaskAbortException>> done) {
+			if (!isAsync()) { pushNow(task, p, done); return; }
+			final PushTask<Map<String, Object>> serialisable;
+			p.enteredSerialiser();
+			try {
+				p.setSubject("Pushing " + name + ": " + task.data.getRange());
+				serialisable = new PushTask<Map<String, Object>>(trans.app(task.data), task.meta);
+			} catch (RuntimeException e) {
+				failed(task, p, new TaskAbortException("Could not push B-tree node", e), done);
+				return;
+			}
+			((AsyncArchiver<Map<String, Object>, SimpleProgress>)subsrl).pushAsync(serialisable, p, new SafeClosure<X2<PushTask<Map<String, Object>>, TaskAbortException>>() {
+				/*@Override**/ public void invoke(X2<PushTask<Map<String, Object>>, TaskAbortException> res) {
+					if (res._1 != null) {
+						if (done != null) { done.invoke(X2(task, res._1)); }
+						return;
+					}
+					try {
+						task.meta = task.data.makeGhost(serialisable.meta);
+						p.exitingSerialiser();
+					} catch (RuntimeException e) {
+						failed(task, p, new TaskAbortException("Could not push B-tree node", e), done);
+						return;
+					}
+					if (done != null) { done.invoke(X2(task, (TaskAbortException)null)); }
+				}
+			});
+		}
+
+	}
+
+	/************************************************************************
+	** Serialiser for the leaves of a {@link SkeletonBPlusTreeMap}. Each leaf
+	** is deflated (ie. its values are pushed) before it is translated and
+	** pushed itself. Leaves that are already ghosts are left alone.
+	*/
+	public static class BPlusLeafSerialiser<K, V>
+	extends ParallelSerialiser<SkeletonTreeMap<K, V>, SimpleProgress>
+	implements MapSerialiser<K, SkeletonTreeMap<K, V>>,
+	           Serialiser.Translate<SkeletonTreeMap<K, V>, Map<String, Object>>,
+	           Serialiser.Composite<LiveArchiver<Map<String, Object>, SimpleProgress>> {
+
+		final protected Translator<SkeletonTreeMap<K, V>, Map<String, Object>> trans;
+		final protected LiveArchiver<Map<String, Object>, SimpleProgress> subsrl;
+		final protected MapSerialiser<K, V> vsrl;
+
+		protected String name;
+
+		/**
+		** @param n Description of what the map stores. This is used in the
+		**        progress report.
+		** @param v Serialiser to set on each leaf that is pulled
+		*/
+		public BPlusLeafSerialiser(String n, LiveArchiver<Map<String, Object>, SimpleProgress> s, Translator<SkeletonTreeMap<K, V>, Map<String, Object>> t, MapSerialiser<K, V> v) {
+			super(new ProgressTracker<SkeletonTreeMap<K, V>, SimpleProgress>(SimpleProgress.class));
+			subsrl = s;
+			trans = t;
+			vsrl = v;
+			name = n;
+		}
+
+		/*@Override**/ public Translator<SkeletonTreeMap<K, V>, Map<String, Object>> getTranslator() {
+			return trans;
+		}
+
+		/*@Override**/ public LiveArchiver<Map<String, Object>, SimpleProgress> getChildSerialiser() {
+			return subsrl;
+		}
+
+		/*@Override**/ public void pull(Map<K, PullTask<SkeletonTreeMap<K, V>>> tasks, Object mapmeta) throws TaskAbortException {
+			pull(new ArrayList<PullTask<SkeletonTreeMap<K, V>>>(tasks.values()));
+		}
+
+		/*@Override**/ public void push(Map<K, PushTask<SkeletonTreeMap<K, V>>> tasks, Object mapmeta) throws TaskAbortException {
+			List<PushTask<SkeletonTreeMap<K, V>>> live = new ArrayList<PushTask<SkeletonTreeMap<K, V>>>(tasks.size());
+			for (PushTask<SkeletonTreeMap<K, V>> task: tasks.values()) {
+				if (task.data == null) { continue; }
+				task.data.deflate();
+				live.add(task);
+			}
+			push(live);
+		}
+
+		/*@Override**/ public void pullLive(PullTask<SkeletonTreeMap<K, V>> task, SimpleProgress p) throws TaskAbortException {
+			p.enteredSerialiser();
+			try {
+				p.setSubject("Pulling " + name + " leaf " + task.meta);
+				PullTask<Map<String, Object>> serialisable = new PullTask<Map<String, Object>>(task.meta);
+				subsrl.pullLive(serialisable, p);
+				SkeletonTreeMap<K, V> leaf = trans.rev(serialisable.data);
+				leaf.setSerialiser(vsrl);
+				task.data = leaf;
+				p.exitingSerialiser();
+			} catch (RuntimeException e) {
+				p.abort(new TaskAbortException("Could not pull B+-tree leaf", e));
+			} catch (DataFormatException e) {
+				p.abort(new TaskAbortException("Could not pull B+-tree leaf", e));
+			}
+		}
+
+		/*@Override**/ public void pushLive(PushTask<SkeletonTreeMap<K, V>> task, SimpleProgress p) throws TaskAbortException {
+			p.enteredSerialiser();
+			try {
+				p.setSubject("Pushing " + name + " leaf of " + task.data.size() + " entries");
+				PushTask<Map<String, Object>> serialisable = new PushTask<Map<String, Object>>(trans.app(task.data), task.meta);
+				subsrl.pushLive(serialisable, p);
+				task.meta = serialisable.meta;
+				p.exitingSerialiser();
+			} catch (RuntimeException e) {
+				p.abort(new TaskAbortException("Could not push B+-tree leaf", e));
+			}
+		}
+
+	}
+
+	/**
+	** Aborts the progress for a task which an {@link AsyncArchiver} could
+	** not complete, and reports the error to the callback.
+	*/
+	protected static <T extends Task<?>> void failed(T task, SimpleProgress p, TaskAbortException ex, SafeClosure<X2<T, TaskAbortException>> done) {
+		try {
+			p.abort(ex);
+		} catch (TaskAbortException e) {
+			// abort() always rethrows its argument
+		}
+		if (done != null) { done.invoke(X2(task, ex)); }
 	}
 
 
@@ -464,6 +865,7 @@ public class ProtoIndexComponentSerialiser {
 	public static class EntryGroupSerialiser<K, V>
 	extends ParallelSerialiser<Map<K, V>, SimpleProgress>
 	implements IterableSerialiser<Map<K, V>>,
+	           AsyncArchiver<Map<K, V>, SimpleProgress>,
 	           Serialiser.Composite<LiveArchiver<Map<String, Object>, SimpleProgress>> {
 
 		final protected LiveArchiver<Map<String, Object>, SimpleProgress> subsrl;
@@ -487,18 +889,7 @@ public class ProtoIndexComponentSerialiser {
 				p.setSubject("Pulling root container " + task.meta);
 				PullTask<Map<String, Object>> t = new PullTask<Map<String, Object>>(task.meta);
 				subsrl.pullLive(t, p);
-
-				Map<K, V> map = new HashMap<K, V>(t.data.size()<<1);
-				try {
-					for (Map.Entry<String, Object> en: t.data.entrySet()) {
-						map.put((ktr == null)? (K)en.getKey(): ktr.rev(en.getKey()), btr.rev((Map<String, Object>)en.getValue()));
-					}
-				} catch (ClassCastException e) {
-					// FIXME NORM more meaningful error message
-					throw new DataFormatException("Exception in converting data", e, t.data, null, null);
-				}
-
-				task.data = map;
+				task.data = rev(t.data);
 				p.exitingSerialiser();
 			} catch (RuntimeException e) {
 				p.abort(new TaskAbortException("Failed task: " + p.getSubject(), e));
@@ -511,11 +902,7 @@ public class ProtoIndexComponentSerialiser {
 			p.enteredSerialiser();
 			try {
 				p.setSubject("Pushing root container for keys " + task.data);
-				Map<String, Object> conv = new HashMap<String, Object>();
-				for (Map.Entry<K, V> mp: task.data.entrySet()) {
-					conv.put((ktr == null)? (String)mp.getKey(): ktr.app(mp.getKey()), btr.app(mp.getValue()));
-				}
-				PushTask<Map<String, Object>> t = new PushTask<Map<String, Object>>(conv, task.meta);
+				PushTask<Map<String, Object>> t = new PushTask<Map<String, Object>>(app(task.data), task.meta);
 				subsrl.pushLive(t, p);
 				task.meta = t.meta;
 				p.exitingSerialiser();
@@ -524,6 +911,84 @@ public class ProtoIndexComponentSerialiser {
 			}
 		}
 
+		protected Map<K, V> rev(Map<String, Object> data) throws DataFormatException {
+			Map<K, V> map = new HashMap<K, V>(data.size()<<1);
+			try {
+				for (Map.Entry<String, Object> en: data.entrySet()) {
+					map.put((ktr == null)? (K)en.getKey(): ktr.rev(en.getKey()), btr.rev((Map<String, Object>)en.getValue()));
+				}
+			} catch (ClassCastException e) {
+				// FIXME NORM more meaningful error message
+				throw new DataFormatException("Exception in converting data", e, data, null, null);
+			}
+			return map;
+		}
+
+		protected Map<String, Object> app(Map<K, V> data) {
+			Map<String, Object> conv = new HashMap<String, Object>();
+			for (Map.Entry<K, V> mp: data.entrySet()) {
+				conv.put((ktr == null)? (String)mp.getKey(): ktr.app(mp.getKey()), btr.app(mp.getValue()));
+			}
+			return conv;
+		}
+
+		/**
+		** {@inheritDoc}
+		**
+		** This implementation is asynchronous if the child archiver is.
+		*/
+		@Override protected boolean isAsync() {
+			return subsrl instanceof AsyncArchiver;
+		}
+
+		/*@Override**/ public void pullAsync(final PullTask<Map<K, V>> task, final SimpleProgress p, final SafeClosure<X2<PullTask<Map<K, V>>, TaskAbortException>> done) {
+			if (!isAsync()) { pullNow(task, p, done); return; }
+			p.enteredSerialiser();
+			p.setSubject("Pulling root container " + task.meta);
+			final PullTask<Map<String, Object>> t = new PullTask<Map<String, Object>>(task.meta);
+			((AsyncArchiver<Map<String, Object>, SimpleProgress>)subsrl).pullAsync(t, p, new SafeClosure<X2<PullTask<Map<String, Object>>, TaskAbortException>>() {
+				/*@Override**/ public void invoke(X2<PullTask<Map<String, Object>>, TaskAbortException> res) {
+					if (res._1 != null) {
+						if (done != null) { done.invoke(X2(task, res._1)); }
+						return;
+					}
+					try {
+						task.data = rev(t.data);
+						p.exitingSerialiser();
+					} catch (RuntimeException e) {
+						failed(task, p, new TaskAbortException("Failed task: " + p.getSubject(), e), done);
+						return;
+					} catch (DataFormatException e) {
+						failed(task, p, new TaskAbortException("Failed task: " + p.getSubject(), e), done);
+						return;
+					}
+					if (done != null) { done.invoke(X2(task, (TaskAbortException)null)); }
+				}
+			});
+		}
+
+		/*@Override**/ public void pushAsync(final PushTask<Map<K, V>> task, final SimpleProgress p, final SafeClosure<X2<PushTask<Map<K, V>>, TaskAbortException>> done) {
+			if (!isAsync()) { pushNow(task, p, done); return; }
+			final PushTask<Map<String, Object>> t;
+			p.enteredSerialiser();
+			try {
+				p.setSubject("Pushing root container for keys " + task.data);
+				t = new PushTask<Map<String, Object>>(app(task.data), task.meta);
+			} catch (RuntimeException e) {
+				failed(task, p, new TaskAbortException("Failed task: " + p.getSubject(), e), done);
+				return;
+			}
+			((AsyncArchiver<Map<String, Object>, SimpleProgress>)subsrl).pushAsync(t, p, new SafeClosure<X2<PushTask<Map<String, Object>>, TaskAbortException>>() {
+				/*@Override**/ public void invoke(X2<PushTask<Map<String, Object>>, TaskAbortException> res) {
+					if (res._1 == null) {
+						task.meta = t.meta;
+						p.exitingSerialiser();
+					}
+					if (done != null) { done.invoke(X2(task, res._1)); }
+				}
+			});
+		}
+
 	}
 
 
@@ -6,6 +6,9 @@ package plugins.Library.index;
 import plugins.Library.Library;
 import plugins.Library.client.FreenetArchiver;
 import plugins.Library.util.SkeletonBTreeMap;
+import plugins.Library.util.SkeletonBPlusTreeMap;
+import plugins.Library.util.SkeletonSortedMap;
+import plugins.Library.util.SkeletonTreeMap;
 import plugins.Library.util.SkeletonBTreeSet;
 import plugins.Library.util.exec.SimpleProgress;
 import plugins.Library.util.exec.TaskAbortException;
@@ -112,14 +115,37 @@ implements Archiver<ProtoIndex>,
 	}
 
 	/*@Override**/ public void pull(PullTask<ProtoIndex> task) throws TaskAbortException {
-		PullTask<Map<String, Object>> serialisable = new PullTask<Map<String, Object>>(task.meta);
-		subsrl.pull(serialisable);
+		PullTask<Map<String, Object>> serialisable = pullRoot(task.meta);
 		task.meta = serialisable.meta;
-		if (task.meta instanceof FreenetURI) { // if not FreenetURI, skip this silently so we can test on local files
-			serialisable.data.put("reqID", task.meta);
+		task.data = rev(serialisable.data);
+	}
+
+	/**
+	** Pulls the serialised form of the index root, without constructing the
+	** index from it.
+	**
+	** The result is not modified by {@link #rev(Map)}, so it can be kept and
+	** passed to the {@link #rev(Map)} of a new serialiser for the same kind
+	** of location, to construct another copy of the index without fetching
+	** the root again. Each copy then has its own serialisers, so copies can
+	** be searched in parallel (see the FIXME above).
+	*/
+	public PullTask<Map<String, Object>> pullRoot(Object meta) throws TaskAbortException {
+		PullTask<Map<String, Object>> serialisable = new PullTask<Map<String, Object>>(meta);
+		subsrl.pull(serialisable);
+		if (serialisable.meta instanceof FreenetURI) { // if not FreenetURI, skip this silently so we can test on local files
+			serialisable.data.put("reqID", serialisable.meta);
 		}
+		return serialisable;
+	}
+
+	/**
+	** Constructs an index from the serialised form of its root, as returned
+	** by {@link #pullRoot(Object)}.
+	*/
+	public ProtoIndex rev(Map<String, Object> root) throws TaskAbortException {
 		try {
-			task.data = trans.rev(serialisable.data);
+			return trans.rev(root);
 		} catch (DataFormatException e) {
 			throw new TaskAbortException("Could not construct index from data", e);
 		}
@@ -146,8 +172,22 @@ implements Archiver<ProtoIndex>,
 		** URI-table translator
 		*/
 		Translator<SkeletonBTreeMap<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>>, Map<String, Object>> utrans = new
-		SkeletonBTreeMap.TreeTranslator<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>>(null, new
-		ProtoIndexComponentSerialiser.TreeMapTranslator<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>>(null));
+		SkeletonBTreeMap.TreeTranslator<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>>(ProtoIndexComponentSerialiser.utab_keys_ktr, new
+		ProtoIndexComponentSerialiser.TreeMapTranslator<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>>(ProtoIndexComponentSerialiser.utab_keys_ktr));
+
+		/**
+		** Term-table translator, for the B+-tree formats
+		*/
+		Translator<SkeletonBPlusTreeMap<String, SkeletonBTreeSet<TermEntry>>, Map<String, Object>> ttrans_bp = new
+		SkeletonBPlusTreeMap.TreeTranslator<String, SkeletonBTreeSet<TermEntry>>(null, new
+		ProtoIndexComponentSerialiser.TreeMapTranslator<String, SkeletonTreeMap<String, SkeletonBTreeSet<TermEntry>>>(null));
+
+		/**
+		** URI-table translator, for the B+-tree formats
+		*/
+		Translator<SkeletonBPlusTreeMap<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>>, Map<String, Object>> utrans_bp = new
+		SkeletonBPlusTreeMap.TreeTranslator<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>>(ProtoIndexComponentSerialiser.utab_keys_ktr, new
+		ProtoIndexComponentSerialiser.TreeMapTranslator<URIKey, SkeletonTreeMap<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>>>(ProtoIndexComponentSerialiser.utab_keys_ktr));
 
 		private LiveArchiver<Map<String, Object>, SimpleProgress> subsrl;
 		
@@ -181,8 +221,16 @@ implements Archiver<ProtoIndex>,
 			map.put("totalPages", new Long(idx.totalPages));
 			map.put("modified", idx.modified);
 			map.put("extra", idx.extra);
-			map.put("utab", utrans.app(idx.utab));
-			map.put("ttab", ttrans.app(idx.ttab));
+			if (idx.utab instanceof SkeletonBPlusTreeMap) {
+				map.put("utab", utrans_bp.app((SkeletonBPlusTreeMap<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>>)idx.utab));
+			} else {
+				map.put("utab", utrans.app((SkeletonBTreeMap<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>>)idx.utab));
+			}
+			if (idx.ttab instanceof SkeletonBPlusTreeMap) {
+				map.put("ttab", ttrans_bp.app((SkeletonBPlusTreeMap<String, SkeletonBTreeSet<TermEntry>>)idx.ttab));
+			} else {
+				map.put("ttab", ttrans.app((SkeletonBTreeMap<String, SkeletonBTreeSet<TermEntry>>)idx.ttab));
+			}
 			return map;
 		}
 
@@ -206,8 +254,17 @@ implements Archiver<ProtoIndex>,
 						totalPages = (Integer)o;
 					Date modified = (Date)map.get("modified");
 					Map<String, Object> extra = (Map<String, Object>)map.get("extra");
-					SkeletonBTreeMap<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>> utab = utrans.rev((Map<String, Object>)map.get("utab"));
-					SkeletonBTreeMap<String, SkeletonBTreeSet<TermEntry>> ttab = ttrans.rev((Map<String, Object>)map.get("ttab"));
+					Map<String, Object> umap = (Map<String, Object>)map.get("utab");
+					Map<String, Object> tmap = (Map<String, Object>)map.get("ttab");
+					SkeletonSortedMap<URIKey, SkeletonBTreeMap<FreenetURI, URIEntry>> utab;
+					SkeletonSortedMap<String, SkeletonBTreeSet<TermEntry>> ttab;
+					if (cmpsrl.isBPlusTree()) {
+						utab = utrans_bp.rev(umap);
+						ttab = ttrans_bp.rev(tmap);
+					} else {
+						utab = utrans.rev(umap);
+						ttab = ttrans.rev(tmap);
+					}
 
 					return cmpsrl.setSerialiserFor(new ProtoIndex(reqID, name, ownerName, ownerEmail, totalPages, modified, extra, utab, ttab));
 
@@ -0,0 +1,318 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.index;
+
+import plugins.Library.client.BlockCache;
+
+import freenet.keys.FreenetURI;
+import freenet.support.Logger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+** Local copy of the terms of an index which have been listed so far, so that
+** prefix searches and completions can be answered without fetching the nodes
+** of the term table again.
+**
+** Terms are only ever listed a whole prefix at a time, so the dictionary
+** records which prefixes it holds all the terms for; a lookup for any prefix
+** that starts with one of those is answered from the dictionary alone. Terms
+** and prefixes are kept as sorted arrays, which are written to the {@link
+** TermResultCache#getDiskCache() disk cache} with each term front-coded
+** against the one before it, so that they survive restarts.
+**
+** Dictionaries are per edition of an index, since a new edition may have new
+** terms.
+*/
+public class TermDictionary {
+
+	/**
+	** Maximum number of dictionaries held in memory.
+	*/
+	final public static int MAX_DICTIONARIES = 0x20;
+
+	/**
+	** Minimum time between writes of a dictionary to the disk cache. Prefixes
+	** recorded in the meantime are written together with the next one, or
+	** when the dictionary is {@link #flush() flushed}.
+	*/
+	final public static long WRITE_INTERVAL = 60*1000;
+
+	/**
+	** Dictionaries dropped from {@link #dicts}, to be flushed once its lock
+	** has been released.
+	*/
+	final private static List<TermDictionary> evicted = new ArrayList<TermDictionary>();
+
+	final private static Map<String, TermDictionary> dicts = new LinkedHashMap<String, TermDictionary>(0x10, 0.75f, true) {
+		@Override protected boolean removeEldestEntry(Map.Entry<String, TermDictionary> en) {
+			if (size() <= MAX_DICTIONARIES) { return false; }
+			evicted.add(en.getValue());
+			return true;
+		}
+	};
+
+	/**
+	** Returns the dictionary for the given index, loading it from the disk
+	** cache if it is not in memory. The disk is read without holding the
+	** lock on the other dictionaries; if two threads load the same one at
+	** once, the first to finish wins.
+	**
+	** @param uri The URI of the index, including its edition
+	*/
+	public static TermDictionary forIndex(FreenetURI uri) {
+		String id = TermResultCache.indexId(uri) + "#" + (uri.isUSK()? uri.getEdition(): -1);
+		synchronized (dicts) {
+			TermDictionary dict = dicts.get(id);
+			if (dict != null) { return dict; }
+		}
+		TermDictionary loaded = new TermDictionary(id);
+		loaded.readDisk(TermResultCache.getInstance().getDiskCache());
+		TermDictionary dict;
+		List<TermDictionary> dropped;
+		synchronized (dicts) {
+			dict = dicts.get(id);
+			if (dict == null) {
+				dicts.put(id, dict = loaded);
+			}
+			dropped = new ArrayList<TermDictionary>(evicted);
+			evicted.clear();
+		}
+		for (TermDictionary d: dropped) { d.flush(); }
+		return dict;
+	}
+
+	/**
+	** Writes every dictionary in memory which has unwritten changes to the
+	** disk cache, eg. before shutting down.
+	*/
+	public static void flushAll() {
+		List<TermDictionary> all;
+		synchronized (dicts) {
+			all = new ArrayList<TermDictionary>(dicts.values());
+			all.addAll(evicted);
+			evicted.clear();
+		}
+		for (TermDictionary d: all) { d.flush(); }
+	}
+
+	/**
+	** Identifies the index and edition the dictionary is for, or {@code null}
+	** if it is not kept on disk.
+	*/
+	final protected String id;
+
+	/**
+	** Known terms, in order.
+	*/
+	protected String[] terms = new String[0];
+
+	/**
+	** Prefixes that all the terms are known for, in order. None of them
+	** starts with another one.
+	*/
+	protected String[] covered = new String[0];
+
+	/**
+	** Whether there are changes which have not been written to disk.
+	*/
+	protected boolean dirty;
+
+	/**
+	** When the dictionary was last written to disk.
+	*/
+	protected long lastWrite;
+
+	/**
+	** @param i Identifies the index and edition the dictionary is for, or
+	**        {@code null} to keep it in memory only
+	*/
+	public TermDictionary(String i) {
+		id = i;
+	}
+
+	/**
+	** Returns the smallest string greater than every string that starts with
+	** the given prefix, or {@code null} if there is none.
+	*/
+	public static String successor(String prefix) {
+		for (int i=prefix.length()-1; i>=0; --i) {
+			char c = prefix.charAt(i);
+			if (c != Character.MAX_VALUE) {
+				return prefix.substring(0, i) + (char)(c+1);
+			}
+		}
+		return null;
+	}
+
+	/**
+	** Whether all the terms starting with the given prefix are known.
+	*/
+	public synchronized boolean isCovered(String prefix) {
+		int i = Arrays.binarySearch(covered, prefix);
+		if (i >= 0) { return true; }
+		// only the greatest covered prefix below this one can be a prefix of it
+		i = -i - 2;
+		return i >= 0 && prefix.startsWith(covered[i]);
+	}
+
+	/**
+	** Returns the terms starting with the given prefix, or {@code null} if
+	** they are not all known.
+	**
+	** @param limit If positive, return at most this many terms
+	*/
+	public synchronized SortedSet<String> get(String prefix, int limit) {
+		if (!isCovered(prefix)) { return null; }
+		SortedSet<String> found = new TreeSet<String>();
+		int i = Arrays.binarySearch(terms, prefix);
+		if (i < 0) { i = -i - 1; }
+		for (; i<terms.length && terms[i].startsWith(prefix); ++i) {
+			if (limit > 0 && found.size() == limit) { break; }
+			found.add(terms[i]);
+		}
+		return Collections.unmodifiableSortedSet(found);
+	}
+
+	/**
+	** Records all the terms starting with the given prefix. The dictionary is
+	** written to the disk cache if it has not been for {@link
+	** #WRITE_INTERVAL}; otherwise it is left to a later write.
+	**
+	** @param prefix The prefix
+	** @param found All the terms starting with the prefix
+	*/
+	public void put(String prefix, Collection<String> found) {
+		synchronized (this) {
+			if (isCovered(prefix)) { return; }
+			SortedSet<String> all = new TreeSet<String>(Arrays.asList(terms));
+			for (String term: found) {
+				if (!term.startsWith(prefix)) { throw new IllegalArgumentException("Term " + term + " does not start with " + prefix); }
+				all.add(term);
+			}
+			terms = all.toArray(new String[all.size()]);
+
+			List<String> cov = new ArrayList<String>(covered.length + 1);
+			for (String p: covered) {
+				if (!p.startsWith(prefix)) { cov.add(p); }
+			}
+			cov.add(prefix);
+			Collections.sort(cov);
+			covered = cov.toArray(new String[cov.size()]);
+			dirty = true;
+			if (System.currentTimeMillis() - lastWrite < WRITE_INTERVAL) { return; }
+		}
+		flush();
+	}
+
+	/**
+	** Writes the dictionary to the disk cache, if it has changed since it was
+	** last written.
+	*/
+	public void flush() {
+		synchronized (this) {
+			if (!dirty) { return; }
+			dirty = false;
+			lastWrite = System.currentTimeMillis();
+		}
+		writeDisk(TermResultCache.getInstance().getDiskCache());
+	}
+
+	/**
+	** Number of known terms.
+	*/
+	public synchronized int size() {
+		return terms.length;
+	}
+
+	/**
+	** Writes the dictionary to the given stream.
+	*/
+	public synchronized void write(OutputStream os) throws IOException {
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(os));
+		dos.writeUTF(String.valueOf(id));
+		dos.writeInt(covered.length);
+		for (String p: covered) { dos.writeUTF(p); }
+		dos.writeInt(terms.length);
+		String prev = "";
+		for (String term: terms) {
+			int shared = 0, max = Math.min(prev.length(), term.length());
+			while (shared < max && prev.charAt(shared) == term.charAt(shared)) { ++shared; }
+			dos.writeShort(shared);
+			dos.writeUTF(term.substring(shared));
+			prev = term;
+		}
+		dos.flush();
+	}
+
+	/**
+	** Reads the dictionary from the given stream, replacing its contents.
+	**
+	** @return Whether the stream held this dictionary
+	*/
+	public synchronized boolean read(InputStream is) throws IOException {
+		DataInputStream dis = new DataInputStream(new BufferedInputStream(is));
+		if (!dis.readUTF().equals(String.valueOf(id))) { return false; }
+		String[] cov = new String[dis.readInt()];
+		for (int i=0; i<cov.length; ++i) { cov[i] = dis.readUTF(); }
+		String[] ts = new String[dis.readInt()];
+		String prev = "";
+		for (int i=0; i<ts.length; ++i) {
+			int shared = dis.readUnsignedShort();
+			prev = ts[i] = prev.substring(0, shared) + dis.readUTF();
+		}
+		covered = cov;
+		terms = ts;
+		return true;
+	}
+
+	protected void writeDisk(BlockCache disk) {
+		if (disk == null || id == null) { return; }
+		try {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			write(bos);
+			disk.put(TermResultCache.blockName("dict-", id), new ByteArrayInputStream(bos.toByteArray()));
+		} catch (IOException e) {
+			Logger.error(this, "Could not write term dictionary for " + id + " to disk: " + e, e);
+		}
+	}
+
+	protected void readDisk(BlockCache disk) {
+		if (disk == null || id == null) { return; }
+		InputStream is = disk.get(TermResultCache.blockName("dict-", id));
+		if (is == null) { return; }
+		try {
+			try {
+				read(is);
+			} finally {
+				is.close();
+			}
+		} catch (IOException e) {
+			Logger.error(this, "Could not read term dictionary for " + id + " from disk: " + e, e);
+		}
+	}
+
+	@Override public synchronized String toString() {
+		return "TermDictionary[" + id + ": " + terms.length + " terms, " + covered.length + " prefixes]";
+	}
+
+}
@@ -3,12 +3,15 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package plugins.Library.index;
 
+import plugins.Library.io.BinaryReaderWriter;
 import plugins.Library.io.DataFormatException;
 import plugins.Library.io.ObjectStreamReader;
 import plugins.Library.io.ObjectStreamWriter;
 
 import freenet.keys.FreenetURI;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
 
@@ -17,10 +20,18 @@ import java.io.OutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.Closeable;
+import java.io.Flushable;
 
 /**
 ** Reads and writes {@link TermEntry}s in binary form, for performance.
 **
+** {@link #readObject(DataInputStream)} and {@link #writeObject(TermEntry,
+** DataOutputStream)} use the original format, where every entry is written
+** out in full. For streams of many entries, such as the buffers pushed to us
+** by the spider, {@link StreamWriter} writes a more compact format, and
+** {@link StreamReader} reads streams in either format.
+**
 ** @author infinity0
 */
 public class TermEntryReaderWriter implements ObjectStreamReader<TermEntry>, ObjectStreamWriter<TermEntry> {
@@ -42,6 +53,14 @@ public class TermEntryReaderWriter implements ObjectStreamReader<TermEntry>, Obj
 		if (svuid != TermEntry.serialVersionUID) {
 			throw new DataFormatException("Incorrect serialVersionUID", null, svuid);
 		}
+		return readFields(dis);
+	}
+
+	/**
+	** Reads the rest of an entry in the original format, after its {@link
+	** TermEntry#serialVersionUID}.
+	*/
+	protected TermEntry readFields(DataInputStream dis) throws IOException {
 		int type = dis.readInt();
 		String subj = dis.readUTF();
 		float rel = dis.readFloat();
@@ -62,13 +81,27 @@ public class TermEntryReaderWriter implements ObjectStreamReader<TermEntry>, Obj
 				title = dis.readUTF();
 				size = ~size;
 			}
-			Map<Integer, String> pos = new HashMap<Integer, String>(size<<1);
+			// positions are written in order, and most entries have no fragments,
+			// so read straight into arrays and only allocate those if needed
+			int[] pos = new int[size];
+			String[] frags = null;
+			boolean sorted = true;
 			for (int i=0; i<size; ++i) {
-				int index = dis.readInt();
+				pos[i] = dis.readInt();
 				String val = dis.readUTF();
-				pos.put(index, "".equals(val) ? null : val);
+				if (val.length() != 0) {
+					if (frags == null) { frags = new String[size]; }
+					frags[i] = val;
+				}
+				if (i > 0 && pos[i-1] >= pos[i]) { sorted = false; }
 			}
-			return new TermPageEntry(subj, rel, page, title, pos);
+			if (!sorted) {
+				// written by an older version from a HashMap
+				Map<Integer, String> map = new HashMap<Integer, String>(size<<1);
+				for (int i=0; i<size; ++i) { map.put(pos[i], frags == null? null: frags[i]); }
+				return new TermPageEntry(subj, rel, page, title, map);
+			}
+			return new TermPageEntry(subj, rel, page, title, pos, frags);
 		default:
 			throw new AssertionError();
 		}
@@ -102,23 +135,252 @@ public class TermEntryReaderWriter implements ObjectStreamReader<TermEntry>, Obj
 				dos.writeUTF(enn.title);
 			}
 			if(size != 0) {
-				if(enn.hasFragments()) {
-					for(Map.Entry<Integer, String> p : enn.positionsMap().entrySet()) {
-						dos.writeInt(p.getKey());
-						if(p.getValue() == null)
-							dos.writeUTF("");
-						else
-							dos.writeUTF(p.getValue());
+				int[] pos = enn.positionsRaw();
+				for(int i=0; i<pos.length; ++i) {
+					dos.writeInt(pos[i]);
+					String frag = enn.fragment(i);
+					dos.writeUTF(frag == null? "": frag);
+				}
+			}
+			return;
+		}
+	}
+
+	/**
+	** Magic number at the start of a stream in the compact format. Streams in
+	** the original format start with {@link TermEntry#serialVersionUID}.
+	*/
+	final public static long STREAM_MAGIC = 0x4C49425445524D02L; // "LIBTERM" 2
+
+	/**
+	** Version of the original format, where each entry is written separately.
+	*/
+	final public static int STREAM_V1 = 1;
+
+	/**
+	** Version of the compact format written by {@link StreamWriter}.
+	*/
+	final public static int STREAM_V2 = 2;
+
+	/**
+	** Maximum length of a fragment in UTF-8 bytes, as for {@link
+	** DataOutputStream#writeUTF(String)} in the original format.
+	*/
+	final public static int MAX_FRAGMENT_BYTES = 0xFFFF;
+
+	/**
+	** Writes a fragment as a varint length (plus one, or zero for null) and
+	** its UTF-8 bytes, so that a missing fragment takes only one byte. A
+	** fragment longer than {@link #MAX_FRAGMENT_BYTES} is cut short at the
+	** last character which fits.
+	*/
+	protected static void writeFragment(DataOutputStream out, String s) throws IOException {
+		if (s == null || s.length() == 0) {
+			BinaryReaderWriter.writeVarInt(out, 0);
+		} else {
+			byte[] b = s.getBytes("UTF-8");
+			int n = b.length;
+			if (n > MAX_FRAGMENT_BYTES) {
+				// don't split a multi-byte character
+				n = MAX_FRAGMENT_BYTES;
+				while (n > 0 && (b[n] & 0xC0) == 0x80) { --n; }
+			}
+			BinaryReaderWriter.writeVarInt(out, n + 1);
+			out.write(b, 0, n);
+		}
+	}
+
+	protected static String readFragment(DataInputStream in) throws IOException {
+		int n = BinaryReaderWriter.readVarInt(in);
+		if (n == 0) { return null; }
+		if (n < 0 || n > MAX_FRAGMENT_BYTES + 1) {
+			throw new DataFormatException("Invalid fragment length", null, n);
+		}
+		byte[] b = new byte[n-1];
+		in.readFully(b);
+		return new String(b, "UTF-8");
+	}
+
+	/**
+	** Writes a stream of {@link TermEntry}s in the compact format. The stream
+	** has a single header; after that, each entry has:
+	**
+	** - its subject, as a varint index into the subjects seen so far in the
+	**   stream, followed by the subject itself if this is the first time
+	** - its type as a varint, and its relevance
+	** - for pages, the number of positions and flags for the title and the
+	**   fragments as a single varint, then the positions, delta-encoded as
+	**   varints, then the fragments if there are any
+	*/
+	public static class StreamWriter implements Closeable, Flushable {
+
+		final protected DataOutputStream out;
+
+		final protected Map<String, Integer> subjects = new HashMap<String, Integer>();
+
+		public StreamWriter(OutputStream os) throws IOException {
+			out = (os instanceof DataOutputStream)? (DataOutputStream)os: new DataOutputStream(os);
+			out.writeLong(STREAM_MAGIC);
+		}
+
+		public void writeObject(TermEntry en) throws IOException {
+			Integer id = subjects.get(en.subj);
+			if (id == null) {
+				BinaryReaderWriter.writeVarInt(out, subjects.size());
+				out.writeUTF(en.subj);
+				subjects.put(en.subj, subjects.size());
+			} else {
+				BinaryReaderWriter.writeVarInt(out, id);
+			}
+			TermEntry.EntryType type = en.entryType();
+			BinaryReaderWriter.writeVarInt(out, type.ordinal());
+			out.writeFloat(en.rel);
+			switch (type) {
+			case TERM:
+				out.writeUTF(((TermTermEntry)en).term);
+				return;
+			case INDEX:
+				((TermIndexEntry)en).index.writeFullBinaryKeyWithLength(out);
+				return;
+			case PAGE:
+				TermPageEntry enn = (TermPageEntry)en;
+				enn.page.writeFullBinaryKeyWithLength(out);
+				int size = enn.positionsSize();
+				BinaryReaderWriter.writeVarInt(out, size<<2 | (enn.title == null? 0: 1) | (enn.hasFragments()? 2: 0));
+				if (enn.title != null) { out.writeUTF(enn.title); }
+				if (size == 0) { return; }
+				// positions are sorted, so store the deltas between them
+				int[] pos = enn.positionsRaw();
+				int last = 0;
+				for (int p: pos) {
+					BinaryReaderWriter.writeVarInt(out, BinaryReaderWriter.zigzag(p - last));
+					last = p;
+				}
+				if (enn.hasFragments()) {
+					for (int i=0; i<pos.length; ++i) {
+						writeFragment(out, enn.fragment(i));
 					}
-				} else {
-					for(int x : enn.positionsRaw()) {
-						dos.writeInt(x);
-						dos.writeUTF("");
+				}
+				return;
+			}
+		}
+
+		/*@Override**/ public void flush() throws IOException {
+			out.flush();
+		}
+
+		/*@Override**/ public void close() throws IOException {
+			out.close();
+		}
+
+	}
+
+	/**
+	** Reads a stream of {@link TermEntry}s written either by {@link
+	** StreamWriter}, or as a sequence of entries in the original format. The
+	** format is detected from the start of the stream.
+	*/
+	public static class StreamReader implements Closeable {
+
+		final protected DataInputStream in;
+
+		/**
+		** {@link #STREAM_V1} or {@link #STREAM_V2}.
+		*/
+		final public int version;
+
+		final protected List<String> subjects = new ArrayList<String>();
+
+		/**
+		** Whether the header we read was the first field of an entry in the
+		** original format.
+		*/
+		protected boolean headerRead;
+
+		/**
+		** @throws java.io.EOFException if the stream is empty
+		** @throws DataFormatException if the stream is in neither format
+		*/
+		public StreamReader(InputStream is) throws IOException {
+			in = (is instanceof DataInputStream)? (DataInputStream)is: new DataInputStream(is);
+			long header = in.readLong();
+			if (header == STREAM_MAGIC) {
+				version = STREAM_V2;
+			} else if (header == TermEntry.serialVersionUID) {
+				version = STREAM_V1;
+				headerRead = true;
+			} else {
+				throw new DataFormatException("Unrecognised stream header", null, header);
+			}
+		}
+
+		/**
+		** Reads the next entry.
+		**
+		** @throws java.io.EOFException at the end of the stream
+		*/
+		public TermEntry readObject() throws IOException {
+			if (version == STREAM_V1) {
+				if (headerRead) {
+					headerRead = false;
+					return instance.readFields(in);
+				}
+				return instance.readObject(in);
+			}
+
+			int id = BinaryReaderWriter.readVarInt(in);
+			String subj;
+			if (id == subjects.size()) {
+				subjects.add(subj = in.readUTF().intern());
+			} else if (id >= 0 && id < subjects.size()) {
+				subj = subjects.get(id);
+			} else {
+				throw new DataFormatException("Invalid subject reference", null, id);
+			}
+			int type = BinaryReaderWriter.readVarInt(in);
+			float rel = in.readFloat();
+			TermEntry.EntryType[] types = TermEntry.EntryType.values();
+			if (type < 0 || type >= types.length) {
+				throw new DataFormatException("Unrecognised entry type", null, type);
+			}
+			switch (types[type]) {
+			case TERM:
+				return new TermTermEntry(subj, rel, in.readUTF());
+			case INDEX:
+				return new TermIndexEntry(subj, rel, FreenetURI.readFullBinaryKeyWithLength(in));
+			case PAGE:
+				FreenetURI page = FreenetURI.readFullBinaryKeyWithLength(in);
+				int flags = BinaryReaderWriter.readVarInt(in);
+				int size = flags >>> 2;
+				String title = ((flags & 1) != 0)? in.readUTF(): null;
+				if (size == 0) {
+					return new TermPageEntry(subj, rel, page, title, (int[])null, (String[])null);
+				}
+				int[] pos = new int[size];
+				int last = 0;
+				for (int i=0; i<size; ++i) {
+					pos[i] = last += BinaryReaderWriter.unzigzag(BinaryReaderWriter.readVarInt(in));
+					if (i > 0 && pos[i-1] >= pos[i]) {
+						throw new DataFormatException("Positions not in order", null, pos[i]);
+					}
+				}
+				String[] frags = null;
+				if ((flags & 2) != 0) {
+					frags = new String[size];
+					for (int i=0; i<size; ++i) {
+						frags[i] = readFragment(in);
 					}
 				}
+				return new TermPageEntry(subj, rel, page, title, pos, frags);
+			default:
+				throw new AssertionError();
 			}
-			return;
 		}
+
+		/*@Override**/ public void close() throws IOException {
+			in.close();
+		}
+
 	}
 
 }
@@ -0,0 +1,287 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.index;
+
+import plugins.Library.io.DataFormatException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.Comparator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+/**
+** Groups a stream of {@link TermEntry}s by term, keeping a bounded number of
+** entries in memory.
+**
+** Entries are buffered in memory until there are {@link #maxBuffered} of
+** them. At that point they are written out to a temporary file as a run,
+** sorted by term. When all the entries have been {@linkplain #add(TermEntry)
+** added}, {@link #finish()} does a k-way merge of the runs into a single
+** file, grouped by term. The entries for each term can then be {@linkplain
+** #take(String) read back} one term at a time, in any order. If everything
+** fits into one buffer, nothing is written to disk.
+*/
+public class TermEntrySorter implements Closeable {
+
+	/**
+	** Directory for the temporary files.
+	*/
+	final public File dir;
+
+	/**
+	** Maximum number of entries to hold in memory before writing a run.
+	*/
+	final public int maxBuffered;
+
+	/**
+	** Entries not yet written to a run. After {@link #finish()}, this holds
+	** all the entries if no runs were written; otherwise it is null.
+	*/
+	protected SortedMap<String, SortedSet<TermEntry>> buffer = new TreeMap<String, SortedSet<TermEntry>>();
+
+	protected int buffered;
+
+	protected long added;
+
+	final protected List<File> runs = new ArrayList<File>();
+
+	/**
+	** File holding the merged runs, and where each term is in it.
+	*/
+	protected File merged;
+	protected RandomAccessFile mergedIn;
+	protected SortedMap<String, Block> blocks;
+
+	protected boolean finished;
+
+	/**
+	** Location of the entries for a term in the merged file.
+	*/
+	protected static class Block {
+		final long offset;
+		final int length;
+		final int count;
+		Block(long o, int l, int c) { offset = o; length = l; count = c; }
+	}
+
+	/**
+	** @param d Directory for the temporary files. This will be created if it
+	**        does not exist.
+	** @param max Maximum number of entries to hold in memory
+	*/
+	public TermEntrySorter(File d, int max) {
+		if (max <= 0) { throw new IllegalArgumentException("must be able to buffer at least one entry"); }
+		dir = d;
+		maxBuffered = max;
+	}
+
+	/**
+	** Adds an entry, writing the buffered entries out to a run if there are
+	** too many.
+	*/
+	public void add(TermEntry en) throws IOException {
+		if (finished) { throw new IllegalStateException("Already finished"); }
+		SortedSet<TermEntry> set = buffer.get(en.subj);
+		if (set == null) {
+			buffer.put(en.subj, set = new TreeSet<TermEntry>());
+		}
+		if (set.add(en)) {
+			++added;
+			if (++buffered >= maxBuffered) { spill(); }
+		}
+	}
+
+	/**
+	** Returns the number of entries added. Duplicates that were added while
+	** the first copy was still in memory are not counted.
+	*/
+	public long size() {
+		return added;
+	}
+
+	/**
+	** Whether any runs have been written to disk.
+	*/
+	public boolean isSpilled() {
+		return !runs.isEmpty() || merged != null;
+	}
+
+	/**
+	** Writes the buffered entries to a new run, in order.
+	*/
+	protected void spill() throws IOException {
+		if (buffered == 0) { return; }
+		if (!(dir.mkdirs() || dir.isDirectory())) {
+			throw new IOException("Could not create directory for sorted runs: " + dir);
+		}
+		File f = File.createTempFile("run-", ".dat", dir);
+		runs.add(f);
+		TermEntryReaderWriter.StreamWriter w = new TermEntryReaderWriter.StreamWriter(new BufferedOutputStream(new FileOutputStream(f)));
+		try {
+			for (SortedSet<TermEntry> set: buffer.values()) {
+				for (TermEntry en: set) { w.writeObject(en); }
+			}
+		} finally {
+			w.close();
+		}
+		buffer.clear();
+		buffered = 0;
+	}
+
+	/**
+	** Finishes adding entries. If any runs have been written to disk, they
+	** are merged into a single file, and the buffer is released.
+	*/
+	public void finish() throws IOException {
+		if (finished) { return; }
+		finished = true;
+		if (runs.isEmpty()) { return; }
+		spill();
+		buffer = null;
+
+		PriorityQueue<Run> queue = new PriorityQueue<Run>(runs.size(), new Comparator<Run>() {
+			/*@Override**/ public int compare(Run r1, Run r2) {
+				return r1.head.compareTo(r2.head);
+			}
+		});
+		try {
+			for (File f: runs) {
+				Run r = new Run(f);
+				if (r.next()) { queue.add(r); } else { r.close(); }
+			}
+
+			merged = File.createTempFile("merged-", ".dat", dir);
+			blocks = new TreeMap<String, Block>();
+			OutputStream os = new BufferedOutputStream(new FileOutputStream(merged));
+			try {
+				long offset = 0;
+				ByteArrayOutputStream bos = new ByteArrayOutputStream();
+				while (!queue.isEmpty()) {
+					// each term gets its own stream, so it can be read separately
+					String term = queue.peek().head.subj;
+					TermEntryReaderWriter.StreamWriter w = new TermEntryReaderWriter.StreamWriter(bos);
+					int count = 0;
+					while (!queue.isEmpty() && queue.peek().head.subj.equals(term)) {
+						Run r = queue.poll();
+						w.writeObject(r.head);
+						++count;
+						if (r.next()) { queue.add(r); } else { r.close(); }
+					}
+					w.flush();
+					blocks.put(term, new Block(offset, bos.size(), count));
+					bos.writeTo(os);
+					offset += bos.size();
+					bos.reset();
+				}
+			} finally {
+				os.close();
+			}
+		} finally {
+			for (Run r: queue) { r.close(); }
+		}
+		for (File f: runs) { f.delete(); }
+		runs.clear();
+		mergedIn = new RandomAccessFile(merged, "r");
+	}
+
+	/**
+	** Returns the terms that have entries, in order. Only valid after {@link
+	** #finish()}.
+	*/
+	public SortedSet<String> terms() {
+		if (!finished) { throw new IllegalStateException("Not finished yet"); }
+		SortedMap<String, ?> m = (blocks == null)? buffer: blocks;
+		return Collections.unmodifiableSortedSet(new TreeSet<String>(m.keySet()));
+	}
+
+	/**
+	** Returns the entries for the given term, and forgets about them. Only
+	** valid after {@link #finish()}. This method may be called from several
+	** threads at once.
+	**
+	** @return The entries, or null if there are none
+	*/
+	public synchronized SortedSet<TermEntry> take(String term) throws IOException {
+		if (!finished) { throw new IllegalStateException("Not finished yet"); }
+		if (blocks == null) { return buffer.remove(term); }
+		Block b = blocks.remove(term);
+		if (b == null) { return null; }
+		byte[] data = new byte[b.length];
+		mergedIn.seek(b.offset);
+		mergedIn.readFully(data);
+		TermEntryReaderWriter.StreamReader r = new TermEntryReaderWriter.StreamReader(new ByteArrayInputStream(data));
+		SortedSet<TermEntry> set = new TreeSet<TermEntry>();
+		for (int i=0; i<b.count; ++i) {
+			TermEntry en = r.readObject();
+			if (!en.subj.equals(term)) {
+				throw new DataFormatException("Entry in sorted run has the wrong term", null, en);
+			}
+			set.add(en);
+		}
+		return set;
+	}
+
+	/**
+	** Deletes the temporary files.
+	*/
+	/*@Override**/ public synchronized void close() throws IOException {
+		buffer = null;
+		blocks = null;
+		try {
+			if (mergedIn != null) { mergedIn.close(); }
+		} finally {
+			mergedIn = null;
+			if (merged != null) { merged.delete(); }
+			for (File f: runs) { f.delete(); }
+			runs.clear();
+		}
+	}
+
+	/**
+	** A run being merged, and its next entry.
+	*/
+	protected static class Run implements Closeable {
+
+		final TermEntryReaderWriter.StreamReader in;
+		TermEntry head;
+
+		Run(File f) throws IOException {
+			in = new TermEntryReaderWriter.StreamReader(new BufferedInputStream(new FileInputStream(f)));
+		}
+
+		boolean next() throws IOException {
+			try {
+				head = in.readObject();
+				return true;
+			} catch (EOFException e) {
+				head = null;
+				return false;
+			}
+		}
+
+		/*@Override**/ public void close() throws IOException {
+			in.close();
+		}
+
+	}
+
+}
@@ -29,16 +29,20 @@ public class TermPageEntry extends TermEntry {
 	*/
 	final public FreenetURI page;
 
-	/** Positions where the term occurs. May be null if we don't have that data. 
-	 * Specified as SortedSet<Integer> for ObjectBlueprint but will really always be a SortedIntSet. */
-	final public Set<Integer> positions;
-	
 	/**
-	** Map from positions in the text to a fragment of text around where it occurs.
-	** Only non-null if we have the fragments of text (we may have positions but not details), 
-	** to save memory.
+	** Sorted positions where the term occurs, or null if we don't have that
+	** data. Kept as a primitive array rather than a {@link Set} of boxed
+	** integers, since we hold very many of these at once.
 	*/
-	final public Map<Integer, String> posFragments;
+	final private int[] pos;
+
+	/**
+	** Fragments of text around each position, in the same order as {@link
+	** #pos}. Only non-null if we have at least one fragment (we may have
+	** positions but not details), to save memory. Individual elements may be
+	** null.
+	*/
+	final private String[] frags;
 
 	/**
 	** Here for backwards-compatibility with the old URIWrapper class.
@@ -70,73 +74,136 @@ public class TermPageEntry extends TermEntry {
 	**          surrounding it).
 	*/
 	public TermPageEntry(String s, float r, FreenetURI u, String t, Map<Integer, String> p) {
-		super(s, r);
-		if (u == null) {
-			throw new IllegalArgumentException("can't have a null page");
-		}
-		page = u.intern(); // OPT LOW make the translator use the same URI object as from the URI table?
-		title = t == null ? null : t.intern();
-		if(p == null) {
-			posFragments = null;
-			positions = null;
-		} else {
-			posFragments = Collections.unmodifiableMap(p);
-			int[] pos = new int[p.size()];
-			int x = 0;
-			for(Integer i : p.keySet())
-				pos[x++] = i;
-			Arrays.sort(pos);
-			positions = new SortedIntSet(pos);
-		}
+		this(s, r, u, t, p == null? null: p.keySet(), p);
 	}
 
 	/**
 	** For serialisation.
 	*/
 	public TermPageEntry(String s, float r, FreenetURI u, String t, Set<Integer> pos, Map<Integer, String> frags) {
+		this(s, r, u, t, toArray(pos), frags);
+	}
+
+	private TermPageEntry(String s, float r, FreenetURI u, String t, int[] pos, Map<Integer, String> frags) {
+		this(s, r, u, t, pos, fragmentsFor(pos, frags));
+	}
+
+	/**
+	** Compact constructor. The arrays are used directly and must not be
+	** modified afterwards.
+	**
+	** @param s Subject of the entry
+	** @param r Relevance of the entry
+	** @param u {@link FreenetURI} of the page
+	** @param t Title or description of the page
+	** @param pos Sorted positions (where the term appears), or null
+	** @param frags Fragments surrounding each position, in the same order as
+	**        {@code pos}, or null. This is dropped if every element is empty.
+	*/
+	public TermPageEntry(String s, float r, FreenetURI u, String t, int[] pos, String[] frags) {
 		super(s, r);
 		if (u == null) {
 			throw new IllegalArgumentException("can't have a null page");
 		}
+		if (frags != null && (pos == null || frags.length != pos.length)) {
+			throw new IllegalArgumentException("fragments do not match positions");
+		}
 		page = u.intern(); // OPT LOW make the translator use the same URI object as from the URI table?
-		title = t;
-		if(pos != null) {
-			if(pos instanceof SortedIntSet)
-				this.positions = (SortedIntSet) pos;
-			else {
-				Integer[] p = pos.toArray(new Integer[pos.size()]);
-				int[] pp = new int[p.length];
-				for(int i=0;i<pp.length;i++) pp[i] = p[i];
-				if(!(pos instanceof SortedSet))
-					Arrays.sort(pp);
-				this.positions = new SortedIntSet(pp);
-			}
-		} else
-			positions = null;
-		if(frags != null) {
-			boolean allNulls = true;
-			for(String i : frags.values()) {
-				if(i != null && !i.equals("")) {
-					allNulls = false;
-					break;
-				}
-			}
-			if(allNulls)
-				posFragments = null;
-			else
-				posFragments = frags;
-		} else
-			posFragments = null;
-	}
-	
+		title = t == null ? null : t.intern();
+		assert(isSorted(pos));
+		this.pos = pos;
+		this.frags = allEmpty(frags)? null: frags;
+	}
+
 	public TermPageEntry(TermPageEntry t, float newRel) {
-		super(t, newRel);
+		this(t.subj, newRel, t);
+	}
+
+	/**
+	** Copy the target and positions of the given entry, with a new subject
+	** and relevance. The position data is shared, not copied.
+	*/
+	public TermPageEntry(String s, float r, TermPageEntry t) {
+		super(s, r);
 		this.page = t.page;
-		this.posFragments = t.posFragments;
-		this.positions = t.positions;
+		this.pos = t.pos;
+		this.frags = t.frags;
 		this.title = t.title;
 	}
 
+	/**
+	** Merge the positions of two entries for the same page. Where both have a
+	** fragment for the same position, the one from {@code b} is used.
+	**
+	** @param s Subject of the new entry
+	** @param r Relevance of the new entry
+	** @param a Entry whose page (and title, if it has one) are used
+	** @param b Entry whose positions are merged into those of {@code a}
+	*/
+	public static TermPageEntry merge(String s, float r, TermPageEntry a, TermPageEntry b) {
+		String t = (a.title != null)? a.title: b.title;
+		if (b.pos == null || b.pos == a.pos && b.frags == a.frags) {
+			return new TermPageEntry(s, r, a.page, t, a.pos, a.frags);
+		} else if (a.pos == null) {
+			return new TermPageEntry(s, r, a.page, t, b.pos, b.frags);
+		}
+		int[] pos = new int[a.pos.length + b.pos.length];
+		String[] frags = (a.frags == null && b.frags == null)? null: new String[pos.length];
+		int i = 0, j = 0, n = 0;
+		while (i < a.pos.length || j < b.pos.length) {
+			int x = (j == b.pos.length || i < a.pos.length && a.pos[i] < b.pos[j])? a.pos[i]: b.pos[j];
+			String fa = (i < a.pos.length && a.pos[i] == x)? a.fragment(i++): null;
+			String fb = (j < b.pos.length && b.pos[j] == x)? b.fragment(j++): null;
+			pos[n] = x;
+			if (frags != null) { frags[n] = (fb != null)? fb: fa; }
+			++n;
+		}
+		if (n < pos.length) {
+			pos = Arrays.copyOf(pos, n);
+			if (frags != null) { frags = Arrays.copyOf(frags, n); }
+		}
+		return new TermPageEntry(s, r, a.page, t, pos, frags);
+	}
+
+	private static int[] toArray(Set<Integer> pos) {
+		if (pos == null) { return null; }
+		if (pos instanceof SortedIntSet) { return ((SortedIntSet)pos).toArrayRaw(); }
+		int[] pp = new int[pos.size()];
+		int i = 0;
+		for (Integer x: pos) { pp[i++] = x; }
+		if (!(pos instanceof SortedSet)) { Arrays.sort(pp); }
+		return pp;
+	}
+
+	private static String[] fragmentsFor(int[] pos, Map<Integer, String> frags) {
+		if (pos == null || frags == null || allEmpty(frags.values())) { return null; }
+		String[] ff = new String[pos.length];
+		for (int i=0; i<pos.length; ++i) {
+			String f = frags.get(pos[i]);
+			ff[i] = (f == null || f.length() == 0)? null: f;
+		}
+		return ff;
+	}
+
+	private static boolean allEmpty(String[] frags) {
+		return frags == null || allEmpty(Arrays.asList(frags));
+	}
+
+	private static boolean allEmpty(Iterable<String> frags) {
+		for (String f: frags) {
+			if (f != null && f.length() != 0) { return false; }
+		}
+		return true;
+	}
+
+	private static boolean isSorted(int[] pos) {
+		if (pos == null) { return true; }
+		for (int i=1; i<pos.length; ++i) {
+			if (pos[i-1] >= pos[i]) { return false; }
+		}
+		return true;
+	}
+
 	/*========================================================================
 	  abstract public class TermEntry
 	 ========================================================================*/
@@ -169,72 +236,70 @@ public class TermPageEntry extends TermEntry {
 
 	/** Do we have term positions? Just because we do doesn't necessarily mean we have fragments. */
 	public boolean hasPositions() {
-		return positions != null;
+		return pos != null;
 	}
 
 	/** Get the positions to fragments map. If we don't have fragments, create this from the positions list. */
 	public Map<Integer, String> positionsMap() {
-		if(positions == null) return null;
-		if(posFragments != null) return posFragments;
-		HashMap<Integer, String> ret = new HashMap<Integer, String>(positions.size());
-		if(positions instanceof SortedIntSet) {
-			int[] array = ((SortedIntSet)positions).toArrayRaw();
-			for(int x : array)
-				ret.put(x, null);
-			return ret;
-		} else {
-			Integer[] array = positions.toArray(new Integer[positions.size()]);
-			if(!(positions instanceof SortedSet))
-				Arrays.sort(array);
-			for(int x : array)
-				ret.put(x, null);
-			return ret;
-		}
+		if(pos == null) return null;
+		HashMap<Integer, String> ret = new HashMap<Integer, String>(pos.length<<1);
+		for(int i=0; i<pos.length; ++i)
+			ret.put(pos[i], fragment(i));
+		return ret;
 	}
 
 	public boolean hasPosition(int i) {
-		return positions.contains(i);
+		return pos != null && Arrays.binarySearch(pos, i) >= 0;
 	}
 
 	public ArrayList<Integer> positions() {
-		if(positions instanceof SortedIntSet) {
-			int[] array = ((SortedIntSet)positions).toArrayRaw();
-			ArrayList<Integer> pos = new ArrayList<Integer>(array.length);
-			for(int x : array)
-				pos.add(x);
-			return pos;
-		} else {
-			Integer[] array = positions.toArray(new Integer[positions.size()]);
-			if(!(positions instanceof SortedSet))
-				Arrays.sort(array);
-			ArrayList<Integer> ret = new ArrayList<Integer>(positions.size());
-			for(int i=0;i<array.length;i++) ret.add(array[i]);
-			return ret;
-		}
+		ArrayList<Integer> ret = new ArrayList<Integer>(positionsSize());
+		if(pos != null)
+			for(int x : pos)
+				ret.add(x);
+		return ret;
 	}
 
+	/**
+	** Returns the sorted positions. This is the backing array, and must not
+	** be modified.
+	*/
 	public int[] positionsRaw() {
-		if(positions instanceof SortedIntSet) {
-			return ((SortedIntSet)positions).toArrayRaw();
-		} else {
-			int[] ret = new int[positions.size()];
-			Integer[] r = new Integer[positions.size()];
-			r = positions.toArray(r);
-			for(int i=0;i<ret.length;i++)
-				ret[i] = r[i];
-			if(!(positions instanceof SortedSet))
-				Arrays.sort(ret);
-			return ret;
-		}
+		return pos;
 	}
 
 	public int positionsSize() {
-		if(positions == null) return 0;
-		return positions.size();
+		if(pos == null) return 0;
+		return pos.length;
 	}
 
 	public boolean hasFragments() {
-		return posFragments != null;
+		return frags != null;
+	}
+
+	/**
+	** Returns the fragment around the {@code i}th position (ie. the position
+	** at {@code positionsRaw()[i]}), or null if we don't have one.
+	*/
+	public String fragment(int i) {
+		return frags == null ? null : frags[i];
+	}
+
+	/**
+	** Returns the positions as a set, or null if we don't have any. Used by
+	** {@link plugins.Library.io.ObjectBlueprint} for serialisation.
+	*/
+	public Set<Integer> getPositions() {
+		return pos == null ? null : new SortedIntSet(pos);
+	}
+
+	/**
+	** Returns the map from positions to fragments, or null if we don't have
+	** any fragments. Used by {@link plugins.Library.io.ObjectBlueprint} for
+	** serialisation.
+	*/
+	public Map<Integer, String> getFragments() {
+		return frags == null ? null : Collections.unmodifiableMap(positionsMap());
 	}
 
 }
@@ -0,0 +1,476 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.index;
+
+import plugins.Library.client.BlockCache;
+import plugins.Library.util.exec.AbstractExecution;
+import plugins.Library.util.exec.Execution;
+import plugins.Library.util.exec.ExecutionAcceptor;
+import plugins.Library.util.exec.ProgressParts;
+import plugins.Library.util.exec.StreamingExecution;
+import plugins.Library.util.exec.TaskAbortException;
+import plugins.Library.util.func.SafeClosure;
+
+import freenet.keys.FreenetURI;
+import freenet.support.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+** Cache of the results of term lookups, shared between all the {@link
+** ProtoIndex}es (and so all searches) in the JVM. Results are keyed by the
+** index they came from, the edition of that index, and the term.
+**
+** Lookups that are still running are kept too, so that concurrent searches
+** for the same term share one execution. When a lookup completes, its result
+** is copied into a {@link CachedResult}, so that the cache does not hold on to
+** the B-tree of the index it came from.
+**
+** The memory held by the cache is bounded by the total ''weight'' of its
+** results, which is their number of entries times {@link #ENTRY_WEIGHT}; the
+** least recently used results are evicted first. Optionally, completed
+** results are also written to a {@link BlockCache} on local disk, from which
+** they are read back if they have been evicted from memory, even after a
+** restart.
+**
+** Results for old editions of an index can be dropped from memory with
+** {@link #invalidate(FreenetURI)}; the ones on disk are never hit again, and
+** eventually get evicted from the {@link BlockCache}.
+*/
+public class TermResultCache {
+
+	/**
+	** Approximate number of bytes used by a single {@link TermEntry} in memory.
+	*/
+	public static int ENTRY_WEIGHT = 0x100;
+
+	/**
+	** Default maximum total weight of the results held in memory.
+	*/
+	final public static long DEFAULT_MAX_WEIGHT = 0x4000000;
+
+	private static TermResultCache instance = new TermResultCache(DEFAULT_MAX_WEIGHT);
+
+	public static TermResultCache getInstance() {
+		return instance;
+	}
+
+	public static void setInstance(TermResultCache c) {
+		instance = c;
+	}
+
+	/************************************************************************
+	** Key for a cached result.
+	*/
+	public static class Key {
+
+		/**
+		** The index, without its edition.
+		*/
+		final public String index;
+
+		/**
+		** The edition of the index, or -1 if it does not have one.
+		*/
+		final public long edition;
+
+		final public String term;
+
+		/**
+		** Maximum number of entries in the result, or 0 for all of them.
+		*/
+		final public int limit;
+
+		/**
+		** @param l The maximum number of entries; any non-positive number
+		**        means all of them, and gives the same key as 0
+		*/
+		public Key(String i, long e, String t, int l) {
+			if (i == null || t == null) { throw new NullPointerException(); }
+			index = i;
+			edition = e;
+			term = t;
+			limit = (l > 0)? l: 0;
+		}
+
+		public Key(FreenetURI uri, String t, int l) {
+			this(indexId(uri), uri.isUSK()? uri.getEdition(): -1, t, l);
+		}
+
+		@Override public boolean equals(Object o) {
+			if (!(o instanceof Key)) { return false; }
+			Key k = (Key)o;
+			return edition == k.edition && limit == k.limit && index.equals(k.index) && term.equals(k.term);
+		}
+
+		@Override public int hashCode() {
+			return (index.hashCode() * 31 + term.hashCode()) * 31 + (int)(edition ^ (edition >>> 32)) + limit;
+		}
+
+		@Override public String toString() {
+			return index + "#" + edition + "/" + term + "/" + limit;
+		}
+
+	}
+
+	/**
+	** Returns the identifier of an index, which is the same for all of its
+	** editions.
+	*/
+	public static String indexId(FreenetURI uri) {
+		return (uri.isUSK()? uri.setSuggestedEdition(0): uri).toString();
+	}
+
+	protected long maxWeight;
+	protected long weight;
+
+	/**
+	** Results held in memory, in order of least recent use.
+	*/
+	final protected LinkedHashMap<Key, Execution<Set<TermEntry>>> results = new LinkedHashMap<Key, Execution<Set<TermEntry>>>(0x40, 0.75f, true);
+
+	final protected Map<Key, Long> weights = new HashMap<Key, Long>();
+
+	/**
+	** Where completed results are written to, or {@code null} to keep them
+	** only in memory.
+	*/
+	protected BlockCache disk;
+
+	protected long hits;
+	protected long diskHits;
+	protected long misses;
+	protected long evictions;
+
+	public TermResultCache(long max) {
+		setMaxWeight(max);
+	}
+
+	public synchronized void setMaxWeight(long max) {
+		if (max < 0) {
+			throw new IllegalArgumentException("Cache size must not be negative: " + max);
+		}
+		maxWeight = max;
+		evict();
+	}
+
+	public synchronized long getMaxWeight() {
+		return maxWeight;
+	}
+
+	public synchronized long getWeight() {
+		return weight;
+	}
+
+	public synchronized int getCount() {
+		return results.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getDiskHits() {
+		return diskHits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	** Set the cache on local disk that completed results are written to, or
+	** {@code null} to keep results only in memory.
+	*/
+	public synchronized void setDiskCache(BlockCache c) {
+		disk = c;
+	}
+
+	public synchronized BlockCache getDiskCache() {
+		return disk;
+	}
+
+	/**
+	** Returns the cached (completed or running) lookup for the given key, or
+	** {@code null} if there is none.
+	**
+	** The disk cache is read without holding the lock on this cache, so that
+	** other lookups are not held up by it.
+	*/
+	public Execution<Set<TermEntry>> get(Key key) {
+		BlockCache d;
+		synchronized (this) {
+			Execution<Set<TermEntry>> ex = results.get(key);
+			if (ex != null) {
+				++hits;
+				return ex;
+			}
+			d = disk;
+		}
+		CachedResult res = readDisk(d, key);
+		synchronized (this) {
+			// another lookup may have been added in the meantime
+			Execution<Set<TermEntry>> ex = results.get(key);
+			if (ex != null) {
+				++hits;
+				return ex;
+			}
+			if (res != null) {
+				++diskHits;
+				results.put(key, res);
+				weights.put(key, weigh(res.result));
+				weight += weights.get(key);
+				evict();
+				return res;
+			}
+			++misses;
+			return null;
+		}
+	}
+
+	/**
+	** Adds a lookup to the cache, unless there is already one for the key.
+	** If the lookup has not completed yet, it is replaced by a {@link
+	** CachedResult} when it does; if it aborts, it is removed from the cache,
+	** so that it can be retried.
+	**
+	** @return The lookup already in the cache, or {@code null} if the given
+	**         lookup was added.
+	*/
+	public Execution<Set<TermEntry>> putIfAbsent(final Key key, final Execution<Set<TermEntry>> ex) {
+		Execution<Set<TermEntry>> old = get(key);
+		if (old != null) { return old; }
+		synchronized (this) {
+			// another lookup may have been added since get() released the lock
+			old = results.get(key);
+			if (old != null) { return old; }
+			results.put(key, ex);
+			long w = (ex instanceof CachedResult)? weigh(((CachedResult)ex).result): ENTRY_WEIGHT;
+			weights.put(key, w);
+			weight += w;
+			evict();
+		}
+		// outside the lock, since the acceptor is called with the lock of the
+		// execution held, and then takes ours
+		if (!(ex instanceof CachedResult)) {
+			ex.addAcceptor(new ExecutionAcceptor<Set<TermEntry>>() {
+				/*@Override**/ public void acceptStarted(Execution<Set<TermEntry>> opn) { }
+				/*@Override**/ public void acceptDone(Execution<Set<TermEntry>> opn, Set<TermEntry> result) {
+					completed(key, ex, result);
+				}
+				/*@Override**/ public void acceptAborted(Execution<Set<TermEntry>> opn, TaskAbortException abort) {
+					aborted(key, ex);
+				}
+			});
+		}
+		return null;
+	}
+
+	/**
+	** Drop the results for editions of the given index older than the edition
+	** of the given URI, from memory. Running lookups are left alone.
+	*/
+	public void invalidate(FreenetURI uri) {
+		if (!uri.isUSK()) { return; }
+		invalidate(indexId(uri), uri.getEdition());
+	}
+
+	/**
+	** Drop the results for editions of the given index older than the given
+	** edition, from memory.
+	**
+	** @param index The index, as given by {@link #indexId(FreenetURI)}
+	*/
+	public synchronized void invalidate(String index, long edition) {
+		for (Iterator<Map.Entry<Key, Execution<Set<TermEntry>>>> it = results.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<Key, Execution<Set<TermEntry>>> en = it.next();
+			Key key = en.getKey();
+			if (key.edition >= edition || !key.index.equals(index) || !(en.getValue() instanceof CachedResult)) { continue; }
+			it.remove();
+			weight -= weights.remove(key);
+		}
+	}
+
+	/**
+	** Drop all results from memory.
+	*/
+	public synchronized void clear() {
+		results.clear();
+		weights.clear();
+		weight = 0;
+	}
+
+	protected void completed(Key key, Execution<Set<TermEntry>> ex, Set<TermEntry> result) {
+		CachedResult res;
+		BlockCache d;
+		synchronized (this) {
+			if (results.get(key) != ex) { return; }
+			res = new CachedResult(key.term, result);
+			results.put(key, res);
+			long w = weigh(res.result);
+			weight += w - weights.put(key, w);
+			evict();
+			d = disk;
+		}
+		// the result is already in memory, so nothing waits for this
+		writeDisk(d, key, res);
+	}
+
+	protected synchronized void aborted(Key key, Execution<Set<TermEntry>> ex) {
+		if (results.get(key) != ex) { return; }
+		results.remove(key);
+		weight -= weights.remove(key);
+	}
+
+	protected long weigh(Set<TermEntry> result) {
+		return (long)Math.max(result.size(), 1) * ENTRY_WEIGHT;
+	}
+
+	/**
+	** Evict the least recently used completed results until the cache is
+	** within its limit. Running lookups are never evicted.
+	*/
+	protected void evict() {
+		for (Iterator<Map.Entry<Key, Execution<Set<TermEntry>>>> it = results.entrySet().iterator(); it.hasNext() && weight > maxWeight;) {
+			Map.Entry<Key, Execution<Set<TermEntry>>> en = it.next();
+			if (!(en.getValue() instanceof CachedResult)) { continue; }
+			it.remove();
+			weight -= weights.remove(en.getKey());
+			++evictions;
+		}
+	}
+
+	/**
+	** Name of the block holding the result for the given key, in the disk
+	** cache.
+	*/
+	protected static String diskKey(Key key) {
+		return blockName("term-", key.toString());
+	}
+
+	/**
+	** Name of a block in the disk cache, made of the given prefix and a hash
+	** of the given name.
+	*/
+	static String blockName(String prefix, String name) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			byte[] hash = md.digest(name.getBytes("UTF-8"));
+			StringBuilder s = new StringBuilder(prefix);
+			for (byte b: hash) { s.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16)); }
+			return s.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new AssertionError(e);
+		} catch (java.io.UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	protected void writeDisk(BlockCache disk, Key key, CachedResult res) {
+		if (disk == null) { return; }
+		try {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(bos));
+			dos.writeUTF(key.toString());
+			dos.writeInt(res.result.size());
+			TermEntryReaderWriter.StreamWriter w = new TermEntryReaderWriter.StreamWriter(dos);
+			for (TermEntry en: res.result) { w.writeObject(en); }
+			w.close();
+			disk.put(diskKey(key), new ByteArrayInputStream(bos.toByteArray()));
+		} catch (IOException e) {
+			Logger.error(this, "Could not write cached result for " + key + " to disk: " + e, e);
+		}
+	}
+
+	protected CachedResult readDisk(BlockCache disk, Key key) {
+		if (disk == null) { return null; }
+		InputStream is = disk.get(diskKey(key));
+		if (is == null) { return null; }
+		try {
+			DataInputStream dis = new DataInputStream(new BufferedInputStream(is));
+			try {
+				if (!dis.readUTF().equals(key.toString())) { return null; }
+				int size = dis.readInt();
+				Set<TermEntry> result = new LinkedHashSet<TermEntry>(size<<1);
+				TermEntryReaderWriter.StreamReader r = new TermEntryReaderWriter.StreamReader(dis);
+				for (int i=0; i<size; ++i) { result.add(r.readObject()); }
+				return new CachedResult(key.term, result);
+			} finally {
+				dis.close();
+			}
+		} catch (IOException e) {
+			Logger.error(this, "Could not read cached result for " + key + " from disk: " + e, e);
+			return null;
+		}
+	}
+
+	@Override public synchronized String toString() {
+		return "TermResultCache[" + results.size() + " results, " + weight + "/" + maxWeight + " bytes, "
+		  + hits + " hits, " + diskHits + " disk hits, " + misses + " misses, " + evictions + " evictions]";
+	}
+
+
+	/************************************************************************
+	** A completed term lookup, holding a copy of its result.
+	*/
+	public static class CachedResult extends AbstractExecution<Set<TermEntry>> implements StreamingExecution<Set<TermEntry>, TermEntry> {
+
+		final protected Set<TermEntry> result;
+
+		/**
+		** @param term The subject of the lookup
+		** @param res The result; this is copied
+		*/
+		public CachedResult(String term, Set<TermEntry> res) {
+			super(term);
+			result = Collections.unmodifiableSet(new LinkedHashSet<TermEntry>(res));
+			setResult(result);
+		}
+
+		@Override public ProgressParts getParts() {
+			return new ProgressParts(1, 1, 1, ProgressParts.TOTAL_FINALIZED);
+		}
+
+		@Override public String getStatus() {
+			return "Loaded from cache";
+		}
+
+		/*@Override**/ public List<TermEntry> getPartialResult() {
+			return new ArrayList<TermEntry>(result);
+		}
+
+		/*@Override**/ public void addBatchAcceptor(SafeClosure<List<TermEntry>> acc) {
+			try {
+				acc.invoke(Collections.unmodifiableList(new ArrayList<TermEntry>(result)));
+			} catch (RuntimeException e) {
+				Logger.error(this, "Error in batch acceptor for " + subject + ": " + e, e);
+			}
+		}
+
+	}
+
+}
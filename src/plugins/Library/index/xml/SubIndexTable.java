@@ -0,0 +1,228 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.index.xml;
+
+import plugins.Library.index.TermPageEntry;
+
+import freenet.keys.FreenetURI;
+import freenet.support.Logger;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The words and files of one subindex of an {@link XMLIndex}, read in a single
+ * pass over its XML, so that any number of terms can be looked up in it
+ * without parsing it again.
+ * <br /> <br />
+ * The files list may come before or after the keywords, so the file ids of a
+ * word are only resolved to the files, and its positions parsed, when the
+ * word is looked up; words nobody searches for cost only their raw text.
+ */
+class SubIndexTable {
+
+	/**
+	 * Size of the buffer the XML is read through
+	 */
+	final static int BUFFER_SIZE = 0x10000;
+
+	/**
+	 * A file in the files list
+	 */
+	final static class FileInfo {
+		final String key;
+		final String title;
+		final int wordCount;
+
+		FileInfo(String key, String title, int wordCount) {
+			this.key = key;
+			this.title = title;
+			this.wordCount = wordCount;
+		}
+	}
+
+	/**
+	 * A word in the keywords list: the ids of the files it is in, and its
+	 * positions in each of them, as in the XML
+	 */
+	final static class Word {
+		final int fileCount;
+		final List<String> ids = new ArrayList<String>();
+		final List<String> positions = new ArrayList<String>();
+
+		Word(int fileCount) {
+			this.fileCount = fileCount;
+		}
+	}
+
+	final private Map<String, FileInfo> files = new HashMap<String, FileInfo>();
+	final private Map<String, Word> words = new HashMap<String, Word>();
+	private int totalFileCount = -1;
+
+	/**
+	 * Parses a subindex.
+	 *
+	 * @param is The XML of the subindex; this is not closed
+	 * @throws SAXException if the XML is not a valid subindex
+	 */
+	static SubIndexTable parse(InputStream is) throws SAXException, IOException {
+		SubIndexTable table = new SubIndexTable();
+		try {
+			SAXParserFactory factory = SAXParserFactory.newInstance();
+			factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+			SAXParser saxParser = factory.newSAXParser();
+			saxParser.parse(new BufferedInputStream(is, BUFFER_SIZE), table.new Handler());
+		} catch (ParserConfigurationException e) {
+			throw new SAXException(e);
+		}
+		return table;
+	}
+
+	/**
+	 * Number of words in the subindex
+	 */
+	int wordCount() {
+		return words.size();
+	}
+
+	/**
+	 * Number of files in the subindex
+	 */
+	int fileCount() {
+		return files.size();
+	}
+
+	boolean contains(String term) {
+		return words.containsKey(term);
+	}
+
+	/**
+	 * Looks up a term, returning an entry for each file it is in, or an empty
+	 * set if the subindex does not contain it.
+	 */
+	Set<TermPageEntry> lookup(String term) {
+		Word word = words.get(term);
+		if (word == null) { return new HashSet<TermPageEntry>(); }
+		Set<TermPageEntry> result = new HashSet<TermPageEntry>();
+		for (int i=0; i<word.ids.size(); ++i) {
+			FileInfo file = files.get(word.ids.get(i));
+			if (file == null) { continue; }
+
+			HashMap<Integer, String> termpositions = null;
+			String raw = word.positions.get(i);
+			if (raw != null) {
+				termpositions = new HashMap<Integer, String>();
+				for (String pos : raw.split(",")) {
+					try{
+						termpositions.put(Integer.valueOf(pos), null);
+					}catch(NumberFormatException e){
+						Logger.error(this, "Position in index not an integer :"+pos, e);
+					}
+				}
+			}
+
+			float relevance = 0;
+			if(termpositions!=null && termpositions.size()>0 && file.wordCount>0 ){
+				relevance = (float)(termpositions.size()/(float)file.wordCount);
+				if( totalFileCount > 0 && word.fileCount > 0)
+					relevance *=  Math.log( (float)totalFileCount/(float)word.fileCount);
+			}
+
+			try {
+				result.add(new TermPageEntry(term, relevance, new FreenetURI(file.key), file.title, termpositions));
+			} catch (MalformedURLException e) {
+				Logger.error(this, "File key could not be parsed: "+file.key, e);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Reads the files list and the keywords list, whichever order they come in
+	 */
+	private class Handler extends DefaultHandler {
+
+		private boolean inKeywords;
+		private boolean inFiles;
+
+		private Word word;
+		private String id;
+		private StringBuilder characters;
+
+		@Override public void startElement(String nameSpaceURI, String localName, String rawName, Attributes attrs)
+		throws SAXException {
+			if (rawName == null) {
+				rawName = localName;
+			}
+			String elt_name = rawName;
+
+			if (elt_name.equals("keywords")) {
+				inKeywords = true;
+			} else if (elt_name.equals("files")) {
+				inFiles = true;
+				String fileCount = attrs.getValue("", "totalFileCount");
+				if (fileCount != null)
+					totalFileCount = Integer.parseInt(fileCount);
+			} else if (elt_name.equals("word") && inKeywords) {
+				String fileCount = attrs.getValue("fileCount");
+				word = new Word((fileCount == null)? 0: Integer.parseInt(fileCount));
+				words.put(attrs.getValue("v"), word);
+			} else if (elt_name.equals("file")) {
+				if (inKeywords && word != null) {
+					id = attrs.getValue("id");
+					characters = new StringBuilder();
+				} else if (inFiles) {
+					int wordCount = -1;
+					String wordCountString = attrs.getValue("wordCount");
+					if (wordCountString != null) {
+						try {
+							wordCount = Integer.parseInt(wordCountString);
+						} catch (NumberFormatException e) {
+							// leave it unknown
+						}
+					}
+					files.put(attrs.getValue("id"), new FileInfo(attrs.getValue("key"), attrs.getValue("title"), wordCount));
+				}
+			}
+		}
+
+		@Override public void characters(char[] ch, int start, int length) {
+			if (characters != null) {
+				characters.append(ch, start, length);
+			}
+		}
+
+		@Override public void endElement(String namespaceURI, String localName, String qName) {
+			if (qName.equals("keywords")) {
+				inKeywords = false;
+			} else if (qName.equals("files")) {
+				inFiles = false;
+			} else if (qName.equals("word")) {
+				word = null;
+			} else if (qName.equals("file") && characters != null) {
+				word.ids.add(id);
+				word.positions.add(characters.length() == 0? null: characters.toString());
+				characters = null;
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,490 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.io;
+
+import plugins.Library.io.DataFormatException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.IOException;
+
+/* class definitions added to the binary format */
+import plugins.Library.io.serial.Packer;
+import plugins.Library.index.TermEntry;
+import plugins.Library.index.TermPageEntry;
+import plugins.Library.index.TermIndexEntry;
+import plugins.Library.index.TermTermEntry;
+import plugins.Library.index.URIEntry;
+import freenet.keys.FreenetURI;
+
+/**
+** Converts between an object and a stream containing a compact binary
+** document. This understands the same set of objects as the extended {@link
+** YamlReaderWriter} does, ie. the intermediate {@link Map}s produced by the
+** translators of {@link plugins.Library.util.SkeletonBTreeMap} and friends,
+** {@link FreenetURI}s, {@link Packer.BinInfo}s, {@link TermEntry}s and
+** {@link URIEntry}s.
+**
+** A document consists of a {@link #MAGIC} header, a {@link #VERSION} byte,
+** the length of the body in bytes, and then the body itself. Inside the body,
+** each object is preceded by a one-byte tag; strings, arrays and containers
+** are prefixed by their length as a variable-length integer.
+**
+** Unlike {@link YamlReaderWriter}, instances of this class hold no state, so
+** any number of threads may decode documents at the same time.
+**
+** If a stream does not start with {@link #MAGIC}, it is passed to the
+** fallback reader given in the constructor (if any). This allows old indexes
+** that were written as YAML to still be read.
+*/
+public class BinaryReaderWriter
+implements ObjectStreamReader<Object>, ObjectStreamWriter<Object> {
+
+	final public static String MIME_TYPE = "application/octet-stream";
+	final public static String FILE_EXTENSION = ".bin";
+
+	/**
+	** Header of every document. The first byte is not a valid first byte of
+	** any UTF-8 sequence, so this can never be confused with a YAML document.
+	*/
+	final public static byte[] MAGIC = { (byte)0xB1, 'L', 'i', 'b' };
+
+	/**
+	** Version of the format. Readers reject documents with a newer version.
+	*/
+	final public static int VERSION = 1;
+
+	/**
+	** Largest body this will read or write. The length in the header is read
+	** before any of the body, and is used to allocate the buffer for it, so
+	** a corrupt or hostile header must not be able to ask for much more than
+	** a real document needs. Index nodes are a few hundred kilobytes at most.
+	*/
+	final public static int MAX_BODY_LENGTH = 0x1000000;
+
+	final static byte T_NULL = 0x00;
+	final static byte T_FALSE = 0x01;
+	final static byte T_TRUE = 0x02;
+	final static byte T_INT = 0x03;
+	final static byte T_LONG = 0x04;
+	final static byte T_FLOAT = 0x05;
+	final static byte T_DOUBLE = 0x06;
+	final static byte T_STRING = 0x07;
+	final static byte T_BYTES = 0x08;
+	final static byte T_DATE = 0x09;
+	final static byte T_MAP = 0x10;
+	final static byte T_LIST = 0x11;
+	final static byte T_SET = 0x12;
+	final static byte T_URI = 0x20;
+	final static byte T_BININFO = 0x21;
+	final static byte T_TERM_TERM = 0x30;
+	final static byte T_TERM_INDEX = 0x31;
+	final static byte T_TERM_PAGE = 0x32;
+	final static byte T_URI_ENTRY = 0x40;
+
+	/**
+	** Reader to use for documents which are not in this format.
+	*/
+	final protected ObjectStreamReader<?> fallback;
+
+	public BinaryReaderWriter() {
+		this(null);
+	}
+
+	/**
+	** @param fb Reader to use for streams not in this format, or {@code null}
+	**        to reject such streams.
+	*/
+	public BinaryReaderWriter(ObjectStreamReader<?> fb) {
+		fallback = fb;
+	}
+
+	/*@Override**/ public Object readObject(InputStream is) throws IOException {
+		PushbackInputStream pis = new PushbackInputStream(is, MAGIC.length);
+		byte[] head = new byte[MAGIC.length];
+		int n = 0;
+		while (n < head.length) {
+			int r = pis.read(head, n, head.length - n);
+			if (r < 0) { break; }
+			n += r;
+		}
+		if (!isMagic(head, n)) {
+			if (fallback == null) {
+				throw new DataFormatException("Stream is not in binary format: " + is, null, is, null, null);
+			}
+			pis.unread(head, 0, n);
+			return fallback.readObject(pis);
+		}
+
+		DataInputStream dis = new DataInputStream(pis);
+		int ver = dis.readUnsignedByte();
+		if (ver > VERSION) {
+			throw new DataFormatException("Unsupported binary format version: " + ver, null, ver, null, null);
+		}
+		int len = dis.readInt();
+		if (len < 0 || len > MAX_BODY_LENGTH) {
+			throw new DataFormatException("Invalid body length: " + len, null, len, null, null);
+		}
+		byte[] body = new byte[len];
+		dis.readFully(body);
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+		try {
+			Object o = readAny(in);
+			if (in.available() != 0) {
+				throw new DataFormatException("Trailing data after binary document", null, in.available(), null, null);
+			}
+			return o;
+		} catch (EOFException e) {
+			throw new DataFormatException("Binary document ended prematurely", e, is, null, null);
+		} catch (RuntimeException e) {
+			throw new DataFormatException("Could not construct object from binary document", e, is, null, null);
+		}
+	}
+
+	/*@Override**/ public void writeObject(Object o, OutputStream os) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(0x1000);
+		writeAny(new DataOutputStream(bos), o);
+		if (bos.size() > MAX_BODY_LENGTH) {
+			throw new DataFormatException("Binary document too large: " + bos.size() + " bytes", null, o, null, null);
+		}
+
+		DataOutputStream dos = new DataOutputStream(os);
+		dos.write(MAGIC);
+		dos.writeByte(VERSION);
+		dos.writeInt(bos.size());
+		bos.writeTo(dos);
+		dos.flush();
+	}
+
+	protected static boolean isMagic(byte[] head, int n) {
+		if (n != MAGIC.length) { return false; }
+		for (int i=0; i<n; ++i) {
+			if (head[i] != MAGIC[i]) { return false; }
+		}
+		return true;
+	}
+
+	/*========================================================================
+	  writing
+	 ========================================================================*/
+
+	protected void writeAny(DataOutputStream out, Object o) throws IOException {
+		if (o == null) {
+			out.writeByte(T_NULL);
+		} else if (o instanceof String) {
+			out.writeByte(T_STRING);
+			writeString(out, (String)o);
+		} else if (o instanceof Integer) {
+			out.writeByte(T_INT);
+			writeVarInt(out, zigzag((Integer)o));
+		} else if (o instanceof Long) {
+			out.writeByte(T_LONG);
+			out.writeLong((Long)o);
+		} else if (o instanceof Boolean) {
+			out.writeByte((Boolean)o? T_TRUE: T_FALSE);
+		} else if (o instanceof Float) {
+			out.writeByte(T_FLOAT);
+			out.writeFloat((Float)o);
+		} else if (o instanceof Double) {
+			out.writeByte(T_DOUBLE);
+			out.writeDouble((Double)o);
+		} else if (o instanceof byte[]) {
+			byte[] b = (byte[])o;
+			out.writeByte(T_BYTES);
+			writeVarInt(out, b.length);
+			out.write(b);
+		} else if (o instanceof Date) {
+			out.writeByte(T_DATE);
+			out.writeLong(((Date)o).getTime());
+		} else if (o instanceof FreenetURI) {
+			out.writeByte(T_URI);
+			writeString(out, o.toString());
+		} else if (o instanceof Packer.BinInfo) {
+			Packer.BinInfo inf = (Packer.BinInfo)o;
+			out.writeByte(T_BININFO);
+			writeAny(out, inf.getID());
+			writeVarInt(out, inf.getWeight());
+		} else if (o instanceof TermEntry) {
+			writeTermEntry(out, (TermEntry)o);
+		} else if (o instanceof URIEntry) {
+			URIEntry en = (URIEntry)o;
+			out.writeByte(T_URI_ENTRY);
+			writeString(out, en.getSubject().toString());
+			out.writeFloat(en.getQuality());
+			writeVarInt(out, en.getTerms().size());
+			for (String t: en.getTerms()) {
+				writeString(out, t);
+			}
+		} else if (o instanceof Map) {
+			Map<?, ?> map = (Map<?, ?>)o;
+			out.writeByte(T_MAP);
+			writeVarInt(out, map.size());
+			for (Map.Entry<?, ?> en: map.entrySet()) {
+				writeAny(out, en.getKey());
+				writeAny(out, en.getValue());
+			}
+		} else if (o instanceof Collection) {
+			Collection<?> col = (Collection<?>)o;
+			out.writeByte((o instanceof Set)? T_SET: T_LIST);
+			writeVarInt(out, col.size());
+			for (Object e: col) {
+				writeAny(out, e);
+			}
+		} else if (o instanceof Object[]) {
+			Object[] arr = (Object[])o;
+			out.writeByte(T_LIST);
+			writeVarInt(out, arr.length);
+			for (Object e: arr) {
+				writeAny(out, e);
+			}
+		} else {
+			throw new DataFormatException("Binary format cannot represent objects of " + o.getClass(), null, o, null, null);
+		}
+	}
+
+	protected void writeTermEntry(DataOutputStream out, TermEntry en) throws IOException {
+		switch (en.entryType()) {
+		case TERM:
+			out.writeByte(T_TERM_TERM);
+			writeString(out, en.subj);
+			out.writeFloat(en.rel);
+			writeString(out, ((TermTermEntry)en).term);
+			break;
+		case INDEX:
+			out.writeByte(T_TERM_INDEX);
+			writeString(out, en.subj);
+			out.writeFloat(en.rel);
+			writeString(out, ((TermIndexEntry)en).index.toString());
+			break;
+		case PAGE:
+			TermPageEntry enn = (TermPageEntry)en;
+			out.writeByte(T_TERM_PAGE);
+			writeString(out, en.subj);
+			out.writeFloat(en.rel);
+			writeString(out, enn.page.toString());
+			writeNullableString(out, enn.title);
+			if (!enn.hasPositions()) {
+				writeVarInt(out, 0);
+				break;
+			}
+			// positions are sorted, so store the deltas between them
+			int[] pos = enn.positionsRaw();
+			writeVarInt(out, pos.length + 1);
+			int last = 0;
+			for (int p: pos) {
+				writeVarInt(out, zigzag(p - last));
+				last = p;
+			}
+			if (!enn.hasFragments()) {
+				out.writeBoolean(false);
+				break;
+			}
+			out.writeBoolean(true);
+			for (int i=0; i<pos.length; ++i) {
+				writeNullableString(out, enn.fragment(i));
+			}
+			break;
+		default:
+			throw new DataFormatException("Unknown TermEntry type", null, en, null, null);
+		}
+	}
+
+	protected static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] b = s.getBytes("UTF-8");
+		writeVarInt(out, b.length);
+		out.write(b);
+	}
+
+	protected static void writeNullableString(DataOutputStream out, String s) throws IOException {
+		if (s == null) {
+			writeVarInt(out, 0);
+		} else {
+			byte[] b = s.getBytes("UTF-8");
+			writeVarInt(out, b.length + 1);
+			out.write(b);
+		}
+	}
+
+	/**
+	** Write an unsigned variable-length integer, 7 bits per byte, least
+	** significant group first.
+	*/
+	public static void writeVarInt(DataOutputStream out, int i) throws IOException {
+		while ((i & ~0x7F) != 0) {
+			out.writeByte((i & 0x7F) | 0x80);
+			i >>>= 7;
+		}
+		out.writeByte(i);
+	}
+
+	public static int zigzag(int i) {
+		return (i << 1) ^ (i >> 31);
+	}
+
+	/*========================================================================
+	  reading
+	 ========================================================================*/
+
+	protected Object readAny(DataInputStream in) throws IOException {
+		byte tag = in.readByte();
+		switch (tag) {
+		case T_NULL:
+			return null;
+		case T_FALSE:
+			return Boolean.FALSE;
+		case T_TRUE:
+			return Boolean.TRUE;
+		case T_INT:
+			return unzigzag(readVarInt(in));
+		case T_LONG:
+			return in.readLong();
+		case T_FLOAT:
+			return in.readFloat();
+		case T_DOUBLE:
+			return in.readDouble();
+		case T_STRING:
+			return readString(in);
+		case T_BYTES:
+			byte[] b = new byte[readLength(in)];
+			in.readFully(b);
+			return b;
+		case T_DATE:
+			return new Date(in.readLong());
+		case T_URI:
+			return readURI(in);
+		case T_BININFO:
+			Object id = readAny(in);
+			return new Packer.BinInfo(id, readVarInt(in));
+		case T_MAP:
+			int msz = readLength(in);
+			Map<Object, Object> map = new LinkedHashMap<Object, Object>(msz<<1);
+			for (int i=0; i<msz; ++i) {
+				Object k = readAny(in);
+				map.put(k, readAny(in));
+			}
+			return map;
+		case T_LIST:
+			int lsz = readLength(in);
+			List<Object> list = new ArrayList<Object>(lsz);
+			for (int i=0; i<lsz; ++i) {
+				list.add(readAny(in));
+			}
+			return list;
+		case T_SET:
+			int ssz = readLength(in);
+			Set<Object> set = new LinkedHashSet<Object>(ssz<<1);
+			for (int i=0; i<ssz; ++i) {
+				set.add(readAny(in));
+			}
+			return set;
+		case T_TERM_TERM:
+			return new TermTermEntry(readString(in), in.readFloat(), readString(in));
+		case T_TERM_INDEX:
+			return new TermIndexEntry(readString(in), in.readFloat(), readURI(in));
+		case T_TERM_PAGE:
+			return readTermPageEntry(in);
+		case T_URI_ENTRY:
+			URIEntry en = new URIEntry(readURI(in));
+			en.setQuality(in.readFloat());
+			int tsz = readLength(in);
+			Set<String> terms = new HashSet<String>(tsz<<1);
+			for (int i=0; i<tsz; ++i) {
+				terms.add(readString(in));
+			}
+			en.setTerms(terms);
+			return en;
+		default:
+			throw new DataFormatException("Unknown tag in binary document: " + tag, null, tag, null, null);
+		}
+	}
+
+	protected TermPageEntry readTermPageEntry(DataInputStream in) throws IOException {
+		String subj = readString(in);
+		float rel = in.readFloat();
+		FreenetURI page = readURI(in);
+		String title = readNullableString(in);
+		int n = readLength(in);
+		if (n == 0) {
+			return new TermPageEntry(subj, rel, page, title, (int[])null, (String[])null);
+		}
+		int[] pos = new int[n-1];
+		int last = 0;
+		for (int i=0; i<pos.length; ++i) {
+			pos[i] = last += unzigzag(readVarInt(in));
+		}
+		String[] frags = null;
+		if (in.readBoolean()) {
+			frags = new String[pos.length];
+			for (int i=0; i<pos.length; ++i) {
+				frags[i] = readNullableString(in);
+			}
+		}
+		return new TermPageEntry(subj, rel, page, title, pos, frags);
+	}
+
+	protected static FreenetURI readURI(DataInputStream in) throws IOException {
+		String s = readString(in);
+		try {
+			return new FreenetURI(s);
+		} catch (java.net.MalformedURLException e) {
+			throw new DataFormatException("Malformed FreenetURI in binary document", e, s, null, null);
+		}
+	}
+
+	protected static String readString(DataInputStream in) throws IOException {
+		byte[] b = new byte[readLength(in)];
+		in.readFully(b);
+		return new String(b, "UTF-8");
+	}
+
+	protected static String readNullableString(DataInputStream in) throws IOException {
+		int n = readLength(in);
+		if (n == 0) { return null; }
+		byte[] b = new byte[n-1];
+		in.readFully(b);
+		return new String(b, "UTF-8");
+	}
+
+	/**
+	** Read a length field, which must fit in the remainder of the document.
+	*/
+	protected static int readLength(DataInputStream in) throws IOException {
+		int n = readVarInt(in);
+		if (n < 0 || n > in.available() + 1) {
+			throw new DataFormatException("Invalid length in binary document: " + n, null, n, null, null);
+		}
+		return n;
+	}
+
+	public static int readVarInt(DataInputStream in) throws IOException {
+		int i = 0;
+		for (int shift=0; shift<32; shift+=7) {
+			int b = in.readUnsignedByte();
+			i |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) { return i; }
+		}
+		throw new DataFormatException("Malformed variable-length integer in binary document", null, i, null, null);
+	}
+
+	public static int unzigzag(int i) {
+		return (i >>> 1) ^ -(i & 1);
+	}
+
+}
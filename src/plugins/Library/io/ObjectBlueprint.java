@@ -14,7 +14,11 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.IdentityHashMap;
+import java.util.NoSuchElementException;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.lang.reflect.Constructor;
@@ -25,6 +29,13 @@ import java.lang.reflect.InvocationTargetException;
 ** construct new objects from a list or map of property parameters, and to
 ** present (currently immutable) map-views of existing objects.
 **
+** Properties are read, and objects constructed, through {@link MethodHandle}s
+** made once when the blueprint is built, rather than through reflection on
+** every call, since blueprints are used for every entry of every node that is
+** (de)serialised. Where a handle cannot be made or used (eg. the class is not
+** accessible, or the arguments need a widening conversion), the blueprint
+** falls back to reflection, which behaves exactly as before.
+**
 ** @author infinity0
 */
 public class ObjectBlueprint<T> {
@@ -71,6 +82,35 @@ public class ObjectBlueprint<T> {
 	*/
 	final protected Constructor<T> constructor;
 
+	/**
+	** The properties, in the same iteration order as {@link #properties}.
+	** This is automatically generated from the {@link #properties} map.
+	*/
+	protected String[] prop_names;
+
+	/**
+	** Position of each property in {@link #prop_names}.
+	*/
+	final protected Map<String, Integer> prop_index = new HashMap<String, Integer>();
+
+	/**
+	** Getters for the properties, in the same order as {@link #prop_names},
+	** each of type {@code (Object)Object}. An element is {@code null} if no
+	** handle could be made for it, in which case reflection is used instead.
+	*/
+	protected MethodHandle[] prop_getters;
+
+	/**
+	** Parameter types of {@link #constructor}.
+	*/
+	final protected Class<?>[] ctor_types;
+
+	/**
+	** Handle for {@link #constructor}, of type {@code (Object[])Object}, or
+	** {@code null} if none could be made.
+	*/
+	final protected MethodHandle ctor_handle;
+
 	/**
 	** Constructs a blueprint from the given {@link #properties} map. If you
 	** don't have the map ready at hand, and it's a mixture of methods and
@@ -114,6 +154,8 @@ public class ObjectBlueprint<T> {
 			for (String property: ctor_params) { types.add(param_type.get(property)); }
 			constructor = cls.getConstructor(types.toArray(new Class<?>[types.size()]));
 		}
+		ctor_types = constructor.getParameterTypes();
+		ctor_handle = makeConstructorHandle(constructor);
 	}
 
 	/**
@@ -181,17 +223,21 @@ public class ObjectBlueprint<T> {
 		properties = blueprint;
 		setProperties();
 		constructor = ctor;
+		ctor_types = (ctor == null)? null: ctor.getParameterTypes();
+		ctor_handle = (ctor == null)? null: makeConstructorHandle(ctor);
 	}
 
 	/**
 	** Helper method for the constructors. Sets {@link #prop_fields},
-	** {@link #prop_methods} and {@link #param_type} from {@link #properties}.
+	** {@link #prop_methods}, {@link #param_type}, {@link #prop_names},
+	** {@link #prop_index} and {@link #prop_getters} from {@link #properties}.
 	*/
 	private void setProperties() throws NoSuchFieldException, NoSuchMethodException {
 		assert(properties != null);
 		prop_fields.clear();
 		prop_methods.clear();
 		param_type.clear();
+		prop_index.clear();
 
 		for (Map.Entry<String, String> en: properties.entrySet()) {
 			String property = en.getKey();
@@ -211,6 +257,45 @@ public class ObjectBlueprint<T> {
 				param_type.put(property, m.getReturnType());
 			}
 		}
+
+		prop_names = param_type.keySet().toArray(new String[param_type.size()]);
+		prop_getters = new MethodHandle[prop_names.length];
+		for (int i=0; i<prop_names.length; ++i) {
+			prop_index.put(prop_names[i], i);
+			prop_getters[i] = makeGetterHandle(prop_names[i]);
+		}
+	}
+
+	/**
+	** Helper method for {@link #setProperties()}. Returns a handle of type
+	** {@code (Object)Object} for the getter of the given property, or {@code
+	** null} if one cannot be made.
+	*/
+	private MethodHandle makeGetterHandle(String property) {
+		MethodHandles.Lookup lookup = MethodHandles.lookup();
+		try {
+			Field f = prop_fields.get(property);
+			MethodHandle getter = (f != null)? lookup.unreflectGetter(f): lookup.unreflect(prop_methods.get(property));
+			return getter.asType(MethodType.methodType(Object.class, Object.class));
+		} catch (IllegalAccessException e) {
+			return null;
+		}
+	}
+
+	/**
+	** Helper method for the constructors. Returns a handle of type {@code
+	** (Object[])Object} for the given constructor, or {@code null} if one
+	** cannot be made.
+	*/
+	private static MethodHandle makeConstructorHandle(Constructor<?> ctor) {
+		try {
+			int n = ctor.getParameterTypes().length;
+			return MethodHandles.lookup().unreflectConstructor(ctor)
+			  .asSpreader(Object[].class, n)
+			  .asType(MethodType.methodType(Object.class, Object[].class));
+		} catch (IllegalAccessException e) {
+			return null;
+		}
 	}
 
 	/**
@@ -250,7 +335,35 @@ public class ObjectBlueprint<T> {
 	** @see Constructor#newInstance(Object[])
 	*/
 	public T newInstance(Object... initargs) throws InstantiationException, IllegalAccessException, InvocationTargetException {
-		return constructor.newInstance(initargs);
+		if (ctor_handle == null || !matchesExactly(initargs)) {
+			// let reflection do the conversions, or throw the right exception
+			return constructor.newInstance(initargs);
+		}
+		try {
+			Object o = ctor_handle.invokeExact(initargs);
+			return cls.cast(o);
+		} catch (Throwable t) {
+			// the constructor threw this
+			throw new InvocationTargetException(t);
+		}
+	}
+
+	/**
+	** Whether the given arguments can be passed to the constructor handle
+	** without any conversion other than unboxing.
+	*/
+	private boolean matchesExactly(Object[] initargs) {
+		if (initargs == null || initargs.length != ctor_types.length) { return false; }
+		for (int i=0; i<initargs.length; ++i) {
+			Class<?> type = ctor_types[i];
+			Object arg = initargs[i];
+			if (type.isPrimitive()) {
+				if (arg == null || boxes.get(type) != arg.getClass()) { return false; }
+			} else if (arg != null && !type.isInstance(arg)) {
+				return false;
+			}
+		}
+		return true;
 	}
 
 	/**
@@ -293,7 +406,7 @@ public class ObjectBlueprint<T> {
 	** @see Constructor#newInstance(Object[])
 	*/
 	public T objectFromMap(Map<?, ?> map) throws InstantiationException, IllegalAccessException, InvocationTargetException {
-		Object[] initargs = new Object[param_type.size()];
+		Object[] initargs = new Object[prop_names.length];
 		int i=0;
 		for (Map.Entry<String, Class<?>> en: param_type.entrySet()) {
 			String property = en.getKey();
@@ -310,7 +423,35 @@ public class ObjectBlueprint<T> {
 			}
 			initargs[i++] = value;
 		}
-		return constructor.newInstance(initargs);
+		return newInstance(initargs);
+	}
+
+	/**
+	** Returns the value of the {@code i}th property of the given object.
+	**
+	** @throws IllegalStateException if the value could not be read
+	*/
+	protected Object getProperty(Object object, int i) {
+		MethodHandle getter = prop_getters[i];
+		if (getter != null) {
+			try {
+				return getter.invokeExact(object);
+			} catch (Error e) {
+				throw e;
+			} catch (Throwable t) {
+				// as for the reflective path below
+				throw new IllegalStateException(new InvocationTargetException(t));
+			}
+		}
+		String property = prop_names[i];
+		try {
+			Field f = prop_fields.get(property);
+			return (f != null)? f.get(object): prop_methods.get(property).invoke(object);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		} catch (InvocationTargetException e) {
+			throw new IllegalStateException(e);
+		}
 	}
 
 	/**
@@ -338,24 +479,23 @@ public class ObjectBlueprint<T> {
 			final private Set<Map.Entry<String, Object>> entrySet = new AbstractSet<Map.Entry<String, Object>>() {
 
 				@Override public int size() {
-					return properties.size();
+					return prop_names.length;
 				}
 
 				@Override public Iterator<Map.Entry<String, Object>> iterator() {
 					return new Iterator<Map.Entry<String, Object>>() {
-						final Iterator<Map.Entry<String, String>> props = properties.entrySet().iterator();
+						int i = 0;
 
 						/*@Override**/ public boolean hasNext() {
-							return props.hasNext();
+							return i < prop_names.length;
 						}
 
 						/*@Override**/ public Map.Entry<String, Object> next() {
-							Map.Entry<String, String> en = props.next();
-							final String property = en.getKey();
-							final String method_name = en.getValue();
+							if (i >= prop_names.length) { throw new NoSuchElementException(); }
+							final int j = i++;
 							return new Map.Entry<String, Object>() {
-								/*@Override**/ public String getKey() { return property; }
-								/*@Override**/ public Object getValue() { return get(property, method_name); }
+								/*@Override**/ public String getKey() { return prop_names[j]; }
+								/*@Override**/ public Object getValue() { return getProperty(object, j); }
 								/*@Override**/ public Object setValue(Object o) { throw new UnsupportedOperationException("Cannot modify an object in this way."); }
 							};
 						}
@@ -370,29 +510,16 @@ public class ObjectBlueprint<T> {
 			};
 
 			@Override public int size() {
-				return properties.size();
+				return prop_names.length;
 			}
 
 			@Override public boolean containsKey(Object property) {
-				return properties.containsKey(property);
+				return prop_index.containsKey(property);
 			}
 
 			@Override public Object get(Object property) {
-				return get((String)property, properties.get(property));
-			}
-
-			protected Object get(String property, String method_name) {
-				try {
-					if (method_name == null || method_name.length() == 0) {
-						return prop_fields.get(property).get(object);
-					} else {
-						return prop_methods.get(method_name).invoke(object);
-					}
-				} catch (IllegalAccessException e) {
-					throw new IllegalStateException(e);
-				} catch (InvocationTargetException e) {
-					throw new IllegalStateException(e);
-				}
+				Integer i = prop_index.get(property);
+				return (i == null)? null: getProperty(object, i);
 			}
 
 			@Override public Set<Map.Entry<String, Object>> entrySet() {
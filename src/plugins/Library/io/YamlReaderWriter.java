@@ -21,8 +21,13 @@ import org.yaml.snakeyaml.constructor.AbstractConstruct;
 
 import java.util.Collections;
 import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.Map;
 import java.util.LinkedHashMap;
+import java.util.TreeSet;
 import java.util.concurrent.Semaphore;
 import java.io.File;
 import java.io.OutputStream;
@@ -37,6 +42,7 @@ import plugins.Library.index.TermEntry;
 import plugins.Library.index.TermPageEntry;
 import plugins.Library.index.TermIndexEntry;
 import plugins.Library.index.TermTermEntry;
+import plugins.Library.index.URIEntry;
 import freenet.keys.FreenetURI;
 
 
@@ -106,7 +112,11 @@ implements ObjectStreamReader, ObjectStreamWriter {
 		try {
 			tebp_term = new ObjectBlueprint<TermTermEntry>(TermTermEntry.class, Arrays.asList("subj", "rel", "term"));
 			tebp_index = new ObjectBlueprint<TermIndexEntry>(TermIndexEntry.class, Arrays.asList("subj", "rel", "index"));
-			tebp_page = new ObjectBlueprint<TermPageEntry>(TermPageEntry.class, Arrays.asList("subj", "rel", "page", "title", "positions", "posFragments"));
+			tebp_page = ObjectBlueprint.init(TermPageEntry.class)
+			  .addFields("subj", "rel", "page", "title")
+			  .addMethod("positions", "getPositions")
+			  .addMethod("posFragments", "getFragments")
+			  .build();
 		} catch (NoSuchFieldException e) {
 			throw new AssertionError(e);
 		} catch (NoSuchMethodException e) {
@@ -135,6 +145,16 @@ implements ObjectStreamReader, ObjectStreamWriter {
 			this.representers.put(TermTermEntry.class, new RepresentTermEntry(tebp_term));
 			this.representers.put(TermIndexEntry.class, new RepresentTermEntry(tebp_index));
 			this.representers.put(TermPageEntry.class, new RepresentTermEntry(tebp_page));
+			this.representers.put(URIEntry.class, new Represent() {
+				/*@Override**/ public Node representData(Object data) {
+					URIEntry en = (URIEntry)data;
+					Map<Object, Object> map = new LinkedHashMap<Object, Object>();
+					map.put("subject", en.getSubject());
+					map.put("qual", en.getQuality());
+					map.put("terms", new ArrayList<String>(new TreeSet<String>(en.getTerms())));
+					return representMapping("!URIEntry", map, true);
+				}
+			});
 		}
 
 		public class RepresentTermEntry<T extends TermEntry> implements Represent {
@@ -186,6 +206,21 @@ implements ObjectStreamReader, ObjectStreamWriter {
 			this.yamlConstructors.put("!TermTermEntry", new ConstructTermEntry(tebp_term));
 			this.yamlConstructors.put("!TermIndexEntry", new ConstructTermEntry(tebp_index));
 			this.yamlConstructors.put("!TermPageEntry", new ConstructTermEntry(tebp_page));
+			this.yamlConstructors.put("!URIEntry", new AbstractConstruct() {
+				/*@Override**/ public Object construct(Node node) {
+					Map<?, ?> map = (Map) constructMapping((MappingNode)node);
+					try {
+						URIEntry en = new URIEntry((FreenetURI)map.get("subject"));
+						en.setQuality(((Number)map.get("qual")).floatValue());
+						Set<String> terms = new HashSet<String>();
+						for (Object term: (Collection<?>)map.get("terms")) { terms.add((String)term); }
+						en.setTerms(terms);
+						return en;
+					} catch (RuntimeException e) {
+						throw new ConstructorException("while constructing a URIEntry", node.getStartMark(), "could not instantiate map " + map, null, e);
+					}
+				}
+			});
 		}
 
 		public class ConstructTermEntry<T extends TermEntry> extends AbstractConstruct {
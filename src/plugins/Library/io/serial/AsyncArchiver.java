@@ -0,0 +1,43 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.io.serial;
+
+import plugins.Library.io.serial.Serialiser.*;
+import plugins.Library.util.exec.Progress;
+import plugins.Library.util.exec.TaskAbortException;
+import plugins.Library.util.func.SafeClosure;
+import static plugins.Library.util.func.Tuples.X2; // also imports the class
+
+/**
+** A {@link LiveArchiver} which can start a {@link Serialiser.Task} and
+** return straight away, and then call back when the task has completed.
+**
+** This means that the number of tasks in progress is not tied to the number
+** of threads waiting for them. {@link ParallelSerialiser} uses these methods
+** instead of {@link LiveArchiver}'s where possible.
+**
+** The methods here update the progress in the same way as the corresponding
+** {@link LiveArchiver} methods. Once the progress has been completed or
+** aborted, the callback (if non-null) is invoked exactly once, with the task
+** and any {@link TaskAbortException} that caused it to abort. This may
+** happen in any thread, including the caller's before the method returns.
+** The methods do not throw; errors go to the progress and the callback.
+**
+** The callback '''must not''' block, since it may be invoked by a thread
+** belonging to the network layer, or to {@link
+** plugins.Library.util.concurrent.Executors#CPU_EXECUTOR}.
+*/
+public interface AsyncArchiver<T, P extends Progress> extends LiveArchiver<T, P> {
+
+	/**
+	** Starts a {@link PullTask}. See the class description for details.
+	*/
+	public void pullAsync(PullTask<T> task, P p, SafeClosure<X2<PullTask<T>, TaskAbortException>> done);
+
+	/**
+	** Starts a {@link PushTask}. See the class description for details.
+	*/
+	public void pushAsync(PushTask<T> task, P p, SafeClosure<X2<PushTask<T>, TaskAbortException>> done);
+
+}
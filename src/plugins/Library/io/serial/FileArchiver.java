@@ -3,6 +3,7 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package plugins.Library.io.serial;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -12,8 +13,11 @@ import java.nio.channels.FileLock;
 import plugins.Library.io.ObjectStreamReader;
 import plugins.Library.io.ObjectStreamWriter;
 import plugins.Library.io.serial.Serialiser.Task;
+import plugins.Library.util.concurrent.MemoryBudget;
 import plugins.Library.util.exec.SimpleProgress;
 import plugins.Library.util.exec.TaskAbortException;
+import plugins.Library.util.func.SafeClosure;
+import static plugins.Library.util.func.Tuples.X2; // also imports the class
 
 /**
 ** Converts between a map of {@link String} to {@link Object}, and a file on
@@ -23,12 +27,15 @@ import plugins.Library.util.exec.TaskAbortException;
 ** This class expects {@link Task#meta} to be of type {@link String}, or an
 ** array whose first element is of type {@link String}.
 **
+** Local disk access is quick, so the {@link AsyncArchiver} methods just do
+** the whole task before returning.
+**
 ** @author infinity0
 */
 public class FileArchiver<T>
-implements Archiver<T>, LiveArchiver<T, SimpleProgress> {
+implements Archiver<T>, LiveArchiver<T, SimpleProgress>, TwoPhaseArchiver<T, SimpleProgress>, AsyncArchiver<T, SimpleProgress> {
 
-	// DEBUG
+	// DEBUG; see SimulatedArchiver for a better model of the network
 	private static boolean testmode = false;
 	public static void setTestMode() { System.out.println("FileArchiver will now randomly pause 5-10s for each task, to simulate network speeds"); testmode = true; }
 	public static void randomWait(SimpleProgress p) {
@@ -101,6 +108,15 @@ implements Archiver<T>, LiveArchiver<T, SimpleProgress> {
 		parentDir = parent;
 	}
 
+	/**
+	** Returns an archiver for the same files, which reads and writes them
+	** with the given {@link ObjectStreamReader} and {@link ObjectStreamWriter}
+	** instead, and gives them the given extension.
+	*/
+	public <S extends ObjectStreamWriter<?> & ObjectStreamReader<?>> FileArchiver<T> withReaderWriter(S rw, String ext) {
+		return new FileArchiver<T>(rw, rw, random, ext, prefix, suffix, parentDir);
+	}
+
 	protected File getFile(Object meta) {
 		if (meta instanceof File) { return (File)meta; }
 
@@ -154,14 +170,40 @@ implements Archiver<T>, LiveArchiver<T, SimpleProgress> {
 	}
 
 	/*@Override**/ public void push(PushTask<T> t) throws TaskAbortException {
+		byte[] data = encode(t);
+		write(getFile(t.meta), data);
+	}
+
+	/**
+	** Encodes the data of a push, without writing it. If this archiver makes
+	** up its own file names, the task is given a new one.
+	**
+	** @return The data to give to {@link #write(File, byte[])}
+	*/
+	protected byte[] encode(PushTask<T> t) throws TaskAbortException {
 		if (random) { t.meta = java.util.UUID.randomUUID().toString(); }
 		File file = getFile(t.meta);
+		try {
+			ByteArrayOutputStream os = new ByteArrayOutputStream();
+			writer.writeObject(t.data, os);
+			return os.toByteArray();
+		} catch (IOException e) {
+			throw new TaskAbortException("FileArchiver could not complete push on " + file, e, true);
+		} catch (RuntimeException e) {
+			throw new TaskAbortException("FileArchiver could not complete push on " + file, e);
+		}
+	}
+
+	/**
+	** Writes data from {@link #encode(Serialiser.PushTask)} to the given file.
+	*/
+	protected void write(File file, byte[] data) throws TaskAbortException {
 		try {
 			FileOutputStream os = new FileOutputStream(file);
 			try {
 				FileLock lock = os.getChannel().lock();
 				try {
-					writer.writeObject(t.data, os);
+					os.write(data);
 				} finally {
 					lock.release();
 				}
@@ -170,8 +212,6 @@ implements Archiver<T>, LiveArchiver<T, SimpleProgress> {
 			}
 		} catch (IOException e) {
 			throw new TaskAbortException("FileArchiver could not complete push on " + file, e, true);
-		} catch (RuntimeException e) {
-			throw new TaskAbortException("FileArchiver could not complete push on " + file, e);
 		}
 	}
 
@@ -185,6 +225,30 @@ implements Archiver<T>, LiveArchiver<T, SimpleProgress> {
 		}
 	}
 
+	/**
+	** {@inheritDoc}
+	**
+	** This implementation only locates the file (and simulates network delays
+	** if in test mode); the file is read in the decode phase.
+	*/
+	/*@Override**/ public TwoPhaseArchiver.Fetched fetchLive(PullTask<T> t, SimpleProgress p) throws TaskAbortException {
+		final File file = getFile(t.meta);
+		if (testmode) { randomWait(p); }
+		else { p.addPartKnown(0, true); }
+		return new TwoPhaseArchiver.Fetched() {
+			/*@Override**/ public long size() { return file.length(); }
+			/*@Override**/ public void free() { }
+		};
+	}
+
+	/*@Override**/ public void decodeLive(PullTask<T> t, TwoPhaseArchiver.Fetched raw, SimpleProgress p) throws TaskAbortException {
+		try {
+			pull(t);
+		} catch (TaskAbortException e) {
+			p.abort(e);
+		}
+	}
+
 	/*@Override**/ public void pushLive(PushTask<T> t, SimpleProgress p) throws TaskAbortException {
 		try {
 			push(t);
@@ -195,4 +259,42 @@ implements Archiver<T>, LiveArchiver<T, SimpleProgress> {
 		}
 	}
 
+	/*========================================================================
+	  public interface AsyncArchiver
+	 ========================================================================*/
+
+	/**
+	** {@inheritDoc}
+	**
+	** The file is decoded holding a share of the {@link
+	** ParallelSerialiser#getDecodeBudget() decode budget}, which is released
+	** once the callback returns.
+	*/
+	/*@Override**/ public void pullAsync(PullTask<T> t, SimpleProgress p, SafeClosure<X2<PullTask<T>, TaskAbortException>> done) {
+		TaskAbortException ex = null;
+		TwoPhaseArchiver.Fetched raw;
+		try {
+			raw = fetchLive(t, p);
+		} catch (TaskAbortException e) {
+			if (done != null) { done.invoke(X2(t, e)); }
+			return;
+		}
+		MemoryBudget budget = ParallelSerialiser.getDecodeBudget();
+		long w = budget.acquireUninterruptibly(raw.size());
+		try {
+			try { decodeLive(t, raw, p); }
+			catch (TaskAbortException e) { ex = e; }
+			if (done != null) { done.invoke(X2(t, ex)); }
+		} finally {
+			budget.release(w);
+		}
+	}
+
+	/*@Override**/ public void pushAsync(PushTask<T> t, SimpleProgress p, SafeClosure<X2<PushTask<T>, TaskAbortException>> done) {
+		TaskAbortException ex = null;
+		try { pushLive(t, p); }
+		catch (TaskAbortException e) { ex = e; }
+		if (done != null) { done.invoke(X2(t, ex)); }
+	}
+
 }
@@ -20,6 +20,7 @@ import java.util.SortedSet;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.TreeSet;
 
 import freenet.support.Logger;
@@ -29,7 +30,8 @@ import freenet.support.Logger;
 ** with a {@code size()} method) into a group of fixed-capacity bins. There are
 ** two main modes of operation, depending on the value of {@link #NO_TINY}; in
 ** addition to this, there is an {@link #aggression} attribute that affects
-** the speed vs. optimity of the packing.
+** the speed vs. optimity of the packing, and a {@link Strategy} which decides
+** whether the packing aims for even bins or for pushing as little as possible.
 **
 ** The class requires that the weights of each element is never greater than
 ** BIN_CAP, so that an element can always totally fit into an additional bin;
@@ -108,6 +110,39 @@ implements MapSerialiser<K, T>,
 	*/
 	private Integer aggression = 1;
 
+	/**
+	** What the packing aims for.
+	*/
+	public enum Strategy {
+		/**
+		** Pack the elements as tightly and evenly as possible, using best-fit
+		** decreasing and redistribution, subject to the {@link #aggression}.
+		** This may move unchanged elements between bins, which then have to be
+		** pushed again.
+		*/
+		BEST_FIT_DECREASING,
+		/**
+		** Push as little as possible. Changed elements go back into the bin
+		** they were in if they still fit, otherwise into a bin that is being
+		** pushed anyway, otherwise into a new bin; bins which none of this
+		** touches are left alone. See {@link #packLeastRewrite(Map, Inventory,
+		** IDGenerator, Object)}.
+		*/
+		LEAST_REWRITE
+	}
+
+	private Strategy strategy = Strategy.BEST_FIT_DECREASING;
+
+	/**
+	** Statistics of the last push, or {@code null} if none has completed.
+	*/
+	private PushStats lastPush;
+
+	/**
+	** Statistics of all pushes so far.
+	*/
+	private PushStats totalPush = new PushStats(0, 0, 0, 0, 0, 0);
+
 	final protected IterableSerialiser<Map<K, T>> subsrl;
 	public IterableSerialiser<Map<K, T>> getChildSerialiser() { return subsrl; }
 
@@ -174,6 +209,40 @@ implements MapSerialiser<K, T>,
 		}
 	}
 
+	/**
+	** Atomically set the {@link Strategy}.
+	*/
+	public void setStrategy(Strategy s) {
+		if (s == null) { throw new NullPointerException(); }
+		synchronized (this) {
+			strategy = s;
+		}
+	}
+
+	/**
+	** Atomically get the {@link Strategy}.
+	*/
+	public Strategy getStrategy() {
+		synchronized (this) {
+			return strategy;
+		}
+	}
+
+	/**
+	** Returns the statistics of the last completed push, or {@code null} if
+	** there has not been one.
+	*/
+	public synchronized PushStats getLastPushStats() {
+		return lastPush;
+	}
+
+	/**
+	** Returns the statistics of all completed pushes, added together.
+	*/
+	public synchronized PushStats getTotalPushStats() {
+		return totalPush;
+	}
+
 	/**
 	** Creates a {@link IDGenerator} for use by the rest of the algorithms of
 	** this class.
@@ -463,6 +532,176 @@ implements MapSerialiser<K, T>,
 		}
 	}
 
+	/**
+	** Packs the tasks for {@link Strategy#LEAST_REWRITE}, and returns the
+	** bins that need to be pushed. The tasks for elements in other bins are
+	** removed from {@code tasks}, and the data of the elements in the returned
+	** bins is pulled if it is not loaded.
+	**
+	** Each existing bin (as given by the metadata of the tasks) starts with
+	** its elements which have null data, ie. are unchanged. The other elements
+	** are then placed, heaviest first:
+	**
+	** # back into the bin they were in, if it has room
+	** # otherwise, into the fullest bin that is being pushed anyway and has
+	**   room; a bin is also pushed if one of its elements moves out, since
+	**   it must not keep a stale copy of it
+	** # otherwise, into a new bin
+	**
+	** Bins being pushed that are over capacity (eg. from an earlier merge of a
+	** tiny bin) have their lightest elements placed elsewhere in the same way.
+	** Bins being pushed that weigh less than {@code BIN_CAPHF} are then merged
+	** in pairs, which is always possible. If one is left over, it is merged
+	** into a bin being pushed anyway if one has room, or else into the
+	** lightest bin that is not being pushed and has room; if {@link #NO_TINY}
+	** is set and there is no such bin, it is merged into the lightest other
+	** bin (preferring one being pushed anyway), going over capacity as for
+	** {@link #packBestFitDecreasing(SortedSet, Map, Inventory, IDGenerator)}.
+	**
+	** Bins which are not pushed keep their weights, which were within the
+	** bounds (bar one) when they were pushed, unless elements have since been
+	** removed.
+	*/
+	protected SortedSet<Bin<K>> packLeastRewrite(Map<K, PushTask<T>> tasks, Inventory<K, T> inv, IDGenerator gen, Object mapmeta) throws TaskAbortException {
+
+		// existing bins, with their unchanged elements
+		Map<Object, Bin<K>> homes = new HashMap<Object, Bin<K>>();
+		Map<K, Bin<K>> homeOf = new HashMap<K, Bin<K>>();
+		List<K> changed = new ArrayList<K>();
+		for (Map.Entry<K, PushTask<T>> en: tasks.entrySet()) {
+			K key = en.getKey();
+			PushTask<T> task = en.getValue();
+			Object id = readOldID(task);
+			if (id == null) {
+				if (task.data == null) {
+					throw new IllegalArgumentException("Packer error: null data and no bin metadata for key" + key);
+				}
+				changed.add(key);
+				continue;
+			}
+			Bin<K> home = homes.get(id);
+			if (home == null) {
+				home = new Bin<K>(BIN_CAP, inv, gen.registerID(id), null);
+				homes.put(id, home);
+			}
+			if (task.data == null) {
+				home.add(key);
+			} else {
+				homeOf.put(key, home);
+				changed.add(key);
+			}
+		}
+
+		// bins to push, fullest first
+		SortedSet<Bin<K>> open = new TreeSet<Bin<K>>();
+		Set<Bin<K>> touched = Collections.newSetFromMap(new IdentityHashMap<Bin<K>, Boolean>());
+
+		Collections.sort(changed, Collections.reverseOrder(inv));
+		for (K key: changed) {
+			Bin<K> home = homeOf.get(key);
+			if (home != null && home.remainder() >= inv.getWeight(key)) {
+				open.remove(home);
+				home.add(key);
+				open.add(home);
+				touched.add(home);
+			} else {
+				if (home != null && touched.add(home)) { open.add(home); }
+				placeInOpenBin(open, touched, key, inv, gen);
+			}
+		}
+
+		// bins being pushed anyway should not stay overfull (eg. from an earlier
+		// merge of a tiny bin), so move out their lightest elements
+		List<K> spill = new ArrayList<K>();
+		for (Bin<K> bin: new ArrayList<Bin<K>>(open)) {
+			if (bin.filled() <= BIN_CAP || bin.size() <= 1) { continue; }
+			open.remove(bin);
+			int weight = bin.filled();
+			for (K k: bin) {
+				if (weight <= BIN_CAP) { break; }
+				spill.add(k);
+				weight -= inv.getWeight(k);
+			}
+			for (K k: spill) { bin.remove(k); }
+			open.add(bin);
+			Collections.reverse(spill);
+			for (K k: spill) { placeInOpenBin(open, touched, k, inv, gen); }
+			spill.clear();
+		}
+
+		// merge light bins in pairs; any two of them fit together
+		Bin<K> light = null;
+		for (Bin<K> bin: new ArrayList<Bin<K>>(open)) {
+			if (bin.filled() >= BIN_CAPHF) { continue; }
+			open.remove(bin);
+			if (light == null) { light = bin; continue; }
+			for (K k: bin) { light.add(k); }
+			if (light.filled() >= BIN_CAPHF) {
+				open.add(light);
+				light = null;
+			}
+		}
+
+		if (light != null && !light.isEmpty()) {
+			SortedSet<Bin<K>> fits = open.tailSet(new DummyBin<K>(BIN_CAP, BIN_CAP - light.filled()));
+			Bin<K> into = fits.isEmpty()? null: fits.first();
+			if (into == null) {
+				Bin<K> lightest = null;
+				for (Bin<K> bin: homes.values()) {
+					if (touched.contains(bin) || bin.isEmpty()) { continue; }
+					if (bin.remainder() >= light.filled() && (into == null || bin.filled() < into.filled())) { into = bin; }
+					if (lightest == null || bin.filled() < lightest.filled()) { lightest = bin; }
+				}
+				if (into == null && NO_TINY) {
+					into = open.isEmpty()? lightest: open.last();
+				}
+			}
+			if (into == null) {
+				open.add(light);
+			} else {
+				open.remove(into);
+				for (K k: light) { into.add(k); }
+				open.add(into);
+				touched.add(into);
+			}
+		}
+
+		// elements in the other bins are not pushed again
+		Set<K> pushed = new HashSet<K>();
+		for (Bin<K> bin: open) { pushed.addAll(bin); }
+		tasks.keySet().retainAll(pushed);
+		pullUnloaded(tasks, mapmeta);
+		return open;
+	}
+
+	/**
+	** Puts the given key into the fullest of the {@code open} bins that has
+	** room for it, or into a new bin if none does.
+	*/
+	private void placeInOpenBin(SortedSet<Bin<K>> open, Set<Bin<K>> touched, K key, Inventory<K, T> inv, IDGenerator gen) {
+		SortedSet<Bin<K>> fits = open.tailSet(new DummyBin<K>(BIN_CAP, BIN_CAP - inv.getWeight(key)));
+		Bin<K> bin = fits.isEmpty()? new Bin<K>(BIN_CAP, inv, gen.nextID(), null): fits.first();
+		// TreeSet assumes its elements are immutable.
+		open.remove(bin);
+		bin.add(key);
+		open.add(bin);
+		touched.add(bin);
+	}
+
+	/**
+	** Returns the ID of the bin the element of the given task was in, or
+	** {@code null} if it is new, or its metadata is not from a bin (eg. if it
+	** was never pushed by a packer).
+	*/
+	protected Object readOldID(PushTask<T> task) {
+		if (task.meta == null) { return null; }
+		try {
+			return scale.readMetaID(task.meta);
+		} catch (ClassCastException e) {
+			return null;
+		}
+	}
+
 	/**
 	** Pulls all PushTasks with null data. This is used when we need to push a
 	** bin that has been assigned to hold the (unloaded) data of these tasks.
@@ -602,16 +841,25 @@ implements MapSerialiser<K, T>,
 	/*@Override**/ public void push(Map<K, PushTask<T>> tasks, Object mapmeta) throws TaskAbortException {
 
 		try {
-			// read local copy of aggression
+			// read local copy of aggression and strategy
 			int agg = getAggression();
-			if(logDEBUG) Logger.debug(this, "Aggression = "+agg+" tasks size = "+tasks.size());
+			Strategy strat = getStrategy();
+			if(logDEBUG) Logger.debug(this, "Aggression = "+agg+" strategy = "+strat+" tasks size = "+tasks.size());
 
 			IDGenerator gen = generator();
 			Inventory<K, T> inv = new Inventory<K, T>(this, tasks);
 			SortedSet<Bin<K>> bins = new TreeSet<Bin<K>>();
 
-			// initialise the binset based on the aggression setting
-			if (agg <= 0) {
+			// where each element was, for the statistics
+			Map<K, Object> oldIDs = new HashMap<K, Object>(tasks.size()<<1);
+			for (Map.Entry<K, PushTask<T>> en: tasks.entrySet()) {
+				Object id = readOldID(en.getValue());
+				if (id != null) { oldIDs.put(en.getKey(), id); }
+			}
+
+			if (strat == Strategy.LEAST_REWRITE) {
+				bins = packLeastRewrite(tasks, inv, gen, mapmeta);
+			} else if (agg <= 0) {
 				// discard all tasks with null data
 				Iterator<PushTask<T>> it = tasks.values().iterator();
 				while (it.hasNext()) {
@@ -628,20 +876,22 @@ implements MapSerialiser<K, T>,
 				pullUnloaded(tasks, mapmeta);
 			}
 
-			// pack elements into bins
-			packBestFitDecreasing(bins, tasks, inv, gen);
-			if (agg <= 1) {
-				// discard all bins not affected by the pack operation
-				discardUnchangedBins(bins, tasks);
-			}
+			if (strat == Strategy.BEST_FIT_DECREASING) {
+				// pack elements into bins
+				packBestFitDecreasing(bins, tasks, inv, gen);
+				if (agg <= 1) {
+					// discard all bins not affected by the pack operation
+					discardUnchangedBins(bins, tasks);
+				}
 
-			// redistribute weights between bins
-			redistributeWeights(bins, inv);
-			if (agg <= 2) {
-				// discard all bins not affected by the redistribution operation
-				discardUnchangedBins(bins, tasks);
-				// pull all data that is as yet unloaded
-				pullUnloaded(tasks, mapmeta);
+				// redistribute weights between bins
+				redistributeWeights(bins, inv);
+				if (agg <= 2) {
+					// discard all bins not affected by the redistribution operation
+					discardUnchangedBins(bins, tasks);
+					// pull all data that is as yet unloaded
+					pullUnloaded(tasks, mapmeta);
+				}
 			}
 
 			// form the list of bin-tasks for each bin, using data from the map-tasks
@@ -659,12 +909,32 @@ implements MapSerialiser<K, T>,
 			subsrl.push(bintasks);
 
 			// set the metadata for all the pushed bins
+			Set<Object> oldBins = new HashSet<Object>(oldIDs.values());
+			int created = 0, moved = 0;
+			long written = 0;
 			for (PushTask<Map<K, T>> bintask: bintasks) {
+				Object id = scale.readBinMetaID(bintask.meta);
+				if (!oldBins.contains(id)) { ++created; }
 				for (K k: bintask.data.keySet()) {
-					tasks.get(k).meta = scale.makeMeta(scale.readBinMetaID(bintask.meta), inv.getWeight(k));
+					int weight = inv.getWeight(k);
+					Object old = oldIDs.get(k);
+					if (old != null && !old.equals(id)) { ++moved; }
+					written += weight;
+					tasks.get(k).meta = scale.makeMeta(id, weight);
 					tasks.get(k).data = null;
 				}
 			}
+			// bins still holding elements which were not pushed again
+			Set<Object> reused = new HashSet<Object>();
+			for (Map.Entry<K, Object> en: oldIDs.entrySet()) {
+				if (!tasks.containsKey(en.getKey())) { reused.add(en.getValue()); }
+			}
+			PushStats stats = new PushStats(1, bintasks.size(), bintasks.size() - created, reused.size(), moved, written);
+			synchronized (this) {
+				lastPush = stats;
+				totalPush = totalPush.plus(stats);
+			}
+			if(logMINOR) Logger.minor(this, "Pushed: "+stats);
 
 			// FIXME PERFORMANCE:
 			// Split up IterableSerialiser, call the start phase, which generates
@@ -678,6 +948,53 @@ implements MapSerialiser<K, T>,
 	}
 
 
+	/************************************************************************
+	** Statistics of what was written by one or more push operations. Weights
+	** are in the units of the {@link Scale}, which may only approximate the
+	** size of the serialised data.
+	*/
+	public static class PushStats {
+
+		/** Number of push operations */
+		final public int pushes;
+		/** Number of bins pushed */
+		final public int binsTouched;
+		/** Number of bins pushed which replaced a bin with the same ID */
+		final public int binsRewritten;
+		/** Number of existing bins which were left as they were */
+		final public int binsReused;
+		/** Number of elements pushed in a different bin from before */
+		final public int elementsMoved;
+		/** Total weight of the bins pushed */
+		final public long weightWritten;
+
+		public PushStats(int p, int w, int r, int u, int m, long ww) {
+			pushes = p;
+			binsTouched = w;
+			binsRewritten = r;
+			binsReused = u;
+			elementsMoved = m;
+			weightWritten = ww;
+		}
+
+		/** Number of bins pushed with a new ID */
+		public int binsCreated() {
+			return binsTouched - binsRewritten;
+		}
+
+		public PushStats plus(PushStats s) {
+			return new PushStats(pushes + s.pushes, binsTouched + s.binsTouched, binsRewritten + s.binsRewritten,
+			  binsReused + s.binsReused, elementsMoved + s.elementsMoved, weightWritten + s.weightWritten);
+		}
+
+		@Override public String toString() {
+			return pushes + " pushes, " + binsTouched + " bins touched (" + binsCreated() + " new), "
+			  + binsReused + " bins reused, " + elementsMoved + " elements moved, weight " + weightWritten;
+		}
+
+	}
+
+
 	/************************************************************************
 	** A class that represents a bin with a certain capacity.
 	**
@@ -888,7 +1205,7 @@ implements MapSerialiser<K, T>,
 			} else {
 				return o;
 			}
-			if (id > nextID) {
+			if (id >= nextID) {
 				nextID = id+1;
 			}
 			return o;
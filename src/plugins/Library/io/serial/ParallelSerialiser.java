@@ -7,7 +7,9 @@ import plugins.Library.io.serial.Serialiser.*;
 import plugins.Library.util.TaskAbortExceptionConvertor;
 import plugins.Library.util.concurrent.Scheduler;
 import plugins.Library.util.concurrent.ObjectProcessor;
-import plugins.Library.util.concurrent.Executors;
+import plugins.Library.util.concurrent.ExecutionConfig;
+import plugins.Library.util.concurrent.MeteredExecutor;
+import plugins.Library.util.concurrent.MemoryBudget;
 import plugins.Library.util.exec.Progress;
 import plugins.Library.util.exec.TaskAbortException;
 import plugins.Library.util.exec.TaskInProgressException;
@@ -20,11 +22,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.ArrayList;
 
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.SynchronousQueue;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.ConcurrentMap;
 
 /**
@@ -35,6 +34,17 @@ import java.util.concurrent.ConcurrentMap;
 ** LiveArchiver#pullLive(Serialiser.PullTask, Progress)} and {@link
 ** LiveArchiver#pushLive(Serialiser.PushTask, Progress)} methods.
 **
+** If the implementation is also a {@link TwoPhaseArchiver}, pulls are done in
+** two phases: the raw data is fetched, then decoded. Any number of fetches
+** may run at once, but the decode phase (and the post-processing of its
+** result) is limited by the {@link #getDecodeBudget() decode budget}.
+**
+** If the implementation is {@linkplain #isAsync() asynchronous}, tasks are
+** started with the {@link AsyncArchiver} methods instead, and no thread waits
+** for them to complete: the threads of {@link #exec} are not used at all, and
+** a synchronous {@link #pull(Serialiser.PullTask)} or {@link
+** #push(Serialiser.PushTask)} only blocks its caller.
+**
 ** DOCUMENT (rewritten)
 **
 ** @author infinity0
@@ -45,11 +55,28 @@ implements IterableSerialiser<T>,
            LiveArchiver<T, P>,
            Serialiser.Trackable<T> {
 
-	final static protected ThreadPoolExecutor exec = new ThreadPoolExecutor(
-		0, 0x40, 60, TimeUnit.SECONDS,
-		new LinkedBlockingQueue<Runnable>(),
-		new ThreadPoolExecutor.CallerRunsPolicy() // easier than catching RejectedExecutionException, if it ever occurs
-	);
+	/**
+	** The {@link ExecutionConfig.Role#FETCH} pool. When its queue is full, jobs
+	** are run by the submitting thread.
+	*/
+	final static protected MeteredExecutor exec = ExecutionConfig.get(ExecutionConfig.Role.FETCH);
+
+	/**
+	** Budget shared between all instances, which limits the amount of data
+	** being decoded by {@link TwoPhaseArchiver}s at any one time. The {@link
+	** AsyncArchiver}s also hold a share of it while they decode a pull and
+	** hand over the result. By default, this is 16MiB of raw data.
+	*/
+	final static protected MemoryBudget decode_budget = new MemoryBudget(0x1000000, true);
+
+	/**
+	** Returns the budget which limits how much fetched data is decoded at
+	** once. Use {@link MemoryBudget#setCapacity(long, boolean)} to configure
+	** it, either as a number of bytes or a number of tasks.
+	*/
+	public static MemoryBudget getDecodeBudget() {
+		return decode_budget;
+	}
 
 	final protected ProgressTracker<T, P> tracker;
 
@@ -60,6 +87,31 @@ implements IterableSerialiser<T>,
 		tracker = k;
 	}
 
+	/**
+	** Whether tasks should be started with the {@link AsyncArchiver} methods.
+	** This implementation returns true if this is an {@link AsyncArchiver};
+	** subclasses which are only asynchronous if some other archiver is should
+	** override it.
+	*/
+	protected boolean isAsync() {
+		return this instanceof AsyncArchiver;
+	}
+
+	/**
+	** Starts a job created by {@link #createPullJob(Serialiser.PullTask,
+	** SafeClosure)} or {@link #createPushJob(Serialiser.PushTask,
+	** SafeClosure)} for a caller which will wait on the progress itself. An
+	** asynchronous job is run straight away, since it does not wait for
+	** anything; otherwise, a thread from {@link #exec} is used.
+	*/
+	protected void startJob(Runnable job) {
+		if (isAsync()) {
+			job.run();
+		} else {
+			exec.execute(job);
+		}
+	}
+
 	// return ? extends Progress so as to hide the implementation details of P
 	/*@Override**/ public ProgressTracker<T, ? extends Progress> getTracker() {
 		return tracker;
@@ -99,6 +151,16 @@ implements IterableSerialiser<T>,
 	protected Runnable createPullJob(final PullTask<T> task, final SafeClosure<X2<PullTask<T>, TaskAbortException>> post) {
 		try {
 			final P prog = (post != null)? tracker.addPullProgress(task): tracker.getPullProgress(task);
+			if (isAsync()) {
+				return new Runnable() {
+					public void run() {
+						((AsyncArchiver<T, P>)ParallelSerialiser.this).pullAsync(task, prog, post);
+					}
+				};
+			}
+			if (this instanceof TwoPhaseArchiver) {
+				return createTwoPhasePullJob((TwoPhaseArchiver<T, P>)this, task, prog, post);
+			}
 			return new Runnable() {
 				public void run() {
 					TaskAbortException ex = null;
@@ -106,13 +168,6 @@ implements IterableSerialiser<T>,
 					catch (RuntimeException e) { ex = new TaskAbortException("failed", e); }
 					catch (TaskAbortException e) { ex = e; }
 					if (post != null) { post.invoke(X2(task, ex)); }
-					// FIXME OPT NORM Two-phase pull (see FreenetArchiver.pull comments):
-					// All we'd need to do is:
-					// Bucket = pullFirst(task, prog)
-					// Take semaphore (purpose is to limit the number of decoded stuff in memory which is not yet wanted)
-					// pullSecond(task, prog, bucket)
-					// Call post-process
-					// Release semaphore
 				}
 			};
 		} catch (final TaskInProgressException e) {
@@ -120,6 +175,38 @@ implements IterableSerialiser<T>,
 		}
 	}
 
+	/**
+	** Creates a job which fetches the raw data for the task, then waits for
+	** room in the {@link #decode_budget} before decoding it. The budget is
+	** held until {@code post} has accepted the result, so that a full output
+	** queue will also stop further decoding.
+	*/
+	protected Runnable createTwoPhasePullJob(final TwoPhaseArchiver<T, P> arx, final PullTask<T> task, final P prog, final SafeClosure<X2<PullTask<T>, TaskAbortException>> post) {
+		return new Runnable() {
+			public void run() {
+				TaskAbortException ex = null;
+				TwoPhaseArchiver.Fetched raw = null;
+				try { raw = arx.fetchLive(task, prog); }
+				catch (RuntimeException e) { ex = new TaskAbortException("failed", e); }
+				catch (TaskAbortException e) { ex = e; }
+				if (raw == null) {
+					if (post != null) { post.invoke(X2(task, ex)); }
+					return;
+				}
+
+				long w = decode_budget.acquireUninterruptibly(raw.size());
+				try {
+					try { arx.decodeLive(task, raw, prog); }
+					catch (RuntimeException e) { ex = new TaskAbortException("failed", e); }
+					catch (TaskAbortException e) { ex = e; }
+					if (post != null) { post.invoke(X2(task, ex)); }
+				} finally {
+					decode_budget.release(w);
+				}
+			}
+		};
+	}
+
 	/**
 	** DOCUMENT.
 	**
@@ -134,6 +221,13 @@ implements IterableSerialiser<T>,
 	protected Runnable createPushJob(final PushTask<T> task, final SafeClosure<X2<PushTask<T>, TaskAbortException>> post) {
 		try {
 			final P prog = (post != null)? tracker.addPushProgress(task): tracker.getPushProgress(task);
+			if (isAsync()) {
+				return new Runnable() {
+					public void run() {
+						((AsyncArchiver<T, P>)ParallelSerialiser.this).pushAsync(task, prog, post);
+					}
+				};
+			}
 			return new Runnable() {
 				public void run() {
 					TaskAbortException ex = null;
@@ -148,6 +242,32 @@ implements IterableSerialiser<T>,
 		}
 	}
 
+	/**
+	** Runs {@link #pullLive(Serialiser.PullTask, Progress)} in the current
+	** thread and reports the result to {@code done}, for an {@link
+	** AsyncArchiver} which cannot start the task asynchronously.
+	*/
+	protected void pullNow(PullTask<T> task, P p, SafeClosure<X2<PullTask<T>, TaskAbortException>> done) {
+		TaskAbortException ex = null;
+		try { pullLive(task, p); }
+		catch (RuntimeException e) { ex = new TaskAbortException("failed", e); }
+		catch (TaskAbortException e) { ex = e; }
+		if (done != null) { done.invoke(X2(task, ex)); }
+	}
+
+	/**
+	** Runs {@link #pushLive(Serialiser.PushTask, Progress)} in the current
+	** thread and reports the result to {@code done}, for an {@link
+	** AsyncArchiver} which cannot start the task asynchronously.
+	*/
+	protected void pushNow(PushTask<T> task, P p, SafeClosure<X2<PushTask<T>, TaskAbortException>> done) {
+		TaskAbortException ex = null;
+		try { pushLive(task, p); }
+		catch (RuntimeException e) { ex = new TaskAbortException("failed", e); }
+		catch (TaskAbortException e) { ex = e; }
+		if (done != null) { done.invoke(X2(task, ex)); }
+	}
+
 	/*========================================================================
 	  public interface IterableSerialiser
 	 ========================================================================*/
@@ -156,7 +276,7 @@ implements IterableSerialiser<T>,
 		try {
 			try {
 				P p = tracker.addPullProgress(task);
-				exec.execute(createPullJob(task, null));
+				startJob(createPullJob(task, null));
 				p.join();
 			} catch (TaskInProgressException e) {
 				throw e.join();
@@ -170,7 +290,7 @@ implements IterableSerialiser<T>,
 		try {
 			try {
 				P p = tracker.addPushProgress(task);
-				exec.execute(createPushJob(task, null));
+				startJob(createPushJob(task, null));
 				p.join();
 			} catch (TaskInProgressException e) {
 				throw e.join();
@@ -180,6 +300,24 @@ implements IterableSerialiser<T>,
 		}
 	}
 
+	/**
+	** Waits for all of the given progresses to finish. If any of them were
+	** aborted, the first such abort is thrown, but only once every task has
+	** finished, so that none of them is still running when the caller gets
+	** the error.
+	*/
+	protected static void joinAll(List<Progress> progs) throws InterruptedException, TaskAbortException {
+		TaskAbortException abort = null;
+		for (Progress p: progs) {
+			try {
+				p.join();
+			} catch (TaskAbortException e) {
+				if (abort == null) { abort = e; }
+			}
+		}
+		if (abort != null) { throw abort; }
+	}
+
 	/**
 	** {@inheritDoc}
 	**
@@ -192,15 +330,13 @@ implements IterableSerialiser<T>,
 				PullTask<T> task = it.next();
 				try {
 					progs.add(tracker.addPullProgress(task));
-					exec.execute(createPullJob(task, null));
+					startJob(createPullJob(task, null));
 				} catch (TaskInProgressException e) {
 					it.remove();
 					progs.add(e.getProgress());
 				}
 			}
-			for (Progress p: progs) { p.join(); }
-			// TODO NORM: toad - if it fails, we won't necessarily know until all of the
-			// other tasks have completed ... is this acceptable?
+			joinAll(progs);
 
 		} catch (InterruptedException e) {
 			throw new TaskAbortException("ParallelSerialiser pull was interrupted", e, true);
@@ -219,15 +355,13 @@ implements IterableSerialiser<T>,
 				PushTask<T> task = it.next();
 				try {
 					progs.add(tracker.addPushProgress(task));
-					exec.execute(createPushJob(task, null));
+					startJob(createPushJob(task, null));
 				} catch (TaskInProgressException e) {
 					it.remove();
 					progs.add(e.getProgress());
 				}
 			}
-			for (Progress p: progs) { p.join(); }
-			// TODO NORM: toad - if it fails, we won't necessarily know until all of the
-			// other tasks have completed ... is this acceptable?
+			joinAll(progs);
 
 		} catch (InterruptedException e) {
 			throw new TaskAbortException("ParallelSerialiser pull was interrupted", e, true);
@@ -244,7 +378,7 @@ implements IterableSerialiser<T>,
 		BlockingQueue<X2<PullTask<T>, TaskAbortException>> output,
 		Map<PullTask<T>, E> deposit
 	) {
-		return new ObjectProcessor<PullTask<T>, E, TaskAbortException>(input, output, deposit, null, Executors.DEFAULT_EXECUTOR, new TaskAbortExceptionConvertor()) {
+		return new ObjectProcessor<PullTask<T>, E, TaskAbortException>(input, output, deposit, null, exec, new TaskAbortExceptionConvertor()) {
 			@Override protected Runnable createJobFor(PullTask<T> task) {
 				return createPullJob(task, postProcess);
 			}
@@ -261,7 +395,7 @@ implements IterableSerialiser<T>,
 		BlockingQueue<X2<PushTask<T>, TaskAbortException>> output,
 		Map<PushTask<T>, E> deposit
 	) {
-		return new ObjectProcessor<PushTask<T>, E, TaskAbortException>(input, output, deposit, null, Executors.DEFAULT_EXECUTOR, new TaskAbortExceptionConvertor()) {
+		return new ObjectProcessor<PushTask<T>, E, TaskAbortException>(input, output, deposit, null, exec, new TaskAbortExceptionConvertor()) {
 			@Override protected Runnable createJobFor(PushTask<T> task) {
 				return createPushJob(task, postProcess);
 			}
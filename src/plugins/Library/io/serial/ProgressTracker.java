@@ -5,6 +5,7 @@ package plugins.Library.io.serial;
 
 import plugins.Library.io.serial.Serialiser.*;
 import plugins.Library.util.exec.Progress;
+import plugins.Library.util.exec.TaskAbortException;
 import plugins.Library.util.exec.TaskInProgressException;
 import plugins.Library.util.CompositeIterable;
 
@@ -151,18 +152,48 @@ public class ProgressTracker<T, P extends Progress> {
 		return getPushProgress(task, false);
 	}*/
 
+	/**
+	** Whether the given progress was aborted. The task it belonged to is no
+	** longer in progress, so it may be started again.
+	*/
+	protected static boolean isAborted(Progress p) {
+		try {
+			p.isDone();
+			return false;
+		} catch (TaskAbortException e) {
+			return true;
+		}
+	}
+
+	/**
+	** Whether the given progress has finished, successfully or not.
+	*/
+	protected static boolean isFinished(Progress p) {
+		try {
+			return p.isDone();
+		} catch (TaskAbortException e) {
+			return true;
+		}
+	}
+
 	/**
 	** Creates a new pull progress and keeps track of it. If there is already a
-	** progress for the metadata, throws {@link TaskInProgressException}. This
-	** ensures that the object returned from this method has not been seen by
-	** any other threads.
+	** progress for the metadata, and it has not finished, throws {@link
+	** TaskInProgressException}. This ensures that the object returned from
+	** this method has not been seen by any other threads.
+	**
+	** A pull that has finished does not stop the same metadata from being
+	** pulled again: its data only went to the task that asked for it, and a
+	** caller which reads a structure without attaching the parts it pulls
+	** (eg. {@link plugins.Library.util.SkeletonSortedMap#scan scan()}) needs
+	** the data again the next time.
 	**
 	** @throws TaskInProgressException
 	*/
 	public P addPullProgress(PullTask<T> task) throws TaskInProgressException {
 		synchronized (pullProgress) {
 			P p = pullProgress.get(task);
-			if (p != null) { throw new TaskInProgressException(p); }
+			if (p != null && !isFinished(p)) { throw new TaskInProgressException(p); }
 			pullProgress.put(task, p = newProgress());
 
 			/*if (pullWaiters.contains(task)) {
@@ -174,16 +205,16 @@ public class ProgressTracker<T, P extends Progress> {
 
 	/**
 	** Creates a new push progress and keeps track of it. If there is already a
-	** progress for the metadata, throws {@link TaskInProgressException}. This
-	** ensures that the object returned from this method has not been seen by
-	** any other threads.
+	** progress for the data, and it was not aborted, throws {@link
+	** TaskInProgressException}. This ensures that the object returned from
+	** this method has not been seen by any other threads.
 	**
 	** @throws TaskInProgressException
 	*/
 	public P addPushProgress(PushTask<T> task) throws TaskInProgressException {
 		synchronized (pushProgress) {
 			P p = pushProgress.get(task);
-			if (p != null) { throw new TaskInProgressException(p); }
+			if (p != null && !isAborted(p)) { throw new TaskInProgressException(p); }
 			pushProgress.put(task, p = newProgress());
 
 			/*if (pushWaiters.remove(task)) {
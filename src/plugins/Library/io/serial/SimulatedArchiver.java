@@ -0,0 +1,609 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.io.serial;
+
+import plugins.Library.io.serial.Serialiser.*;
+import plugins.Library.util.concurrent.Executors;
+import plugins.Library.util.concurrent.MemoryBudget;
+import plugins.Library.util.exec.SimpleProgress;
+import plugins.Library.util.exec.TaskAbortException;
+import plugins.Library.util.func.SafeClosure;
+import static plugins.Library.util.func.Tuples.X2; // also imports the class
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+** A {@link LiveArchiver} which stores data with a {@link FileArchiver}, but
+** makes each task behave like a request over a network, for testing and
+** benchmarking without a node. Each request:
+**
+** # waits for a slot, if {@link #setMaxRequests(int) too many} are already
+**   in progress
+** # waits for a delay drawn from a {@link Latency}, after which the attempt
+**   may fail and be retried
+** # transfers the file over a link shared by all requests in the same
+**   direction, at a {@link #setBandwidth(long, long) limited} rate
+**
+** Progress is reported as {@link plugins.Library.client.FreenetArchiver}
+** does for a splitfile: the total is finalised to the number of {@link
+** #BLOCK_SIZE blocks} when the transfer starts, and a part is done as each
+** block arrives. The last part is only done once the data of the task has
+** been read or written, so a progress never completes too early. Pushed data
+** is only written to the {@link FileArchiver} once its transfer succeeds, so
+** a failed push leaves the stored data as it was.
+**
+** Nothing waits in a thread of its own; requests are driven by a single
+** timer thread, so the {@link AsyncArchiver} methods can have any number of
+** requests in progress, as with the real network. Pulled data is decoded, and
+** pushed data written, in {@link Executors#CPU_EXECUTOR}.
+**
+** Everything random about a request (its latency, and whether an attempt
+** fails) is drawn from a generator seeded by the {@link #seed}, the name of
+** the file and the attempt number, so it does not depend on the order that
+** requests are made in. By default there is no latency, no bandwidth limit,
+** no failures and no limit on requests.
+*/
+public class SimulatedArchiver<T>
+implements LiveArchiver<T, SimpleProgress>, TwoPhaseArchiver<T, SimpleProgress>, AsyncArchiver<T, SimpleProgress> {
+
+	/**
+	** Size of a block of data, for progress updates. This is the size of a
+	** CHK block.
+	*/
+	final public static int BLOCK_SIZE = 0x8000;
+
+	/**
+	** Timer that drives the requests of all instances. Jobs run here must be
+	** quick, since they delay every other simulated request.
+	*/
+	final protected static ScheduledExecutorService timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+		/*@Override**/ public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "Library simulated network");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	final protected FileArchiver<T> arx;
+
+	/**
+	** Seed for the random parts of each request.
+	*/
+	final public long seed;
+
+	private volatile Latency pull_latency = Latency.constant(0);
+	private volatile Latency push_latency = Latency.constant(0);
+
+	final protected Link down = new Link();
+	final protected Link up = new Link();
+
+	private volatile double fail_rate = 0;
+	private volatile int retries = 0;
+
+	/**
+	** Files whose requests always fail, as if the data could not be found.
+	*/
+	final private Set<String> missing = new HashSet<String>();
+
+	/**
+	** Number of attempts still to fail, for each file.
+	*/
+	final private Map<String, Integer> injected = new HashMap<String, Integer>();
+
+	private int max_requests = 0;
+	private int inflight = 0;
+	final private Queue<Request> queued = new LinkedList<Request>();
+
+	final protected AtomicLong requests = new AtomicLong();
+	final protected AtomicLong retried = new AtomicLong();
+	final protected AtomicLong failed = new AtomicLong();
+	final protected AtomicLong bytes_down = new AtomicLong();
+	final protected AtomicLong bytes_up = new AtomicLong();
+	private int peak = 0;
+
+	public SimulatedArchiver(FileArchiver<T> a, long s) {
+		if (a == null) { throw new NullPointerException(); }
+		arx = a;
+		seed = s;
+	}
+
+	/**
+	** Set the latency of each attempt to pull and to push.
+	*/
+	public void setLatency(Latency pull, Latency push) {
+		if (pull == null || push == null) { throw new NullPointerException(); }
+		pull_latency = pull;
+		push_latency = push;
+	}
+
+	/**
+	** Set the rate, in bytes per second, of the links that pulls and pushes
+	** are transferred over. Zero means unlimited.
+	*/
+	public void setBandwidth(long pull, long push) {
+		if (pull < 0 || push < 0) { throw new IllegalArgumentException("Bandwidth must not be negative"); }
+		down.rate = pull;
+		up.rate = push;
+	}
+
+	/**
+	** Set the probability that each attempt fails, and the number of times a
+	** failed request is retried before it is aborted.
+	*/
+	public void setFailures(double rate, int r) {
+		if (rate < 0 || rate > 1 || r < 0) { throw new IllegalArgumentException("Bad failure rate or number of retries"); }
+		fail_rate = rate;
+		retries = r;
+	}
+
+	/**
+	** Make every request for the given metadata fail, without retries.
+	*/
+	public void setMissing(Object meta) {
+		synchronized (missing) {
+			missing.add(arx.getFile(meta).getName());
+		}
+	}
+
+	/**
+	** Make the next {@code n} attempts for the given metadata fail, in
+	** addition to any random failures.
+	*/
+	public void injectFailures(Object meta, int n) {
+		synchronized (injected) {
+			injected.put(arx.getFile(meta).getName(), n);
+		}
+	}
+
+	/**
+	** Set the maximum number of requests in progress at once; further
+	** requests are queued. Zero means unlimited.
+	*/
+	public void setMaxRequests(int n) {
+		if (n < 0) { throw new IllegalArgumentException("Maximum number of requests must not be negative"); }
+		Queue<Request> start = new LinkedList<Request>();
+		synchronized (this) {
+			max_requests = n;
+			while (!queued.isEmpty() && (max_requests == 0 || inflight < max_requests)) {
+				start.add(admit(queued.remove()));
+			}
+		}
+		for (Request r: start) { r.attempt(); }
+	}
+
+	/** Number of requests made */
+	public long getRequests() { return requests.get(); }
+	/** Number of attempts which were retried */
+	public long getRetries() { return retried.get(); }
+	/** Number of requests which were aborted */
+	public long getFailures() { return failed.get(); }
+	/** Number of bytes pulled */
+	public long getBytesPulled() { return bytes_down.get(); }
+	/** Number of bytes pushed */
+	public long getBytesPushed() { return bytes_up.get(); }
+	/** Highest number of requests in progress at once */
+	public synchronized int getPeakRequests() { return peak; }
+
+	@Override public String toString() {
+		return "SimulatedArchiver: " + getRequests() + " requests, " + getRetries() + " retries, " + getFailures()
+		  + " failures, " + getBytesPulled() + " bytes pulled, " + getBytesPushed() + " bytes pushed, peak "
+		  + getPeakRequests() + " requests";
+	}
+
+	/**
+	** Starts a request, or queues it if there are too many in progress.
+	*/
+	protected void submit(Request r) {
+		requests.incrementAndGet();
+		synchronized (this) {
+			if (max_requests > 0 && inflight >= max_requests) {
+				r.setStatus("Queued");
+				queued.add(r);
+				return;
+			}
+			admit(r);
+		}
+		r.attempt();
+	}
+
+	private Request admit(Request r) {
+		assert Thread.holdsLock(this);
+		if (++inflight > peak) { peak = inflight; }
+		return r;
+	}
+
+	/**
+	** Releases the slot of a finished request, and starts the next one.
+	*/
+	protected void release() {
+		Request next;
+		synchronized (this) {
+			--inflight;
+			next = (max_requests == 0 || inflight < max_requests)? queued.poll(): null;
+			if (next != null) { admit(next); }
+		}
+		if (next != null) { next.attempt(); }
+	}
+
+	/**
+	** Returns whether the given attempt for the given file should fail, and
+	** throws if it should fail permanently.
+	*/
+	protected boolean attemptFails(String name, Random rand) throws TaskAbortException {
+		synchronized (missing) {
+			if (missing.contains(name)) {
+				throw new TaskAbortException("Simulated network could not find " + name, new IOException("data not found"), false);
+			}
+		}
+		synchronized (injected) {
+			Integer n = injected.get(name);
+			if (n != null && n > 0) {
+				injected.put(name, n-1);
+				return true;
+			}
+		}
+		return rand.nextDouble() < fail_rate;
+	}
+
+	/**
+	** Returns the generator for the given attempt for the given file.
+	*/
+	protected Random random(String name, int attempt) {
+		return new Random(seed * 0x9E3779B97F4A7C15L + name.hashCode() * 31L + attempt);
+	}
+
+	/**
+	** Runs the network part of a request for the given file, and waits for
+	** it to finish. The last part of the progress is not done.
+	**
+	** @param name The name of the file
+	** @param size The number of bytes to transfer
+	*/
+	protected void transfer(String name, long size, boolean push, SimpleProgress p) throws TaskAbortException {
+		final CountDownLatch latch = new CountDownLatch(1);
+		final TaskAbortException[] result = new TaskAbortException[1];
+		submit(new Request(name, size, push, p, new SafeClosure<TaskAbortException>() {
+			/*@Override**/ public void invoke(TaskAbortException e) {
+				result[0] = e;
+				latch.countDown();
+			}
+		}));
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			throw new TaskAbortException("Simulated request was interrupted", e, true);
+		}
+		if (result[0] != null) { throw result[0]; }
+	}
+
+	private static void abort(SimpleProgress p, TaskAbortException e) {
+		try { p.abort(e); } catch (TaskAbortException a) { /* abort() always rethrows its argument */ }
+	}
+
+	/*========================================================================
+	  public interface Archiver
+	 ========================================================================*/
+
+	/*@Override**/ public void pull(PullTask<T> t) throws TaskAbortException {
+		pullLive(t, new SimpleProgress());
+	}
+
+	/*@Override**/ public void push(PushTask<T> t) throws TaskAbortException {
+		pushLive(t, new SimpleProgress());
+	}
+
+	/*========================================================================
+	  public interface LiveArchiver
+	 ========================================================================*/
+
+	/*@Override**/ public void pullLive(PullTask<T> t, SimpleProgress p) throws TaskAbortException {
+		decodeLive(t, fetchLive(t, p), p);
+	}
+
+	/*@Override**/ public void pushLive(PushTask<T> t, SimpleProgress p) throws TaskAbortException {
+		try {
+			byte[] data = arx.encode(t);
+			File file = arx.getFile(t.meta);
+			transfer(file.getName(), data.length, true, p);
+			arx.write(file, data);
+			p.addPartDone();
+		} catch (TaskAbortException e) {
+			p.abort(e);
+		}
+	}
+
+	/*========================================================================
+	  public interface TwoPhaseArchiver
+	 ========================================================================*/
+
+	/*@Override**/ public TwoPhaseArchiver.Fetched fetchLive(PullTask<T> t, SimpleProgress p) throws TaskAbortException {
+		final File file = arx.getFile(t.meta);
+		try {
+			transfer(file.getName(), file.length(), false, p);
+		} catch (TaskAbortException e) {
+			p.abort(e);
+		}
+		return new TwoPhaseArchiver.Fetched() {
+			/*@Override**/ public long size() { return file.length(); }
+			/*@Override**/ public void free() { }
+		};
+	}
+
+	/*@Override**/ public void decodeLive(PullTask<T> t, TwoPhaseArchiver.Fetched raw, SimpleProgress p) throws TaskAbortException {
+		try {
+			arx.pull(t);
+			p.addPartDone();
+		} catch (TaskAbortException e) {
+			p.abort(e);
+		}
+	}
+
+	/*========================================================================
+	  public interface AsyncArchiver
+	 ========================================================================*/
+
+	/**
+	** {@inheritDoc}
+	**
+	** The data is decoded holding a share of the {@link
+	** ParallelSerialiser#getDecodeBudget() decode budget}, which is released
+	** once the callback returns.
+	*/
+	/*@Override**/ public void pullAsync(final PullTask<T> t, final SimpleProgress p, final SafeClosure<X2<PullTask<T>, TaskAbortException>> done) {
+		final File file = arx.getFile(t.meta);
+		submit(new Request(file.getName(), file.length(), false, p, new SafeClosure<TaskAbortException>() {
+			/*@Override**/ public void invoke(TaskAbortException e) {
+				if (e != null) {
+					abort(p, e);
+					if (done != null) { done.invoke(X2(t, e)); }
+					return;
+				}
+				Executors.CPU_EXECUTOR.execute(new Runnable() {
+					public void run() {
+						MemoryBudget budget = ParallelSerialiser.getDecodeBudget();
+						long w = budget.acquireUninterruptibly(file.length());
+						try {
+							TaskAbortException ex = null;
+							try { decodeLive(t, null, p); }
+							catch (TaskAbortException e) { ex = e; }
+							if (done != null) { done.invoke(X2(t, ex)); }
+						} finally {
+							budget.release(w);
+						}
+					}
+				});
+			}
+		}));
+	}
+
+	/*@Override**/ public void pushAsync(final PushTask<T> t, final SimpleProgress p, final SafeClosure<X2<PushTask<T>, TaskAbortException>> done) {
+		final byte[] data;
+		try {
+			data = arx.encode(t);
+		} catch (TaskAbortException e) {
+			abort(p, e);
+			if (done != null) { done.invoke(X2(t, e)); }
+			return;
+		}
+		final File file = arx.getFile(t.meta);
+		submit(new Request(file.getName(), data.length, true, p, new SafeClosure<TaskAbortException>() {
+			/*@Override**/ public void invoke(TaskAbortException e) {
+				if (e != null) {
+					abort(p, e);
+					if (done != null) { done.invoke(X2(t, e)); }
+					return;
+				}
+				Executors.CPU_EXECUTOR.execute(new Runnable() {
+					public void run() {
+						TaskAbortException ex = null;
+						try {
+							arx.write(file, data);
+							p.addPartDone();
+						} catch (TaskAbortException e) {
+							abort(p, e);
+							ex = e;
+						}
+						if (done != null) { done.invoke(X2(t, ex)); }
+					}
+				});
+			}
+		}));
+	}
+
+
+	/************************************************************************
+	** The network part of a single pull or push. The callback is invoked in
+	** the timer thread, with {@code null} or the {@link TaskAbortException}
+	** that aborted the request, after the slot of the request is released.
+	*/
+	protected class Request {
+
+		final protected String name;
+		final protected long size;
+		final protected boolean push;
+		final protected SimpleProgress progress;
+		final protected SafeClosure<TaskAbortException> done;
+
+		protected int attempt = 0;
+
+		public Request(String n, long s, boolean p, SimpleProgress prog, SafeClosure<TaskAbortException> d) {
+			name = n;
+			size = s;
+			push = p;
+			progress = prog;
+			done = d;
+		}
+
+		protected void setStatus(String s) {
+			progress.setStatus(s);
+		}
+
+		/**
+		** Starts the next attempt.
+		*/
+		protected void attempt() {
+			++attempt;
+			setStatus((attempt == 1? "Requesting ": "Retrying (attempt " + attempt + ") ") + name);
+			final Random rand = random(name, attempt);
+			long delay = (push? push_latency: pull_latency).sample(rand);
+			timer.schedule(new Runnable() {
+				public void run() {
+					boolean fails;
+					try {
+						fails = attemptFails(name, rand);
+					} catch (TaskAbortException e) {
+						finish(e);
+						return;
+					}
+					if (!fails) {
+						transfer();
+					} else if (attempt <= retries) {
+						retried.incrementAndGet();
+						attempt();
+					} else {
+						finish(new TaskAbortException("Simulated network failed " + attempt + " attempts for " + name, new IOException("request failed"), true));
+					}
+				}
+			}, Math.max(0, delay), TimeUnit.MILLISECONDS);
+		}
+
+		/**
+		** Transfers the data over the link, doing a part of the progress as
+		** each block arrives, except for the last.
+		*/
+		protected void transfer() {
+			int blocks = (int)Math.max(1, (size + BLOCK_SIZE - 1) / BLOCK_SIZE);
+			setStatus("Transferring " + name);
+			progress.addPartKnown(blocks, true);
+			(push? bytes_up: bytes_down).addAndGet(size);
+			Link link = push? up: down;
+			long end = link.reserve(size);
+			long start = end - link.duration(size);
+			long now = System.nanoTime();
+			for (int i=1; i<blocks; ++i) {
+				timer.schedule(new Runnable() {
+					public void run() {
+						progress.addPartDone();
+					}
+				}, Math.max(0, start + (end - start) * i / blocks - now), TimeUnit.NANOSECONDS);
+			}
+			timer.schedule(new Runnable() {
+				public void run() {
+					finish(null);
+				}
+			}, Math.max(0, end - now), TimeUnit.NANOSECONDS);
+		}
+
+		protected void finish(TaskAbortException e) {
+			if (e != null) { failed.incrementAndGet(); }
+			release();
+			done.invoke(e);
+		}
+
+	}
+
+
+	/************************************************************************
+	** A link with a limited rate, shared by the transfers over it in the
+	** order that they start.
+	*/
+	protected static class Link {
+
+		/**
+		** Bytes per second, or zero for unlimited.
+		*/
+		volatile long rate = 0;
+
+		/**
+		** Time when the link will next be idle, from {@link System#nanoTime()}.
+		*/
+		private long free = Long.MIN_VALUE;
+
+		/**
+		** Returns the time it takes to transfer the given number of bytes, in
+		** nanoseconds.
+		*/
+		public long duration(long bytes) {
+			long r = rate;
+			return (r <= 0)? 0: (long)(bytes * 1e9 / r);
+		}
+
+		/**
+		** Reserves the link for a transfer of the given number of bytes, and
+		** returns the time when it will finish, from {@link System#nanoTime()}.
+		*/
+		public synchronized long reserve(long bytes) {
+			long now = System.nanoTime();
+			long start = (free == Long.MIN_VALUE || free - now < 0)? now: free;
+			return free = start + duration(bytes);
+		}
+
+	}
+
+
+	/************************************************************************
+	** A distribution of delays, in milliseconds.
+	*/
+	abstract public static class Latency {
+
+		/**
+		** Draws a delay from the distribution.
+		*/
+		abstract public long sample(Random rand);
+
+		public static Latency constant(final long ms) {
+			return new Latency() {
+				@Override public long sample(Random rand) { return ms; }
+			};
+		}
+
+		public static Latency uniform(final long min, final long max) {
+			if (max < min) { throw new IllegalArgumentException("max < min"); }
+			return new Latency() {
+				@Override public long sample(Random rand) {
+					return min + (long)(rand.nextDouble() * (max - min));
+				}
+			};
+		}
+
+		public static Latency exponential(final double mean) {
+			return new Latency() {
+				@Override public long sample(Random rand) {
+					return (long)(-mean * Math.log(1 - rand.nextDouble()));
+				}
+			};
+		}
+
+		/**
+		** A log-normal distribution, which has the long tail that fetches on
+		** Freenet tend to have.
+		**
+		** @param median The median delay
+		** @param sigma The standard deviation of the logarithm of the delay
+		*/
+		public static Latency logNormal(final double median, final double sigma) {
+			return new Latency() {
+				@Override public long sample(Random rand) {
+					return (long)(median * Math.exp(sigma * rand.nextGaussian()));
+				}
+			};
+		}
+
+	}
+
+}
@@ -0,0 +1,60 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.io.serial;
+
+import plugins.Library.io.serial.Serialiser.*;
+import plugins.Library.util.exec.Progress;
+import plugins.Library.util.exec.TaskAbortException;
+
+/**
+** A {@link LiveArchiver} which can split a pull into two phases: fetching the
+** raw data for the task (eg. into a temporary bucket), and decoding that data
+** into the actual object.
+**
+** This allows a caller to have many fetches in progress at once, whilst only
+** holding a bounded number of decoded objects in memory. See {@link
+** ParallelSerialiser#getDecodeBudget()}.
+**
+** Calling {@link #decodeLive(Serialiser.PullTask, Fetched, Progress)} on the
+** result of {@link #fetchLive(Serialiser.PullTask, Progress)} must have the
+** same effect as calling {@link #pullLive(Serialiser.PullTask, Progress)}.
+*/
+public interface TwoPhaseArchiver<T, P extends Progress> extends LiveArchiver<T, P> {
+
+	/**
+	** Raw data for a {@link PullTask} which has been fetched but not yet
+	** decoded.
+	*/
+	public interface Fetched {
+
+		/**
+		** Size of the raw data in bytes, or a negative number if unknown.
+		*/
+		public long size();
+
+		/**
+		** Release any resources held by the raw data. This is called by
+		** {@link TwoPhaseArchiver#decodeLive(Serialiser.PullTask, Fetched,
+		** Progress)}, so callers only need to call it if they decide not to
+		** decode the data.
+		*/
+		public void free();
+
+	}
+
+	/**
+	** Fetch the raw data for a {@link PullTask}, without decoding it. Errors
+	** are reported in the same way as for {@link #pullLive(Serialiser.PullTask,
+	** Progress)}.
+	*/
+	public Fetched fetchLive(PullTask<T> task, P p) throws TaskAbortException;
+
+	/**
+	** Decode the raw data previously fetched for a {@link PullTask}, and
+	** release it. Errors are reported in the same way as for {@link
+	** #pullLive(Serialiser.PullTask, Progress)}.
+	*/
+	public void decodeLive(PullTask<T> task, Fetched raw, P p) throws TaskAbortException;
+
+}
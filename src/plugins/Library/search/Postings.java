@@ -0,0 +1,211 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.search;
+
+import plugins.Library.index.TermEntry;
+import plugins.Library.index.TermIndexEntry;
+import plugins.Library.index.TermPageEntry;
+import plugins.Library.index.TermTermEntry;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+
+/**
+** A posting list: the entries of one subsearch, sorted by their target (the
+** page, index or term they point to) rather than by relevance. Entries which
+** {@linkplain TermEntry#equalsTarget(TermEntry) have the same target} are next
+** to each other, so set operations over several lists can be done by walking
+** them in step, instead of searching every other list for each entry.
+**
+** The target of each entry is computed once, when the list is built.
+*/
+final class Postings {
+
+	final TermEntry[] entries;
+
+	/**
+	** {@link TermEntry.EntryType#ordinal()} of each entry.
+	*/
+	final int[] types;
+
+	/**
+	** String form of the target of each entry.
+	*/
+	final String[] keys;
+
+	Postings(Collection<? extends TermEntry> c) {
+		int n = c.size();
+		final TermEntry[] es = c.toArray(new TermEntry[n]);
+		final int[] ts = new int[n];
+		final String[] ks = new String[n];
+		Integer[] order = new Integer[n];
+		for (int i=0; i<n; ++i) {
+			ts[i] = es[i].entryType().ordinal();
+			ks[i] = targetOf(es[i]);
+			order[i] = i;
+		}
+		// sort indexes rather than entries, to keep the keys in step
+		Arrays.sort(order, new Comparator<Integer>() {
+			/*@Override**/ public int compare(Integer a, Integer b) {
+				return compareTarget(ts[a], ks[a], ts[b], ks[b]);
+			}
+		});
+		entries = new TermEntry[n];
+		types = new int[n];
+		keys = new String[n];
+		for (int i=0; i<n; ++i) {
+			int j = order[i];
+			entries[i] = es[j];
+			types[i] = ts[j];
+			keys[i] = ks[j];
+		}
+	}
+
+	int size() {
+		return entries.length;
+	}
+
+	/**
+	** Returns the string form of what the entry points to.
+	*/
+	static String targetOf(TermEntry en) {
+		// OPT NORM make a more efficient way of comparing these
+		if (en instanceof TermPageEntry) {
+			return ((TermPageEntry)en).page.toString();
+		} else if (en instanceof TermIndexEntry) {
+			return ((TermIndexEntry)en).index.toString();
+		} else if (en instanceof TermTermEntry) {
+			return ((TermTermEntry)en).term;
+		} else {
+			throw new UnsupportedOperationException("The TermEntry type " + en.getClass().getName() + " is not currently supported in ResultSet");
+		}
+	}
+
+	static int compareTarget(int t1, String k1, int t2, String k2) {
+		if (t1 != t2) { return (t1 < t2)? -1: 1; }
+		return k1.compareTo(k2);
+	}
+
+	/**
+	** Compares the target of the entry at {@code i} with the given target.
+	*/
+	int compareAt(int i, int t, String k) {
+		return compareTarget(types[i], keys[i], t, k);
+	}
+
+	/**
+	** Returns the index of the first entry at or after {@code from} whose
+	** target is not less than the given target, or {@link #size()} if there
+	** is none.
+	**
+	** This gallops forward from {@code from} in steps of increasing size, and
+	** then does a binary search in the last step, so it takes time logarithmic
+	** in the distance skipped, rather than in the size of the list.
+	*/
+	int seek(int from, int t, String k) {
+		int n = entries.length;
+		if (from >= n || compareAt(from, t, k) >= 0) { return from; }
+		// entries[lo] < target
+		int lo = from, step = 1;
+		int hi = from + step;
+		while (hi < n && compareAt(hi, t, k) < 0) {
+			lo = hi;
+			step <<= 1;
+			hi = lo + step;
+		}
+		if (hi > n) { hi = n; }
+		// entries[lo] < target <= entries[hi]
+		while (hi - lo > 1) {
+			int mid = (lo + hi) >>> 1;
+			if (compareAt(mid, t, k) < 0) { lo = mid; } else { hi = mid; }
+		}
+		return hi;
+	}
+
+	/**
+	** Returns the index after the last entry at or after {@code from} with
+	** the same target as the entry at {@code from}.
+	*/
+	int endOfTarget(int from) {
+		int end = from + 1;
+		while (end < entries.length && types[end] == types[from] && keys[end].equals(keys[from])) { ++end; }
+		return end;
+	}
+
+	/**
+	** Walks the targets which are common to several lists. The walk is driven
+	** by the shortest list; the others are skipped forward with {@link
+	** #seek(int, int, String)}, so the cost depends mostly on the size of the
+	** shortest list.
+	*/
+	static class Intersection {
+
+		final Postings[] lists;
+		final int[] pos;
+		/** Lists in order of size, shortest first. */
+		final Integer[] bySize;
+		boolean started;
+
+		Intersection(final Postings[] l) {
+			lists = l;
+			pos = new int[l.length];
+			bySize = new Integer[l.length];
+			for (int i=0; i<l.length; ++i) { bySize[i] = i; }
+			Arrays.sort(bySize, new Comparator<Integer>() {
+				/*@Override**/ public int compare(Integer a, Integer b) {
+					int sa = lists[a].size(), sb = lists[b].size();
+					return (sa < sb)? -1: (sa == sb)? 0: 1;
+				}
+			});
+		}
+
+		/**
+		** Moves to the next target which is in every list.
+		**
+		** @return false if there are no more
+		*/
+		boolean next() {
+			if (lists.length == 0) { return false; }
+			int f = bySize[0];
+			Postings first = lists[f];
+			// skip past the target we were on
+			if (started) {
+				for (int i=0; i<lists.length; ++i) {
+					if (pos[i] < lists[i].size()) { pos[i] = lists[i].endOfTarget(pos[i]); }
+				}
+			}
+			started = true;
+			outer:
+			while (pos[f] < first.size()) {
+				int t = first.types[pos[f]];
+				String k = first.keys[pos[f]];
+				for (int j=1; j<bySize.length; ++j) {
+					int i = bySize[j];
+					Postings p = lists[i];
+					pos[i] = p.seek(pos[i], t, k);
+					if (pos[i] >= p.size()) { pos[f] = first.size(); return false; }
+					if (p.compareAt(pos[i], t, k) != 0) {
+						// gallop the driving list up to where this one is
+						pos[f] = first.seek(pos[f], p.types[pos[i]], p.keys[pos[i]]);
+						continue outer;
+					}
+				}
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		** Returns the entry of the {@code i}th list with the current target.
+		** If a list has several entries with the target, the first is
+		** returned.
+		*/
+		TermEntry get(int i) {
+			return lists[i].entries[pos[i]];
+		}
+
+	}
+
+}
@@ -0,0 +1,181 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.search;
+
+import plugins.Library.PrefixIndex;
+import plugins.Library.index.TermEntry;
+import plugins.Library.index.TermPageEntry;
+import plugins.Library.util.exec.AbstractExecution;
+import plugins.Library.util.exec.ChainedProgress;
+import plugins.Library.util.exec.Execution;
+import plugins.Library.util.exec.ExecutionAcceptor;
+import plugins.Library.util.exec.Progress;
+import plugins.Library.util.exec.ProgressParts;
+import plugins.Library.util.exec.TaskAbortException;
+
+import freenet.keys.FreenetURI;
+import freenet.support.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+
+/**
+ * Looks up a wildcard term, eg. <tt>freenet*</tt>: lists the terms of the
+ * index starting with the prefix, looks them all up, and combines their
+ * results. A page which contains several of the terms appears once, with
+ * the entry of its most relevant term.
+ * <br /> <br />
+ * At most {@link #MAX_TERMS} terms are looked up, shortest first, since the
+ * shortest terms are the closest to what was typed. Lookups on one index must
+ * not run at the same time (see the FIXME in {@link plugins.Library.Library}),
+ * so the terms are looked up one after the other.
+ */
+class PrefixLookup extends AbstractExecution<Set<TermEntry>> implements ChainedProgress {
+
+	/**
+	 * Maximum number of terms a wildcard is expanded to
+	 */
+	final static int MAX_TERMS = 0x20;
+
+	final static Comparator<String> SHORTEST_FIRST = new Comparator<String>() {
+		/*@Override**/ public int compare(String a, String b) {
+			int d = a.length() - b.length();
+			return (d != 0)? d: a.compareTo(b);
+		}
+	};
+
+	final private PrefixIndex index;
+	final private Execution<SortedSet<String>> listing;
+	final private List<Execution<Set<TermEntry>>> lookups = new ArrayList<Execution<Set<TermEntry>>>();
+
+	/** Terms still to look up */
+	private List<String> todo;
+	/** Terms chosen to look up */
+	private int total;
+	private int succeeded;
+	private TaskAbortException failure;
+	final private Map<FreenetURI, TermPageEntry> pages = new HashMap<FreenetURI, TermPageEntry>();
+	final private Set<TermEntry> others = new HashSet<TermEntry>();
+
+	/**
+	 * @param index The index to look the terms up in
+	 * @param prefix What the terms start with
+	 */
+	PrefixLookup(PrefixIndex index, String prefix) {
+		super(prefix + "*");
+		this.index = index;
+		listing = index.getTerms(prefix, 0);
+		listing.addAcceptor(new ExecutionAcceptor<SortedSet<String>>() {
+			/*@Override**/ public void acceptStarted(Execution<SortedSet<String>> opn) { }
+			/*@Override**/ public void acceptDone(Execution<SortedSet<String>> opn, SortedSet<String> terms) {
+				expand(terms);
+			}
+			/*@Override**/ public void acceptAborted(Execution<SortedSet<String>> opn, TaskAbortException abort) {
+				setError(abort);
+			}
+		});
+	}
+
+	private void expand(SortedSet<String> terms) {
+		List<String> chosen = new ArrayList<String>(terms);
+		Collections.sort(chosen, SHORTEST_FIRST);
+		if (chosen.size() > MAX_TERMS) {
+			if (Search.logMINOR) Logger.minor(this, subject + " matches " + chosen.size() + " terms, only looking up " + MAX_TERMS);
+			chosen = chosen.subList(0, MAX_TERMS);
+		}
+		if (chosen.isEmpty()) {
+			setResult(Collections.<TermEntry>emptySet());
+			return;
+		}
+
+		synchronized (this) {
+			total = chosen.size();
+			todo = new ArrayList<String>(chosen);
+		}
+		next();
+	}
+
+	/**
+	 * Looks up the next term, once the one before it is done.
+	 */
+	private void next() {
+		Execution<Set<TermEntry>> lookup;
+		synchronized (this) {
+			lookup = index.getTermEntries(todo.remove(0));
+			lookups.add(lookup);
+		}
+		// outside the lock, since acceptors are called with the lock of the
+		// lookup held, and then take ours
+		lookup.addAcceptor(new ExecutionAcceptor<Set<TermEntry>>() {
+			/*@Override**/ public void acceptStarted(Execution<Set<TermEntry>> opn) { }
+			/*@Override**/ public void acceptDone(Execution<Set<TermEntry>> opn, Set<TermEntry> result) {
+				completed(result, null);
+			}
+			/*@Override**/ public void acceptAborted(Execution<Set<TermEntry>> opn, TaskAbortException abort) {
+				completed(null, abort);
+			}
+		});
+	}
+
+	private void completed(Set<TermEntry> result, TaskAbortException abort) {
+		Set<TermEntry> combined = null;
+		boolean more;
+		synchronized (this) {
+			if (result != null) {
+				++succeeded;
+				for (TermEntry en: result) {
+					if (!(en instanceof TermPageEntry)) {
+						others.add(en);
+						continue;
+					}
+					TermPageEntry pe = (TermPageEntry)en;
+					TermPageEntry old = pages.get(pe.page);
+					if (old == null || old.rel < pe.rel) { pages.put(pe.page, pe); }
+				}
+			} else if (failure == null) {
+				failure = abort;
+			}
+			more = !todo.isEmpty();
+			if (!more && succeeded > 0) {
+				combined = new HashSet<TermEntry>(others);
+				combined.addAll(pages.values());
+			}
+		}
+		if (combined != null) {
+			setResult(Collections.unmodifiableSet(combined));
+		} else if (more) {
+			next();
+		} else {
+			// every term failed
+			setError(failure);
+		}
+	}
+
+	@Override public String getStatus() {
+		synchronized (this) {
+			if (lookups.isEmpty()) { return listing.getStatus(); }
+			return "Looking up term " + lookups.size() + " of " + total;
+		}
+	}
+
+	@Override public ProgressParts getParts() throws TaskAbortException {
+		synchronized (this) {
+			if (lookups.isEmpty()) { return ProgressParts.normalise(0, 1); }
+			// the last lookup started is the only one not done
+			return ProgressParts.normalise(isDone()? total: lookups.size() - 1, total);
+		}
+	}
+
+	/*@Override**/ public Progress getCurrentProgress() {
+		return listing;
+	}
+
+}
@@ -0,0 +1,307 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.search;
+
+import plugins.Library.FilterableIndex;
+import plugins.Library.index.TermEntry;
+import plugins.Library.index.TermPageEntry;
+import plugins.Library.util.exec.AbstractExecution;
+import plugins.Library.util.exec.ChainedProgress;
+import plugins.Library.util.exec.Execution;
+import plugins.Library.util.exec.ExecutionAcceptor;
+import plugins.Library.util.exec.Progress;
+import plugins.Library.util.exec.ProgressParts;
+import plugins.Library.util.exec.TaskAbortException;
+
+import freenet.keys.FreenetURI;
+import freenet.support.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Plans the term lookups for a query whose terms must all match, so that a
+ * rare term does not have to wait for, or pay for, loading the whole of a
+ * common one.
+ * <br /> <br />
+ * The number of entries of each term is looked up first, which only loads
+ * the root of each term's tree. The rarest term is then looked up in full,
+ * and each of the others, rarest first, is only looked up for the pages that
+ * matched all the terms before it. Once no pages are left, the remaining
+ * terms are not looked up at all.
+ * <br /> <br />
+ * All the lookups are made on one index, so they are made one at a time.
+ */
+class QueryPlanner {
+
+	/**
+	 * The result of one term of a planned query, completed by the planner
+	 * once the term has been looked up. Its progress is that of the lookup
+	 * currently being done for it.
+	 */
+	static class PlannedTerm extends AbstractExecution<Set<TermEntry>> implements ChainedProgress {
+
+		private volatile String stage = "Waiting for rarer terms";
+		private volatile Execution<?> current;
+
+		PlannedTerm(String term) {
+			super(term);
+		}
+
+		void follow(String s, Execution<?> lookup) {
+			stage = s;
+			current = lookup;
+		}
+
+		void done(Set<TermEntry> result) {
+			current = null;
+			setResult(result);
+		}
+
+		void failed(TaskAbortException e) {
+			current = null;
+			setError(e);
+		}
+
+		@Override public String getStatus() {
+			Execution<?> cur = current;
+			return (cur == null)? stage: stage + ": " + cur.getStatus();
+		}
+
+		@Override public ProgressParts getParts() throws TaskAbortException {
+			if (isDone()) { return ProgressParts.normalise(1, 1); }
+			Execution<?> cur = current;
+			return (cur == null)? ProgressParts.normalise(0, 1): cur.getParts();
+		}
+
+		/*@Override**/ public Progress getCurrentProgress() {
+			return current;
+		}
+
+	}
+
+	final private FilterableIndex index;
+	final private List<String> terms;
+	final private List<PlannedTerm> planned;
+	final private long[] sizes;
+	final private AtomicBoolean aborted = new AtomicBoolean();
+
+	/** Terms still to look up, rarest first */
+	final private LinkedList<Integer> todo = new LinkedList<Integer>();
+	/** Pages which have matched every term looked up so far */
+	private Set<FreenetURI> candidates;
+
+	private QueryPlanner(FilterableIndex index, List<String> terms) {
+		this.index = index;
+		this.terms = terms;
+		planned = new ArrayList<PlannedTerm>(terms.size());
+		for (String term: terms) { planned.add(new PlannedTerm(term)); }
+		sizes = new long[terms.size()];
+	}
+
+	/**
+	 * Whether the given subquery is a single term which can be planned, ie.
+	 * one which {@link Search} would look up directly.
+	 */
+	static boolean isPlainTerm(String subquery) {
+		return subquery.matches("\\A[\\S&&[^-\"|^()&*]]+\\Z") && !SearchUtil.isStopWord(subquery);
+	}
+
+	/**
+	 * Starts a planned lookup of terms which must all match, eg. the words
+	 * of an intersection or a phrase.
+	 *
+	 * @param index The index to look the terms up in
+	 * @param terms The terms; a null is left as null in the result, eg. for
+	 *        a blank in a phrase
+	 * @return The results of the terms, in the same order
+	 */
+	static List<Execution<Set<TermEntry>>> intersect(FilterableIndex index, List<String> terms) {
+		List<String> present = new ArrayList<String>();
+		for (String term: terms) {
+			if (term != null) { present.add(term); }
+		}
+		QueryPlanner planner = new QueryPlanner(index, present);
+		List<Execution<Set<TermEntry>>> results = new ArrayList<Execution<Set<TermEntry>>>(terms.size());
+		int i = 0;
+		for (String term: terms) {
+			results.add((term == null)? null: planner.planned.get(i++));
+		}
+		planner.start();
+		return results;
+	}
+
+	/**
+	 * Starts a lookup of a term, only for the pages which matched another
+	 * lookup; eg. for the term to be removed from the results of the other.
+	 *
+	 * @param index The index to look the term up in
+	 * @param term The term
+	 * @param by The lookup whose pages to look up the term for
+	 */
+	static Execution<Set<TermEntry>> filter(final FilterableIndex index, String term, Execution<Set<TermEntry>> by) {
+		final PlannedTerm t = new PlannedTerm(term);
+		t.follow("Waiting for " + by.getSubject(), by);
+		by.addAcceptor(new ExecutionAcceptor<Set<TermEntry>>() {
+			/*@Override**/ public void acceptStarted(Execution<Set<TermEntry>> opn) { }
+			/*@Override**/ public void acceptDone(Execution<Set<TermEntry>> opn, Set<TermEntry> result) {
+				Set<FreenetURI> pages = pagesOf(result);
+				if (pages.isEmpty()) {
+					t.done(Collections.<TermEntry>emptySet());
+					return;
+				}
+				lookup(index, t, pages, null);
+			}
+			/*@Override**/ public void acceptAborted(Execution<Set<TermEntry>> opn, TaskAbortException abort) {
+				// nothing to filter; the query fails with the other lookup
+				t.done(Collections.<TermEntry>emptySet());
+			}
+		});
+		return t;
+	}
+
+	/**
+	 * Looks up a term for the given pages, completing it with the result,
+	 * and then runs the given continuation, if any.
+	 */
+	private static void lookup(FilterableIndex index, final PlannedTerm t, Set<FreenetURI> pages, final QueryPlanner then) {
+		Execution<Set<TermEntry>> lookup = index.getTermEntries(t.getSubject(), pages);
+		t.follow("Looking up " + pages.size() + " candidate pages", lookup);
+		lookup.addAcceptor(new ExecutionAcceptor<Set<TermEntry>>() {
+			/*@Override**/ public void acceptStarted(Execution<Set<TermEntry>> opn) { }
+			/*@Override**/ public void acceptDone(Execution<Set<TermEntry>> opn, Set<TermEntry> result) {
+				t.done(result);
+				if (then != null) { then.fetched(result); }
+			}
+			/*@Override**/ public void acceptAborted(Execution<Set<TermEntry>> opn, TaskAbortException abort) {
+				if (then != null) { then.abort(t, abort); } else { t.failed(abort); }
+			}
+		});
+	}
+
+	/**
+	 * Pages referred to by the given entries.
+	 */
+	static Set<FreenetURI> pagesOf(Set<TermEntry> entries) {
+		Set<FreenetURI> pages = new HashSet<FreenetURI>();
+		for (TermEntry en: entries) {
+			if (en instanceof TermPageEntry) { pages.add(((TermPageEntry)en).page); }
+		}
+		return pages;
+	}
+
+	private void start() {
+		size(0);
+	}
+
+	/**
+	 * Looks up the number of entries of the given term, and then of the ones
+	 * after it. Lookups on one index must not run at the same time (see the
+	 * FIXME in {@link plugins.Library.Library}), so like the lookups of the
+	 * entries, these are done one after the other.
+	 */
+	private void size(final int i) {
+		if (aborted.get()) { return; }
+		if (i == terms.size()) {
+			plan();
+			return;
+		}
+		final PlannedTerm t = planned.get(i);
+		Execution<Long> size = index.getTermSize(terms.get(i));
+		t.follow("Estimating size", size);
+		size.addAcceptor(new ExecutionAcceptor<Long>() {
+			/*@Override**/ public void acceptStarted(Execution<Long> opn) { }
+			/*@Override**/ public void acceptDone(Execution<Long> opn, Long result) {
+				t.follow("Waiting for rarer terms", null);
+				sizes[i] = result;
+				size(i + 1);
+			}
+			/*@Override**/ public void acceptAborted(Execution<Long> opn, TaskAbortException abort) {
+				abort(t, abort);
+			}
+		});
+	}
+
+	private void plan() {
+		List<Integer> order = new ArrayList<Integer>(terms.size());
+		for (int j=0; j<terms.size(); ++j) { order.add(j); }
+		Collections.sort(order, new Comparator<Integer>() {
+			/*@Override**/ public int compare(Integer a, Integer b) {
+				return (sizes[a] < sizes[b])? -1: (sizes[a] > sizes[b])? 1: 0;
+			}
+		});
+		todo.addAll(order);
+		if (Search.logMINOR) {
+			StringBuilder s = new StringBuilder("Planned lookups, rarest first:");
+			for (int j: order) { s.append(' ').append(terms.get(j)).append('(').append(sizes[j]).append(')'); }
+			Logger.minor(this, s.toString());
+		}
+
+		// look up the rarest term in full
+		final PlannedTerm t = planned.get(todo.removeFirst());
+		Execution<Set<TermEntry>> lookup = index.getTermEntries(t.getSubject());
+		t.follow("Looking up rarest term", lookup);
+		lookup.addAcceptor(new ExecutionAcceptor<Set<TermEntry>>() {
+			/*@Override**/ public void acceptStarted(Execution<Set<TermEntry>> opn) { }
+			/*@Override**/ public void acceptDone(Execution<Set<TermEntry>> opn, Set<TermEntry> result) {
+				t.done(result);
+				candidates = null;
+				fetched(result);
+			}
+			/*@Override**/ public void acceptAborted(Execution<Set<TermEntry>> opn, TaskAbortException abort) {
+				abort(t, abort);
+			}
+		});
+	}
+
+	/**
+	 * Narrows the candidate pages by the result of a term, and looks up the
+	 * next term for those. Only one term is looked up at once, so this is
+	 * never run concurrently.
+	 */
+	private void fetched(Set<TermEntry> result) {
+		if (aborted.get()) { return; }
+		if (candidates == null) {
+			candidates = pagesOf(result);
+		} else {
+			candidates.retainAll(pagesOf(result));
+		}
+		while (!todo.isEmpty()) {
+			PlannedTerm t = planned.get(todo.removeFirst());
+			if (candidates.isEmpty()) {
+				// no page can match all the terms, so don't bother
+				t.done(Collections.<TermEntry>emptySet());
+				continue;
+			}
+			lookup(index, t, new HashSet<FreenetURI>(candidates), this);
+			return;
+		}
+	}
+
+	/**
+	 * Fails the given term, and completes the others with nothing; a query
+	 * whose terms must all match fails if any of them does.
+	 */
+	private void abort(PlannedTerm t, TaskAbortException abort) {
+		if (!aborted.compareAndSet(false, true)) { return; }
+		t.failed(abort);
+		for (PlannedTerm other: planned) {
+			if (other == t) { continue; }
+			try {
+				if (!other.isDone()) { other.done(Collections.<TermEntry>emptySet()); }
+			} catch (TaskAbortException e) {
+				// already failed
+			} catch (IllegalStateException e) {
+				// completed in the meantime
+			}
+		}
+	}
+
+}
@@ -14,10 +14,11 @@ import freenet.support.Logger;
 
 import java.util.Iterator;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 import java.util.HashMap;
+import java.util.PriorityQueue;
 
 /**
  * Unmodifiable Set which makes sure all data in results being combined is
@@ -25,6 +26,12 @@ import java.util.HashMap;
  * not contain references to the original Sets.
  * <br /> <br />
  * The set isn't finalised until a run is finished and isDone() is true.
+ * <br /> <br />
+ * If a limit is given, only that many entries with the highest relevance are
+ * kept. The others are dropped as soon as they are found, and entries whose
+ * relevance cannot be high enough to be kept are not built at all, so the
+ * memory used depends on the limit rather than on the size of the results
+ * being combined. {@link #getMatchCount()} still counts every match.
  *
  * @author MikeB
  */
@@ -49,6 +56,25 @@ public class ResultSet implements Set<TermEntry>, Runnable{
 	private final String subject;
 	private final boolean ignoreTAEs;
 
+	/** Maximum number of entries to keep, or 0 to keep them all */
+	private final int limit;
+	/** The best entries found so far when there is a limit, least relevant first */
+	private PriorityQueue<TermEntry> best;
+	/** Number of entries matched, including those dropped because of the limit */
+	private int matched;
+	/** Whether {@link #matched} is exact */
+	private boolean matchedExact = true;
+
+	/**
+	 * Orders entries by increasing relevance, so the head of {@link #best} is
+	 * the first to be dropped
+	 */
+	final private static Comparator<TermEntry> LEAST_RELEVANT_FIRST = new Comparator<TermEntry>() {
+		/*@Override**/ public int compare(TermEntry a, TermEntry b) {
+			return Float.compare(a.rel, b.rel);
+		}
+	};
+
 	/**
 	 * @param subject The subject for each of the entries in the Set
 	 * @param resultOperation {@link ResultOperation} to be performed on each of the given Sets
@@ -58,6 +84,16 @@ public class ResultSet implements Set<TermEntry>, Runnable{
 	 * TODO reevaluate relevance for all combinations, and find a way to calculate relevance of phrases
 	 */
 	ResultSet(String subject, ResultOperation resultOperation, List<Execution<Set<TermEntry>>> subRequests, boolean ignoreTAEs) throws TaskAbortException {
+		this(subject, resultOperation, subRequests, ignoreTAEs, 0);
+	}
+
+	/**
+	 * @param limit Maximum number of entries to keep, the most relevant first, or 0 to keep them all
+	 * @see #ResultSet(String, ResultOperation, List, boolean)
+	 */
+	ResultSet(String subject, ResultOperation resultOperation, List<Execution<Set<TermEntry>>> subRequests, boolean ignoreTAEs, int limit) throws TaskAbortException {
+		if(limit < 0)
+			throw new IllegalArgumentException("Negative limit: " + limit);
 		if(resultOperation==ResultOperation.SINGLE && subRequests.size()!=1)
 			throw new IllegalArgumentException(subRequests.size() + " requests supplied with SINGLE operation");
 		if(resultOperation==ResultOperation.REMOVE && subRequests.size()!=2)
@@ -73,6 +109,9 @@ public class ResultSet implements Set<TermEntry>, Runnable{
 		this.subject = subject;
 		internal = new HashMap();
 		this.resultOperation = resultOperation;
+		this.limit = limit;
+		if(limit > 0)
+			best = new PriorityQueue<TermEntry>(Math.min(limit, 0x400), LEAST_RELEVANT_FIRST);
 
 		// Make sure any TaskAbortExceptions are found here and not when it's run
 		this.ignoreTAEs = ignoreTAEs;
@@ -103,6 +142,14 @@ public class ResultSet implements Set<TermEntry>, Runnable{
 					phrase(subresults);
 					break;
 			}
+			for (Set<TermEntry> subresult : subresults)
+				if(mayBeCut(subresult))
+					matchedExact = false;
+			if(best != null) {
+				for (TermEntry entry : best)
+					internal.put(entry, entry);
+				best = null;
+			}
 		}catch(RuntimeException e){
 			exception = e;	// Exeptions thrown here are stored in case this is being run in a thread, in this case it is thrown in isDone() or iterator()
 			throw e;
@@ -120,6 +167,7 @@ public class ResultSet implements Set<TermEntry>, Runnable{
 		this.subject = subject;
 		internal = new HashMap();
 		this.ignoreTAEs = ignoreTAEs;
+		this.limit = 0;
 		addAllToEmptyInternal(copy);
 	}
 
@@ -216,7 +264,73 @@ public class ResultSet implements Set<TermEntry>, Runnable{
 	// TODO relevences, metadata extra, check copy constructors
 
 	private void addInternal(TermEntry entry) {
-		internal.put(entry, entry);
+		++matched;
+		if(best == null)
+			internal.put(entry, entry);
+		else if(best.size() < limit)
+			best.add(entry);
+		else if(entry.rel > best.peek().rel) {
+			best.poll();
+			best.add(entry);
+		}
+	}
+
+	/**
+	 * Whether an entry whose relevance is at most the given bound would be
+	 * dropped because of the limit. If so, the caller can count it as a match
+	 * with {@link #skipInternal()} instead of building it.
+	 */
+	private boolean cannotKeep(float bound) {
+		return best != null && best.size() >= limit && bound <= best.peek().rel;
+	}
+
+	/**
+	 * Count a match which {@link #cannotKeep(float) cannot be kept}
+	 */
+	private void skipInternal() {
+		++matched;
+	}
+
+	/**
+	 * Whether a subresult may have been cut down to its most relevant entries,
+	 * either by its own limit or by a lookup of only the best {@link #limit}
+	 * entries of a term. Matches may then be missing from it, so only a lower
+	 * bound can be given for the number of matches.
+	 */
+	private boolean mayBeCut(Set<TermEntry> subresult) {
+		if(subresult == null)
+			return false;
+		if(subresult instanceof ResultSet) {
+			ResultSet rs = (ResultSet)subresult;
+			return !rs.isMatchCountExact() || rs.getMatchCount() > rs.size();
+		}
+		return limit > 0 && subresult.size() == limit;
+	}
+
+	/**
+	 * Returns the number of entries matched by the operation. If there is a
+	 * limit this may be more than {@link #size()}.
+	 * @see #isMatchCountExact()
+	 */
+	public int getMatchCount() {
+		return matched;
+	}
+
+	/**
+	 * Whether {@link #getMatchCount()} is exact. For a {@link
+	 * ResultOperation#PHRASE} with a limit, pages which could not be kept
+	 * are not checked for the phrase, so the count is only a lower bound. The
+	 * same goes for the results of subsearches which were cut down.
+	 */
+	public boolean isMatchCountExact() {
+		return matchedExact;
+	}
+
+	/**
+	 * Returns the maximum number of entries kept, or 0 if there is no limit.
+	 */
+	public int getLimit() {
+		return limit;
 	}
 
 	/**
@@ -227,6 +341,10 @@ public class ResultSet implements Set<TermEntry>, Runnable{
 	 */
 	private void addAllToEmptyInternal(Collection<? extends TermEntry> result) {
 		for (TermEntry termEntry : result) {
+			if(cannotKeep(termEntry.rel)) {
+				skipInternal();
+				continue;
+			}
 			TermEntry entry = convertEntry(termEntry);
 			addInternal(entry);
 		}
@@ -236,101 +354,165 @@ public class ResultSet implements Set<TermEntry>, Runnable{
 	 * Add all entries in the first collection but not in the second
 	 */
 	private void exclude(Collection<? extends TermEntry> add, Collection<? extends TermEntry> subtract) {
+		Postings sub = new Postings(subtract);
 		for (TermEntry termEntry : add){
-			if(getIgnoreSubject(termEntry, subtract)==null)
+			int t = termEntry.entryType().ordinal();
+			String k = Postings.targetOf(termEntry);
+			int i = sub.seek(0, t, k);
+			if(i == sub.size() || sub.compareAt(i, t, k) != 0)
 				addInternal(termEntry);
 		}
 	}
 
 	/**
-	 * Iterate over all the collections adding and merging all their entries
+	 * Merge all the collections, in order of their targets, merging all the
+	 * entries for each target into one
 	 * @param collections to be merged into this collection
 	 * TODO proper relevance calculating here, currently i think the relevance of the first one added will have less impact than the others, the other 3 types are more important i believe
 	 */
 	private void unite(Collection<? extends TermEntry>... collections) {
+		Postings[] lists = new Postings[collections.length];
+		int n = 0;
 		for(Collection<? extends TermEntry> c : collections)
 			if(c==null)
 				Logger.error(this, "the result was null");
 			else
-				for (TermEntry termEntry : c) {
-					TermEntry entry = convertEntry(termEntry);
-					if(contains(entry))
-						addInternal(mergeEntries(internal.get(entry), entry));
-					else
-						addInternal(entry);
+				lists[n++] = new Postings(c);
+		int[] pos = new int[n];
+		for(;;) {
+			// find the least target not yet added
+			int least = -1;
+			for (int i = 0; i < n; i++) {
+				if(pos[i] < lists[i].size() && (least < 0
+				  || lists[i].compareAt(pos[i], lists[least].types[pos[least]], lists[least].keys[pos[least]]) < 0))
+					least = i;
+			}
+			if(least < 0)
+				break;
+			int t = lists[least].types[pos[least]];
+			String k = lists[least].keys[pos[least]];
+			// combining never gives a higher relevance than the highest of the
+			// entries combined, so skip the merge if that cannot be kept
+			if(best != null) {
+				float bound = Float.NEGATIVE_INFINITY;
+				for (int i = 0; i < n; i++)
+					for (int j = pos[i]; j < lists[i].size() && lists[i].compareAt(j, t, k) == 0; j++)
+						bound = Math.max(bound, lists[i].entries[j].rel);
+				if(cannotKeep(bound)) {
+					for (int i = 0; i < n; i++)
+						while(pos[i] < lists[i].size() && lists[i].compareAt(pos[i], t, k) == 0)
+							pos[i]++;
+					skipInternal();
+					continue;
 				}
+			}
+			// merge the entries for it from every collection, in order
+			TermEntry entry = null;
+			for (int i = 0; i < n; i++) {
+				Postings p = lists[i];
+				while(pos[i] < p.size() && p.compareAt(pos[i], t, k) == 0) {
+					TermEntry termEntry = p.entries[pos[i]++];
+					entry = (entry == null)? convertEntry(termEntry): combine(entry, termEntry);
+				}
+			}
+			addInternal(entry);
+		}
 	}
 
 	/**
-	 * Iterate over the first collection adding those elements which exist in all the other collections
+	 * Add those entries of the first collection which exist in all the other
+	 * collections. The collections are walked in order of their targets,
+	 * starting from the smallest one.
 	 * @param collections a bunch of collections to intersect
 	 */
 	private void intersect(Collection<? extends TermEntry>... collections) {
-		Collection<? extends TermEntry> firstCollection = collections[0];
-		// Iterate over it
-		for (Iterator<? extends TermEntry> it = firstCollection.iterator(); it.hasNext();) {
-			TermEntry termEntry = it.next();
-			// if term entry is contained in all the other collections add it
-			float combinedrelevance = termEntry.rel;
-
-			int i;
-			for (i = 1; i < collections.length; i++) {
-				Collection<? extends TermEntry> collection = collections[i];
-				// See if collection contains termEntry
-
-				TermEntry termEntry2 = getIgnoreSubject(termEntry, collection);
-				if ( termEntry2 == null )
-					break;
-				else	// add to combined relevance
-					combinedrelevance += termEntry2.rel;
-			}
-			if (i==collections.length){
-				TermEntry newEntry = convertEntry(termEntry, combinedrelevance/collections.length);
-				addInternal(newEntry);
-			}
+		Postings[] lists = new Postings[collections.length];
+		for (int i = 0; i < collections.length; i++)
+			lists[i] = new Postings(collections[i]);
+		for (Postings.Intersection it = new Postings.Intersection(lists); it.next();) {
+			float combinedrelevance = 0;
+			for (int i = 0; i < lists.length; i++)
+				combinedrelevance += it.get(i).rel;
+			if(cannotKeep(combinedrelevance/collections.length))
+				skipInternal();
+			else
+				addInternal(convertEntry(it.get(0), combinedrelevance/collections.length));
 		}
 	}
 
 	/**
-	 * Iterate over the first collection, and the termpositions of each entry,
-	 * keeping those positions which are followed in the other collections. Keeps
-	 * those entries which have positions remaingin after this process
+	 * Walk the pages common to all the (non-stopword) collections, and the
+	 * termpositions of each page's entry in the first collection, keeping those
+	 * positions which are followed in the other collections. Keeps those
+	 * entries which have positions remaining after this process
 	 * @param collections
 	 */
 	private void phrase(Collection<? extends TermEntry>... collections) {
-		Collection<? extends TermEntry> firstCollection = collections[0];
-		// Iterate over it
-		for (TermEntry termEntry : firstCollection) {
-			if(!(termEntry instanceof TermPageEntry))
+		// collections which are not stopwords, and their offsets into the phrase
+		Postings[] lists = new Postings[collections.length];
+		int[] offsets = new int[collections.length];
+		int l = 0;
+		for (int i = 0; i < collections.length; i++) {
+			if(collections[i] == null)
+				continue;	// Treat stop words as blanks, dont check
+			lists[l] = new Postings(collections[i]);
+			offsets[l++] = i;
+		}
+		if(l == 0 || offsets[0] != 0)
+			return;
+		if(l != lists.length) {
+			Postings[] newLists = new Postings[l];
+			System.arraycopy(lists, 0, newLists, 0, l);
+			lists = newLists;
+		}
+
+		for (Postings.Intersection it = new Postings.Intersection(lists); it.next();) {
+			if(!(it.get(0) instanceof TermPageEntry))
 				continue;
 			// if term entry is followed in all the others, add it to this
-			TermPageEntry termPageEntry = (TermPageEntry)termEntry;
+			TermPageEntry termPageEntry = (TermPageEntry)it.get(0);
 			if(!termPageEntry.hasPositions())
 				continue;
-			Map<Integer, String> positions = new HashMap(termPageEntry.positionsMap());
-
-			int i;	// Iterate over the other collections, checking for following
-			for (i = 1; positions != null && i < collections.length && positions.size() > 0; i++) {
-				Collection<? extends TermEntry> collection = collections[i];
-				if(collection == null)
-					continue;	// Treat stop words as blanks, dont check
-				// See if collection follows termEntry
-				TermPageEntry termPageEntry1 = (TermPageEntry)getIgnoreSubject(termPageEntry, collection);
-				if(termPageEntry1==null || !termPageEntry1.hasPositions())	// If collection doesnt contain this termpageentry or has not positions, it does not follow
-					positions = null;
+			// the phrase keeps the relevance of the first word, so if that
+			// cannot be kept, don't bother checking the positions
+			if(cannotKeep(termPageEntry.rel)) {
+				matchedExact = false;
+				continue;
+			}
+			// indexes into termPageEntry's positions which are still followed
+			int[] positions = termPageEntry.positionsRaw();
+			int[] keep = new int[positions.length];
+			int n = 0;
+			for (int j = 0; j < keep.length; j++)
+				keep[n++] = j;
+
+			// Iterate over the other collections, checking for following
+			for (int i = 1; i < l && n > 0; i++) {
+				TermPageEntry termPageEntry1 = (TermPageEntry)it.get(i);
+				if(!termPageEntry1.hasPositions())	// If collection has no positions for this page, it does not follow
+					n = 0;
 				else{
-					for (Iterator<Integer> it = positions.keySet().iterator(); it.hasNext();) {
-						int posi = it.next();
-						if ( !termPageEntry1.hasPosition(posi+i))
-							it.remove();
-						else
-							Logger.minor(this, termPageEntry.page + "["+positions.keySet()+"] is followed by "+termPageEntry1.page+"["+termPageEntry1.positions()+"] +"+i);
+					int m = 0;
+					for (int j = 0; j < n; j++) {
+						if (termPageEntry1.hasPosition(positions[keep[j]]+offsets[i]))
+							keep[m++] = keep[j];
 					}
+					if(m > 0)
+						Logger.minor(this, termPageEntry.page + " has "+m+" positions followed by "+termPageEntry1.page+" +"+offsets[i]);
+					n = m;
 				}
 			}
 			// if this termentry has any positions remaining, add it
-			if(positions != null && positions.size() > 0)
-				addInternal(new TermPageEntry(subject, termPageEntry.rel, termPageEntry.page, termPageEntry.title, positions));
+			if(n > 0) {
+				int[] pos = new int[n];
+				String[] frags = termPageEntry.hasFragments() ? new String[n] : null;
+				for (int j = 0; j < n; j++) {
+					pos[j] = positions[keep[j]];
+					if(frags != null)
+						frags[j] = termPageEntry.fragment(keep[j]);
+				}
+				addInternal(new TermPageEntry(subject, termPageEntry.rel, termPageEntry.page, termPageEntry.title, pos, frags));
+			}
 		}
 	}
 
@@ -343,7 +525,7 @@ public class ResultSet implements Set<TermEntry>, Runnable{
 		if (termEntry instanceof TermTermEntry)
 			entry = new TermTermEntry(subject, rel, ((TermTermEntry)termEntry).term );
 		else if (termEntry instanceof TermPageEntry)
-			entry = new TermPageEntry(subject, rel, ((TermPageEntry)termEntry).page, ((TermPageEntry)termEntry).title, ((TermPageEntry)termEntry).positionsMap() );
+			entry = new TermPageEntry(subject, rel, (TermPageEntry)termEntry);
 		else if (termEntry instanceof TermIndexEntry)
 			entry = new TermIndexEntry(subject, rel, ((TermIndexEntry)termEntry).index );
 		else
@@ -373,7 +555,7 @@ public class ResultSet implements Set<TermEntry>, Runnable{
 		if(combination instanceof TermIndexEntry){
 			combination = new TermIndexEntry(subject, entries[0].rel, ((TermIndexEntry)combination).index);
 		} else if(combination instanceof TermPageEntry){
-			combination = new TermPageEntry(subject, entries[0].rel, ((TermPageEntry)combination).page, ((TermPageEntry)combination).title, ((TermPageEntry)combination).positionsMap());
+			combination = new TermPageEntry(subject, entries[0].rel, (TermPageEntry)combination);
 		} else if(combination instanceof TermTermEntry){
 			combination = new TermTermEntry(subject, entries[0].rel, ((TermTermEntry)combination).term);
 		} else
@@ -397,15 +579,7 @@ public class ResultSet implements Set<TermEntry>, Runnable{
 			TermPageEntry pageentry1 = (TermPageEntry)entry1;
 			TermPageEntry pageentry2 = (TermPageEntry)entry2;
 			// Merge positions
-			Map newPos = null;
-			if((!pageentry1.hasPositions()) && pageentry2.hasPositions())
-				newPos = new HashMap(pageentry2.positionsMap());
-			else if(pageentry1.hasPositions()){
-				newPos = new HashMap(pageentry1.positionsMap());
-				if(pageentry2.hasPositions())
-					newPos.putAll(pageentry2.positionsMap());
-			}
-			return new TermPageEntry(pageentry1.subj, newRel, pageentry1.page, (pageentry1.title!=null)?pageentry1.title:pageentry2.title, newPos);
+			return TermPageEntry.merge(pageentry1.subj, newRel, pageentry1, pageentry2);
 
 		} else if(entry1 instanceof TermIndexEntry){
 			TermIndexEntry castEntry = (TermIndexEntry) entry1;
@@ -454,22 +628,6 @@ public class ResultSet implements Set<TermEntry>, Runnable{
 		return sets;
 	}
 
-	/**
-	 * Gets a TermEntry from the collection which is equal to entry ignoring subject
-	 * @param entry
-	 * @param collection
-	 */
-	private TermEntry getIgnoreSubject(TermEntry entry, Collection<? extends TermEntry> collection){
-		TermEntry result = null;
-			for (TermEntry termEntry : collection) {
-				if (entry.equalsTarget(termEntry)){
-					result = termEntry;
-					break;
-				}
-			}
-		return result;
-	}
-
 	@Override public String toString(){
 		return internal.keySet().toString();
 	}
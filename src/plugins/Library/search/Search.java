@@ -7,17 +7,22 @@ import java.util.*;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 
+import plugins.Library.FilterableIndex;
+import plugins.Library.Index;
 import plugins.Library.Library;
+import plugins.Library.PrefixIndex;
+import plugins.Library.RankedIndex;
 import plugins.Library.index.TermEntry;
+import plugins.Library.index.TermPageEntry;
 import plugins.Library.search.ResultSet.ResultOperation;
 import plugins.Library.ui.ResultNodeGenerator;
+import plugins.Library.util.concurrent.ExecutionConfig;
 import plugins.Library.util.exec.AbstractExecution;
 import plugins.Library.util.exec.CompositeProgress;
 import plugins.Library.util.exec.Execution;
 import plugins.Library.util.exec.Progress;
 import plugins.Library.util.exec.ProgressParts;
 import plugins.Library.util.exec.TaskAbortException;
-import freenet.support.Executor;
 import freenet.support.HTMLNode;
 import freenet.support.Logger;
 
@@ -30,7 +35,6 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 				implements CompositeProgress, Execution<Set<TermEntry>> {
 
 	private static Library library;
-	private static Executor executor;
 
 	private ResultOperation resultOperation;
 
@@ -39,12 +43,29 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 	private String query;
 	private String indexURI;
 
-	/** Map of Searches by subject */
-	private static HashMap<String, Search> allsearches = new HashMap<String, Search>();
-	/** Map of Searches by hashCode */
-	private static HashMap<Integer,Search> searchhashes = new HashMap<Integer, Search>();
+	/**
+	 * Default number of results for a top-k search, see {@link #startSearch(String, String, int)}
+	 */
+	public static final int DEFAULT_RESULT_LIMIT = 100;
+
+	/**
+	 * Minimum number of characters before the * of a wildcard term, so a
+	 * wildcard can't expand to most of an index
+	 */
+	public static final int WILDCARD_MIN_PREFIX = 2;
+
+	/** Maximum number of results kept, or 0 for all of them */
+	private final int limit;
+
+	/** Searches by key and by hashCode, see {@link #getRegistry()} */
+	private static final SearchRegistry<Search> registry = new SearchRegistry<Search>();
 	private ResultSet resultset;
 
+	/** Rough number of bytes used by each entry of a result, not counting its positions and fragments */
+	private static final int ENTRY_BYTES = 0x80;
+	/** Rough number of bytes used by each result in the formatted results */
+	private static final int FORMATTED_ENTRY_BYTES = 0x400;
+
 	/**
 	 * Settings for producing result nodes, if true a HTMLNode of the results will be generated after the results are complete which can be accessed via getResultNode()
 	 */
@@ -65,14 +86,60 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 		Logger.registerClass(Search.class);
 	}
 
-	private synchronized static void storeSearch(Search search){
-		allsearches.put(search.getSubject(), search);
-		searchhashes.put(search.hashCode(), search);
+	/**
+	 * Registers a new search under the given key, unless another thread has
+	 * registered one first
+	 * @return the registered search, or the given one if it is null or not a
+	 * search for the key (eg. a subsearch standing in for the whole query)
+	 */
+	private static Search storeSearch(String key, Search search){
+		if(search == null || !key.equals(search.key()))
+			return search;
+		// hold the lock so that the search can't complete before it is registered
+		synchronized(search){
+			return registry.register(key, search.hashCode(), search, search.status == SearchStatus.Done ? search.retainedSize() : -1);
+		}
+	}
+
+	private static void removeSearch(Search search) {
+		registry.remove(search.hashCode());
+	}
+
+	/**
+	 * Returns the registry of live searches, eg. to configure how long
+	 * completed searches are kept
+	 */
+	static SearchRegistry<Search> getRegistry() {
+		return registry;
 	}
 
-	private static synchronized void removeSearch(Search search) {
-		allsearches.remove(search.subject);
-		searchhashes.remove(search.hashCode());
+	private String key() {
+		return makeString(query, indexURI, limit);
+	}
+
+	/**
+	 * Estimates the number of bytes held by this search once it has completed
+	 */
+	private long retainedSize() {
+		long bytes = 0;
+		if(resultset != null && resultset.isDone()) {
+			for (TermEntry entry : resultset) {
+				bytes += ENTRY_BYTES;
+				if(entry instanceof TermPageEntry) {
+					TermPageEntry pageEntry = (TermPageEntry)entry;
+					bytes += 4 * pageEntry.positionsSize();
+					if(pageEntry.hasFragments())
+						for (int i = 0; i < pageEntry.positionsSize(); i++) {
+							String frag = pageEntry.fragment(i);
+							if(frag != null)
+								bytes += 0x28 + 2 * frag.length();
+						}
+				}
+			}
+			if(pageEntryNode != null)
+				bytes += (long)FORMATTED_ENTRY_BYTES * resultset.size();
+		}
+		return bytes;
 	}
 
 	/**
@@ -85,23 +152,44 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 	 * @throws InvalidSearchException if any part of the search is invalid
 	 */
 	public static Search startSearch(String search, String indexuri) throws InvalidSearchException, TaskAbortException{
+		return startSearch(search, indexuri, 0);
+	}
+
+	/**
+	 * Creates a top-k search, which only keeps the given number of results
+	 * with the highest relevance. The subsearches it is made from are full
+	 * searches, so they can be shared with other searches; only the final
+	 * combination is limited, and the results are formatted in the same way.
+	 *
+	 * @param search string to be searched
+	 * @param indexuri URI of index(s) to be used
+	 * @param limit maximum number of results, or 0 for all of them
+	 * @return existing Search for this if it exists, new one otherwise or null if query is for a stopword or stop query
+	 * @throws InvalidSearchException if any part of the search is invalid
+	 * @see #startSearch(String, String)
+	 */
+	public static Search startSearch(String search, String indexuri, int limit) throws InvalidSearchException, TaskAbortException{
+		if(limit < 0)
+			throw new InvalidSearchException("Negative result limit: " + limit);
 		search = search.toLowerCase(Locale.US).trim();
 		if(search.length()==0)
 			throw new InvalidSearchException("Blank search");
 		search = fixCJK(search);
 
 		// See if the same search exists
-		if (hasSearch(search, indexuri))
-			return getSearch(search, indexuri);
+		String key = makeString(search, indexuri, limit);
+		Search existing = registry.get(key);
+		if (existing != null)
+			return existing;
 
-		if(logMINOR) Logger.minor(Search.class, "Starting new search for "+search+" in "+indexuri);
+		if(logMINOR) Logger.minor(Search.class, "Starting new search for "+search+" in "+indexuri+(limit > 0 ? ", best "+limit : ""));
 
 		String[] indices = indexuri.split("[ ;]");
 		if(indices.length<1 || search.trim().length()<1)
 			throw new InvalidSearchException("Attempt to start search with no index or terms");
 		else if(indices.length==1){
-			Search newSearch = splitQuery(search, indexuri);
-			return newSearch;
+			Search newSearch = splitQuery(search, indexuri, limit);
+			return storeSearch(key, newSearch);
 		}else{
 			// create search for multiple terms over multiple indices
 			ArrayList<Execution<Set<TermEntry>>> indexrequests = new ArrayList<Execution<Set<TermEntry>>>(indices.length);
@@ -114,8 +202,8 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 				} catch (TaskAbortException ignored) { // continue
 				}
 			}
-			Search newSearch = new Search(search, indexuri, indexrequests, ResultOperation.DIFFERENTINDEXES);
-			return newSearch;
+			Search newSearch = new Search(search, indexuri, indexrequests, ResultOperation.DIFFERENTINDEXES, limit);
+			return storeSearch(key, newSearch);
 		}
 	}
 
@@ -157,11 +245,13 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 	 * @param indexURI the index uri this search is made on, only for reference
 	 * @param requests subRequests of this search
 	 * @param resultOperation Which set operation to do on the results of the subrequests
+	 * @param limit maximum number of results to keep, or 0 for all of them
 	 * @throws InvalidSearchException if the search is invalid
 	 **/
-	private Search(String query, String indexURI, List<? extends Execution<Set<TermEntry>>> requests, ResultOperation resultOperation)
+	private Search(String query, String indexURI, List<? extends Execution<Set<TermEntry>>> requests, ResultOperation resultOperation, int limit)
 	throws InvalidSearchException{
 		super(makeString(query, indexURI));
+		this.limit = limit;
 		if(resultOperation==ResultOperation.SINGLE && requests.size()!=1)
 			throw new InvalidSearchException(requests.size() + " requests supplied with SINGLE operation");
 		if(resultOperation==ResultOperation.REMOVE && requests.size()!=2)
@@ -194,7 +284,6 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 			setError(ex);
 		}
 
-		storeSearch(this);
 		if(logMINOR) Logger.minor(this, "Created Search object for with subRequests :"+subsearches);
 	}
 
@@ -204,9 +293,11 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 	 * @param query the query this instance is being used for, only for reference
 	 * @param indexURI the index uri this search is made on, only for reference
 	 * @param request Request to encapsulate
+	 * @param limit maximum number of results to keep, or 0 for all of them
 	 */
-	private Search(String query, String indexURI, Execution<Set<TermEntry>> request){
+	private Search(String query, String indexURI, Execution<Set<TermEntry>> request, int limit){
 		super(makeString(query, indexURI));
+		this.limit = limit;
 		if(request == null)
 			throw new NullPointerException("Search cannot encapsulate null (query=\""+query+"\" indexURI=\""+indexURI+"\")");
 		query = query.toLowerCase(Locale.US).trim();
@@ -220,7 +311,6 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 		} catch (TaskAbortException ex) {
 			setError(ex);
 		}
-		storeSearch(this);
 	}
 
 
@@ -228,20 +318,31 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 	 * Splits query into multiple searches, will be used for advanced queries
 	 * @param query search query, can use various different search conventions
 	 * @param indexuri uri for one index
+	 * @param limit maximum number of results of the returned Search, or 0 for all of them
 	 * @return single Search encompassing everything in the query or null if query is a stop word
 	 * @throws InvalidSearchException if search query is invalid
 	 */
-	private static Search splitQuery(String query, String indexuri) throws InvalidSearchException, TaskAbortException{
+	private static Search splitQuery(String query, String indexuri, int limit) throws InvalidSearchException, TaskAbortException{
 		query = query.trim();
+		if(query.matches("\\A[\\S&&[^-\"*]]+\\*\\Z")){
+			// wildcard term, eg. freenet*
+			String prefix = query.substring(0, query.length()-1);
+			if(prefix.length() < WILDCARD_MIN_PREFIX)
+				throw new InvalidSearchException("Wildcard searches need at least "+WILDCARD_MIN_PREFIX+" characters before the *");
+			Index index = library.getIndex(indexuri);
+			if(!(index instanceof PrefixIndex))
+				throw new InvalidSearchException("Index "+indexuri+" does not support wildcard searches");
+			return new Search(query, indexuri, new PrefixLookup((PrefixIndex)index, prefix), limit);
+		}
 		if(query.matches("\\A[\\S&&[^-\"]]*\\Z")){
 			// single search term
 			// return null if stopword
 			if(SearchUtil.isStopWord(query))
 				return null;
-			Execution<Set<TermEntry>> request = library.getIndex(indexuri).getTermEntries(query);
+			Execution<Set<TermEntry>> request = lookupTerm(library.getIndex(indexuri), query, limit);
 			if (request == null)
 				throw new InvalidSearchException( "Something wrong with query=\""+query+"\" or indexURI=\""+indexuri+"\", maybe something is wrong with the index or it's uri is wrong." );
-			return new Search(query, indexuri, request );
+			return new Search(query, indexuri, request, limit);
 		}
 
 		// Make phrase search (hyphen-separated words are also treated as phrases)
@@ -249,6 +350,21 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 			ArrayList<Execution<Set<TermEntry>>> phrasesearches = new ArrayList<Execution<Set<TermEntry>>>();
 			String[] phrase = query.replaceAll("\"(.*)\"", "$1").split("[\\s-]+");
 			if(logMINOR) Logger.minor(Search.class, "Phrase split: "+query);
+			FilterableIndex planindex = getPlannableIndex(indexuri, Arrays.asList(phrase));
+			if (planindex != null) {
+				// stop words are blanks, as below
+				List<String> words = new ArrayList<String>();
+				for (String subquery : phrase)
+					words.add(SearchUtil.isStopWord(subquery)? null: subquery);
+				while(words.size() > 0 && words.get(0)==null)
+					words.remove(0);
+				while(words.size() > 0 && words.get(words.size()-1)==null)
+					words.remove(words.size()-1);
+				if(words.size()>1)
+					return new Search(query, indexuri, QueryPlanner.intersect(planindex, words), ResultOperation.PHRASE, limit);
+				else
+					return null;
+			}
 			for (String subquery : phrase){
 				Search term = startSearch(subquery, indexuri);
 				phrasesearches.add(term);
@@ -268,7 +384,7 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 				phrasesearches.remove(phrasesearches.size()-1);
 
 			if(phrasesearches.size()>1)
-				return new Search(query, indexuri, phrasesearches, ResultOperation.PHRASE);
+				return new Search(query, indexuri, phrasesearches, ResultOperation.PHRASE, limit);
 			else
 				return null;
 		}
@@ -330,18 +446,37 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 		if (formattedquery.contains("^^(")){
 			ArrayList<Execution<Set<TermEntry>>> complementsearches = new ArrayList<Execution<Set<TermEntry>>>();
 			String[] splitup = formattedquery.split("(\\^\\^\\(|\\))", 3);
+			FilterableIndex planindex = getPlannableIndex(indexuri, Arrays.asList(splitup[0]+splitup[2], splitup[1]));
+			if (planindex != null) {
+				if(SearchUtil.isStopWord(splitup[0]+splitup[2]) || SearchUtil.isStopWord(splitup[1]))
+					return null;
+				// only look up the term to remove for the pages it could be removed from
+				Execution<Set<TermEntry>> add = planindex.getTermEntries(splitup[0]+splitup[2]);
+				complementsearches.add(add);
+				complementsearches.add(QueryPlanner.filter(planindex, splitup[1], add));
+				return new Search(query, indexuri, complementsearches, ResultOperation.REMOVE, limit);
+			}
 			Search add = startSearch(splitup[0]+splitup[2], indexuri);
 			Search subtract = startSearch(splitup[1], indexuri);
 			if(add==null || subtract == null)
 				return null;	// If 'and' is not to be searched for 'the -john' is not to be searched for, also 'john -the' wouldnt have shown many results anyway
 			complementsearches.add(add);
 			complementsearches.add(subtract);
-			return new Search(query, indexuri, complementsearches, ResultOperation.REMOVE);
+			return new Search(query, indexuri, complementsearches, ResultOperation.REMOVE, limit);
 		}
 		// Split intersections
 		if (formattedquery.contains("&&")){
 			ArrayList<Search> intersectsearches = new ArrayList<Search>();
 			String[] intersects = formattedquery.split("&&");
+			FilterableIndex planindex = getPlannableIndex(indexuri, Arrays.asList(intersects));
+			if (planindex != null) {
+				List<String> terms = new ArrayList<String>();
+				for (String subquery : intersects)
+					if (!SearchUtil.isStopWord(subquery))
+						terms.add(subquery);
+				if (terms.size() > 1)
+					return new Search(query, indexuri, QueryPlanner.intersect(planindex, terms), ResultOperation.INTERSECTION, limit);
+			}
 			for (String subquery : intersects){
 				Search subsearch = startSearch(subquery, indexuri);
 				if (subsearch != null)		// We will assume that searching for 'the big apple' will near enough show the same results as 'big apple', so just ignore 'the' in interseaction
@@ -351,9 +486,9 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 				case 0:				// eg. 'the that'
 					return null;
 				case 1 :			// eg. 'cake that' will return a search for 'cake'
-					return intersectsearches.get(0);
+					return (limit == 0)? intersectsearches.get(0): new Search(query, indexuri, intersectsearches.get(0), limit);
 				default :
-					return new Search(query, indexuri, intersectsearches, ResultOperation.INTERSECTION);
+					return new Search(query, indexuri, intersectsearches, ResultOperation.INTERSECTION, limit);
 			}
 		}
 		// Split Unions
@@ -361,12 +496,15 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 			ArrayList<Execution<Set<TermEntry>>> unionsearches = new ArrayList<Execution<Set<TermEntry>>>();
 			String[] unions = formattedquery.split("\\|\\|");
 			for (String subquery : unions){
-				Search add = startSearch(subquery, indexuri);
+				// only the best entries of each subquery are needed for the
+				// best of the union, but the relevance of a page which is cut
+				// from some of them is only combined from the others
+				Search add = startSearch(subquery, indexuri, limit);
 				if (add == null)	// eg a search for 'the or cake' would be almost the same as a search for 'the' and so should be treated as such
 					return null;
 				unionsearches.add(add);
 			}
-			return new Search(query, indexuri, unionsearches, ResultOperation.UNION);
+			return new Search(query, indexuri, unionsearches, ResultOperation.UNION, limit);
 		}
 
 		Logger.error(Search.class, "No split made, "+formattedquery+query);
@@ -374,13 +512,39 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 	}
 
 
+	/**
+	 * Starts a lookup of a single term. If there is a limit and the index keeps
+	 * the entries of a term in order of relevance, only the best entries are
+	 * looked up.
+	 */
+	private static Execution<Set<TermEntry>> lookupTerm(Index index, String term, int limit){
+		if(limit > 0 && index instanceof RankedIndex)
+			return ((RankedIndex)index).getTermEntries(term, limit);
+		return index.getTermEntries(term);
+	}
+
+	/**
+	 * Returns the index to plan the term lookups of a query with, or null if
+	 * they can't be planned: the index must be able to filter its lookups,
+	 * and every subquery must be a single term or a stop word.
+	 *
+	 * @see QueryPlanner
+	 */
+	private static FilterableIndex getPlannableIndex(String indexuri, Collection<String> subqueries) throws InvalidSearchException, TaskAbortException{
+		for (String subquery : subqueries)
+			if (!QueryPlanner.isPlainTerm(subquery) && !(subquery.length() > 0 && SearchUtil.isStopWord(subquery)))
+				return null;
+		Index index = library.getIndex(indexuri);
+		return (index instanceof FilterableIndex)? (FilterableIndex)index: null;
+	}
+
+
 	/**
 	 * Sets the parent plugin to be used for logging & plugin api
 	 */
-	public static void setup(Library library, Executor executor){
+	public static void setup(Library library){
 		Search.library = library;
-		Search.executor = executor;
-		Search.allsearches = new HashMap<String, Search>();
+		registry.clear();
 	}
 
 	/**
@@ -389,15 +553,26 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 	 * @param indexuri
 	 * @return Search or null if not found
 	 */
-	public synchronized static Search getSearch(String search, String indexuri){
+	public static Search getSearch(String search, String indexuri){
+		return getSearch(search, indexuri, 0);
+	}
+
+	/**
+	 * Gets a top-k Search from the Map
+	 * @param search
+	 * @param indexuri
+	 * @param limit maximum number of results, or 0 for a full search
+	 * @return Search or null if not found
+	 */
+	public static Search getSearch(String search, String indexuri, int limit){
 		if(search==null || indexuri==null)
 			return null;
 		search = search.toLowerCase(Locale.US).trim();
 
-		return allsearches.get(makeString(search, indexuri));
+		return registry.get(makeString(search, indexuri, limit));
 	}
-	public synchronized static Search getSearch(int searchHash){
-		return searchhashes.get(searchHash);
+	public static Search getSearch(int searchHash){
+		return registry.get(searchHash);
 	}
 
 	/**
@@ -407,18 +582,22 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 	 * @return true if it's found
 	 */
 	public static boolean hasSearch(String search, String indexuri){
+		return hasSearch(search, indexuri, 0);
+	}
+
+	public static boolean hasSearch(String search, String indexuri, int limit){
 		if(search==null || indexuri==null)
 			return false;
 		search = search.toLowerCase(Locale.US).trim();
-		return allsearches.containsKey(makeString(search, indexuri));
+		return registry.contains(makeString(search, indexuri, limit));
 	}
 
 	public static boolean hasSearch(int searchHash){
-		return searchhashes.containsKey(searchHash);
+		return registry.contains(searchHash);
 	}
 
-	public static synchronized Map<String, Search> getAllSearches(){
-		return Collections.unmodifiableMap(allsearches);
+	public static Map<String, Search> getAllSearches(){
+		return registry.snapshot();
 	}
 
 	public String getQuery(){
@@ -429,6 +608,13 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 		return indexURI;
 	}
 
+	/**
+	 * @return the maximum number of results kept, or 0 if they are all kept
+	 */
+	public int getLimit(){
+		return limit;
+	}
+
 	/**
 	 * Creates a string which uniquly identifies this Search object for comparison
 	 * and lookup, wont make false positives but can make false negatives as search and indexuri aren't standardised
@@ -440,6 +626,14 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 		return search + "@" + indexuri;
 	}
 
+	/**
+	 * Like {@link #makeString(String, String)}, but distinguishes top-k
+	 * searches from full searches, which are used as subsearches
+	 */
+	private static String makeString(String search, String indexuri, int limit){
+		return (limit == 0)? makeString(search, indexuri): makeString(search, indexuri) + "#" + limit;
+	}
+
 	/**
 	 * A descriptive string for logging
 	 */
@@ -509,11 +703,8 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 				if(!isSubRequestsComplete())	// If combining first and subsearches still haven't completed, remain
 					return;
 				// If subrequests have completed start process to combine results
-				resultset = new ResultSet(subject, resultOperation, subsearches, innerCanFailAndStillComplete());
-				if(executor!=null)
-					executor.execute(resultset, "Library.Search : combining results");
-				else
-					(new Thread(resultset, "Library.Search : combining results")).start();
+				resultset = new ResultSet(subject, resultOperation, subsearches, innerCanFailAndStillComplete(), limit);
+				ExecutionConfig.get(ExecutionConfig.Role.SEARCH).execute(resultset);
 				status = SearchStatus.Combining_Last;
 			case Combining_Last :	// for when this is combining
 				if(!resultset.isDone())
@@ -522,11 +713,8 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 				// If finished Combining and asked to generate resultnode, start that process
 				if(formatResult){
 					// resultset doesn't exist but subrequests are complete so we can start up a resultset
-					resultNodeGenerator = new ResultNodeGenerator(resultset, htmlgroupusk, htmlshowold, htmljs);
-					if(executor!=null)
-						executor.execute(resultNodeGenerator, "Library.Search : formatting results");
-					else
-						(new Thread(resultNodeGenerator, "Library.Search : formatting results")).start();
+					resultNodeGenerator = new ResultNodeGenerator(resultset, htmlgroupusk, htmlshowold, htmljs, limit);
+					ExecutionConfig.get(ExecutionConfig.Role.RENDER).execute(resultNodeGenerator);
 					status = SearchStatus.Formatting;	// status -> Formatting
 				}else			// If not asked to format output, status -> done
 					status = SearchStatus.Done;
@@ -540,6 +728,7 @@ public class Search extends AbstractExecution<Set<TermEntry>>
 					resultNodeGenerator = null;
 				}
 				status = SearchStatus.Done;
+				registry.completed(hashCode(), retainedSize());
 			case Done :
 				// Done , do nothing
 		}
@@ -0,0 +1,296 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.search;
+
+import freenet.support.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Registry of live searches, by key (query and index) and by id (the number
+ * the web interface uses to refer to a search). Lookups do not take any
+ * global lock, so pages polling for the progress of their search do not
+ * contend with each other.
+ * <br /> <br />
+ * Searches still in progress are kept until removed, so identical queries
+ * share them. Completed searches are kept for a while so their results can
+ * be fetched, but they hold on to their results, so they are expired:
+ * <ul>
+ * <li>when they have not been looked up for {@link #getTTL() a while}</li>
+ * <li>least recently used first, when the estimated memory held by all the
+ * completed searches is over {@link #getCapacity() a limit}</li>
+ * </ul>
+ *
+ * @param <S> Type of search
+ */
+class SearchRegistry<S> {
+
+	/**
+	 * A search and its accounting.
+	 */
+	final private static class Record<S> {
+		final S search;
+		final String key;
+		final int id;
+		volatile long accessed;
+		/** Estimated bytes held by the completed search, or -1 if still in progress */
+		long bytes = -1;
+
+		Record(S search, String key, int id, long now) {
+			this.search = search;
+			this.key = key;
+			this.id = id;
+			accessed = now;
+		}
+	}
+
+	final private ConcurrentMap<String, Record<S>> bykey = new ConcurrentHashMap<String, Record<S>>();
+	final private ConcurrentMap<Integer, Record<S>> byid = new ConcurrentHashMap<Integer, Record<S>>();
+
+	/** Estimated bytes held by all the completed searches */
+	final private AtomicLong retained = new AtomicLong();
+	/** Number of searches expired so far */
+	final private AtomicLong expired = new AtomicLong();
+
+	/** Only one thread expires searches at once; others don't wait for it */
+	final private ReentrantLock expiring = new ReentrantLock();
+	private volatile long lastSweep;
+
+	private volatile long ttl = TimeUnit.MINUTES.toMillis(10);
+	private volatile long capacity = 0x2000000;
+
+	/**
+	 * Minimum time between sweeps for searches which have timed out, in
+	 * milliseconds. Going over the capacity always causes a sweep.
+	 */
+	final static long SWEEP_INTERVAL = 10000;
+
+	/**
+	 * Returns the current time in milliseconds. Overridden by tests.
+	 */
+	protected long now() {
+		return System.currentTimeMillis();
+	}
+
+	/**
+	 * Registers a search, unless one is already registered under the same
+	 * key.
+	 *
+	 * @param key Key of the search, eg. its query and index
+	 * @param id Id of the search
+	 * @param search The search
+	 * @param bytes Estimated bytes held by the search if it has already
+	 *        completed, or -1 if it is still in progress
+	 * @return The search registered under the key; this is not the given one
+	 *         if another thread registered one first
+	 */
+	public S register(String key, int id, S search, long bytes) {
+		Record<S> rec = new Record<S>(search, key, id, now());
+		Record<S> old = bykey.putIfAbsent(key, rec);
+		if (old != null) {
+			old.accessed = rec.accessed;
+			return old.search;
+		}
+		byid.put(id, rec);
+		if (bytes >= 0) { completed(rec, bytes); }
+		return search;
+	}
+
+	/**
+	 * Records that a registered search has completed, and now holds about
+	 * the given number of bytes. This may expire other searches.
+	 */
+	public void completed(int id, long bytes) {
+		Record<S> rec = byid.get(id);
+		if (rec != null) { completed(rec, bytes); }
+	}
+
+	private void completed(Record<S> rec, long bytes) {
+		synchronized (rec) {
+			if (rec.bytes >= 0) { return; }
+			rec.bytes = bytes;
+		}
+		retained.addAndGet(bytes);
+		expire(false);
+	}
+
+	/**
+	 * Gets the search registered under the given key, or null.
+	 */
+	public S get(String key) {
+		return touch(bykey.get(key));
+	}
+
+	/**
+	 * Gets the search with the given id, or null.
+	 */
+	public S get(int id) {
+		return touch(byid.get(id));
+	}
+
+	private S touch(Record<S> rec) {
+		if (rec == null) { return null; }
+		rec.accessed = now();
+		expire(false);
+		return rec.search;
+	}
+
+	/**
+	 * Whether a search is registered under the given key. Unlike {@link
+	 * #get(String)}, this does not count as a use of the search, so pages
+	 * which only check for their search do not keep it from expiring.
+	 */
+	public boolean contains(String key) {
+		expire(false);
+		return bykey.containsKey(key);
+	}
+
+	/**
+	 * Whether a search is registered with the given id; see {@link
+	 * #contains(String)}.
+	 */
+	public boolean contains(int id) {
+		expire(false);
+		return byid.containsKey(id);
+	}
+
+	/**
+	 * Removes the search with the given id, if it is still registered.
+	 */
+	public void remove(int id) {
+		Record<S> rec = byid.remove(id);
+		if (rec == null) { return; }
+		bykey.remove(rec.key, rec);
+		synchronized (rec) {
+			if (rec.bytes > 0) { retained.addAndGet(-rec.bytes); }
+			rec.bytes = 0;
+		}
+	}
+
+	/**
+	 * Removes all the searches.
+	 */
+	public void clear() {
+		for (Integer id: byid.keySet()) { remove(id); }
+	}
+
+	/**
+	 * Expires completed searches which have not been used for longer than
+	 * the {@link #getTTL() TTL}, and then the least recently used ones while
+	 * over the {@link #getCapacity() capacity}. If another thread is already
+	 * doing this, returns straight away.
+	 *
+	 * @param force Whether to sweep for timed out searches even if the last
+	 *        sweep was recent
+	 */
+	public void expire(boolean force) {
+		long now = now();
+		if (!force && now - lastSweep < SWEEP_INTERVAL && retained.get() <= capacity) { return; }
+		if (!expiring.tryLock()) { return; }
+		try {
+			lastSweep = now;
+			List<Record<S>> done = new ArrayList<Record<S>>();
+			for (Record<S> rec: byid.values()) {
+				synchronized (rec) {
+					if (rec.bytes < 0) { continue; }
+				}
+				if (now - rec.accessed > ttl) {
+					expire(rec, "timed out");
+				} else {
+					done.add(rec);
+				}
+			}
+			if (retained.get() <= capacity) { return; }
+			Collections.sort(done, new Comparator<Record<S>>() {
+				/*@Override**/ public int compare(Record<S> a, Record<S> b) {
+					return (a.accessed < b.accessed)? -1: (a.accessed > b.accessed)? 1: 0;
+				}
+			});
+			for (Record<S> rec: done) {
+				if (retained.get() <= capacity) { break; }
+				expire(rec, "over capacity");
+			}
+		} finally {
+			expiring.unlock();
+		}
+	}
+
+	private void expire(Record<S> rec, String why) {
+		Logger.minor(this, "Expiring search " + rec.key + " (" + rec.bytes + " bytes): " + why);
+		remove(rec.id);
+		expired.incrementAndGet();
+	}
+
+	/**
+	 * Returns a snapshot of the registered searches, by key.
+	 */
+	public Map<String, S> snapshot() {
+		Map<String, S> m = new HashMap<String, S>();
+		for (Record<S> rec: bykey.values()) { m.put(rec.key, rec.search); }
+		return Collections.unmodifiableMap(m);
+	}
+
+	/**
+	 * Number of registered searches.
+	 */
+	public int size() {
+		return byid.size();
+	}
+
+	/**
+	 * Estimated bytes held by the completed searches.
+	 */
+	public long getRetained() {
+		return retained.get();
+	}
+
+	/**
+	 * Number of searches expired so far.
+	 */
+	public long getExpired() {
+		return expired.get();
+	}
+
+	/**
+	 * Time after which an unused completed search is expired, in milliseconds.
+	 */
+	public long getTTL() {
+		return ttl;
+	}
+
+	public void setTTL(long ms) {
+		if (ms < 0) { throw new IllegalArgumentException("Negative TTL: " + ms); }
+		ttl = ms;
+		expire(true);
+	}
+
+	/**
+	 * Estimated bytes which completed searches may hold altogether.
+	 */
+	public long getCapacity() {
+		return capacity;
+	}
+
+	public void setCapacity(long bytes) {
+		if (bytes < 0) { throw new IllegalArgumentException("Negative capacity: " + bytes); }
+		capacity = bytes;
+		expire(true);
+	}
+
+	@Override public String toString() {
+		return "SearchRegistry[" + size() + " searches, " + retained + "/" + capacity + " bytes retained, "
+		  + expired + " expired]";
+	}
+
+}
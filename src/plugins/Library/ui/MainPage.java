@@ -68,6 +68,8 @@ class MainPage {
 	private ArrayList<String> selectedOtherIndexes = new ArrayList<String>();
 	/** Any other indexes which are not bookmarks seperated by spaces */
 	private boolean groupusk = false;
+	/** Whether to show all the results, rather than the most relevant ones */
+	private boolean showall = false;
 	private StringBuilder messages = new StringBuilder();
 
 	private String addindexname = "";
@@ -135,6 +137,7 @@ class MainPage {
 		page.js = request.isPartSet("js");
 		page.showold = request.isPartSet("showold");
 		page.groupusk = request.isPartSet("groupusk");
+		page.showall = request.isPartSet("showall");
 		String[] etcIndexes = request.getPartAsStringFailsafe("indexuris", 256).trim().split("[ ;]");
 		page.query = request.getPartAsStringFailsafe("search", 256);
 
@@ -189,7 +192,7 @@ class MainPage {
 				try {
 					if(logMINOR)
 						Logger.minor(MainPage.class, "starting search for "+page.query+" on "+page.indexstring);
-					page.search = Search.startSearch(page.query, page.indexstring);
+					page.search = Search.startSearch(page.query, page.indexstring, page.showall ? 0 : Search.DEFAULT_RESULT_LIMIT);
 					if(page.search == null)
 						page.messages.append("Stopwords too prominent in search term, try removing words like 'the', 'and' and 'that' and any words less than 3 characters");
 					else{
@@ -289,7 +292,7 @@ class MainPage {
 					}else
 						try {
 							//Logger.normal(this, "Blocking to generate resultnode.");
-							ResultNodeGenerator nodegenerator = new ResultNodeGenerator(search.getResult(), groupusk, showold, true); // js is being switch on always currently due to detection being off
+							ResultNodeGenerator nodegenerator = new ResultNodeGenerator(search.getResult(), groupusk, showold, true, search.getLimit()); // js is being switch on always currently due to detection being off
 							nodegenerator.run();
 							contentNode.addChild(nodegenerator.getPageEntryNode());
 						} catch (TaskAbortException ex) {
@@ -380,6 +383,8 @@ class MainPage {
 							.addChild("input", new String[]{"name", "type", groupusk?"checked":"size", "title"}, new String[]{"groupusk", "checkbox", "1", "If set, the results are returned grouped by site and edition, this makes the results quicker to scan through but will disrupt ordering on relevance, if applicable to the indexs you are using."}, "Group sites and editions");
 						optionsList.addChild("li")
 							.addChild("input", new String[]{"name", "type", showold?"checked":"size", "title"}, new String[]{"showold", "checkbox", "1", "If set, older editions are shown in the results greyed out, otherwise only the most recent are shown."}, "Show older editions");
+						optionsList.addChild("li")
+							.addChild("input", new String[]{"name", "type", showall?"checked":"size", "title"}, new String[]{"showall", "checkbox", "1", "If set, all the results are shown, otherwise only the "+Search.DEFAULT_RESULT_LIMIT+" most relevant. Showing all the results of a common word on a large index can be slow."}, "Show all results");
 
 					HTMLNode newIndexInput = optionsBox.addChild("div", new String[]{"class", "style"}, new String[]{"index", "display: inline-table;"}, "Add an index:");
 						newIndexInput.addChild("br");
@@ -7,13 +7,20 @@ import plugins.Library.index.TermEntry;
 import plugins.Library.index.TermIndexEntry;
 import plugins.Library.index.TermPageEntry;
 import plugins.Library.index.TermTermEntry;
+import plugins.Library.search.ResultSet;
 
 import freenet.keys.FreenetURI;
 import freenet.support.HTMLNode;
 import freenet.support.Logger;
 
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.SortedSet;
@@ -22,6 +29,10 @@ import java.util.TreeSet;
 
 /**
  * Class for parsing and formatting search results, once isDone() return true, the nodes are ready to use
+ * <br /> <br />
+ * If a limit is given, only that many pages with the highest relevance are
+ * formatted, so the time and memory used depend on the limit rather than on
+ * the number of results.
  *
  * @author MikeB
  */
@@ -37,6 +48,23 @@ public class ResultNodeGenerator implements Runnable {
 	private boolean done;
 	private HTMLNode pageEntryNode;
 	private RuntimeException exception;
+	/** Maximum number of pages to format, or 0 for all of them */
+	private final int limit;
+	/** Number of pages matched, including those not formatted because of the limit */
+	private int matches;
+	private boolean matchesExact = true;
+	/** The newest edition of each site, when there is a limit */
+	private Map<String, Long> newestEditions;
+
+	/**
+	 * Orders entries by increasing relevance, so the head of a bounded queue
+	 * is the first to be dropped
+	 */
+	final private static Comparator<TermEntry> LEAST_RELEVANT_FIRST = new Comparator<TermEntry>() {
+		/*@Override**/ public int compare(TermEntry a, TermEntry b) {
+			return Float.compare(a.rel, b.rel);
+		}
+	};
 
 
 	/**
@@ -47,10 +75,22 @@ public class ResultNodeGenerator implements Runnable {
 	 * @param js whether
 	 */
 	public ResultNodeGenerator(Set<TermEntry> result, boolean groupusk, boolean showold, boolean js){
+		this(result, groupusk, showold, js, 0);
+	}
+
+	/**
+	 * Create a generator which only formats the most relevant pages
+	 * @param limit maximum number of pages to format, or 0 for all of them
+	 * @see #ResultNodeGenerator(Set, boolean, boolean, boolean)
+	 */
+	public ResultNodeGenerator(Set<TermEntry> result, boolean groupusk, boolean showold, boolean js, int limit){
+		if(limit < 0)
+			throw new IllegalArgumentException("Negative limit: " + limit);
 		this.result = result;
 		this.groupusk = groupusk;
 		this.showold = showold;
 		this.js = js;
+		this.limit = limit;
 	}
 
 
@@ -99,7 +139,7 @@ public class ResultNodeGenerator implements Runnable {
 		relatedTerms = new TreeSet(RelevanceComparator.comparator);
 		relatedIndexes = new TreeSet(RelevanceComparator.comparator);
 
-		Iterator<TermEntry> it = result.iterator();
+		Iterator<TermEntry> it = (limit > 0)? selectBest().iterator(): result.iterator();
 		while(it.hasNext()){
 			TermEntry o = (TermEntry)it.next();
 			if(o instanceof TermPageEntry){
@@ -117,7 +157,7 @@ public class ResultNodeGenerator implements Runnable {
 					uskEdition = uri.getEdition();
 				}
 				// Get the site base name, key + documentname - uskversion
-				sitebase = uri.setMetaString(null).setSuggestedEdition(0).toString().replaceFirst("/0", "");
+				sitebase = siteBase(uri);
 				Logger.minor(this, sitebase);
 
 				// Add site
@@ -141,12 +181,15 @@ public class ResultNodeGenerator implements Runnable {
 				TermPageGroupEntry groupentry = it2.next();
 				SortedMap<Long, SortedSet<TermPageEntry>> editions = groupentry.getEditions();	// The editions of each site
 				SortedSet<TermPageEntry> newest = editions.get(editions.lastKey());				// get the newest edition
-				for (Iterator<SortedSet<TermPageEntry>> editionIterator = groupentry.getEditions().values().iterator(); editionIterator.hasNext();) {
-					SortedSet<TermPageEntry> edition = editionIterator.next();					// Iterate through all the editions
-					if(!showold && edition != newest)			// If not showing old, skip all but newest
+				Long newestKey = (newestEditions == null)? null: newestEditions.get(groupentry.subj);	// or the newest of all the results, if only some are here
+				for (Iterator<Entry<Long, SortedSet<TermPageEntry>>> editionIterator = groupentry.getEditions().entrySet().iterator(); editionIterator.hasNext();) {
+					Entry<Long, SortedSet<TermPageEntry>> en = editionIterator.next();					// Iterate through all the editions
+					SortedSet<TermPageEntry> edition = en.getValue();
+					boolean isNewest = (newestKey == null)? edition == newest: newestKey.equals(en.getKey());
+					if(!showold && !isNewest)			// If not showing old, skip all but newest
 						continue;
 					for (TermPageEntry termPageEntry : edition) {
-						pageset.put(termPageEntry, edition==newest);	// Add pages, marking whether they are from the newest edition
+						pageset.put(termPageEntry, isNewest);	// Add pages, marking whether they are from the newest edition
 					}
 				}
 			}
@@ -154,6 +197,74 @@ public class ResultNodeGenerator implements Runnable {
 		}
     }
 
+	/**
+	 * Returns the site base name of a page, ie. its key and document name
+	 * without the USK edition
+	 */
+	private static String siteBase(FreenetURI uri){
+		return uri.setMetaString(null).setSuggestedEdition(0).toString().replaceFirst("/0", "");
+	}
+
+	/**
+	 * Returns the USK edition of a page, or {@link Long#MIN_VALUE} if it is not
+	 * part of a USK
+	 */
+	private static long edition(FreenetURI uri){
+		return uri.isSSKForUSK()? uri.uskForSSK().getEdition(): Long.MIN_VALUE;
+	}
+
+	/**
+	 * Select the {@link #limit} most relevant pages from the result, along
+	 * with any entries which are not pages. If old editions are not being
+	 * shown, only pages from the newest edition of each site are counted, so
+	 * that hiding them later does not leave fewer pages than the limit.
+	 */
+	private List<TermEntry> selectBest(){
+		// first pass : find the newest edition of each site
+		newestEditions = new HashMap<String, Long>();
+		for (TermEntry o : result) {
+			if(!(o instanceof TermPageEntry))
+				continue;
+			FreenetURI uri = ((TermPageEntry)o).page;
+			String sitebase = siteBase(uri.isSSKForUSK()? uri.uskForSSK(): uri);
+			long uskEdition = edition(uri);
+			Long newest = newestEditions.get(sitebase);
+			if(newest == null || newest < uskEdition)
+				newestEditions.put(sitebase, uskEdition);
+		}
+
+		// second pass : keep the best pages in a bounded queue
+		List<TermEntry> selected = new ArrayList<TermEntry>();
+		PriorityQueue<TermEntry> best = new PriorityQueue<TermEntry>(Math.min(limit, 0x400), LEAST_RELEVANT_FIRST);
+		for (TermEntry o : result) {
+			if(!(o instanceof TermPageEntry)) {
+				selected.add(o);
+				continue;
+			}
+			FreenetURI uri = ((TermPageEntry)o).page;
+			if(!showold && newestEditions.get(siteBase(uri.isSSKForUSK()? uri.uskForSSK(): uri)) != edition(uri))
+				continue;
+			++matches;
+			if(best.size() < limit)
+				best.add(o);
+			else if(o.rel > best.peek().rel) {
+				best.poll();
+				best.add(o);
+			}
+		}
+		selected.addAll(best);
+
+		// the result may already have been cut down to the best pages
+		if(result instanceof ResultSet) {
+			ResultSet rs = (ResultSet)result;
+			if(rs.getMatchCount() > result.size() || !rs.isMatchCountExact()) {
+				matches = Math.max(matches, rs.getMatchCount());
+				matchesExact = rs.isMatchCountExact();
+			}
+		}
+		return selected;
+	}
+
 	private HTMLNode generateIndexEntryNode(){
 		return new HTMLNode("#", "TermIndexEntry code not done yet");
 	}
@@ -231,7 +342,10 @@ public class ResultNodeGenerator implements Runnable {
 				results++;
 			}
 		}
-		pageEntryNode.addChild("p").addChild("span", "class", "librarian-summary-found", "Found "+results+" results");
+		if(matches > results || !matchesExact)
+			pageEntryNode.addChild("p").addChild("span", "class", "librarian-summary-found", "Found "+(matchesExact?"":"at least ")+matches+" results, showing the best "+results);
+		else
+			pageEntryNode.addChild("p").addChild("span", "class", "librarian-summary-found", "Found "+results+" results");
 	}
 
 	/**
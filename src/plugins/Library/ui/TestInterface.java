@@ -26,7 +26,7 @@ public class TestInterface{
 			String line;
 			String index = "../../Freenet/myindex8";
 			Library library = Library.init(null);
-			Search.setup(library, null);
+			Search.setup(library);
 
 			do{
 				line = br.readLine();
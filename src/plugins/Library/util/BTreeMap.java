@@ -713,7 +713,7 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 			assert(child == rnodes.get(lk));
 
 			for (K k: keys) {
-				child.entries.put(k, entries.remove(k));
+				swapKey(k, this, child);
 			}
 
 			while (it.hasNext()) {
@@ -1018,8 +1018,8 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 	** eg. we can proceed even when the values have not been loaded (such as
 	** in a {@link SkeletonBTreeMap}).
 	**
-	** FIXME HIGH do this for everything in the class. ATM only Node.split()
-	** uses it.
+	** This is used by {@link Node#split(Object, Iterable, Object)} and by
+	** the merge and rotate operations of {@link #remove(Object)}.
 	*/
 	protected void swapKey(K key, Node src, Node dst) {
 		V val = src.entries.remove(key);
@@ -1148,7 +1148,7 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 			// references to rnodes and lnodes removed (since they are null)
 			rnode.entries.putAll(lnode.entries);
 
-			rnode.entries.put(mkey, parent.entries.remove(mkey));
+			swapKey(mkey, parent, rnode);
 			rnode.lkey = lnode.lkey;
 
 			parent.rnodes.remove(mkey);
@@ -1160,7 +1160,7 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 			rnode.lnodes.putAll(lnode.lnodes);
 			rnode.rnodes.putAll(lnode.rnodes);
 
-			rnode.entries.put(mkey, parent.entries.remove(mkey));
+			swapKey(mkey, parent, rnode);
 			rnode.lnodes.put(mkey, lnode.lnodes.get(mkey));
 			rnode.rnodes.put(lnode.lkey, lnode.rnodes.get(lnode.lkey));
 			rnode.lkey = lnode.lkey;
@@ -1216,8 +1216,8 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 		K mkey = rnode.lkey;
 		K skey = rnode.entries.firstKey();
 
-		lnode.entries.put(mkey, parent.entries.remove(mkey));
-		parent.entries.put(skey, rnode.entries.remove(skey));
+		swapKey(mkey, parent, lnode);
+		swapKey(skey, rnode, parent);
 		parent.rnodes.put(skey, parent.rnodes.remove(mkey));
 		parent.lnodes.put(skey, parent.lnodes.remove(mkey));
 
@@ -1267,8 +1267,8 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 		K mkey = lnode.rkey;
 		K skey = lnode.entries.lastKey();
 
-		rnode.entries.put(mkey, parent.entries.remove(mkey));
-		parent.entries.put(skey, lnode.entries.remove(skey));
+		swapKey(mkey, parent, rnode);
+		swapKey(skey, lnode, parent);
 		parent.lnodes.put(skey, parent.lnodes.remove(mkey));
 		parent.rnodes.put(skey, parent.rnodes.remove(mkey));
 
@@ -1574,8 +1574,9 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 		Node node = root, parent = null;
 
 		for (;;) {
-			node._size = -1; // pre-emptively invalidate node size cache
-
+			// nodeSize() is called before the size cache is invalidated, so that
+			// a subclass whose nodes might not be loaded yet (and which throws
+			// from nodeSize()) can retry the operation without losing the cache
 			if (node != root && node.nodeSize() == ENT_MIN) {
 				Node lnode = parent.nodeL(node), rnode = parent.nodeR(node);
 				int L = (lnode == null)? -1: lnode.nodeSize();
@@ -1599,6 +1600,7 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 				node = parent.selectNode(key);
 				assert(node != null);
 			}
+			node._size = -1; // pre-emptively invalidate node size cache
 			assert(node == root || node.nodeSize() >= ENT_MIN);
 
 			if (node.isLeaf()) { // leaf node
@@ -1659,6 +1661,7 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 		} else if (t == this || isEmpty() && t instanceof SortedMap) {
 			SortedMap<K, V> map = (SortedMap<K, V>)t, nextmap;
 			Map<K, Node> lnodes = null, nextlnodes;
+			int total = map.size();
 
 			if (!(comparator == null && map.comparator() == null || comparator.equals(map.comparator()))) {
 				super.putAll(map);
@@ -1687,7 +1690,7 @@ implements Map<K, V>, SortedMap<K, V>/*, NavigableMap<K, V>, Cloneable, Serializ
 
 			assert(lnodes.size() == 1);
 			root = lnodes.get(null);
-			size = map.size();
+			size = total;
 
 		} else {
 			super.putAll(t);
@@ -0,0 +1,1275 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.util;
+
+import plugins.Library.io.serial.Serialiser.*;
+import plugins.Library.io.serial.IterableSerialiser;
+import plugins.Library.io.serial.MapSerialiser;
+import plugins.Library.io.serial.Translator;
+import plugins.Library.io.DataFormatException;
+import plugins.Library.util.concurrent.ExceptionConvertor;
+import plugins.Library.util.concurrent.ObjectProcessor;
+import plugins.Library.util.exec.TaskAbortException;
+import plugins.Library.util.func.Closure;
+import plugins.Library.util.func.Tuples.X2;
+import plugins.Library.util.func.Tuples.X3;
+import static plugins.Library.util.Maps.$K;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+** {@link Skeleton} of a B+-tree. The entries are held only in the ''leaves'',
+** each of which is a {@link SkeletonTreeMap} of at most {@link #LEAF_MAX}
+** entries that is serialised as a single block. The leaves are found through
+** the ''index'', a {@link SkeletonBTreeMap} from the ''separator'' of each
+** leaf to the leaf. The nodes of the index hold only separators, and the
+** metadata of the leaves, so each node covers many more entries than a node
+** of a {@link SkeletonBTreeMap} of the same size, and the tree is shallower.
+**
+** The separator of a leaf is no greater than any key in it, and greater than
+** every key in the leaf before it. It need not be in the map itself, since
+** it is not changed when the first key of the leaf is removed.
+**
+** The leaves are linked only through the index: the leaf after a given one is
+** the one for the next separator. A leaf cannot point to the next one itself,
+** since the metadata of a block is usually derived from its contents (eg. a
+** CHK), so changing any leaf would mean pushing every leaf before it again.
+** Instead, {@link #keysInRange(Object, Object)} and {@link
+** #keySetAutoDeflate()} load the index nodes for the range first, and then
+** pull all the leaves in it together, so that each block is fetched once and
+** the leaves are not fetched one after another.
+**
+** The sub-map views check the range of each key and then go through this
+** map, so they are subject to the same restrictions about which parts of the
+** tree must be loaded; their {@link Map#size()} counts the entries in the
+** range, one by one.
+*/
+public class SkeletonBPlusTreeMap<K, V> extends AbstractMap<K, V> implements SkeletonSortedMap<K, V> {
+
+	/**
+	** Minimum number of entries in each leaf, other than the only one.
+	*/
+	final public int LEAF_MIN;
+
+	/**
+	** Maximum number of entries in each leaf. Equal to {@code LEAF_MIN * 2}.
+	*/
+	final public int LEAF_MAX;
+
+	/**
+	** Comparator for this {@link SortedMap}.
+	*/
+	final protected Comparator<? super K> comparator;
+
+	/**
+	** Map from the separator of each leaf to the leaf.
+	*/
+	final protected SkeletonBTreeMap<K, SkeletonTreeMap<K, V>> index;
+
+	/**
+	** Number of entries currently in the map.
+	*/
+	protected int size = 0;
+
+	/**
+	** Serialiser for the value objects.
+	*/
+	protected MapSerialiser<K, V> vsrl;
+
+	/**
+	** Number of keys that {@link #update(SortedSet, SortedSet, Closure,
+	** ExceptionConvertor) update()} puts or removes before it deflates the
+	** tree, to bound the number of leaves held in memory.
+	*/
+	final public static int UPDATE_BATCH = 0x100;
+
+	/**
+	** Creates a new empty map.
+	**
+	** @param cmp The comparator for the tree, or {@code null} to use the keys'
+	**            {@link Comparable natural} ordering.
+	** @param node_min Minimum number of subnodes in each node of the index
+	** @param leaf_min Minimum number of entries in each leaf
+	*/
+	public SkeletonBPlusTreeMap(Comparator<? super K> cmp, int node_min, int leaf_min) {
+		this(new SkeletonBTreeMap<K, SkeletonTreeMap<K, V>>(cmp, node_min), leaf_min, 0);
+	}
+
+	public SkeletonBPlusTreeMap(int node_min, int leaf_min) {
+		this((Comparator<? super K>)null, node_min, leaf_min);
+	}
+
+	protected SkeletonBPlusTreeMap(SkeletonBTreeMap<K, SkeletonTreeMap<K, V>> idx, int leaf_min, int s) {
+		if (leaf_min < 1) {
+			throw new IllegalArgumentException("The minimum number of entries in a leaf must be set to at least 1");
+		}
+		index = idx;
+		comparator = idx.comparator();
+		LEAF_MIN = leaf_min;
+		LEAF_MAX = leaf_min<<1;
+		size = s;
+	}
+
+	/**
+	** Set the serialisers for the tree.
+	**
+	** @param n Serialiser for the nodes of the index
+	** @param l Serialiser for the leaves
+	** @param v Serialiser for the values
+	*/
+	public void setSerialiser(IterableSerialiser<SkeletonBTreeMap<K, SkeletonTreeMap<K, V>>.SkeletonNode> n, MapSerialiser<K, SkeletonTreeMap<K, V>> l, MapSerialiser<K, V> v) {
+		if (vsrl != null && !isLive()) {
+			throw new IllegalStateException("Cannot change the serialiser when the structure is not live.");
+		}
+		index.setSerialiser(n, l);
+		vsrl = v;
+		if (isBare()) { return; }
+		for (SkeletonTreeMap<K, V> leaf: index.values()) {
+			leaf.setSerialiser(v);
+		}
+	}
+
+	/**
+	** Returns a new {@link SkeletonBTreeMap.NodeTranslator} for the nodes of
+	** the index.
+	**
+	** @param ktr Translator for the keys
+	** @param mtr Translator for each node's local entries map
+	*/
+	public <Q, R> SkeletonBTreeMap<K, SkeletonTreeMap<K, V>>.NodeTranslator<Q, R> makeNodeTranslator(Translator<K, Q> ktr, Translator<SkeletonTreeMap<K, SkeletonTreeMap<K, V>>, R> mtr) {
+		return index.makeNodeTranslator(ktr, mtr);
+	}
+
+	protected int compare(K key1, K key2) {
+		return BTreeMap.compare(key1, key2, comparator);
+	}
+
+	protected SkeletonTreeMap<K, V> newLeaf() {
+		SkeletonTreeMap<K, V> leaf = new SkeletonTreeMap<K, V>(comparator);
+		leaf.setSerialiser(vsrl);
+		return leaf;
+	}
+
+	/************************************************************************
+	** The position of a leaf in the index: the node of the index that holds
+	** its separator, and the separator.
+	*/
+	protected class LeafRef {
+
+		final protected BTreeMap<K, SkeletonTreeMap<K, V>>.Node node;
+		final protected K sep;
+
+		protected LeafRef(BTreeMap<K, SkeletonTreeMap<K, V>>.Node n, K s) {
+			node = n;
+			sep = s;
+		}
+
+		protected SkeletonTreeMap<K, SkeletonTreeMap<K, V>> entries() {
+			return (SkeletonTreeMap<K, SkeletonTreeMap<K, V>>)node.entries;
+		}
+
+		/**
+		** @throws DataNotLoadedException if the leaf is not loaded
+		*/
+		protected SkeletonTreeMap<K, V> leaf() {
+			return node.entries.get(sep);
+		}
+
+	}
+
+	/**
+	** Finds a separator next to the given key, by descending the index.
+	**
+	** @param key The key, or {@code null} for the first (or last) separator
+	** @param dir Greater than 0 for the least separator greater than the key;
+	**        0 for the greatest separator not greater than it; less than 0
+	**        for the greatest separator less than it
+	** @return The separator, or {@code null} if there is none
+	** @throws DataNotLoadedException if a node of the index on the way is not
+	**         loaded
+	*/
+	protected LeafRef locate(K key, int dir) {
+		BTreeMap<K, SkeletonTreeMap<K, V>>.Node node = index.root, found = null;
+		K sep = null;
+		for (;;) {
+			// throws DataNotLoadedException for a ghost
+			boolean leaf = node.isLeaf();
+			SortedMap<K, SkeletonTreeMap<K, V>> entries = node.entries;
+			boolean local = key != null && entries.containsKey(key);
+			if (local && dir == 0) { return new LeafRef(node, key); }
+
+			// any key found further down is nearer
+			K near = null;
+			if (key == null) {
+				if (!entries.isEmpty()) { near = (dir > 0)? entries.firstKey(): entries.lastKey(); }
+			} else if (dir > 0) {
+				Iterator<K> it = entries.tailMap(key).keySet().iterator();
+				if (it.hasNext()) { near = it.next(); }
+				if (local) { near = it.hasNext()? it.next(): null; }
+			} else {
+				SortedMap<K, SkeletonTreeMap<K, V>> head = entries.headMap(key);
+				if (!head.isEmpty()) { near = head.lastKey(); }
+			}
+			if (near != null) { found = node; sep = near; }
+
+			if (leaf) { break; }
+			if (key == null) {
+				node = (dir > 0)? node.rnodes.get(node.lkey): node.lnodes.get(node.rkey);
+			} else if (local) {
+				node = (dir > 0)? node.rnodes.get(key): node.lnodes.get(key);
+				// the whole subtree is on one side of the key, so from here on
+				// the nearest separator is at its edge
+				key = null;
+			} else {
+				node = node.selectNode(key);
+			}
+		}
+		return (found == null)? null: new LeafRef(found, sep);
+	}
+
+	/**
+	** Like {@link #locate(Object, int)}, but pulls the nodes of the index on
+	** the way, if {@code load} is {@code true}.
+	*/
+	protected LeafRef find(K key, int dir, boolean load) throws TaskAbortException {
+		for (;;) {
+			try {
+				return locate(key, dir);
+			} catch (DataNotLoadedException e) {
+				if (!load) { throw e; }
+				pullGhost(e);
+			}
+		}
+	}
+
+	/**
+	** Returns the leaf at the given position. If {@code load} is {@code true},
+	** this pulls the leaf, and then its values, if they are not loaded; they
+	** are needed since entries may be moved to other leaves.
+	**
+	** @throws DataNotLoadedException if {@code load} is {@code false} and the
+	**         leaf is not loaded
+	*/
+	protected SkeletonTreeMap<K, V> getLeaf(LeafRef ref, boolean load) throws TaskAbortException {
+		if (!load) { return ref.leaf(); }
+		ref.entries().inflate(ref.sep);
+		SkeletonTreeMap<K, V> leaf = ref.leaf();
+		if (!leaf.isLive()) { leaf.inflate(); }
+		return leaf;
+	}
+
+	/**
+	** Pulls the data whose absence caused the given exception.
+	*/
+	@SuppressWarnings("unchecked")
+	protected void pullGhost(DataNotLoadedException e) throws TaskAbortException {
+		Object meta = e.getValue();
+		if (!(meta instanceof SkeletonBTreeMap.GhostNode)) {
+			e.getParent().inflate(e.getKey());
+			return;
+		}
+		// splits, merges and rotations in the index move subnodes to other parents
+		index.resetGhosts((SkeletonBTreeMap<K, SkeletonTreeMap<K, V>>.SkeletonNode)index.root);
+		@SuppressWarnings("unchecked") SkeletonBTreeMap<K, SkeletonTreeMap<K, V>>.GhostNode ghost = (SkeletonBTreeMap<K, SkeletonTreeMap<K, V>>.GhostNode)meta;
+		ghost.parent.inflate(ghost.lkey, false);
+	}
+
+	/**
+	** Adds a separator to the index. {@link BTreeMap#put(Object, Object)}
+	** only throws {@link DataNotLoadedException} before it has inserted the
+	** key, so it is simply retried after pulling the missing node.
+	*/
+	protected void indexPut(K sep, SkeletonTreeMap<K, V> leaf, boolean load) throws TaskAbortException {
+		for (;;) {
+			try {
+				index.put(sep, leaf);
+				return;
+			} catch (DataNotLoadedException e) {
+				if (!load) { throw e; }
+				pullGhost(e);
+			}
+		}
+	}
+
+	/**
+	** Removes a separator from the index; see {@link #indexPut(Object,
+	** SkeletonTreeMap, boolean)}.
+	*/
+	protected void indexRemove(K sep, boolean load) throws TaskAbortException {
+		for (;;) {
+			try {
+				index.remove(sep);
+				return;
+			} catch (DataNotLoadedException e) {
+				if (!load) { throw e; }
+				pullGhost(e);
+			}
+		}
+	}
+
+	/**
+	** Puts an entry, splitting its leaf if it gets too big.
+	**
+	** @param load Whether to pull the parts of the tree that are needed, or
+	**        to throw {@link DataNotLoadedException} for them
+	*/
+	protected V put(K key, V value, boolean load) throws TaskAbortException {
+		if (key == null) { throw new UnsupportedOperationException("Sorry, this BTreeMap implementation can't handle null keys, even if the comparator supports it."); }
+		LeafRef ref = find(key, 0, load);
+		if (ref == null) {
+			if (index.isEmpty()) {
+				SkeletonTreeMap<K, V> leaf = newLeaf();
+				leaf.put(key, value);
+				indexPut(key, leaf, load);
+				++size;
+				return null;
+			}
+			// the key is below every separator, so lower the separator of the
+			// first leaf. this is in the leftmost leaf node of the index, so
+			// no subnodes or node ranges depend on it
+			ref = find(null, 1, load);
+			SkeletonTreeMap<K, V> leaf = getLeaf(ref, load);
+			ref.node.entries.remove(ref.sep);
+			ref.node.entries.put(key, leaf);
+			ref = new LeafRef(ref.node, key);
+		}
+
+		SkeletonTreeMap<K, V> leaf = getLeaf(ref, load);
+		int sz = leaf.size();
+		V old = leaf.put(key, value);
+		if (leaf.size() != sz) {
+			++size;
+			if (leaf.size() > LEAF_MAX) { splitLeaf(leaf, load); }
+		}
+		return old;
+	}
+
+	/**
+	** Removes an entry, merging its leaf with the next one (or the previous
+	** one, for the last leaf) if it gets too small.
+	**
+	** @param load Whether to pull the parts of the tree that are needed, or
+	**        to throw {@link DataNotLoadedException} for them
+	*/
+	protected V remove(K key, boolean load) throws TaskAbortException {
+		LeafRef ref = find(key, 0, load);
+		if (ref == null) { return null; }
+		SkeletonTreeMap<K, V> leaf = getLeaf(ref, load);
+		if (!leaf.containsKey(key)) { return null; }
+
+		// get the neighbour first, so nothing is changed if it is not loaded
+		LeafRef nref = null;
+		SkeletonTreeMap<K, V> nleaf = null;
+		boolean next = true;
+		if (leaf.size() <= LEAF_MIN && index.size() > 1) {
+			nref = find(ref.sep, 1, load);
+			if (nref == null) {
+				nref = find(ref.sep, -1, load);
+				next = false;
+			}
+			nleaf = getLeaf(nref, load);
+		}
+
+		V old = leaf.remove(key);
+		--size;
+		if (nleaf != null) {
+			if (next) {
+				mergeLeaves(leaf, nleaf, nref.sep, load);
+			} else {
+				mergeLeaves(nleaf, leaf, ref.sep, load);
+			}
+		} else if (leaf.isEmpty()) {
+			indexRemove(ref.sep, load);
+		}
+		return old;
+	}
+
+	/**
+	** Moves the upper half of the given leaf into a new leaf.
+	*/
+	protected void splitLeaf(SkeletonTreeMap<K, V> leaf, boolean load) throws TaskAbortException {
+		int keep = leaf.size()>>1;
+		List<K> keys = new ArrayList<K>(leaf.size() - keep);
+		int i = 0;
+		for (K key: leaf.keySet()) {
+			if (i++ >= keep) { keys.add(key); }
+		}
+		SkeletonTreeMap<K, V> right = newLeaf();
+		for (K key: keys) {
+			SkeletonTreeMap.swapKey(key, leaf, right);
+		}
+		indexPut(right.firstKey(), right, load);
+	}
+
+	/**
+	** Moves all the entries of a leaf into the one before it, and splits that
+	** again if it is then too big.
+	**
+	** @param rsep The separator of the right leaf
+	*/
+	protected void mergeLeaves(SkeletonTreeMap<K, V> left, SkeletonTreeMap<K, V> right, K rsep, boolean load) throws TaskAbortException {
+		for (K key: new ArrayList<K>(right.keySet())) {
+			SkeletonTreeMap.swapKey(key, right, left);
+		}
+		indexRemove(rsep, load);
+		if (left.size() > LEAF_MAX) { splitLeaf(left, load); }
+	}
+
+	/**
+	** Checks that the leaves are within their size limits, that the
+	** separators are ordered correctly with respect to the keys, and that the
+	** size of the map is correct. The tree must be live.
+	**
+	** @throws IllegalStateException if the test condition is false
+	*/
+	void verifyTreeIntegrity() {
+		index.verifyTreeIntegrity();
+		int s = 0;
+		SkeletonTreeMap<K, V> prev = null;
+		for (Map.Entry<K, SkeletonTreeMap<K, V>> en: index.entrySet()) {
+			SkeletonTreeMap<K, V> leaf = en.getValue();
+			BTreeMap.verify(!leaf.isEmpty() && leaf.size() <= LEAF_MAX);
+			BTreeMap.verify(leaf.size() >= LEAF_MIN || index.size() == 1);
+			BTreeMap.verify(compare(en.getKey(), leaf.firstKey()) <= 0);
+			BTreeMap.verify(prev == null || compare(prev.lastKey(), en.getKey()) < 0);
+			s += leaf.size();
+			prev = leaf;
+		}
+		BTreeMap.verify(s == size);
+	}
+
+	/**
+	** Returns an estimate of the number of levels of the tree, including the
+	** leaves.
+	*/
+	public int heightEstimate() {
+		return index.heightEstimate() + 1;
+	}
+
+	/**
+	** Pulls the leaves that may hold keys in the given range, without
+	** attaching them to the index. The nodes of the index for the range are
+	** pulled first; then all the leaves that are not loaded are pulled
+	** together.
+	**
+	** @param lo The lowest key, or {@code null} for no lower bound
+	** @param hi The key just above the range, or {@code null} for no upper
+	**        bound
+	** @return Map from the separator of each leaf to the leaf
+	*/
+	protected SortedMap<K, SkeletonTreeMap<K, V>> pullLeaves(K lo, K hi) throws TaskAbortException {
+		SortedMap<K, SkeletonTreeMap<K, V>> leaves = new TreeMap<K, SkeletonTreeMap<K, V>>(comparator);
+		if (index.isEmpty()) { return leaves; }
+		K from = lo;
+		if (lo != null) {
+			LeafRef ref = find(lo, 0, true);
+			if (ref != null) { from = ref.sep; }
+		}
+
+		Map<K, PullTask<SkeletonTreeMap<K, V>>> tasks = new HashMap<K, PullTask<SkeletonTreeMap<K, V>>>();
+		for (K sep: index.keysInRange(from, hi)) {
+			SkeletonValue<SkeletonTreeMap<K, V>> skel = locate(sep, 0).entries().skmap.get(sep);
+			if (skel.isLoaded()) {
+				leaves.put(sep, skel.data());
+			} else {
+				tasks.put(sep, new PullTask<SkeletonTreeMap<K, V>>(skel.meta()));
+			}
+		}
+		while (!tasks.isEmpty()) {
+			index.getSerialiser().pull(tasks, null);
+			// a task for a leaf that another thread was already pulling is
+			// dropped by the serialiser without its data, so pull it again
+			for (Iterator<Map.Entry<K, PullTask<SkeletonTreeMap<K, V>>>> it = tasks.entrySet().iterator(); it.hasNext();) {
+				Map.Entry<K, PullTask<SkeletonTreeMap<K, V>>> en = it.next();
+				PullTask<SkeletonTreeMap<K, V>> task = en.getValue();
+				if (task.data == null) {
+					en.setValue(new PullTask<SkeletonTreeMap<K, V>>(task.meta));
+				} else {
+					leaves.put(en.getKey(), task.data);
+					it.remove();
+				}
+			}
+		}
+		return leaves;
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** This implementation pulls the leaves in the range all at once, through
+	** {@link #pullLeaves(Object, Object)}. The nodes of the index that are
+	** pulled are left loaded, but the leaves are not.
+	*/
+	public SortedSet<K> keysInRange(K lo, K hi) throws TaskAbortException {
+		SortedSet<K> keys = new TreeSet<K>(comparator);
+		for (SkeletonTreeMap<K, V> leaf: pullLeaves(lo, hi).values()) {
+			for (K key: leaf.keySet()) {
+				if (lo != null && compare(key, lo) < 0) { continue; }
+				if (hi != null && compare(key, hi) >= 0) { break; }
+				keys.add(key);
+			}
+		}
+		return keys;
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** This implementation reads the index through {@link
+	** SkeletonBTreeMap#scan(SortedSet, boolean, Closure)}. For given keys, it
+	** first reads only the separators, to find the leaves that may hold the
+	** keys, and then reads just those leaves.
+	*/
+	public void scan(final SortedSet<K> keys, final Closure<Map<K, V>, TaskAbortException> acc) throws TaskAbortException {
+		if (keys != null && keys.isEmpty()) { return; }
+		SortedSet<K> seps = null;
+		if (keys != null) {
+			final SortedSet<K> all = new TreeSet<K>(comparator);
+			index.scan(null, false, new Closure<Map<K, SkeletonTreeMap<K, V>>, TaskAbortException>() {
+				/*@Override**/ public void invoke(Map<K, SkeletonTreeMap<K, V>> node) {
+					all.addAll(node.keySet());
+				}
+			});
+			// the leaf for a key is the one with the greatest separator not
+			// greater than it
+			seps = new TreeSet<K>(comparator);
+			for (K key: keys) {
+				if (all.contains(key)) { seps.add(key); continue; }
+				SortedSet<K> head = all.headSet(key);
+				if (!head.isEmpty()) { seps.add(head.last()); }
+			}
+		}
+		index.scan(seps, true, new Closure<Map<K, SkeletonTreeMap<K, V>>, TaskAbortException>() {
+			/*@Override**/ public void invoke(Map<K, SkeletonTreeMap<K, V>> leaves) throws TaskAbortException {
+				for (SkeletonTreeMap<K, V> leaf: leaves.values()) {
+					Collection<K> local;
+					if (keys == null) {
+						local = leaf.keySet();
+					} else {
+						local = new ArrayList<K>();
+						for (K key: leaf.keySet()) {
+							if (keys.contains(key)) { local.add(key); }
+						}
+					}
+					if (local.isEmpty()) { continue; }
+					acc.invoke(leaf.pullDetached(local));
+				}
+			}
+		});
+	}
+
+	/**
+	** @param putmap Entries to insert into this map
+	** @param remkey Keys to remove from this map
+	** @see #update(SortedSet, SortedSet, Closure, ExceptionConvertor)
+	*/
+	public void update(SortedMap<K, V> putmap, SortedSet<K> remkey) throws TaskAbortException {
+		update(null, remkey, putmap, null, new TaskAbortExceptionConvertor());
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** This implementation removes the keys in {@code remkey} first, and then
+	** puts the keys in {@code putkey}, in batches of {@link #UPDATE_BATCH}
+	** keys. For each batch, the leaves for the keys are pulled, along with
+	** their values, and the value handlers are run in parallel; the entries
+	** are then put, and the tree is deflated.
+	**
+	** Unlike {@link SkeletonBTreeMap}, this uses the one-pass algorithms of
+	** {@link BTreeMap} on the index, since most changes only touch a leaf; an
+	** index node is only written again along with one of its leaves.
+	*/
+	public <X extends Exception> void update(SortedSet<K> putkey, SortedSet<K> remkey, Closure<Map.Entry<K, V>, X> value_handler, ExceptionConvertor<X> conv) throws TaskAbortException {
+		update(putkey, remkey, null, value_handler, conv);
+	}
+
+	protected <X extends Exception> void update(
+		SortedSet<K> putkey, SortedSet<K> remkey,
+		SortedMap<K, V> putmap, Closure<Map.Entry<K, V>, X> value_handler,
+		ExceptionConvertor<X> conv
+	) throws TaskAbortException {
+		if (value_handler == null) {
+			assert(putkey == null);
+			putkey = Sorted.keySet(putmap);
+		} else {
+			assert(putmap == null);
+		}
+
+		if (remkey != null) {
+			int batch = 0;
+			for (K key: remkey) {
+				remove(key, true);
+				if (++batch == UPDATE_BATCH) {
+					deflateAfterUpdate();
+					batch = 0;
+				}
+			}
+		}
+
+		if (putkey == null) { putkey = Collections.<K>emptySortedSet(); }
+		List<K> keys = new ArrayList<K>(UPDATE_BATCH);
+		for (K key: putkey) {
+			keys.add(key);
+			if (keys.size() == UPDATE_BATCH) {
+				putBatch(keys, putmap, value_handler, conv);
+				deflateAfterUpdate();
+				keys.clear();
+			}
+		}
+		if (!keys.isEmpty()) {
+			putBatch(keys, putmap, value_handler, conv);
+		}
+		deflateAfterUpdate();
+	}
+
+	/**
+	** Puts a batch of keys for {@link #update(SortedSet, SortedSet, SortedMap,
+	** Closure, ExceptionConvertor)}.
+	*/
+	protected <X extends Exception> void putBatch(
+		List<K> keys, SortedMap<K, V> putmap, Closure<Map.Entry<K, V>, X> value_handler,
+		ExceptionConvertor<X> conv
+	) throws TaskAbortException {
+		List<Map.Entry<K, V>> entries = new ArrayList<Map.Entry<K, V>>(keys.size());
+		for (K key: keys) {
+			LeafRef ref = find(key, 0, true);
+			V value = (ref == null)? null: getLeaf(ref, true).get(key);
+			entries.add($K(key, value));
+		}
+
+		if (value_handler == null) {
+			for (Map.Entry<K, V> en: entries) {
+				en.setValue(putmap.get(en.getKey()));
+			}
+		} else {
+			@SuppressWarnings("unchecked") ObjectProcessor<Map.Entry<K, V>, Object, X> proc = new ObjectProcessor<Map.Entry<K, V>, Object, X>(
+				new LinkedBlockingQueue<Map.Entry<K, V>>(),
+				new LinkedBlockingQueue<X2<Map.Entry<K, V>, X>>(),
+				new HashMap<Map.Entry<K, V>, Object>(),
+				value_handler, SkeletonBTreeMap.VALUE_EXECUTOR, conv
+			).autostart();
+			try {
+				for (Map.Entry<K, V> en: entries) {
+					ObjectProcessor.submitSafe(proc, en, null);
+				}
+				for (int i=0; i<entries.size(); ++i) {
+					X3<Map.Entry<K, V>, Object, X> res = proc.accept();
+					if (res._2 != null) {
+						throw new TaskAbortException("Could not get the value for " + res._0.getKey(), res._2);
+					}
+				}
+			} catch (InterruptedException e) {
+				throw new TaskAbortException("Interrupted while getting the values for the update", e);
+			} finally {
+				proc.close();
+			}
+		}
+
+		for (Map.Entry<K, V> en: entries) {
+			put(en.getKey(), en.getValue(), true);
+		}
+	}
+
+	private void deflateAfterUpdate() throws TaskAbortException {
+		index.resetGhosts((SkeletonBTreeMap<K, SkeletonTreeMap<K, V>>.SkeletonNode)index.root);
+		deflate();
+		assert(isBare());
+	}
+
+	/*========================================================================
+	  public interface SkeletonMap
+	 ========================================================================*/
+
+	/*@Override**/ public Object getMeta() { return null; }
+
+	/*@Override**/ public void setMeta(Object m) { }
+
+	/*@Override**/ public MapSerialiser<K, V> getSerialiser() { return vsrl; }
+
+	/*@Override**/ public boolean isLive() {
+		if (!index.isLive()) { return false; }
+		for (SkeletonTreeMap<K, V> leaf: index.values()) {
+			if (!leaf.isLive()) { return false; }
+		}
+		return true;
+	}
+
+	/*@Override**/ public boolean isBare() {
+		return index.isBare();
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** The leaf serialiser is expected to deflate the values of each leaf
+	** before it pushes the leaf.
+	*/
+	/*@Override**/ public void deflate() throws TaskAbortException {
+		index.deflate();
+	}
+
+	/*@Override**/ public void inflate() throws TaskAbortException {
+		index.inflate();
+		for (SkeletonTreeMap<K, V> leaf: index.values()) {
+			leaf.inflate();
+		}
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** This pushes the value, and then the leaf that holds it, if none of the
+	** leaf's values are left loaded. Nothing is done if the part of the tree
+	** that would hold the key is not loaded.
+	*/
+	/*@Override**/ public void deflate(K key) throws TaskAbortException {
+		LeafRef ref;
+		SkeletonTreeMap<K, V> leaf;
+		try {
+			ref = locate(key, 0);
+			if (ref == null) { return; }
+			leaf = ref.leaf();
+		} catch (DataNotLoadedException e) {
+			return;
+		}
+		leaf.deflate(key);
+		if (leaf.isBare()) { ref.entries().deflate(ref.sep); }
+	}
+
+	/*@Override**/ public void inflate(K key) throws TaskAbortException {
+		inflate(key, false);
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** If {@code deflateRest} is {@code true} and the value is not loaded, the
+	** whole tree is deflated first.
+	*/
+	@SuppressWarnings("unchecked")
+	/*@Override**/ public void inflate(K key, boolean deflateRest) throws TaskAbortException {
+		for (;;) {
+			try {
+				get(key);
+				return;
+			} catch (DataNotLoadedException e) {
+				if (deflateRest) {
+					deflate();
+					deflateRest = false;
+					continue;
+				}
+				e.getParent().inflate(e.getKey());
+			}
+		}
+	}
+
+	/*========================================================================
+	  public interface Map
+	 ========================================================================*/
+
+	@Override public int size() {
+		return size;
+	}
+
+	@Override public void clear() {
+		index.clear();
+		size = 0;
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** @throws DataNotLoadedException if the part of the tree that would hold
+	**         the key is not loaded
+	*/
+	@Override public boolean containsKey(Object k) {
+		@SuppressWarnings("unchecked") K key = (K)k;
+		LeafRef ref = locate(key, 0);
+		return ref != null && ref.leaf().containsKey(key);
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** @throws DataNotLoadedException if the part of the tree that would hold
+	**         the key, or the value, is not loaded
+	*/
+	@Override public V get(Object k) {
+		@SuppressWarnings("unchecked") K key = (K)k;
+		LeafRef ref = locate(key, 0);
+		return (ref == null)? null: ref.leaf().get(key);
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** As with {@link SkeletonBTreeMap}, this only works on the parts of the
+	** tree that are loaded; {@link #update(SortedMap, SortedSet)} pulls what
+	** it needs.
+	**
+	** @throws DataNotLoadedException if a part of the tree that is needed is
+	**         not loaded
+	*/
+	@Override public V put(K key, V value) {
+		try {
+			return put(key, value, false);
+		} catch (TaskAbortException e) {
+			// nothing is pulled when load is false
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** NOTE: as with {@link SkeletonTreeMap#remove(Object)}, if the value for
+	** the key is not loaded, this returns '''null''' instead.
+	**
+	** @throws DataNotLoadedException if a part of the tree that is needed is
+	**         not loaded
+	*/
+	@Override public V remove(Object k) {
+		@SuppressWarnings("unchecked") K key = (K)k;
+		try {
+			return remove(key, false);
+		} catch (TaskAbortException e) {
+			// nothing is pulled when load is false
+			throw new AssertionError(e);
+		}
+	}
+
+	private Set<Map.Entry<K, V>> entrySet = null;
+	@Override public Set<Map.Entry<K, V>> entrySet() {
+		if (entrySet == null) {
+			entrySet = new AbstractSet<Map.Entry<K, V>>() {
+
+				@Override public int size() { return SkeletonBPlusTreeMap.this.size(); }
+
+				@Override public Iterator<Map.Entry<K, V>> iterator() {
+					return new EntryIterator();
+				}
+
+				@Override public void clear() {
+					SkeletonBPlusTreeMap.this.clear();
+				}
+
+				@Override public boolean contains(Object o) {
+					if (!(o instanceof Map.Entry)) { return false; }
+					Map.Entry<?, ?> e = (Map.Entry<?, ?>)o;
+					Object value = SkeletonBPlusTreeMap.this.get(e.getKey());
+					return value != null && value.equals(e.getValue());
+				}
+
+				@Override public boolean remove(Object o) {
+					if (contains(o)) {
+						SkeletonBPlusTreeMap.this.remove(((Map.Entry<?, ?>)o).getKey());
+						return true;
+					}
+					return false;
+				}
+
+			};
+		}
+		return entrySet;
+	}
+
+	/************************************************************************
+	** Iterator over the loaded entries, going from each leaf to the leaf of
+	** the next separator.
+	**
+	** @throws DataNotLoadedException if a part of the tree is not loaded
+	*/
+	protected class EntryIterator implements Iterator<Map.Entry<K, V>> {
+
+		/**
+		** Separator of the current leaf, or {@code null} before the first.
+		*/
+		protected K sep = null;
+		protected Iterator<Map.Entry<K, V>> it = null;
+		protected boolean done = false;
+		protected Map.Entry<K, V> last = null;
+
+		/**
+		** The range of the iteration; {@code null} for no bound.
+		*/
+		final protected K lo, hi;
+
+		protected EntryIterator() {
+			this(null, null);
+		}
+
+		protected EntryIterator(K l, K h) {
+			lo = l;
+			hi = h;
+		}
+
+		/**
+		** Returns the entries of the given leaf which are in the range, from
+		** the given key.
+		*/
+		protected Iterator<Map.Entry<K, V>> entries(SkeletonTreeMap<K, V> leaf, K from) {
+			SortedMap<K, V> map = (from == null)? leaf: leaf.tailMap(from);
+			if (hi != null) { map = map.headMap(hi); }
+			return map.entrySet().iterator();
+		}
+
+		/*@Override**/ public boolean hasNext() {
+			while (it == null || !it.hasNext()) {
+				if (done) { return false; }
+				LeafRef ref;
+				if (sep != null) {
+					ref = locate(sep, 1);
+				} else {
+					// the first leaf that may hold the lowest key
+					ref = (lo == null)? null: locate(lo, 0);
+					if (ref == null) { ref = locate(null, 1); }
+				}
+				// a leaf's keys are no less than its separator
+				if (ref == null || hi != null && compare(ref.sep, hi) >= 0) {
+					done = true;
+					return false;
+				}
+				sep = ref.sep;
+				it = entries(ref.leaf(), lo);
+			}
+			return true;
+		}
+
+		/*@Override**/ public Map.Entry<K, V> next() {
+			if (!hasNext()) { throw new NoSuchElementException(); }
+			return last = it.next();
+		}
+
+		/*@Override**/ public void remove() {
+			if (last == null) {
+				throw new IllegalStateException("Iteration has not yet begun, or the element has already been removed.");
+			}
+			K key = last.getKey();
+			SkeletonBPlusTreeMap.this.remove(key);
+			last = null;
+
+			// leaves may have been merged or split, so find our place again
+			LeafRef ref = locate(key, 0);
+			if (ref == null) {
+				done = true;
+				it = null;
+				return;
+			}
+			sep = ref.sep;
+			it = entries(ref.leaf(), key);
+		}
+
+	}
+
+	/*========================================================================
+	  public interface SortedMap
+	 ========================================================================*/
+
+	/*@Override**/ public Comparator<? super K> comparator() {
+		return comparator;
+	}
+
+	/*@Override**/ public K firstKey() {
+		LeafRef ref = locate(null, 1);
+		if (ref == null) { throw new NoSuchElementException(); }
+		return ref.leaf().firstKey();
+	}
+
+	/*@Override**/ public K lastKey() {
+		LeafRef ref = locate(null, -1);
+		if (ref == null) { throw new NoSuchElementException(); }
+		return ref.leaf().lastKey();
+	}
+
+	/*@Override**/ public SortedMap<K, V> headMap(K rkey) {
+		return new SubMap(null, checkKey(rkey));
+	}
+
+	/*@Override**/ public SortedMap<K, V> tailMap(K lkey) {
+		return new SubMap(checkKey(lkey), null);
+	}
+
+	/*@Override**/ public SortedMap<K, V> subMap(K lkey, K rkey) {
+		if (compare(checkKey(lkey), checkKey(rkey)) > 0) {
+			throw new IllegalArgumentException("fromKey > toKey");
+		}
+		return new SubMap(lkey, rkey);
+	}
+
+	/**
+	** Null keys are not supported, and are used for the missing bounds of a
+	** {@link SubMap}.
+	*/
+	protected static <K> K checkKey(K key) {
+		if (key == null) { throw new NullPointerException(); }
+		return key;
+	}
+
+	/************************************************************************
+	** A view of the entries of the map in a range of keys. Each operation
+	** checks the range and then goes through the map; the entries are
+	** iterated by an {@link EntryIterator} with the same range.
+	*/
+	protected class SubMap extends AbstractMap<K, V> implements SortedMap<K, V> {
+
+		/**
+		** The lowest key, and the key just above the range; {@code null} for
+		** no bound.
+		*/
+		final protected K lo, hi;
+
+		protected SubMap(K l, K h) {
+			lo = l;
+			hi = h;
+		}
+
+		protected boolean inRange(Object k) {
+			@SuppressWarnings("unchecked") K key = checkKey((K)k);
+			return (lo == null || compare(key, lo) >= 0) && (hi == null || compare(key, hi) < 0);
+		}
+
+		/**
+		** Whether the given key may be a bound of a view within this one.
+		*/
+		protected boolean inBounds(K key) {
+			return (lo == null || compare(key, lo) >= 0) && (hi == null || compare(key, hi) <= 0);
+		}
+
+		@Override public boolean containsKey(Object k) {
+			return inRange(k) && SkeletonBPlusTreeMap.this.containsKey(k);
+		}
+
+		@Override public V get(Object k) {
+			return inRange(k)? SkeletonBPlusTreeMap.this.get(k): null;
+		}
+
+		@Override public V put(K key, V value) {
+			if (!inRange(key)) { throw new IllegalArgumentException("key out of range"); }
+			return SkeletonBPlusTreeMap.this.put(key, value);
+		}
+
+		@Override public V remove(Object k) {
+			return inRange(k)? SkeletonBPlusTreeMap.this.remove(k): null;
+		}
+
+		private Set<Map.Entry<K, V>> entrySet = null;
+		@Override public Set<Map.Entry<K, V>> entrySet() {
+			if (entrySet == null) {
+				entrySet = new AbstractSet<Map.Entry<K, V>>() {
+
+					@Override public int size() {
+						int s = 0;
+						for (Iterator<Map.Entry<K, V>> it = iterator(); it.hasNext(); it.next()) { ++s; }
+						return s;
+					}
+
+					@Override public Iterator<Map.Entry<K, V>> iterator() {
+						return new EntryIterator(lo, hi);
+					}
+
+					@Override public boolean contains(Object o) {
+						if (!(o instanceof Map.Entry)) { return false; }
+						Map.Entry<?, ?> e = (Map.Entry<?, ?>)o;
+						Object value = SubMap.this.get(e.getKey());
+						return value != null && value.equals(e.getValue());
+					}
+
+					@Override public boolean remove(Object o) {
+						if (contains(o)) {
+							SubMap.this.remove(((Map.Entry<?, ?>)o).getKey());
+							return true;
+						}
+						return false;
+					}
+
+				};
+			}
+			return entrySet;
+		}
+
+		/*@Override**/ public Comparator<? super K> comparator() {
+			return comparator;
+		}
+
+		/*@Override**/ public K firstKey() {
+			Iterator<Map.Entry<K, V>> it = new EntryIterator(lo, hi);
+			if (!it.hasNext()) { throw new NoSuchElementException(); }
+			return it.next().getKey();
+		}
+
+		/*@Override**/ public K lastKey() {
+			LeafRef ref = locate(hi, -1);
+			while (ref != null) {
+				SortedMap<K, V> leaf = ref.leaf();
+				if (hi != null) { leaf = leaf.headMap(hi); }
+				if (!leaf.isEmpty()) {
+					K key = leaf.lastKey();
+					if (lo != null && compare(key, lo) < 0) { break; }
+					return key;
+				}
+				// the separator need not be in the map, so the leaf may have
+				// no keys below the bound
+				if (lo != null && compare(ref.sep, lo) <= 0) { break; }
+				ref = locate(ref.sep, -1);
+			}
+			throw new NoSuchElementException();
+		}
+
+		/*@Override**/ public SortedMap<K, V> headMap(K rkey) {
+			return view(lo, checkKey(rkey));
+		}
+
+		/*@Override**/ public SortedMap<K, V> tailMap(K lkey) {
+			return view(checkKey(lkey), hi);
+		}
+
+		/*@Override**/ public SortedMap<K, V> subMap(K lkey, K rkey) {
+			return view(checkKey(lkey), checkKey(rkey));
+		}
+
+		protected SortedMap<K, V> view(K lkey, K rkey) {
+			if (lkey != null && !inBounds(lkey) || rkey != null && !inBounds(rkey)) {
+				throw new IllegalArgumentException("key out of range");
+			}
+			if (lkey != null && rkey != null && compare(lkey, rkey) > 0) {
+				throw new IllegalArgumentException("fromKey > toKey");
+			}
+			return new SubMap(lkey, rkey);
+		}
+
+	}
+
+	/************************************************************************
+	** {@link Translator} with access to the members of {@link
+	** SkeletonBPlusTreeMap}. The index is translated by a {@link
+	** SkeletonBTreeMap.TreeTranslator}.
+	*/
+	public static class TreeTranslator<K, V> implements Translator<SkeletonBPlusTreeMap<K, V>, Map<String, Object>> {
+
+		final SkeletonBTreeMap.TreeTranslator<K, SkeletonTreeMap<K, V>> itr;
+
+		/**
+		** @param k Translator for the keys
+		** @param m Translator for each index node's local entries map
+		*/
+		public TreeTranslator(Translator<K, ?> k, Translator<SkeletonTreeMap<K, SkeletonTreeMap<K, V>>, ?> m) {
+			itr = new SkeletonBTreeMap.TreeTranslator<K, SkeletonTreeMap<K, V>>(k, m);
+		}
+
+		/*@Override**/ public Map<String, Object> app(SkeletonBPlusTreeMap<K, V> tree) {
+			Map<String, Object> map = new LinkedHashMap<String, Object>();
+			map.put("leaf_min", tree.LEAF_MIN);
+			map.put("size", tree.size);
+			map.put("index", itr.app(tree.index));
+			return map;
+		}
+
+		/*@Override**/ public SkeletonBPlusTreeMap<K, V> rev(Map<String, Object> map) throws DataFormatException {
+			try {
+				@SuppressWarnings("unchecked") Map<String, Object> imap = (Map<String, Object>)map.get("index");
+				SkeletonBTreeMap<K, SkeletonTreeMap<K, V>> index = itr.rev(imap);
+				return new SkeletonBPlusTreeMap<K, V>(index, (Integer)map.get("leaf_min"), (Integer)map.get("size"));
+			} catch (ClassCastException e) {
+				throw new DataFormatException("Could not build SkeletonBPlusTreeMap from data", e, map, null, null);
+			}
+		}
+
+	}
+
+	public String toString() {
+		// don't dump the entries, since they may not be loaded
+		return getClass().getName() + "@" + System.identityHashCode(this) + ":size=" + size;
+	}
+
+	/**
+	** A view of the keys that pulls the leaves as it goes, several at once,
+	** without attaching them to the index. When the iteration is finished,
+	** the tree is deflated.
+	*/
+	private Set<K> keySet = null;
+	public Set<K> keySetAutoDeflate() {
+		if (keySet == null) {
+			keySet = new AbstractSet<K>() {
+
+				@Override public int size() { return SkeletonBPlusTreeMap.this.size(); }
+
+				@Override public Iterator<K> iterator() {
+					return new Iterator<K>() {
+
+						List<K> seps = null;
+						int i = 0;
+						Iterator<K> keys = Collections.<K>emptyList().iterator();
+
+						/*@Override**/ public boolean hasNext() {
+							try {
+								while (!keys.hasNext()) {
+									if (seps == null) {
+										seps = new ArrayList<K>(index.keysInRange(null, null));
+									}
+									if (i == seps.size()) {
+										deflate();
+										return false;
+									}
+									int j = Math.min(i + SkeletonBTreeMap.DEFAULT_PARALLELISM, seps.size());
+									List<K> next = new ArrayList<K>();
+									for (SkeletonTreeMap<K, V> leaf: pullLeaves(seps.get(i), (j == seps.size())? null: seps.get(j)).values()) {
+										next.addAll(leaf.keySet());
+									}
+									keys = next.iterator();
+									i = j;
+								}
+								return true;
+							} catch (TaskAbortException e) {
+								throw new RuntimeException(e);
+							}
+						}
+
+						/*@Override**/ public K next() {
+							if (!hasNext()) { throw new NoSuchElementException(); }
+							return keys.next();
+						}
+
+						/*@Override**/ public void remove() {
+							throw new UnsupportedOperationException();
+						}
+
+					};
+				}
+
+				@Override public void clear() {
+					SkeletonBPlusTreeMap.this.clear();
+				}
+
+				@Override public boolean contains(Object o) {
+					return SkeletonBPlusTreeMap.this.containsKey(o);
+				}
+
+				@Override public boolean remove(Object o) {
+					return SkeletonBPlusTreeMap.this.remove(o) != null;
+				}
+
+			};
+		}
+		return keySet;
+	}
+
+}
@@ -35,8 +35,6 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.PriorityBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 import plugins.Library.util.exec.Progress;
 import plugins.Library.util.exec.ProgressParts;
 import plugins.Library.util.exec.BaseCompositeProgress;
@@ -59,7 +57,7 @@ import plugins.Library.util.concurrent.BoundedPriorityBlockingQueue;
 import plugins.Library.util.concurrent.ExceptionConvertor;
 import plugins.Library.util.concurrent.Notifier;
 import plugins.Library.util.concurrent.ObjectProcessor;
-import plugins.Library.util.concurrent.Executors;
+import plugins.Library.util.concurrent.ExecutionConfig;
 import plugins.Library.util.event.TrackingSweeper;
 import plugins.Library.util.event.CountingSweeper;
 import plugins.Library.util.func.Closure;
@@ -78,7 +76,7 @@ import static plugins.Library.util.Maps.$K;
 **
 ** @author infinity0
 */
-public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMap<K, V> {
+public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonSortedMap<K, V> {
 
 	/*
 	** Whether entries are "internal to" or "contained within" nodes, ie.
@@ -138,6 +136,41 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 	*/
 	protected MapSerialiser<K, V> vsrl;
 
+	/**
+	** Default maximum number of nodes to pull or push at once, when inflating
+	** or deflating a subtree level-by-level.
+	*/
+	final public static int DEFAULT_PARALLELISM = 0x10;
+
+	/**
+	** Maximum number of nodes to pull or push at once when inflating or
+	** deflating level-by-level. If this is 0, {@link #DEFAULT_PARALLELISM} is
+	** used for subtrees, and {@link #inflate()} uses the scheduler-based
+	** algorithm (when the node serialiser supports it).
+	*/
+	protected int parallelism = 0;
+
+	/**
+	** Set the maximum number of nodes to pull or push at once. A positive
+	** value also makes {@link #inflate()} work level-by-level: all the ghost
+	** nodes of one level of the tree are pulled together (through {@link
+	** IterableSerialiser#pull(Iterable)}), before moving on to the next. This
+	** means that inflating the whole tree takes about one round-trip per
+	** level, rather than one per node.
+	**
+	** @param n The maximum, or 0 for the default behaviour
+	*/
+	public void setParallelism(int n) {
+		if (n < 0) {
+			throw new IllegalArgumentException("Parallelism must not be negative: " + n);
+		}
+		parallelism = n;
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
 	public void setSerialiser(IterableSerialiser<SkeletonNode> n, MapSerialiser<K, V> v) {
 		if ((nsrl != null || vsrl != null) && !isLive()) {
 			throw new IllegalStateException("Cannot change the serialiser when the structure is not live.");
@@ -305,38 +338,56 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 			--ghosts;
 		}
 
+		/**
+		** {@inheritDoc}
+		**
+		** This implementation works level-by-level, from the bottom up. All
+		** the non-ghost nodes of one level are pushed together, in batches of
+		** at most {@link SkeletonBTreeMap#parallelism} nodes, after which
+		** their parents (on the level above) only have ghost children.
+		*/
 		/*@Override**/ public void deflate() throws TaskAbortException {
-			if (!isLeaf()) {
-				List<PushTask<SkeletonNode>> tasks = new ArrayList<PushTask<SkeletonNode>>(childCount() - ghosts);
-				for (Node node: iterNodes()) {
-					if (node.isGhost()) { continue; }
-					if (!((SkeletonNode)node).isBare()) {
-						((SkeletonNode)node).deflate();
+			// collect the loaded nodes of this subtree, and their parents
+			List<List<SkeletonNode>> levels = new ArrayList<List<SkeletonNode>>();
+			List<List<SkeletonNode>> parents = new ArrayList<List<SkeletonNode>>();
+			List<SkeletonNode> level = Collections.singletonList(this);
+			while (!level.isEmpty()) {
+				List<SkeletonNode> next = new ArrayList<SkeletonNode>();
+				List<SkeletonNode> nextp = new ArrayList<SkeletonNode>();
+				for (SkeletonNode node: level) {
+					if (node.isLeaf()) { continue; }
+					for (Node sub: node.iterNodes()) {
+						if (sub.isGhost()) { continue; }
+						next.add((SkeletonNode)sub);
+						nextp.add(node);
 					}
-					tasks.add(new PushTask<SkeletonNode>((SkeletonNode)node));
 				}
+				levels.add(next);
+				parents.add(nextp);
+				level = next;
+			}
 
-				nsrl.push(tasks);
-				for (PushTask<SkeletonNode> task: tasks) {
-					try {
-						attachGhost((GhostNode)task.meta);
-					} catch (RuntimeException e) {
-						throw new TaskAbortException("Could not deflate BTreeMap Node " + getRange(), e);
-					}
+			for (int d=levels.size()-1; d>=0; --d) {
+				List<SkeletonNode> nodes = levels.get(d);
+				for (SkeletonNode node: nodes) {
+					((SkeletonTreeMap<K, V>)node.entries).deflate();
 				}
+				pushNodes(nodes, parents.get(d));
 			}
 			((SkeletonTreeMap<K, V>)entries).deflate();
 			assert(isBare());
 		}
 
-		// OPT make this parallel
+		/**
+		** {@inheritDoc}
+		**
+		** This implementation works level-by-level, from the top down. The
+		** ghost children of all the nodes on one level are pulled together, in
+		** batches of at most {@link SkeletonBTreeMap#parallelism} nodes,
+		** before moving on to the next level.
+		*/
 		/*@Override**/ public void inflate() throws TaskAbortException {
-			((SkeletonTreeMap<K, V>)entries).inflate();
-			if (!isLeaf()) {
-				for (Node node: iterNodes()) {
-					inflate(node.lkey, true);
-				}
-			}
+			inflateLevels(this, null);
 			assert(isLive());
 		}
 
@@ -403,6 +454,147 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 
 	}
 
+	/**
+	** Returns the maximum number of nodes to pull or push at once, when
+	** working on a subtree level-by-level.
+	*/
+	protected int subtreeParallelism() {
+		return (parallelism > 0)? parallelism: DEFAULT_PARALLELISM;
+	}
+
+	/**
+	** Inflates the subtree under the given node, level-by-level. The ghost
+	** children of all the nodes on one level are pulled together, in batches
+	** of at most {@link #subtreeParallelism()} nodes, before moving on to the
+	** next level.
+	**
+	** @param top The root of the subtree
+	** @param ids If not {@code null}, each pull task is added to this map
+	**        along with the tracker for the node serialiser, so that the
+	**        caller can follow the progress of the operation.
+	*/
+	protected void inflateLevels(SkeletonNode top, Map<PullTask<SkeletonNode>, ProgressTracker<SkeletonNode, ?>> ids) throws TaskAbortException {
+		ProgressTracker<SkeletonNode, ?> ntracker = (ids != null)? ((Serialiser.Trackable<SkeletonNode>)nsrl).getTracker(): null;
+		List<SkeletonNode> level = Collections.singletonList(top);
+		while (!level.isEmpty()) {
+			List<SkeletonNode> next = new ArrayList<SkeletonNode>();
+			List<PullTask<SkeletonNode>> tasks = new ArrayList<PullTask<SkeletonNode>>();
+			List<SkeletonNode> parents = new ArrayList<SkeletonNode>();
+			for (SkeletonNode node: level) {
+				((SkeletonTreeMap<K, V>)node.entries).inflate();
+				if (node.isLeaf()) { continue; }
+				for (Node sub: node.iterNodes()) {
+					if (sub.isGhost()) {
+						PullTask<SkeletonNode> task = new PullTask<SkeletonNode>(sub);
+						if (ids != null) { ids.put(task, ntracker); }
+						tasks.add(task);
+						parents.add(node);
+					} else {
+						next.add((SkeletonNode)sub);
+					}
+				}
+			}
+			pullNodes(tasks, parents, next);
+			level = next;
+		}
+	}
+
+	/**
+	** Pulls the given ghost nodes in batches, attaches them to their parents,
+	** and adds the resulting {@link SkeletonNode}s to {@code out}. If a batch
+	** fails, the nodes of that batch which were pulled are still attached, so
+	** that a later attempt only has to pull the rest.
+	**
+	** @param tasks Tasks for the ghost nodes
+	** @param parents Parent of the ghost node of each task
+	** @param out Collection to add the inflated nodes to
+	*/
+	protected void pullNodes(List<PullTask<SkeletonNode>> tasks, List<SkeletonNode> parents, Collection<SkeletonNode> out) throws TaskAbortException {
+		int conc = subtreeParallelism();
+		for (int i=0; i<tasks.size(); i+=conc) {
+			int j = Math.min(i+conc, tasks.size());
+			try {
+				// copy, since the serialiser may remove tasks that are already in progress
+				nsrl.pull(new ArrayList<PullTask<SkeletonNode>>(tasks.subList(i, j)));
+			} catch (TaskAbortException e) {
+				for (int k=i; k<j; ++k) {
+					PullTask<SkeletonNode> task = tasks.get(k);
+					if (task.data == null) { continue; }
+					try {
+						postPullTask(task, parents.get(k));
+					} catch (DataFormatException f) {
+						// leave it as a ghost
+					} catch (RuntimeException f) {
+						// leave it as a ghost
+					}
+				}
+				throw e;
+			}
+			for (int k=i; k<j; ++k) {
+				PullTask<SkeletonNode> task = tasks.get(k);
+				SkeletonNode parent = parents.get(k);
+				@SuppressWarnings("unchecked") GhostNode ghost = (GhostNode)task.meta;
+				try {
+					if (task.data != null) {
+						out.add(postPullTask(task, parent));
+						continue;
+					}
+					// another thread pulled this node
+					Node node = parent.rnodes.get(ghost.lkey);
+					if (node.isGhost()) {
+						throw new TaskAbortException("Node was pulled elsewhere but not attached: " + ghost.getRange(), null, true);
+					}
+					out.add((SkeletonNode)node);
+				} catch (DataFormatException e) {
+					throw new TaskAbortException("Could not inflate BTreeMap Node " + ghost.getRange(), e);
+				} catch (RuntimeException e) {
+					throw new TaskAbortException("Could not inflate BTreeMap Node " + ghost.getRange(), e);
+				}
+			}
+		}
+	}
+
+	/**
+	** Pushes the given bare nodes in batches, and replaces each of them with
+	** the resulting {@link GhostNode} in its parent. If a batch fails, the
+	** nodes of that batch which were pushed are still replaced.
+	**
+	** @param nodes The nodes to push
+	** @param parents Parent of each node
+	*/
+	protected void pushNodes(List<SkeletonNode> nodes, List<SkeletonNode> parents) throws TaskAbortException {
+		int conc = subtreeParallelism();
+		for (int i=0; i<nodes.size(); i+=conc) {
+			int j = Math.min(i+conc, nodes.size());
+			List<PushTask<SkeletonNode>> tasks = new ArrayList<PushTask<SkeletonNode>>(j-i);
+			for (SkeletonNode node: nodes.subList(i, j)) {
+				tasks.add(new PushTask<SkeletonNode>(node));
+			}
+			try {
+				nsrl.push(new ArrayList<PushTask<SkeletonNode>>(tasks));
+			} catch (TaskAbortException e) {
+				for (int k=i; k<j; ++k) {
+					PushTask<SkeletonNode> task = tasks.get(k-i);
+					if (task.meta == null) { continue; }
+					try {
+						postPushTask(task, parents.get(k));
+					} catch (RuntimeException f) {
+						// leave it loaded
+					}
+				}
+				throw e;
+			}
+			for (int k=i; k<j; ++k) {
+				PushTask<SkeletonNode> task = tasks.get(k-i);
+				try {
+					postPushTask(task, parents.get(k));
+				} catch (RuntimeException e) {
+					throw new TaskAbortException("Could not deflate BTreeMap Node " + nodes.get(k).getRange(), e);
+				}
+			}
+		}
+	}
+
 	public class GhostNode extends Node {
 
 		/**
@@ -539,6 +731,22 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 	// metadata is (lkey, rkey), or something..(PROGRESS)
 	BaseCompositeProgress pr_inf = new BaseCompositeProgress();
 	public BaseCompositeProgress getProgressInflate() { return pr_inf; } // REMOVE ME
+	/**
+	** Sets up {@link #pr_inf} to follow the progress of the pulls of nodes,
+	** if the node serialiser can track them.
+	**
+	** @param subject The subject of the progress
+	** @return The map to put the tracking id and tracker of each pull into,
+	**         or {@code null} if they are not tracked
+	*/
+	protected Map<PullTask<SkeletonNode>, ProgressTracker<SkeletonNode, ?>> trackPulls(String subject) {
+		if (!(nsrl instanceof Serialiser.Trackable)) { return null; }
+		Map<PullTask<SkeletonNode>, ProgressTracker<SkeletonNode, ?>> ids = new LinkedHashMap<PullTask<SkeletonNode>, ProgressTracker<SkeletonNode, ?>>();
+		pr_inf.setSubProgress(ProgressTracker.makePullProgressIterable(ids));
+		pr_inf.setSubject(subject);
+		return ids;
+	}
+
 	/**
 	** Parallel bulk-inflate. At the moment, this will inflate all the values
 	** of each nodes too.
@@ -551,6 +759,13 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 		// TODO NORM if we do that, we'll also need to make it thread-safe. (THREAD)
 		// TODO NORM and do the PROGRESS stuff whilst we're at it
 
+		if (parallelism > 0) {
+			Map<PullTask<SkeletonNode>, ProgressTracker<SkeletonNode, ?>> ids = trackPulls("Pulling all entries in B-tree");
+			inflateLevels((SkeletonNode)root, ids);
+			pr_inf.setEstimate(ProgressParts.TOTAL_FINALIZED);
+			return;
+		}
+
 		if (!(nsrl instanceof ScheduledSerialiser)) {
 			// TODO LOW could just use the code below - since the Scheduler would be
 			// unavailable, the tasks could be executed in the current thread, and the
@@ -566,11 +781,9 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 		ProgressTracker<SkeletonNode, ?> ntracker = null;;
 
 		if (nsrl instanceof Serialiser.Trackable) {
-			ids = new LinkedHashMap<PullTask<SkeletonNode>, ProgressTracker<SkeletonNode, ?>>();
 			ntracker = ((Serialiser.Trackable<SkeletonNode>)nsrl).getTracker();
 			// PROGRESS make a ProgressTracker track this instead of "pr_inf".
-			pr_inf.setSubProgress(ProgressTracker.makePullProgressIterable(ids));
-			pr_inf.setSubject("Pulling all entries in B-tree");
+			ids = trackPulls("Pulling all entries in B-tree");
 		}
 
 		final ObjectProcessor<PullTask<SkeletonNode>, SkeletonNode, TaskAbortException> proc_pull
@@ -685,7 +898,285 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 			}
 		}
 	}
-	
+
+	/**
+	** Inflates the tree in key order, passing its entries to the given
+	** acceptor as soon as they are loaded, rather than only once the whole
+	** tree is live.
+	**
+	** The entries are passed in batches, in key order; a batch is flushed
+	** every time the walk has to wait for a node to be pulled, so the first
+	** batch arrives after about one round-trip per level of the tree. Ghost
+	** children of a node are pulled together, in batches of at most {@link
+	** #subtreeParallelism()} nodes.
+	**
+	** If {@code limit} is positive, the walk stops once that many entries have
+	** been passed; any subtree to the right of the last entry passed is left
+	** unloaded. When the sizes of ghost nodes are known, only as many of them
+	** are pulled at once as are needed to reach the limit.
+	**
+	** The acceptor may also stop the walk by throwing {@link
+	** TaskCompleteException}, eg. once it has seen every entry it is looking
+	** for; this method then returns normally, without pulling any more nodes.
+	**
+	** @param limit The maximum number of entries to pass, or a non-positive
+	**        number for all of them
+	** @param acc Acceptor for each batch of entries
+	** @return The number of entries that were passed
+	*/
+	public int inflateInOrder(int limit, Closure<List<Map.Entry<K, V>>, TaskAbortException> acc) throws TaskAbortException {
+		Map<PullTask<SkeletonNode>, ProgressTracker<SkeletonNode, ?>> ids = trackPulls("Pulling entries in B-tree, in order");
+		int max = (limit > 0)? limit: Integer.MAX_VALUE;
+		int[] left = new int[]{max};
+		List<Map.Entry<K, V>> buf = new ArrayList<Map.Entry<K, V>>();
+		try {
+			inflateInOrder((SkeletonNode)root, left, buf, acc, ids);
+			if (!buf.isEmpty()) { acc.invoke(buf); }
+		} catch (TaskCompleteException e) {
+			// the acceptor has all it wants
+		}
+		pr_inf.setEstimate(ProgressParts.TOTAL_FINALIZED);
+		return max - left[0];
+	}
+
+	/**
+	** Recursive part of {@link #inflateInOrder(int, Closure)}.
+	**
+	** @param node The (non-ghost) node to walk
+	** @param left Number of entries still to pass; decremented as they are
+	**        added to {@code buf}
+	** @param buf Entries not yet passed to {@code acc}
+	** @return Whether the walk should continue
+	*/
+	protected boolean inflateInOrder(SkeletonNode node, int[] left, List<Map.Entry<K, V>> buf,
+		Closure<List<Map.Entry<K, V>>, TaskAbortException> acc,
+		Map<PullTask<SkeletonNode>, ProgressTracker<SkeletonNode, ?>> ids
+		) throws TaskAbortException {
+		((SkeletonTreeMap<K, V>)node.entries).inflate();
+		Iterator<Map.Entry<K, V>> it = node.entries.entrySet().iterator();
+		if (node.isLeaf()) {
+			while (it.hasNext()) {
+				if (left[0] == 0) { return false; }
+				buf.add(it.next());
+				--left[0];
+			}
+			return true;
+		}
+
+		List<K> lkeys = new ArrayList<K>(node.childCount());
+		for (X3<K, Node, K> sub: node.iterNodesK()) { lkeys.add(sub._0); }
+
+		ProgressTracker<SkeletonNode, ?> ntracker = (ids != null)? ((Serialiser.Trackable<SkeletonNode>)nsrl).getTracker(): null;
+		int conc = subtreeParallelism();
+		for (int i=0; i<lkeys.size();) {
+			// a child may have used up the limit exactly; the batch below would be empty
+			if (left[0] == 0) { return false; }
+			// pull the next few ghosts, but no more than are needed to reach the limit
+			List<PullTask<SkeletonNode>> tasks = new ArrayList<PullTask<SkeletonNode>>();
+			List<SkeletonNode> parents = new ArrayList<SkeletonNode>();
+			long covered = 0;
+			int j = i;
+			for (; j<lkeys.size() && j-i<conc && covered<left[0]; ++j) {
+				Node sub = node.rnodes.get(lkeys.get(j));
+				if (sub.isGhost()) {
+					PullTask<SkeletonNode> task = new PullTask<SkeletonNode>(sub);
+					if (ids != null) { ids.put(task, ntracker); }
+					tasks.add(task);
+					parents.add(node);
+				}
+				// _size of a ghost is the size of its whole subtree, if known;
+				// add one for the entry to the right of the subtree
+				covered += ((sub._size > 0)? sub._size: 0) + 1;
+			}
+			if (!tasks.isEmpty()) {
+				if (!buf.isEmpty()) {
+					acc.invoke(new ArrayList<Map.Entry<K, V>>(buf));
+					buf.clear();
+				}
+				pullNodes(tasks, parents, new ArrayList<SkeletonNode>(tasks.size()));
+			}
+
+			for (; i<j; ++i) {
+				if (!inflateInOrder((SkeletonNode)node.rnodes.get(lkeys.get(i)), left, buf, acc, ids)) { return false; }
+				if (!it.hasNext()) { continue; }
+				if (left[0] == 0) { return false; }
+				buf.add(it.next());
+				--left[0];
+			}
+		}
+		return true;
+	}
+
+	/**
+	** Gets the keys from {@code lo} (inclusive) to {@code hi} (exclusive), in
+	** order, using only the keys held by the nodes. No values are loaded, and
+	** only the nodes whose range overlaps the given range are pulled; the
+	** ghost children of a node which are needed are pulled together.
+	**
+	** @param lo The lowest key, or {@code null} for no lower bound
+	** @param hi The key just above the range, or {@code null} for no upper
+	**        bound
+	*/
+	public SortedSet<K> keysInRange(K lo, K hi) throws TaskAbortException {
+		SortedSet<K> keys = new TreeSet<K>(comparator);
+		keysInRange((SkeletonNode)root, lo, hi, keys);
+		return keys;
+	}
+
+	/**
+	** Recursive part of {@link #keysInRange(Object, Object)}.
+	**
+	** @param node The (non-ghost) node to search
+	*/
+	protected void keysInRange(SkeletonNode node, K lo, K hi, SortedSet<K> keys) throws TaskAbortException {
+		for (K key: node.entries.keySet()) {
+			if (lo != null && compare(key, lo) < 0) { continue; }
+			if (hi != null && compare(key, hi) >= 0) { break; }
+			keys.add(key);
+		}
+		if (node.isLeaf()) { return; }
+
+		List<K> lkeys = new ArrayList<K>();
+		List<PullTask<SkeletonNode>> tasks = new ArrayList<PullTask<SkeletonNode>>();
+		List<SkeletonNode> parents = new ArrayList<SkeletonNode>();
+		for (X3<K, Node, K> sub: node.iterNodesK()) {
+			// the subtree holds the keys strictly between its lkey and rkey
+			if (lo != null && sub._2 != null && compare(sub._2, lo) <= 0) { continue; }
+			if (hi != null && sub._0 != null && compare(sub._0, hi) >= 0) { break; }
+			lkeys.add(sub._0);
+			if (sub._1.isGhost()) {
+				tasks.add(new PullTask<SkeletonNode>(sub._1));
+				parents.add(node);
+			}
+		}
+		if (!tasks.isEmpty()) {
+			pullNodes(tasks, parents, new ArrayList<SkeletonNode>(tasks.size()));
+		}
+		for (K lkey: lkeys) {
+			keysInRange((SkeletonNode)node.rnodes.get(lkey), lo, hi, keys);
+		}
+	}
+
+	/**
+	** {@inheritDoc}
+	**
+	** @see #scan(SortedSet, boolean, Closure)
+	*/
+	public void scan(SortedSet<K> keys, Closure<Map<K, V>, TaskAbortException> acc) throws TaskAbortException {
+		scan(keys, true, acc);
+	}
+
+	/**
+	** Reads the entries for the given keys, or every entry, without changing
+	** the tree. The nodes that hold them are pulled level-by-level, as in
+	** {@link #inflateLevels(SkeletonNode, Map)}, but they are not attached;
+	** the values are pulled through {@link
+	** SkeletonTreeMap#pullDetached(Collection)}. So a tree that is bare stays
+	** bare, and none of it has to be pushed again.
+	**
+	** The entries are passed one node at a time, and not in key order.
+	**
+	** @param keys The keys to read, or {@code null} for every key
+	** @param values Whether to pull the values; if not, the entries passed
+	**        have {@code null} values
+	** @param acc Acceptor for the entries of each node
+	*/
+	protected void scan(SortedSet<K> keys, boolean values, Closure<Map<K, V>, TaskAbortException> acc) throws TaskAbortException {
+		if (keys != null && keys.isEmpty()) { return; }
+		List<SkeletonNode> level = Collections.singletonList((SkeletonNode)root);
+		List<SortedSet<K>> want = Collections.singletonList(keys);
+		while (!level.isEmpty()) {
+			List<SkeletonNode> next = new ArrayList<SkeletonNode>();
+			List<SortedSet<K>> nextw = new ArrayList<SortedSet<K>>();
+			List<PullTask<SkeletonNode>> tasks = new ArrayList<PullTask<SkeletonNode>>();
+			List<SortedSet<K>> taskw = new ArrayList<SortedSet<K>>();
+			for (int i=0; i<level.size(); ++i) {
+				SkeletonNode node = level.get(i);
+				SortedSet<K> w = want.get(i);
+
+				Collection<K> local;
+				List<SortedSet<K>> ranges = null;
+				if (w == null) {
+					local = node.entries.keySet();
+				} else {
+					local = new TreeSet<K>(comparator);
+					ranges = Sorted.split(w, Sorted.keySet(node.entries), (SortedSet<K>)local);
+				}
+				if (!local.isEmpty()) {
+					Map<K, V> found;
+					if (values) {
+						found = ((SkeletonTreeMap<K, V>)node.entries).pullDetached(local);
+					} else {
+						found = new LinkedHashMap<K, V>();
+						for (K key: local) { found.put(key, null); }
+					}
+					acc.invoke(found);
+				}
+				if (node.isLeaf()) { continue; }
+
+				List<Node> subs = new ArrayList<Node>();
+				List<SortedSet<K>> subw = new ArrayList<SortedSet<K>>();
+				if (w == null) {
+					for (Node sub: node.iterNodes()) { subs.add(sub); subw.add(null); }
+				} else {
+					for (SortedSet<K> rng: ranges) { subs.add(node.selectNode(rng.first())); subw.add(rng); }
+				}
+				for (int j=0; j<subs.size(); ++j) {
+					Node sub = subs.get(j);
+					if (sub.isGhost()) {
+						tasks.add(new PullTask<SkeletonNode>(sub));
+						taskw.add(subw.get(j));
+					} else {
+						next.add((SkeletonNode)sub);
+						nextw.add(subw.get(j));
+					}
+				}
+			}
+			next.addAll(pullDetached(tasks));
+			nextw.addAll(taskw);
+			level = next;
+			want = nextw;
+		}
+	}
+
+	/**
+	** Pulls the given ghost nodes in batches of at most {@link
+	** #subtreeParallelism()} nodes, without attaching them to the tree.
+	**
+	** @param tasks Tasks for the ghost nodes
+	** @return The nodes pulled, in the same order as the tasks
+	*/
+	protected List<SkeletonNode> pullDetached(List<PullTask<SkeletonNode>> tasks) throws TaskAbortException {
+		List<SkeletonNode> nodes = new ArrayList<SkeletonNode>(tasks.size());
+		int conc = subtreeParallelism();
+		for (int i=0; i<tasks.size(); i+=conc) {
+			List<PullTask<SkeletonNode>> batch = new ArrayList<PullTask<SkeletonNode>>(tasks.subList(i, Math.min(i+conc, tasks.size())));
+			List<PullTask<SkeletonNode>> pending = batch;
+			while (!pending.isEmpty()) {
+				// copy, since the serialiser may remove tasks that are already in progress
+				nsrl.pull(new ArrayList<PullTask<SkeletonNode>>(pending));
+				// a task for a node that another thread was already pulling is
+				// dropped by the serialiser without its data, so pull it again
+				pending = new ArrayList<PullTask<SkeletonNode>>();
+				for (int k=0; k<batch.size(); ++k) {
+					if (batch.get(k).data != null) { continue; }
+					PullTask<SkeletonNode> task = new PullTask<SkeletonNode>(batch.get(k).meta);
+					batch.set(k, task);
+					pending.add(task);
+				}
+			}
+			for (PullTask<SkeletonNode> task: batch) {
+				SkeletonNode node = task.data;
+				@SuppressWarnings("unchecked") GhostNode ghost = (GhostNode)task.meta;
+				if (!compare0(ghost.lkey, node.lkey) || !compare0(ghost.rkey, node.rkey)) {
+					throw new TaskAbortException("Could not inflate BTreeMap Node " + ghost.getRange(), new DataFormatException("BTreeMap Node lkey/rkey does not match", null, node));
+				}
+				nodes.add(node);
+			}
+		}
+		return nodes;
+	}
+
 	/**
 	** {@inheritDoc}
 	**
@@ -742,50 +1233,25 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 		update(putkey, remkey, null, value_handler, conv);
 	}
 
-	/**
-	** The executor backing {@link #VALUE_EXECUTOR}.
-	*/
-	private static Executor value_exec = null;
-
 	/**
 	 * Separate executor for value handlers. Value handlers can themselves call
 	 * update() and end up polling, so we need to keep them separate from the 
-	 * threads that do the actual work! */
+	 * threads that do the actual work! This is a wrapper around the {@link
+	 * ExecutionConfig.Role#VALUE} pool, which rejects jobs when its queue is
+	 * full; {@link ObjectProcessor} then retries them later. */
 	final public static Executor VALUE_EXECUTOR = new Executor() {
 		/*@Override**/ public void execute(Runnable r) {
-			synchronized (Executors.class) {
-				if (value_exec == null) {
-					value_exec = new ThreadPoolExecutor(
-						0, 0x40, 60, TimeUnit.SECONDS,
-						new LinkedBlockingQueue<Runnable>(),
-						new ThreadPoolExecutor.CallerRunsPolicy()
-					);
-				}
-			}
-			value_exec.execute(r);
+			ExecutionConfig.get(ExecutionConfig.Role.VALUE).execute(r);
 		}
 	};
 
-	/**
-	** The executor backing {@link #VALUE_EXECUTOR}.
-	*/
-	private static Executor deflate_exec = null;
-
 	/**
 	 * Separate executor for deflating. We don't want update()'s to prevent actual
-	 * pushes. */
+	 * pushes. This is a wrapper around the {@link ExecutionConfig.Role#DEFLATE}
+	 * pool, which behaves like the one for {@link #VALUE_EXECUTOR}. */
 	final public static Executor DEFLATE_EXECUTOR = new Executor() {
 		/*@Override**/ public void execute(Runnable r) {
-			synchronized (Executors.class) {
-				if (deflate_exec == null) {
-					deflate_exec = new ThreadPoolExecutor(
-						0, 0x40, 60, TimeUnit.SECONDS,
-						new LinkedBlockingQueue<Runnable>(),
-						new ThreadPoolExecutor.CallerRunsPolicy()
-					);
-				}
-			}
-			deflate_exec.execute(r);
+			ExecutionConfig.get(ExecutionConfig.Role.DEFLATE).execute(r);
 		}
 	};
 
@@ -806,9 +1272,9 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 	** This is a wrapper method to deal with the occasional key rejection due to
 	** trying to add too many keys to a single node. It also checks parameters.
 	**
-	** Note: {@code remkey} is not implemented yet.
-	**
-	** @throws UnsupportedOperationException if {@code remkey} is not empty
+	** Keys in {@code remkey} are removed first, by {@link #removeAll(SortedSet)},
+	** before the keys in {@code putkey} are merged in. See that method for why
+	** they are not removed in the same pass.
 	*/
 	protected <X extends Exception> void update(
 		SortedSet<K> putkey, SortedSet<K> remkey,
@@ -828,12 +1294,12 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 		}
 
 		if (remkey != null && !remkey.isEmpty()) {
-			throw new UnsupportedOperationException("SkeletonBTreeMap: update() currently only supports merge operations");
+			removeAll(remkey);
 		}
 
 		// Handle keys rejected due to node too small for the number of keys we are adding to it.
 		
-		while(true) {
+		while(putkey != null && !putkey.isEmpty()) {
 		
 			final SortedSet<K> rejected;
 			if(value_handler == null)
@@ -849,6 +1315,149 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 		}
 	}
 
+	/**
+	** Removes the given keys from a remote B-tree.
+	**
+	** Unlike the merge pass of {@link #update(SortedSet, SortedSet, SortedMap,
+	** Closure, ExceptionConvertor) update()}, this uses the one-pass algorithm
+	** of {@link BTreeMap#remove(Object)}, which merges or rotates underfull
+	** nodes on the way down, so that no node is left with fewer than {@link
+	** #ENT_MIN} entries. The merge pass cannot do this: it only pulls the nodes
+	** on the paths to the keys it changes, and pushes each node as soon as its
+	** subtree is done, whereas fixing an underfull node needs one of its
+	** siblings, which may be off those paths, and may change its parent after
+	** the parent's other children were pushed.
+	**
+	** Instead, the nodes on the paths to all the keys are pulled first, level
+	** by level, by {@link #inflatePaths(SortedSet)}. The keys are then removed
+	** one by one; {@link BTreeMap#remove(Object)} only throws {@link
+	** DataNotLoadedException} (for a sibling that is needed for a merge or a
+	** rotation) before it has changed anything at the current level, so it is
+	** simply retried after pulling that node. The tree is deflated once, at
+	** the end, so each node that was changed is pushed once, and no other
+	** node is pulled or pushed.
+	**
+	** The values of every node that is pulled are inflated too, since merges
+	** and rotations move values between nodes. If the values are packed into
+	** bins (eg. by a {@link plugins.Library.io.serial.Packer}), a bin might
+	** otherwise end up referred to by several nodes, or hold values that have
+	** already been removed; with all the values loaded, each modified node is
+	** repacked into fresh bins when it is pushed.
+	**
+	** It is '''assumed''' that the root is bare when this is called; it will
+	** be bare again on return.
+	**
+	** @param remkey Keys to remove
+	** @return The number of keys that were actually in the map
+	*/
+	protected int removeAll(SortedSet<K> remkey) throws TaskAbortException {
+		inflatePaths(remkey);
+		int removed = 0;
+		for (K key: remkey) {
+			int sz = size;
+			removeLoaded(key);
+			if (size != sz) { ++removed; }
+		}
+		deflateAfterRemove();
+		return removed;
+	}
+
+	/**
+	** Pulls the nodes on the paths from the root to the given keys, and their
+	** values. The ghost children of all the nodes on one level that are on
+	** the paths are pulled together, in batches of at most {@link
+	** #subtreeParallelism()} nodes, before moving on to the next level.
+	**
+	** @param keys The keys
+	*/
+	protected void inflatePaths(SortedSet<K> keys) throws TaskAbortException {
+		List<SkeletonNode> level = Collections.singletonList((SkeletonNode)root);
+		List<SortedSet<K>> want = Collections.singletonList(keys);
+		while (!level.isEmpty()) {
+			List<SkeletonNode> next = new ArrayList<SkeletonNode>();
+			List<SortedSet<K>> nextw = new ArrayList<SortedSet<K>>();
+			List<PullTask<SkeletonNode>> tasks = new ArrayList<PullTask<SkeletonNode>>();
+			List<SkeletonNode> parents = new ArrayList<SkeletonNode>();
+			List<SortedSet<K>> taskw = new ArrayList<SortedSet<K>>();
+			for (int i=0; i<level.size(); ++i) {
+				SkeletonNode node = level.get(i);
+				inflateEntries(node);
+				if (node.isLeaf()) { continue; }
+				for (SortedSet<K> rng: Sorted.split(want.get(i), Sorted.keySet(node.entries), new TreeSet<K>(comparator))) {
+					Node sub = node.selectNode(rng.first());
+					if (sub.isGhost()) {
+						tasks.add(new PullTask<SkeletonNode>(sub));
+						parents.add(node);
+						taskw.add(rng);
+					} else {
+						next.add((SkeletonNode)sub);
+						nextw.add(rng);
+					}
+				}
+			}
+			pullNodes(tasks, parents, next);
+			nextw.addAll(taskw);
+			level = next;
+			want = nextw;
+		}
+	}
+
+	/**
+	** Removes a key, pulling nodes as needed. See {@link #removeAll(SortedSet)}.
+	*/
+	protected void removeLoaded(K key) throws TaskAbortException {
+		inflateEntries((SkeletonNode)root);
+		for (;;) {
+			try {
+				remove(key);
+				return;
+			} catch (DataNotLoadedException e) {
+				if (!(e.getValue() instanceof SkeletonBTreeMap.GhostNode)) {
+					throw new TaskAbortException("Unexpected unloaded data while removing key " + key, e);
+				}
+				// merges and rotations move subnodes to other parents
+				resetGhosts((SkeletonNode)root);
+				@SuppressWarnings("unchecked") GhostNode ghost = (GhostNode)e.getValue();
+				SkeletonNode parent = ghost.parent;
+				parent.inflate(ghost.lkey, false);
+				inflateEntries((SkeletonNode)parent.rnodes.get(ghost.lkey));
+			}
+		}
+	}
+
+	private void inflateEntries(SkeletonNode node) throws TaskAbortException {
+		SkeletonTreeMap<K, V> map = (SkeletonTreeMap<K, V>)node.entries;
+		if (!map.isLive()) { map.inflate(); }
+	}
+
+	/**
+	** Recounts {@link SkeletonNode#ghosts} and resets {@link GhostNode#parent}
+	** for the loaded part of the subtree under the given node.
+	**
+	** The merge and rotate operations of {@link BTreeMap} move subnodes from
+	** one node to another without going through {@link
+	** SkeletonNode#addChildNode(Node)}, so afterwards these fields are stale.
+	*/
+	protected void resetGhosts(SkeletonNode node) {
+		if (node.isLeaf()) { return; }
+		int g = 0;
+		for (Node sub: node.iterNodes()) {
+			if (sub.isGhost()) {
+				((GhostNode)sub).parent = node;
+				++g;
+			} else {
+				resetGhosts((SkeletonNode)sub);
+			}
+		}
+		node.ghosts = g;
+	}
+
+	private void deflateAfterRemove() throws TaskAbortException {
+		resetGhosts((SkeletonNode)root);
+		deflate();
+		assert(isBare());
+	}
+
 	protected <X extends Exception> void update(
 			SortedSet<K> putkey, 
 			final SortedMap<K, V> putmap, Closure<Map.Entry<K, V>, X> value_handler,
@@ -895,22 +1504,18 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 		// be quite fiddly. also, the current way allows the Packer to be more
 		// aggressive in packing the values into splitfiles.
 
-		// FIXME NORM - currently, there is a potential deadlock issue here,
-		// because proc_{pull,push,val} all use the same ThreadPoolExecutor to
-		// execute tasks. if the pool fills up with manager tasks {pull,push}
-		// then worker tasks {val} cannot execute, resulting in deadlock. at
-		// present, this is avoided by having ObjectProcessor.maxconc less than
-		// the poolsize, but future developers may change this unknowingly.
-		//
-		// a proper solution would be to have manager and worker tasks use
-		// different thread pools, ie. different ThreadPoolExecutors. care
-		// needs to be taken when doing this because the call can be recursive;
-		// ie. if the values are also SkeletonBTreeMaps, then the workers might
-		// start child "manager" tasks by calling value.update()
+		// Threads and deadlock: if nsrl is an AsyncArchiver (see
+		// ParallelSerialiser#isAsync()), proc_{pull,push} jobs only start a
+		// request and return; the request calls back when it completes, and
+		// the data is decoded in Executors.CPU_EXECUTOR. no thread waits for
+		// a node, so the number of nodes in flight is limited by maxconc, not
+		// by the number of threads, and the pool that runs proc_val (whose
+		// workers may recursively call update() on the values) can never be
+		// filled up by pull/push tasks. ObjectProcessor.postProcess never
+		// blocks either, so a full output queue does not hold a thread.
 		//
-		// arguably a better solution would be to not use threads, and use
-		// the async interface (i should have done this when i first coded it).
-		// see doc/todo.txt for details
+		// if nsrl is not asynchronous, each pull/push still occupies a thread
+		// of its executor while it runs, as before.
 
 		final ObjectProcessor<PullTask<SkeletonNode>, SafeClosure<SkeletonNode>, TaskAbortException> proc_pull
 		= ((ScheduledSerialiser<SkeletonNode>)nsrl).pullSchedule(
@@ -1332,20 +1937,15 @@ public class SkeletonBTreeMap<K, V> extends BTreeMap<K, V> implements SkeletonMa
 			int olds = size;
 
 			boolean progress = true;
-			int count = 0;
-			int ccount = 0;
 			
 			do {
 
 				//System.out.println(System.identityHashCode(this) + " " + proc_pull + " " + proc_push + " " + ((proc_val == null)? "": proc_val));
 
-				// Only sleep if we run out of jobs.
-				if((!progress) && (count++ > 10)) {
-					count = 0;
-//					if(ccount++ > 10) {
-						System.out.println(/*System.identityHashCode(this) + " " + */proc_val + " " + proc_pull + " " + proc_push+ " "+proc_deflate);
-//						ccount = 0;
-//					}
+				// Only sleep if we run out of jobs. All the processors notify the
+				// notifier when a result is ready, so we don't need to poll.
+				if(!progress) {
+					if(logMINOR) Logger.minor(this, "Waiting: "+proc_val + " " + proc_pull + " " + proc_push+ " "+proc_deflate);
 					notifier.waitUpdate(1000);
 				}
 				progress = false;
@@ -9,9 +9,11 @@ import plugins.Library.io.serial.IterableSerialiser;
 import plugins.Library.io.serial.MapSerialiser;
 import plugins.Library.io.serial.Translator;
 import plugins.Library.util.exec.TaskAbortException;
+import plugins.Library.util.func.Closure;
 
 import java.util.Comparator;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
 import java.util.SortedSet;
@@ -66,6 +68,44 @@ public class SkeletonBTreeSet<E> extends BTreeSet<E> /*implements Skeleton<E, Ma
 		((SkeletonBTreeMap<E, E>)bkmap).inflate();
 	}
 
+	/**
+	** @see SkeletonBTreeMap#setParallelism(int)
+	*/
+	public void setParallelism(int n) {
+		((SkeletonBTreeMap<E, E>)bkmap).setParallelism(n);
+	}
+
+	/**
+	** Inflates the set in order, passing its elements to the given acceptor
+	** as soon as they are loaded.
+	**
+	** @see SkeletonBTreeMap#inflateInOrder(int, Closure)
+	*/
+	public int inflateInOrder(int limit, final Closure<List<E>, TaskAbortException> acc) throws TaskAbortException {
+		return ((SkeletonBTreeMap<E, E>)bkmap).inflateInOrder(limit, new Closure<List<Map.Entry<E, E>>, TaskAbortException>() {
+			/*@Override**/ public void invoke(List<Map.Entry<E, E>> batch) throws TaskAbortException {
+				List<E> keys = new ArrayList<E>(batch.size());
+				for (Map.Entry<E, E> en: batch) { keys.add(en.getKey()); }
+				acc.invoke(keys);
+			}
+		});
+	}
+
+	/**
+	** Reads the elements of the set without changing it, so a set that is
+	** bare stays bare. The elements are passed a node at a time, and not in
+	** order.
+	**
+	** @see SkeletonBTreeMap#scan(SortedSet, boolean, Closure)
+	*/
+	public void scan(final Closure<Collection<E>, TaskAbortException> acc) throws TaskAbortException {
+		((SkeletonBTreeMap<E, E>)bkmap).scan(null, false, new Closure<Map<E, E>, TaskAbortException>() {
+			/*@Override**/ public void invoke(Map<E, E> node) throws TaskAbortException {
+				acc.invoke(node.keySet());
+			}
+		});
+	}
+
 	// TODO NORM tidy this - see SkeletonBTreeMap.inflate() for details
 	public plugins.Library.util.exec.BaseCompositeProgress getProgressInflate() {
 		return ((SkeletonBTreeMap<E, E>)bkmap).pr_inf;
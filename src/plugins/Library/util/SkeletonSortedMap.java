@@ -0,0 +1,84 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.util;
+
+import plugins.Library.util.concurrent.ExceptionConvertor;
+import plugins.Library.util.exec.TaskAbortException;
+import plugins.Library.util.func.Closure;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+
+/**
+** A {@link SkeletonMap} that is sorted, and which is backed by a tree whose
+** parts are loaded separately, such as {@link SkeletonBTreeMap} or {@link
+** SkeletonBPlusTreeMap}. This has the operations that an index needs from its
+** tables, independently of how the tree is laid out.
+*/
+public interface SkeletonSortedMap<K, V> extends SkeletonMap<K, V>, SortedMap<K, V> {
+
+	/**
+	** Inflates the value for a key, as in {@link #inflate(Object)}. If
+	** {@code deflateRest} is {@code true}, other parts of the tree that are
+	** loaded may be deflated first, to bound the memory used.
+	*/
+	public void inflate(K key, boolean deflateRest) throws TaskAbortException;
+
+	/**
+	** Returns the keys in the given range, pulling only the parts of the tree
+	** that overlap it. The values are not inflated.
+	**
+	** @param lo The lowest key, or {@code null} for no lower bound
+	** @param hi The key just above the range, or {@code null} for no upper
+	**        bound
+	*/
+	public SortedSet<K> keysInRange(K lo, K hi) throws TaskAbortException;
+
+	/**
+	** Updates a remote tree. It is '''assumed''' that the tree is bare when
+	** this is called; it will be bare again on return.
+	**
+	** @param putmap Entries to insert into this map
+	** @param remkey Keys to remove from this map
+	*/
+	public void update(SortedMap<K, V> putmap, SortedSet<K> remkey) throws TaskAbortException;
+
+	/**
+	** Updates a remote tree, as {@link #update(SortedMap, SortedSet)}. The
+	** value for each key to insert is produced by the given closure, which is
+	** passed an entry holding the current value, or {@code null} if the key is
+	** not yet in the map.
+	**
+	** @param putkey Keys to insert into this map
+	** @param remkey Keys to remove from this map
+	** @param value_handler Closure to retrieve the value for each putkey
+	*/
+	public <X extends Exception> void update(SortedSet<K> putkey, SortedSet<K> remkey, Closure<Map.Entry<K, V>, X> value_handler, ExceptionConvertor<X> conv) throws TaskAbortException;
+
+	/**
+	** Reads the entries for the given keys, or every entry, without changing
+	** the map: the parts of the tree that are needed are pulled, but they are
+	** not attached to it, so a map that is bare stays bare, and nothing has
+	** to be pushed again. Keys which are not in the map are ignored.
+	**
+	** @param keys The keys to read, or {@code null} for every key
+	** @param acc Acceptor for the entries; it is called several times, with
+	**        a few entries each time, and not in key order
+	*/
+	public void scan(SortedSet<K> keys, Closure<Map<K, V>, TaskAbortException> acc) throws TaskAbortException;
+
+	/**
+	** Returns a view of the keys that pulls the tree as it is iterated over,
+	** and deflates it again afterwards.
+	*/
+	public Set<K> keySetAutoDeflate();
+
+	/**
+	** Returns an estimate of the number of levels of the tree.
+	*/
+	public int heightEstimate();
+
+}
@@ -270,6 +270,48 @@ implements Map<K, V>, SortedMap<K, V>, SkeletonMap<K, V>, Cloneable {
 		}
 	}
 
+	/**
+	** Returns the values for the given keys without changing the map. Values
+	** which are not loaded are pulled, but they are not put into the map, so
+	** a map that is bare stays bare, and does not have to be pushed again.
+	** Keys which are not in the map are ignored.
+	**
+	** @param keys The keys to get the values for
+	** @return Map from each key that is in this map to its value
+	*/
+	public Map<K, V> pullDetached(Collection<K> keys) throws TaskAbortException {
+		Map<K, V> values = new HashMap<K, V>(keys.size()<<1);
+		Map<K, PullTask<V>> tasks = new HashMap<K, PullTask<V>>();
+		for (K key: keys) {
+			SkeletonValue<V> skel = skmap.get(key);
+			if (skel == null) { continue; }
+			if (skel.isLoaded()) {
+				values.put(key, skel.data());
+			} else {
+				tasks.put(key, new PullTask<V>(skel.meta()));
+			}
+		}
+		if (tasks.isEmpty()) { return values; }
+		if (serialiser == null) { throw new IllegalStateException("No serialiser set for this structure."); }
+
+		while (!tasks.isEmpty()) {
+			serialiser.pull(tasks, mapmeta);
+			// a task for a value that another thread was already pulling is
+			// dropped by the serialiser without its data, so pull it again
+			for (Iterator<Map.Entry<K, PullTask<V>>> it = tasks.entrySet().iterator(); it.hasNext();) {
+				Map.Entry<K, PullTask<V>> en = it.next();
+				PullTask<V> task = en.getValue();
+				if (task.data == null) {
+					en.setValue(new PullTask<V>(task.meta));
+				} else {
+					values.put(en.getKey(), task.data);
+					it.remove();
+				}
+			}
+		}
+		return values;
+	}
+
 	/************************************************************************
 	** {@link Translator} with access to the members of {@link TreeMap}.
 	**
@@ -863,87 +905,3 @@ implements Map<K, V>, SortedMap<K, V>, SkeletonMap<K, V>, Cloneable {
 
 
 }
-
-/************************************************************************
-** A class that wraps the associated value (which may not be loaded) of a
-** key in a {@link SkeletonTreeMap}, along with metadata and its loaded
-** status.
-**
-** meta and data are private with accessors to ensure proper encapsulation 
-** i.e. the only way data can be != null is if isLoaded(), and the only way
-** meta can be != null is if !isLoaded(). Note that with the methods and the
-** class final, there should be no performance penalty. 
-**
-** @author infinity0
-*/
-final class SkeletonValue<V> implements Cloneable {
-
-	private Object meta;
-	private V data;
-	
-	private boolean isLoaded;
-
-	public SkeletonValue(V d, Object o, boolean loaded) {
-		if(loaded) {
-			assert(o == null);
-			// Null data is allowed as we use it in SkeletonBTreeMap.update() as a placeholder.
-			isLoaded = true;
-			data = d;
-		} else {
-			assert(d == null);
-			assert(o != null); // null metadata is invalid, right?
-			isLoaded = false;
-			meta = o;
-		}
-	}
-
-	public final V data() {
-		return data;
-	}
-
-	public final Object meta() {
-		return meta;
-	}
-	
-	public final boolean isLoaded() {
-		return isLoaded;
-	}
-
-	/**
-	** Set the data and mark the value as loaded.
-	*/
-	public V set(V v) {
-		V old = data;
-		data = v;
-		// meta = null; TODO LOW decide what to do with this.
-		isLoaded = true;
-		return old;
-	}
-
-	/**
-	** Set the metadata and mark the value as not loaded.
-	*/
-	public Object setGhost(Object m) {
-		if(m == null) throw new NullPointerException();
-		Object old = meta;
-		meta = m;
-		data = null;
-		isLoaded = false;
-		return old;
-	}
-
-	@Override public String toString() {
-		return "(" + data + ", " + meta + ", " + isLoaded + ")";
-	}
-
-	@Override public SkeletonValue<V> clone() {
-		try {
-			return (SkeletonValue<V>)super.clone();
-		} catch (CloneNotSupportedException e) {
-			throw new AssertionError(e);
-		}
-	}
-
-}
-
-
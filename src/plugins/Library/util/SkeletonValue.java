@@ -0,0 +1,89 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.util;
+
+/**
+** A class that wraps the associated value (which may not be loaded) of a
+** key in a {@link SkeletonTreeMap}, along with metadata and its loaded
+** status.
+**
+** meta and data are private with accessors to ensure proper encapsulation 
+** i.e. the only way data can be != null is if isLoaded(), and the only way
+** meta can be != null is if !isLoaded(). Note that with the methods and the
+** class final, there should be no performance penalty. 
+**
+** @author infinity0
+*/
+final class SkeletonValue<V> implements Cloneable {
+
+	private Object meta;
+	private V data;
+	
+	private boolean isLoaded;
+
+	public SkeletonValue(V d, Object o, boolean loaded) {
+		if(loaded) {
+			assert(o == null);
+			// Null data is allowed as we use it in SkeletonBTreeMap.update() as a placeholder.
+			isLoaded = true;
+			data = d;
+		} else {
+			assert(d == null);
+			assert(o != null); // null metadata is invalid, right?
+			isLoaded = false;
+			meta = o;
+		}
+	}
+
+	public final V data() {
+		return data;
+	}
+
+	public final Object meta() {
+		return meta;
+	}
+	
+	public final boolean isLoaded() {
+		return isLoaded;
+	}
+
+	/**
+	** Set the data and mark the value as loaded.
+	*/
+	public V set(V v) {
+		V old = data;
+		data = v;
+		// meta = null; TODO LOW decide what to do with this.
+		isLoaded = true;
+		return old;
+	}
+
+	/**
+	** Set the metadata and mark the value as not loaded.
+	*/
+	public Object setGhost(Object m) {
+		if(m == null) throw new NullPointerException();
+		Object old = meta;
+		meta = m;
+		data = null;
+		isLoaded = false;
+		return old;
+	}
+
+	@Override public String toString() {
+		return "(" + data + ", " + meta + ", " + isLoaded + ")";
+	}
+
+	@Override public SkeletonValue<V> clone() {
+		try {
+			@SuppressWarnings("unchecked") SkeletonValue<V> v = (SkeletonValue<V>)super.clone();
+			return v;
+		} catch (CloneNotSupportedException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+}
+
+
@@ -0,0 +1,253 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.util.concurrent;
+
+import freenet.support.Logger;
+
+import java.lang.reflect.Method;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+** Central configuration of the thread pools used by Library. Each kind of
+** work has its own {@link Role}, and each role has its own {@link
+** MeteredExecutor}, with a fixed number of threads and a bounded queue, so
+** that the total number of threads is known, and one kind of work cannot
+** starve another.
+**
+** Pools are created when first {@linkplain #get(Role) used}. The number of
+** threads can be changed at any time; the queue capacity only before the
+** pool is created.
+**
+** If the JVM supports virtual threads (Java 21 or later), {@link
+** #setVirtualThreads(boolean)} makes the roles whose jobs mostly wait for
+** I/O run them on virtual threads, and raises their thread limits, so that
+** the number of requests in flight is not bounded by the number of OS
+** threads. Jobs for the other roles always run on platform threads.
+*/
+public class ExecutionConfig {
+
+	/**
+	** The kinds of work done by Library.
+	*/
+	public enum Role {
+
+		/**
+		** Jobs which fetch or insert data, and wait for the network. Fed by
+		** {@link plugins.Library.io.serial.ParallelSerialiser}.
+		*/
+		FETCH("fetch", 0x40, 0x400, 0x400, true),
+
+		/**
+		** Jobs which decode fetched data. These only use the CPU, and must
+		** not wait for anything. See {@link Executors#CPU_EXECUTOR}.
+		*/
+		DECODE("decode", Executors.CPU_THREADS, 0, 0x1000, true),
+
+		/**
+		** Value handlers of {@link plugins.Library.util.SkeletonBTreeMap}
+		** updates, which merge new entries into existing values.
+		*/
+		VALUE("value-merge", 0x10, 0, 0x100, false),
+
+		/**
+		** Jobs which deflate (push) the nodes of an updated B-tree.
+		*/
+		DEFLATE("deflate", 0x10, 0, 0x100, false),
+
+		/**
+		** Jobs which look up and combine search results. These wait for
+		** fetches to complete.
+		*/
+		SEARCH("search", 0x10, 0x100, 0x100, true),
+
+		/**
+		** Jobs which format results for the web interface.
+		*/
+		RENDER("render", 4, 0, 0x40, true);
+
+		final public String name;
+
+		/** Default number of platform threads. */
+		final public int threads;
+
+		/**
+		** Default number of virtual threads, or 0 if the jobs of this role
+		** should not run on virtual threads.
+		*/
+		final public int virtualThreads;
+
+		/** Default capacity of the queue. */
+		final public int capacity;
+
+		/**
+		** Whether a job is run by its submitter when the queue is full, or
+		** rejected. Roles fed by {@link ObjectProcessor} reject, since it
+		** holds on to rejected jobs and retries them.
+		*/
+		final public boolean callerRuns;
+
+		Role(String n, int t, int vt, int cap, boolean cr) {
+			name = n;
+			threads = t;
+			virtualThreads = vt;
+			capacity = cap;
+			callerRuns = cr;
+		}
+
+	}
+
+	final private static Map<Role, MeteredExecutor> pools = new EnumMap<Role, MeteredExecutor>(Role.class);
+	final private static Map<Role, Integer> threads = new EnumMap<Role, Integer>(Role.class);
+	final private static Map<Role, Integer> capacity = new EnumMap<Role, Integer>(Role.class);
+
+	private static boolean virtual;
+
+	/**
+	** Factory for virtual threads, or null if the JVM does not support them.
+	*/
+	private static ThreadFactory virtual_factory;
+	private static boolean virtual_checked;
+
+	private ExecutionConfig() { }
+
+	/**
+	** Returns the pool for the given role, creating it if necessary.
+	*/
+	public static synchronized MeteredExecutor get(Role role) {
+		MeteredExecutor x = pools.get(role);
+		if (x == null) {
+			x = new MeteredExecutor("Library " + role.name, getThreads(role), getQueueCapacity(role),
+			  role.callerRuns, threadFactory(role));
+			pools.put(role, x);
+		}
+		return x;
+	}
+
+	public static synchronized int getThreads(Role role) {
+		Integer t = threads.get(role);
+		if (t != null) { return t; }
+		return isVirtual(role)? role.virtualThreads: role.threads;
+	}
+
+	/**
+	** Sets the number of threads for the given role. If the pool is already
+	** running, this takes effect as its threads become idle.
+	*/
+	public static synchronized void setThreads(Role role, int n) {
+		if (n < 1) { throw new IllegalArgumentException("Role " + role.name + " needs at least one thread"); }
+		threads.put(role, n);
+		MeteredExecutor x = pools.get(role);
+		if (x != null) { x.setThreads(n); }
+	}
+
+	public static synchronized int getQueueCapacity(Role role) {
+		Integer c = capacity.get(role);
+		return (c == null)? role.capacity: c;
+	}
+
+	/**
+	** Sets the queue capacity for the given role.
+	**
+	** @throws IllegalStateException if the pool has already been created
+	*/
+	public static synchronized void setQueueCapacity(Role role, int cap) {
+		if (cap < 1) { throw new IllegalArgumentException("Role " + role.name + " needs a positive queue capacity"); }
+		if (pools.containsKey(role)) {
+			throw new IllegalStateException("Pool for role " + role.name + " is already running");
+		}
+		capacity.put(role, cap);
+	}
+
+	/**
+	** Whether the JVM supports virtual threads.
+	*/
+	public static synchronized boolean virtualThreadsSupported() {
+		if (!virtual_checked) {
+			virtual_checked = true;
+			virtual_factory = virtualThreadFactory("Library virtual ");
+			if (virtual_factory == null) {
+				Logger.normal(ExecutionConfig.class, "Virtual threads are not supported by this JVM");
+			}
+		}
+		return virtual_factory != null;
+	}
+
+	/**
+	** Whether jobs for the given role are run on virtual threads.
+	*/
+	public static synchronized boolean isVirtual(Role role) {
+		return virtual && role.virtualThreads > 0 && virtualThreadsSupported();
+	}
+
+	/**
+	** Runs jobs for the roles which wait for I/O on virtual threads, if the
+	** JVM supports them, or goes back to platform threads. Pools which are
+	** already running switch over as their threads time out. Thread counts
+	** which have not been {@linkplain #setThreads(Role, int) set} explicitly
+	** change to the default for the new mode.
+	**
+	** @return Whether virtual threads are now in use
+	*/
+	public static synchronized boolean setVirtualThreads(boolean v) {
+		virtual = v && virtualThreadsSupported();
+		for (Map.Entry<Role, MeteredExecutor> en: pools.entrySet()) {
+			Role role = en.getKey();
+			if (role.virtualThreads == 0) { continue; }
+			en.getValue().setThreadFactory(threadFactory(role));
+			en.getValue().setThreads(getThreads(role));
+		}
+		return virtual;
+	}
+
+	public static synchronized boolean getVirtualThreads() {
+		return virtual;
+	}
+
+	/**
+	** Returns a line for each running pool, with its current metrics.
+	*/
+	public static synchronized String status() {
+		StringBuilder s = new StringBuilder();
+		for (MeteredExecutor x: pools.values()) {
+			s.append(x).append('\n');
+		}
+		return s.toString();
+	}
+
+	private static ThreadFactory threadFactory(final Role role) {
+		if (isVirtual(role)) { return virtual_factory; }
+		return new ThreadFactory() {
+			final AtomicInteger count = new AtomicInteger();
+			/*@Override**/ public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Library " + role.name + " #" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	/**
+	** Creates a factory for virtual threads with the given name prefix. This
+	** uses reflection, since the API is only available from Java 21.
+	**
+	** @return The factory, or null if virtual threads are not available
+	*/
+	static ThreadFactory virtualThreadFactory(String prefix) {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> cls = Class.forName("java.lang.Thread$Builder");
+			Method name = cls.getMethod("name", String.class, long.class);
+			builder = name.invoke(builder, prefix, 0L);
+			return (ThreadFactory)cls.getMethod("factory").invoke(builder);
+		} catch (Exception e) {
+			// NoSuchMethodException before Java 19; UnsupportedOperationException
+			// (wrapped) on Java 19 or 20 without --enable-preview
+			return null;
+		}
+	}
+
+}
@@ -43,6 +43,9 @@ public class Executors {
 	** Executor#execute(Runnable)} is made, a {@link ThreadPoolExecutor} is
 	** created, with a thread-cache size of 64, timeout of 1s, and rejection
 	** policy of "{@link CallerRunsPolicy caller runs}".
+	**
+	** Library's own work does not use this; each kind of work has its own
+	** pool, configured by {@link ExecutionConfig}.
 	*/
 	final public static Executor DEFAULT_EXECUTOR = new Executor() {
 		/*@Override**/ public void execute(Runnable r) {
@@ -68,6 +71,27 @@ public class Executors {
 	*/
 	private static Executor default_exec = null;
 
+	/**
+	** Number of threads in {@link #CPU_EXECUTOR}.
+	*/
+	final public static int CPU_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+	/**
+	** A JVM-wide executor for short jobs that only use the CPU, such as
+	** decoding data whose fetch has completed. This is a wrapper around the
+	** {@link ExecutionConfig.Role#DECODE} pool, which has {@link #CPU_THREADS}
+	** threads by default and a large queue; a job is only run in the caller's
+	** thread if the queue is full.
+	**
+	** Jobs run here '''must not''' wait for I/O or for other jobs; if all the
+	** threads are waiting, nothing else that needs the pool can run.
+	*/
+	final public static Executor CPU_EXECUTOR = new Executor() {
+		/*@Override**/ public void execute(Runnable r) {
+			ExecutionConfig.get(ExecutionConfig.Role.DECODE).execute(r);
+		}
+	};
+
 	private Executors() { }
 
 }
@@ -0,0 +1,105 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.util.concurrent;
+
+/**
+** A counting limiter, similar to a {@link java.util.concurrent.Semaphore},
+** which bounds the total weight of the items being held at any one time.
+**
+** The budget can either be ''weighted'', in which case each item is charged
+** its size (eg. in bytes), or not, in which case each item is charged a
+** single permit. Items of unknown size (ie. negative) are always charged a
+** single permit.
+**
+** An item heavier than the whole capacity is let through when nothing else
+** is being held, so that it does not block forever.
+*/
+public class MemoryBudget {
+
+	protected long capacity;
+	protected boolean weighted;
+
+	protected long used;
+	protected int holders;
+
+	/**
+	** Total number of times {@link #acquireUninterruptibly(long)} had to wait
+	** for other holders to release their weight.
+	*/
+	protected long waits;
+
+	/**
+	** @param cap The total weight that may be held at once.
+	** @param w Whether to charge items their size, or a single permit.
+	*/
+	public MemoryBudget(long cap, boolean w) {
+		setCapacity(cap, w);
+	}
+
+	public synchronized void setCapacity(long cap, boolean w) {
+		if (cap <= 0) {
+			throw new IllegalArgumentException("Budget capacity must be positive: " + cap);
+		}
+		capacity = cap;
+		weighted = w;
+		notifyAll();
+	}
+
+	public synchronized long getCapacity() {
+		return capacity;
+	}
+
+	public synchronized boolean isWeighted() {
+		return weighted;
+	}
+
+	public synchronized long getUsed() {
+		return used;
+	}
+
+	public synchronized int getHolders() {
+		return holders;
+	}
+
+	public synchronized long getWaits() {
+		return waits;
+	}
+
+	/**
+	** Block until there is room for an item of the given size, then charge it
+	** to the budget. If the thread is interrupted while waiting, it carries on
+	** waiting, and its interrupt flag is set again once the item is charged.
+	**
+	** @param size The size of the item, or a negative number if unknown.
+	** @return The weight that was charged, which must be passed to {@link
+	**         #release(long)} when the item is no longer held.
+	*/
+	public synchronized long acquireUninterruptibly(long size) {
+		long w = (weighted && size >= 0)? size: 1;
+		boolean waited = false, interrupted = false;
+		while (holders > 0 && used + w > capacity) {
+			if (!waited) { ++waits; waited = true; }
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		used += w;
+		++holders;
+		if (interrupted) { Thread.currentThread().interrupt(); }
+		return w;
+	}
+
+	public synchronized void release(long w) {
+		used -= w;
+		--holders;
+		notifyAll();
+	}
+
+	@Override public synchronized String toString() {
+		return used + "/" + capacity + (weighted? " bytes": " permits") + " held by " + holders;
+	}
+
+}
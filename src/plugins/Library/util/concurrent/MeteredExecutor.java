@@ -0,0 +1,123 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.util.concurrent;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+** A {@link ThreadPoolExecutor} with a fixed number of threads, a bounded
+** queue, and counters for reporting how busy it is.
+**
+** Unlike a pool with an unbounded queue and a larger maximum size than core
+** size (which never grows past its core size), this really does use up to
+** {@link #getMaximumPoolSize()} threads; idle threads time out after a
+** minute.
+**
+** When the queue is full, the job is either run in the submitting thread
+** ("caller runs"), which pushes back on whatever is producing the jobs, or
+** rejected with a {@link RejectedExecutionException}, for submitters such as
+** {@link ObjectProcessor} which must not run jobs themselves, and can hold
+** on to the job and try again later.
+*/
+public class MeteredExecutor extends ThreadPoolExecutor {
+
+	final public String name;
+
+	/**
+	** Capacity of the queue.
+	*/
+	final public int capacity;
+
+	/**
+	** Whether jobs are run in the submitting thread when the queue is full,
+	** rather than rejected.
+	*/
+	final public boolean callerRuns;
+
+	final protected AtomicLong submitted = new AtomicLong();
+	final protected AtomicLong completed = new AtomicLong();
+	final protected AtomicLong failed = new AtomicLong();
+	final protected AtomicLong rejected = new AtomicLong();
+	final protected AtomicLong ranByCaller = new AtomicLong();
+	protected volatile int maxQueued;
+
+	/**
+	** @param n Name of the pool, for reporting
+	** @param threads Maximum number of threads
+	** @param cap Capacity of the queue
+	** @param cr Whether to run jobs in the caller when the queue is full
+	** @param tf Factory for the threads
+	*/
+	public MeteredExecutor(String n, int threads, int cap, boolean cr, ThreadFactory tf) {
+		super(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(cap), tf);
+		name = n;
+		capacity = cap;
+		callerRuns = cr;
+		allowCoreThreadTimeOut(true);
+		setRejectedExecutionHandler(new RejectedExecutionHandler() {
+			/*@Override**/ public void rejectedExecution(Runnable r, ThreadPoolExecutor x) {
+				rejected.incrementAndGet();
+				if (callerRuns && !x.isShutdown()) {
+					ranByCaller.incrementAndGet();
+					r.run();
+				} else {
+					throw new RejectedExecutionException("Pool " + name + " is full: " + MeteredExecutor.this);
+				}
+			}
+		});
+	}
+
+	/**
+	** Sets the number of threads. This takes effect as threads become idle.
+	*/
+	public void setThreads(int threads) {
+		if (threads < 1) { throw new IllegalArgumentException("Pool " + name + " needs at least one thread"); }
+		if (threads > getMaximumPoolSize()) {
+			setMaximumPoolSize(threads);
+			setCorePoolSize(threads);
+		} else {
+			setCorePoolSize(threads);
+			setMaximumPoolSize(threads);
+		}
+	}
+
+	@Override public void execute(Runnable r) {
+		submitted.incrementAndGet();
+		super.execute(r);
+		int q = getQueue().size();
+		if (q > maxQueued) { maxQueued = q; }
+	}
+
+	@Override protected void afterExecute(Runnable r, Throwable t) {
+		super.afterExecute(r, t);
+		completed.incrementAndGet();
+		if (t != null) { failed.incrementAndGet(); }
+	}
+
+	/** Number of jobs given to {@link #execute(Runnable)}. */
+	public long getSubmitted() { return submitted.get(); }
+	/** Number of jobs run by the pool's threads. */
+	public long getCompleted() { return completed.get(); }
+	/** Number of jobs run by the pool's threads which threw. */
+	public long getFailed() { return failed.get(); }
+	/** Number of times the queue was full, including {@link #getRanByCaller()}. */
+	public long getRejected() { return rejected.get(); }
+	/** Number of jobs run in the submitting thread because the queue was full. */
+	public long getRanByCaller() { return ranByCaller.get(); }
+	public int getMaxQueued() { return maxQueued; }
+
+	@Override public String toString() {
+		return name + "[" + getQueue().size() + "/" + capacity + " queued (max " + maxQueued + "), "
+		  + getActiveCount() + "/" + getMaximumPoolSize() + " active, " + submitted + " submitted, "
+		  + completed + " completed, " + failed + " failed, " + rejected + " rejected ("
+		  + ranByCaller + " run by caller)]";
+	}
+
+}
@@ -8,6 +8,7 @@ import static plugins.Library.util.func.Tuples.X3;
 
 import java.lang.ref.WeakReference;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.Map;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
@@ -38,10 +39,26 @@ public class ObjectProcessor<T, E, X extends Exception> implements Scheduler {
 	final protected Closure<T, X> clo;
 	final protected Executor exec;
 	final protected ExceptionConvertor<X> convertor;
+	/**
+	** Results which did not fit into {@link #out} when they completed. These
+	** are moved into it, in order, as {@link #accept()} makes room.
+	*/
+	final protected LinkedList<X2<T, X>> overflow = new LinkedList<X2<T, X>>();
+	/**
+	** A job which {@link #exec} rejected. This is dispatched again before any
+	** more items are taken from {@link #in}.
+	*/
+	protected Runnable held;
 	// Allows a group of ObjectProcessor's to all notify the same object so that the caller doesn't have to poll.
 	protected Notifier notifier;
 
 	protected volatile boolean open = true;
+	/**
+	** Whether to dispatch items as soon as there is room for them, rather
+	** than waiting for the {@link #auto()} handler to poll. Set by {@link
+	** #auto()}.
+	*/
+	protected volatile boolean eager = false;
 	protected int dispatched = 0;
 	protected int completed = 0;
 	protected int started = 0;
@@ -61,15 +78,25 @@ public class ObjectProcessor<T, E, X extends Exception> implements Scheduler {
 	final public static int default_maxconc = 0x28;
 	int maxconc = default_maxconc;
 
+	/**
+	** Adds a result to the output queue. This never blocks: if the queue is
+	** full, the result is held in {@link #overflow} until there is room, and
+	** is not counted as completed until then, so {@link #maxconc} still
+	** limits how many results can build up. Jobs may therefore call this
+	** from threads that must not wait, such as the callback threads of an
+	** asynchronous archiver.
+	*/
 	final protected SafeClosure<X2<T, X>> postProcess = new SafeClosure<X2<T, X>>() {
 		/*@Override**/ public void invoke(X2<T, X> res) {
-			try {
-				out.put(res);
-				if(notifier != null) notifier.notifyUpdate();
-				synchronized(ObjectProcessor.this) { ++completed; }
-			} catch (InterruptedException e) {
-				throw new UnsupportedOperationException();
+			synchronized(ObjectProcessor.this) {
+				if (!overflow.isEmpty() || !out.offer(res)) {
+					overflow.addLast(res);
+					return;
+				}
+				++completed;
 			}
+			if(notifier != null) notifier.notifyUpdate();
+			if (eager) { dispatchAll(); }
 		}
 	};
 	
@@ -164,6 +191,7 @@ public class ObjectProcessor<T, E, X extends Exception> implements Scheduler {
 		// Note that this can result in more stuff being in dep than is in in. This is okay, assuming that
 		// we don't have an infinite number of calling threads.
 		in.put(item);
+		if (eager) { dispatchAll(); }
 	}
 
 	/**
@@ -189,9 +217,18 @@ public class ObjectProcessor<T, E, X extends Exception> implements Scheduler {
 	public X3<T, E, X> accept() throws InterruptedException {
 		X2<T, X> item = out.take();
 		// DO NOT hold the lock while blocking on out.
+		boolean moved = false;
+		X3<T, E, X> res;
 		synchronized(this) {
-			return X3(item._0, dep.remove(item._0), item._1);
+			while (!overflow.isEmpty() && out.offer(overflow.getFirst())) {
+				overflow.removeFirst();
+				++completed;
+				moved = true;
+			}
+			res = X3(item._0, dep.remove(item._0), item._1);
 		}
+		if (moved && eager) { dispatchAll(); }
+		return res;
 	}
 
 	/**
@@ -248,18 +285,46 @@ public class ObjectProcessor<T, E, X extends Exception> implements Scheduler {
 	*/
 	public boolean dispatchPoll() {
 		synchronized(this) {
+			if (held != null) {
+				exec.execute(held);
+				held = null;
+				++dispatched;
+				return true;
+			}
 			if (dispatched - completed >= maxconc) { return false; }
 		}
 		// DO NOT hold the lock while blocking on in.
 		T item = in.poll();
 		synchronized(this) {
 			if (item == null) { return false; }
-			exec.execute(createJobFor(item));
+			Runnable job = createJobFor(item);
+			try {
+				exec.execute(job);
+			} catch (RejectedExecutionException e) {
+				// the item has already left the input queue; keep its job and
+				// retry it before taking any more items
+				held = job;
+				throw e;
+			}
 			++dispatched;
 			return true;
 		}
 	}
 
+	/**
+	** Calls {@link #dispatchPoll()} until it returns false, or the executor
+	** rejects a job because it is full.
+	*/
+	protected void dispatchAll() {
+		try {
+			while (dispatchPoll());
+		} catch (RejectedExecutionException e) {
+			// the job is held, and retried when another job completes, or by
+			// the auto handler
+			if (logMINOR) { Logger.minor(this, "Executor is full, will retry: " + e); }
+		}
+	}
+
 	/**
 	** Creates a {@link Runnable} to process the item and push it onto the
 	** output queue, along with any exception that aborted the process.
@@ -313,17 +378,15 @@ public class ObjectProcessor<T, E, X extends Exception> implements Scheduler {
 							while (proc.dispatchPoll());
 							if (!o) { it.remove(); }
 						} catch (RejectedExecutionException e) {
-							// FIXME NORM
-							// neither Executors.DEFAULT_EXECUTOR nor Freenet's in-built executors
-							// throw this, so this is not a high priority
-							Logger.error(this, "REJECTED EXECUTION", e);
+							// the executor is full, eg. one of the pools of ExecutionConfig
+							// which reject jobs; the held job is retried next time round
+							if (logMINOR) { Logger.minor(this, "Executor is full, will retry: " + e); }
 						}
 					}
 					try {
-					    // FIXME why do we sleep here at all?
-					    // FIXME for small jobs, such as merging to disk in SpiderIndexUploader, this can 
-					    // dominate the execution time!
-					    // FIXME the executors are perfectly capable of limiting the number of threads running...
+						// items are normally dispatched as soon as they are submitted, or as
+						// soon as an earlier item completes; this loop only picks up anything
+						// that was missed, eg. after a RejectedExecutionException.
 						Thread.sleep(100);
 					} catch (InterruptedException e) {
 						// TODO LOW log this somewhere
@@ -355,8 +418,10 @@ public class ObjectProcessor<T, E, X extends Exception> implements Scheduler {
 	** @return Whether the processor was not already being handled.
 	*/
 	public boolean auto() {
+		eager = true;
 		Boolean r = ObjectProcessor.pending.put(myRef, Boolean.TRUE);
 		ObjectProcessor.ensureAutoHandler();
+		dispatchAll();
 		return r == null;
 	}
 
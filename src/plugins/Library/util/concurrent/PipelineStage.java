@@ -0,0 +1,240 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.util.concurrent;
+
+import freenet.support.Logger;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+** One stage of a processing pipeline: a bounded queue of items, and up to a
+** given number of worker threads taking items off it.
+**
+** {@link #put(Object)} waits while the queue is full, which pushes back on
+** whatever is feeding the stage. Workers are started on the given {@link
+** Executor} only while there is something to do. Subclasses may take several
+** queued items at once (see {@link #takeBatch(LinkedList)}), eg. to coalesce
+** them.
+**
+** The stage keeps simple counters (items accepted and processed, time spent
+** waiting for space and working), for reporting backpressure.
+*/
+abstract public class PipelineStage<T> implements Scheduler {
+
+	final public String name;
+
+	/**
+	** Maximum number of items waiting in the queue.
+	*/
+	final public int capacity;
+
+	/**
+	** Maximum number of items being processed at once.
+	*/
+	final public int threads;
+
+	final protected Executor exec;
+
+	final protected LinkedList<T> queue = new LinkedList<T>();
+
+	protected int running;
+
+	protected boolean closed;
+
+	protected long accepted;
+	protected long processed;
+	protected long failed;
+	protected long putWaits;
+	protected long putWaitTime;
+	protected long busyTime;
+	protected int maxQueued;
+
+	/**
+	** @param n Name of the stage, for the names of its threads and for logging
+	** @param cap Maximum number of items waiting to be processed
+	** @param t Maximum number of threads processing items
+	** @param x Executor to run the threads on
+	*/
+	public PipelineStage(String n, int cap, int t, Executor x) {
+		if (cap <= 0 || t <= 0) {
+			throw new IllegalArgumentException("Stage " + n + " must have a positive capacity and thread budget");
+		}
+		name = n;
+		capacity = cap;
+		threads = t;
+		exec = x;
+	}
+
+	/**
+	** Processes a batch of items taken off the queue. Exceptions are passed to
+	** {@link #failed(List, Throwable)}.
+	*/
+	abstract protected void process(List<T> batch) throws Exception;
+
+	/**
+	** Called when {@link #process(List)} throws. This implementation just
+	** logs the error.
+	*/
+	protected void failed(List<T> batch, Throwable t) {
+		Logger.error(this, "Stage " + name + " failed to process " + batch + ": " + t, t);
+	}
+
+	/**
+	** Takes the next batch of items off the (non-empty) queue. This is
+	** called with the lock held. This implementation takes one item.
+	*/
+	protected List<T> takeBatch(LinkedList<T> q) {
+		List<T> batch = new ArrayList<T>(1);
+		batch.add(q.removeFirst());
+		return batch;
+	}
+
+	/**
+	** Adds an item to the queue, waiting while it is full. If the thread is
+	** interrupted while waiting, the item is not added, and the interrupt
+	** flag is set again.
+	**
+	** @return Whether the item was added; false if the stage was closed, or
+	**         the thread was interrupted
+	*/
+	public boolean put(T item) {
+		long start = -1;
+		synchronized (this) {
+			while (!closed && queue.size() >= capacity) {
+				if (start < 0) {
+					start = System.currentTimeMillis();
+					++putWaits;
+					Logger.normal(this, "Stage " + name + " is full, waiting: " + this);
+				}
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					putWaitTime += System.currentTimeMillis() - start;
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+			if (start >= 0) { putWaitTime += System.currentTimeMillis() - start; }
+			if (closed) { return false; }
+			enqueue(item);
+		}
+		return true;
+	}
+
+	/**
+	** Adds an item to the queue, even if it is full. Used when the item has
+	** to be accepted anyway, eg. when recovering work from a previous run.
+	**
+	** @return Whether the item was added; false if the stage was closed
+	*/
+	public synchronized boolean force(T item) {
+		if (closed) { return false; }
+		enqueue(item);
+		return true;
+	}
+
+	private void enqueue(T item) {
+		queue.addLast(item);
+		++accepted;
+		if (queue.size() > maxQueued) { maxQueued = queue.size(); }
+		maybeStart();
+	}
+
+	private void maybeStart() {
+		if (closed || queue.isEmpty() || running >= threads) { return; }
+		++running;
+		exec.execute(new Runnable() {
+			/*@Override**/ public void run() {
+				work();
+			}
+			@Override public String toString() {
+				return "Library: " + name;
+			}
+		});
+	}
+
+	protected void work() {
+		for (;;) {
+			List<T> batch;
+			synchronized (this) {
+				if (closed || queue.isEmpty()) {
+					--running;
+					notifyAll();
+					return;
+				}
+				batch = takeBatch(queue);
+				// there is now space in the queue
+				notifyAll();
+			}
+			long start = System.currentTimeMillis();
+			try {
+				process(batch);
+				synchronized (this) { processed += batch.size(); }
+			} catch (Throwable t) {
+				synchronized (this) { failed += batch.size(); }
+				failed(batch, t);
+			} finally {
+				synchronized (this) { busyTime += System.currentTimeMillis() - start; }
+			}
+		}
+	}
+
+	/**
+	** Stops taking items off the queue, and wakes anyone waiting to add
+	** items. Items already being processed are finished.
+	*/
+	/*@Override**/ public synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	** Returns the number of items waiting to be processed.
+	*/
+	public synchronized int size() {
+		return queue.size();
+	}
+
+	/**
+	** Whether nothing is queued or being processed.
+	*/
+	public synchronized boolean isIdle() {
+		return queue.isEmpty() && running == 0;
+	}
+
+	/**
+	** Waits until nothing is queued or being processed, or the stage is
+	** closed and its workers have finished.
+	*/
+	public synchronized void waitIdle() throws InterruptedException {
+		while (running > 0 || !closed && !queue.isEmpty()) {
+			wait();
+		}
+	}
+
+	public synchronized long getAccepted() { return accepted; }
+	public synchronized long getProcessed() { return processed; }
+	public synchronized long getFailed() { return failed; }
+	/** Number of times {@link #put(Object)} had to wait for space. */
+	public synchronized long getPutWaits() { return putWaits; }
+	/** Total time spent waiting in {@link #put(Object)}, in milliseconds. */
+	public synchronized long getPutWaitTime() { return putWaitTime; }
+	/** Total time spent processing items, in milliseconds. */
+	public synchronized long getBusyTime() { return busyTime; }
+	public synchronized int getMaxQueued() { return maxQueued; }
+
+	@Override public synchronized String toString() {
+		return name + "[" + queue.size() + "/" + capacity + " queued (max " + maxQueued + "), "
+		  + running + "/" + threads + " running, " + accepted + " accepted, " + processed + " processed, "
+		  + failed + " failed, " + putWaits + " waits for " + putWaitTime + "ms, busy " + busyTime + "ms]";
+	}
+
+}
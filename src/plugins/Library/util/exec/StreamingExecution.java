@@ -0,0 +1,36 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.util.exec;
+
+import plugins.Library.util.func.SafeClosure;
+
+import java.util.List;
+
+/**
+** An {@link Execution} which makes parts of its result available as they
+** arrive, before the whole result is complete.
+**
+** @param <V> Type of result of the execution
+** @param <E> Type of the elements of the partial result
+*/
+public interface StreamingExecution<V, E> extends Execution<V> {
+
+	/**
+	** Returns the elements received so far, in the order in which they were
+	** received. The returned list is a copy, and will not change afterwards.
+	*/
+	public List<E> getPartialResult();
+
+	/**
+	** Attach an acceptor for batches of elements. It is called once for each
+	** batch, as it arrives.
+	**
+	** As with {@link Execution#addAcceptor(ExecutionAcceptor)}, batches which
+	** have already arrived are passed to a newly-added acceptor straight away,
+	** in the order in which they arrived. Unchecked exceptions thrown by the
+	** acceptor are caught.
+	*/
+	public void addBatchAcceptor(SafeClosure<List<E>> acc);
+
+}
@@ -0,0 +1,190 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.client;
+
+import junit.framework.TestCase;
+
+import java.io.*;
+
+public class BlockCacheTest extends TestCase {
+
+	File dir;
+
+	@Override public void setUp() {
+		dir = new File("BlockCacheTest");
+		rmdir(dir);
+	}
+
+	@Override public void tearDown() {
+		rmdir(dir);
+	}
+
+	public static void rmdir(File d) {
+		File[] fs = d.listFiles();
+		if (fs != null) { for (File f: fs) { f.delete(); } }
+		d.delete();
+	}
+
+	public static void put(BlockCache c, String key, int size) throws IOException {
+		c.put(key, new ByteArrayInputStream(new byte[size]));
+	}
+
+	/**
+	** Looks up a block, closing the stream if it is found.
+	*/
+	public static boolean hit(BlockCache c, String key) throws IOException {
+		InputStream is = c.get(key);
+		if (is == null) { return false; }
+		is.close();
+		return true;
+	}
+
+	public void testEviction() throws IOException {
+		BlockCache c = new BlockCache(dir, 300);
+		put(c, "a", 100);
+		put(c, "b", 100);
+		put(c, "c", 100);
+		assertEquals(300, c.getTotalSize());
+		assertTrue(hit(c, "a")); // a is now more recent than b
+		put(c, "d", 100);
+		assertEquals(3, c.getCount());
+		assertFalse(hit(c, "b"));
+		assertFalse(new File(dir, "b").exists());
+		assertTrue(hit(c, "a"));
+		assertTrue(hit(c, "c"));
+		assertTrue(hit(c, "d"));
+		assertEquals(1, c.getEvictions());
+		assertEquals(4, c.getHits());
+		assertEquals(1, c.getMisses());
+
+		// replacing a block doesn't count it twice
+		put(c, "d", 50);
+		assertEquals(250, c.getTotalSize());
+	}
+
+	public void testPinning() throws IOException {
+		BlockCache c = new BlockCache(dir, 200);
+		c.startPinning();
+		put(c, "a", 100);
+		put(c, "b", 100);
+		c.finishPinning();
+		assertTrue(c.isPinned("a"));
+
+		put(c, "c", 100);
+		// nothing could be evicted except the new block
+		assertTrue(hit(c, "a"));
+		assertTrue(hit(c, "b"));
+		assertFalse(hit(c, "c"));
+
+		c.startPinning();
+		assertTrue(hit(c, "b"));
+		c.finishPinning();
+		assertFalse(c.isPinned("a"));
+		put(c, "c", 100);
+		assertFalse(hit(c, "a"));
+		assertTrue(hit(c, "b"));
+		assertTrue(hit(c, "c"));
+	}
+
+	public void testEvictWhileReading() throws IOException {
+		BlockCache c = new BlockCache(dir, 1000);
+		c.put("a", new ByteArrayInputStream(new byte[]{1, 2, 3}));
+		InputStream is = c.get("a");
+		assertNotNull(is);
+		// evicted before it is read
+		c.setMaxSize(0);
+		assertEquals(0, c.getCount());
+		assertFalse(new File(dir, "a").exists());
+		assertFalse(hit(c, "a"));
+		DataInputStream dis = new DataInputStream(is);
+		byte[] b = new byte[3];
+		dis.readFully(b);
+		assertEquals(3, b[2]);
+		assertEquals(-1, dis.read());
+		dis.close();
+	}
+
+	public void testBatchedSaves() throws IOException {
+		BlockCache c = new BlockCache(dir, 150);
+		File index = new File(dir, BlockCache.INDEX_FILENAME);
+		put(c, "a", 100);
+		put(c, "b", 100);
+		assertEquals(1, c.getEvictions());
+		// an eviction alone doesn't write the index
+		assertEquals(0, index.length());
+		c.save();
+		assertTrue(index.length() > 0);
+
+		// but enough changes do
+		for (int i=0; i<BlockCache.SAVE_INTERVAL; ++i) {
+			put(c, "x" + i, 100);
+		}
+		BufferedReader r = new BufferedReader(new FileReader(index));
+		String line = r.readLine();
+		r.close();
+		assertTrue(line.matches(".*\tx\\d+"));
+	}
+
+	public void testSaveOutsideLock() throws Exception {
+		final java.util.concurrent.CountDownLatch writing = new java.util.concurrent.CountDownLatch(1);
+		final java.util.concurrent.CountDownLatch release = new java.util.concurrent.CountDownLatch(1);
+		final BlockCache c = new BlockCache(dir, 1000) {
+			@Override public void save() {
+				if (writing.getCount() > 0 && unsaved > 0) {
+					writing.countDown();
+					try { release.await(); } catch (InterruptedException e) { }
+				}
+				super.save();
+			}
+		};
+		put(c, "a", 100);
+		Thread th = new Thread() {
+			@Override public void run() {
+				try {
+					for (int i=0; i<BlockCache.SAVE_INTERVAL; ++i) { hit(c, "a"); }
+				} catch (IOException e) {
+					throw new AssertionError(e);
+				}
+			}
+		};
+		th.start();
+		writing.await();
+		// the cache can still be used while the index is being written
+		assertTrue(hit(c, "a"));
+		put(c, "b", 100);
+		assertEquals(2, c.getCount());
+		release.countDown();
+		th.join();
+		assertEquals(BlockCache.SAVE_INTERVAL + 1, c.getHits());
+	}
+
+	public void testPersistence() throws IOException {
+		BlockCache c = new BlockCache(dir, 1000);
+		put(c, "a", 100);
+		put(c, "b", 100);
+		put(c, "c", 100);
+		c.pin("c");
+		assertTrue(hit(c, "a"));
+		c.save();
+
+		// a block left behind by an older version, without an index entry
+		OutputStream os = new FileOutputStream(new File(dir, "old"));
+		os.write(new byte[100]);
+		os.close();
+		new File(dir, "old").setLastModified(0);
+
+		c = new BlockCache(dir, 1000);
+		assertEquals(4, c.getCount());
+		assertEquals(400, c.getTotalSize());
+		assertTrue(c.isPinned("c"));
+
+		// order of use was kept: old, b, (c pinned), a
+		c.setMaxSize(200);
+		assertFalse(hit(c, "old"));
+		assertFalse(hit(c, "b"));
+		assertTrue(hit(c, "c"));
+		assertTrue(hit(c, "a"));
+	}
+
+}
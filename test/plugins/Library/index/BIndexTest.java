@@ -58,16 +58,20 @@ public class BIndexTest extends TestCase {
 	}
 	
 	public BIndexTest() {
+		this(ProtoIndexComponentSerialiser.FMT_FILE_LOCAL);
+	}
+
+	protected BIndexTest(int fmtid) {
 	    f = new File("BindexTest");
 	    f.mkdir();
 	    srl = ProtoIndexSerialiser.forIndex(f);
-	    csrl = ProtoIndexComponentSerialiser.get(ProtoIndexComponentSerialiser.FMT_FILE_LOCAL, srl.getChildSerialiser());
+	    csrl = ProtoIndexComponentSerialiser.get(fmtid, srl.getChildSerialiser());
 	}
 	
 	private final File f;
-	private final ProtoIndexSerialiser srl; 
+	protected final ProtoIndexSerialiser srl;
 	private final ProtoIndexComponentSerialiser csrl;
-	private ProtoIndex idx;
+	protected ProtoIndex idx;
 
 	Set<String> randomWords = new HashSet<String>(Arrays.asList(
 		"Lorem", "ipsum", "dolor", "sit", "amet,", "consectetur", "adipisicing",
@@ -83,12 +87,14 @@ public class BIndexTest extends TestCase {
 	));
 
 	protected void newTestSkeleton() {
+		// the shared result cache would otherwise answer for an index of the
+		// same URI from an earlier test
+		TermResultCache.setInstance(new TermResultCache(TermResultCache.DEFAULT_MAX_WEIGHT));
 		try {
-			idx = new ProtoIndex(new FreenetURI("CHK@yeah"), "test", null, null, 0);
+			idx = new ProtoIndex(new FreenetURI("CHK@yeah"), "test", null, null, 0, csrl);
 		} catch (java.net.MalformedURLException e) {
 			assertTrue(false);
 		}
-		csrl.setSerialiserFor(idx);
 		timeDiff();
 	}
 
@@ -106,7 +112,7 @@ public class BIndexTest extends TestCase {
 		return n;
 	}
 
-	protected int fillRootTree(SkeletonBTreeMap<String, SkeletonBTreeSet<TermEntry>> tree) {
+	protected int fillRootTree(SkeletonSortedMap<String, SkeletonBTreeSet<TermEntry>> tree) {
 		int total = 0;
 		for (int i=0; i<index_size; ++i) {
 			String key = Generators.rndKey();
@@ -313,6 +319,273 @@ public class BIndexTest extends TestCase {
 		}
 	}
 
+	public void testStreamingTermEntries() throws TaskAbortException, InterruptedException {
+		newTestSkeleton();
+		String word = "streaming";
+		SkeletonBTreeSet<TermEntry> entries = makeEntryTree();
+		for (int j=0; j<0x200; ++j) {
+			entries.add(Generators.rndEntry(word));
+		}
+		List<TermEntry> orig = new ArrayList<TermEntry>(new TreeSet<TermEntry>(entries));
+		entries.deflate();
+		assertTrue(entries.isBare());
+		idx.ttab.put(word, entries);
+
+		// top-k: only the start of the tree should get loaded
+		StreamingExecution<Set<TermEntry>, TermEntry> rq1 = idx.getTermEntries(word, 0x10);
+		rq1.join();
+		assertEquals(orig.subList(0, 0x10), new ArrayList<TermEntry>(rq1.getResult()));
+		assertEquals(orig.subList(0, 0x10), rq1.getPartialResult());
+		assertFalse(entries.isLive());
+
+		// repeated lookups are answered from the cache
+		StreamingExecution<Set<TermEntry>, TermEntry> rq1c = idx.getTermEntries(word, 0x10);
+		assertTrue(rq1c instanceof TermResultCache.CachedResult);
+		assertEquals(orig.subList(0, 0x10), rq1c.getPartialResult());
+
+		// all entries, in batches
+		final List<List<TermEntry>> batches = new ArrayList<List<TermEntry>>();
+		StreamingExecution<Set<TermEntry>, TermEntry> rq2 = idx.getTermEntries(word, 0);
+		rq2.addBatchAcceptor(new SafeClosure<List<TermEntry>>() {
+			/*@Override**/ public void invoke(List<TermEntry> batch) {
+				synchronized (batches) { batches.add(batch); }
+			}
+		});
+		rq2.join();
+		assertTrue(entries.isLive());
+		assertEquals(orig, new ArrayList<TermEntry>(rq2.getResult()));
+		assertEquals(orig, rq2.getPartialResult());
+		List<TermEntry> got = new ArrayList<TermEntry>();
+		synchronized (batches) {
+			assertTrue(batches.size() > 1);
+			for (List<TermEntry> batch: batches) { got.addAll(batch); }
+		}
+		assertEquals(orig, got);
+
+		// a plain lookup of all the entries is answered by the same cache entry
+		Execution<Set<TermEntry>> rq3 = idx.getTermEntries(word);
+		assertTrue(rq3 instanceof TermResultCache.CachedResult);
+		assertEquals(orig, new ArrayList<TermEntry>(rq3.getResult()));
+	}
+
+	public void testFilteredTermEntries() throws TaskAbortException, InterruptedException {
+		newTestSkeleton();
+		String word = "filtered";
+		SkeletonBTreeSet<TermEntry> entries = makeEntryTree();
+		for (int j=0; j<0x200; ++j) {
+			entries.add(Generators.rndEntry(word));
+		}
+		List<TermEntry> orig = new ArrayList<TermEntry>(new TreeSet<TermEntry>(entries));
+		entries.deflate();
+		idx.ttab.put(word, entries);
+
+		// the size is kept in the root of the tree
+		Execution<Long> size = idx.getTermSize(word);
+		size.join();
+		assertEquals(0x200, (long)size.getResult());
+		assertTrue(entries.isBare());
+
+		// candidates near the start of the tree: the rest should not get loaded
+		Set<FreenetURI> pages = new HashSet<FreenetURI>();
+		List<TermEntry> expected = new ArrayList<TermEntry>();
+		for (int j=0; j<0x10; j+=3) {
+			pages.add(((TermPageEntry)orig.get(j)).page);
+			expected.add(orig.get(j));
+		}
+		Execution<Set<TermEntry>> rq1 = idx.getTermEntries(word, pages);
+		rq1.join();
+		assertEquals(expected, new ArrayList<TermEntry>(rq1.getResult()));
+		assertFalse(entries.isLive());
+
+		// a candidate which isn't there: the whole tree has to be searched
+		pages.add(FreenetURI.generateRandomCHK(rand));
+		pages.add(((TermPageEntry)orig.get(0x1ff)).page);
+		expected.add(orig.get(0x1ff));
+		Execution<Set<TermEntry>> rq2 = idx.getTermEntries(word, pages);
+		rq2.join();
+		assertEquals(expected, new ArrayList<TermEntry>(rq2.getResult()));
+		assertTrue(entries.isLive());
+
+		try {
+			Execution<Long> missing = idx.getTermSize("missing");
+			missing.join();
+			fail("index should not contain the term");
+		} catch (TaskAbortException e) { }
+	}
+
+	public void testURITableProbe() throws TaskAbortException, InterruptedException {
+		newTestSkeleton();
+		String word = "probed";
+		SkeletonBTreeSet<TermEntry> entries = makeEntryTree();
+		for (int j=0; j<0x200; ++j) {
+			entries.add(Generators.rndEntry(word));
+		}
+		Map<FreenetURI, Set<String>> uris = new HashMap<FreenetURI, Set<String>>();
+		for (TermEntry en: entries) {
+			uris.put(((TermPageEntry)en).page, new HashSet<String>(Arrays.asList(word, "other")));
+		}
+		Set<FreenetURI> elsewhere = new HashSet<FreenetURI>();
+		for (int j=0; j<4; ++j) {
+			FreenetURI page = FreenetURI.generateRandomCHK(rand);
+			elsewhere.add(page);
+			uris.put(page, new HashSet<String>(Arrays.asList("other")));
+		}
+		entries.deflate();
+		idx.ttab.put(word, entries);
+		for (Map.Entry<FreenetURI, Set<String>> en: uris.entrySet()) {
+			URIKey key = ProtoIndex.keyOf(en.getKey());
+			SkeletonBTreeMap<FreenetURI, URIEntry> tree = idx.utab.get(key);
+			if (tree == null) {
+				tree = csrl.setSerialiserFor(new SkeletonBTreeMap<FreenetURI, URIEntry>(ProtoIndex.BTREE_NODE_MIN));
+				idx.utab.put(key, tree);
+			}
+			URIEntry u = new URIEntry(en.getKey());
+			u.setTerms(en.getValue());
+			tree.put(en.getKey(), u);
+		}
+		for (SkeletonBTreeMap<FreenetURI, URIEntry> tree: idx.utab.values()) {
+			tree.deflate();
+		}
+		idx.utab.deflate();
+		idx.ttab.deflate();
+		PushTask<ProtoIndex> task1 = new PushTask<ProtoIndex>(idx);
+		srl.push(task1);
+		PullTask<ProtoIndex> task2 = new PullTask<ProtoIndex>(task1.meta);
+		srl.pull(task2);
+		idx = task2.data;
+
+		// pages which the uri table rules out are not searched for
+		Execution<Set<TermEntry>> rq1 = idx.getTermEntries(word, elsewhere);
+		rq1.join();
+		assertTrue(rq1.getResult().isEmpty());
+		entries = idx.ttab.get(word);
+		assertFalse(entries.isLive());
+
+		FreenetURI page = elsewhere.iterator().next();
+		Execution<URIEntry> rq2 = idx.getURIEntry(page);
+		rq2.join();
+		assertEquals(page, rq2.getResult().getSubject());
+		assertEquals(uris.get(page), rq2.getResult().getTerms());
+
+		Execution<URIEntry> rq3 = idx.getURIEntry(FreenetURI.generateRandomCHK(rand));
+		rq3.join();
+		assertNull(rq3.getResult());
+	}
+
+	public void testPrefixTerms() throws TaskAbortException, InterruptedException {
+		newTestSkeleton();
+		fillRootTree(idx.ttab);
+		SortedSet<String> expected = new TreeSet<String>();
+		for (int i=0; i<0x20; ++i) {
+			String key = "0pre" + Generators.rndKey();
+			expected.add(key);
+			SkeletonBTreeSet<TermEntry> entries = makeEntryTree();
+			fillEntrySet(key, entries);
+			idx.ttab.put(key, entries);
+		}
+		idx.ttab.put("0prd", makeEntryTree());
+		idx.ttab.put("0prf", makeEntryTree());
+		for (SkeletonBTreeSet<TermEntry> entries: idx.ttab.values()) {
+			entries.deflate();
+		}
+		idx.ttab.deflate();
+		PushTask<ProtoIndex> task1 = new PushTask<ProtoIndex>(idx);
+		srl.push(task1);
+
+		PullTask<ProtoIndex> task2 = new PullTask<ProtoIndex>(task1.meta);
+		srl.pull(task2);
+		idx = task2.data;
+		assertTrue(idx.ttab.isBare());
+
+		// only the nodes around the prefix are pulled
+		assertEquals(expected, idx.ttab.keysInRange("0pre", TermDictionary.successor("0pre")));
+		assertFalse(idx.ttab.isLive());
+
+		Execution<SortedSet<String>> rq1 = idx.getTerms("0pre", 0);
+		rq1.join();
+		assertEquals(expected, rq1.getResult());
+
+		// answered from the dictionary
+		Execution<SortedSet<String>> rq2 = idx.getTerms("0pre" + expected.first().substring(4, 5), 2);
+		assertTrue(rq2.isDone());
+		assertEquals(new ArrayList<String>(expected).subList(0, Math.min(2, rq2.getResult().size())), new ArrayList<String>(rq2.getResult()));
+		assertTrue(idx.getTermDictionary().isCovered("0pre0"));
+		assertFalse(idx.getTermDictionary().isCovered("0pr"));
+	}
+
+	public void testRemove() throws TaskAbortException {
+		newTestSkeleton();
+		Map<String, SortedSet<TermEntry>> origtrees = new TreeMap<String, SortedSet<TermEntry>>();
+		for (int i=0; i<index_size; ++i) {
+			String key = Generators.rndKey();
+			SkeletonBTreeSet<TermEntry> entries = makeEntryTree();
+			for (int j=0; j<node_size*4; ++j) { entries.add(Generators.rndEntry(key)); }
+			origtrees.put(key, new TreeSet<TermEntry>(entries));
+			idx.ttab.put(key, entries);
+		}
+		for (SkeletonBTreeSet<TermEntry> entries: idx.ttab.values()) { entries.deflate(); }
+		idx.ttab.deflate();
+		assertTrue(idx.ttab.isBare());
+		PushTask<ProtoIndex> task1 = new PushTask<ProtoIndex>(idx);
+		srl.push(task1);
+
+		PullTask<ProtoIndex> task2 = new PullTask<ProtoIndex>(task1.meta);
+		srl.pull(task2);
+		idx = task2.data;
+
+		// remove most terms, plus some that aren't there
+		SortedSet<String> remkey = new TreeSet<String>();
+		for (String key: origtrees.keySet()) {
+			if (rand.nextInt(4) != 0) { remkey.add(key); }
+		}
+		for (int i=0; i<0x10; ++i) { remkey.add(Generators.rndKey()); }
+		origtrees.keySet().removeAll(remkey);
+
+		// remove some entries from one of the remaining terms
+		final String rkey = origtrees.keySet().iterator().next();
+		final SortedSet<TermEntry> remset = new TreeSet<TermEntry>();
+		for (TermEntry en: origtrees.get(rkey)) {
+			if (rand.nextInt(2) == 0) { remset.add(en); }
+		}
+		origtrees.get(rkey).removeAll(remset);
+
+		idx.ttab.update(new TreeMap<String, SkeletonBTreeSet<TermEntry>>(), remkey);
+		assertTrue(idx.ttab.isBare());
+		assertEquals(origtrees.size(), idx.ttab.size());
+		idx.ttab.update(new TreeSet<String>(Collections.singleton(rkey)), null, new
+		Closure<Map.Entry<String, SkeletonBTreeSet<TermEntry>>, TaskAbortException>() {
+			/*@Override**/ public void invoke(Map.Entry<String, SkeletonBTreeSet<TermEntry>> entry) throws TaskAbortException {
+				SkeletonBTreeSet<TermEntry> tree = entry.getValue();
+				tree.update(new TreeSet<TermEntry>(), remset);
+				assertTrue(tree.isBare());
+			}
+		}, new TaskAbortExceptionConvertor());
+		assertTrue(idx.ttab.isBare());
+		PushTask<ProtoIndex> task3 = new PushTask<ProtoIndex>(idx);
+		srl.push(task3);
+
+		PullTask<ProtoIndex> task4 = new PullTask<ProtoIndex>(task3.meta);
+		srl.pull(task4);
+		idx = task4.data;
+		idx.ttab.inflate();
+		for (SkeletonBTreeSet<TermEntry> entries: idx.ttab.values()) {
+			entries.inflate();
+			assertTrue(entries.isLive());
+		}
+		assertEquals(origtrees, idx.ttab);
+	}
+
+	public void testPackingStrategy() {
+		// csrl may be shared with other tests, so use an instance of our own
+		ProtoIndexComponentSerialiser own = ProtoIndexComponentSerialiser.get(ProtoIndexComponentSerialiser.FMT_FILE_LOCAL, ProtoIndexSerialiser.forIndex(f).getChildSerialiser());
+		assertNotSame(csrl, own);
+		assertEquals(Packer.Strategy.BEST_FIT_DECREASING, own.getPackingStrategy());
+		assertEquals(Packer.Strategy.BEST_FIT_DECREASING, own.utab_data.getStrategy());
+		own.setPackingStrategy(Packer.Strategy.LEAST_REWRITE);
+		assertEquals(Packer.Strategy.LEAST_REWRITE, own.ttab_data.getStrategy());
+		assertEquals(Packer.Strategy.LEAST_REWRITE, own.utab_data.getStrategy());
+	}
+
 	public void testProgress() throws TaskAbortException {
 		if (!extensive) { return; }
 		if (disabled_progress) { return; }
@@ -0,0 +1,69 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.index;
+
+import plugins.Library.io.serial.Serialiser.*;
+import plugins.Library.util.DataNotLoadedException;
+import plugins.Library.util.SkeletonBPlusTreeMap;
+import plugins.Library.util.SkeletonBTreeSet;
+import plugins.Library.util.exec.TaskAbortException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+** Runs the tests of {@link BIndexTest} on an index whose tables are
+** B+-trees.
+*/
+public class BPlusIndexTest extends BIndexTest {
+
+	public BPlusIndexTest() {
+		super(ProtoIndexComponentSerialiser.FMT_FILE_LOCAL_BPLUS);
+	}
+
+	public void testTableType() {
+		newTestSkeleton();
+		assertTrue(idx.ttab instanceof SkeletonBPlusTreeMap);
+		assertTrue(idx.utab instanceof SkeletonBPlusTreeMap);
+	}
+
+	public void testDeflateKey() throws TaskAbortException {
+		newTestSkeleton();
+		fillRootTree(idx.ttab);
+		for (SkeletonBTreeSet<TermEntry> entries: idx.ttab.values()) {
+			entries.deflate();
+		}
+		List<String> keys = new ArrayList<String>(idx.ttab.keySet());
+		String key = keys.get(keys.size()/2);
+		idx.ttab.get(key).inflate();
+		SortedSet<TermEntry> orig = new TreeSet<TermEntry>(idx.ttab.get(key));
+		idx.ttab.get(key).deflate();
+
+		idx.ttab.deflate(key);
+		try {
+			idx.ttab.get(key);
+			fail("value still loaded");
+		} catch (DataNotLoadedException e) { }
+		idx.ttab.inflate(key);
+		SkeletonBTreeSet<TermEntry> entries = idx.ttab.get(key);
+		entries.inflate();
+		assertEquals(orig, entries);
+		entries.deflate();
+
+		// once every value is pushed, so is each leaf
+		for (String k: keys) { idx.ttab.deflate(k); }
+		assertFalse(idx.ttab.isLive());
+		idx.ttab.deflate();
+		PushTask<ProtoIndex> task = new PushTask<ProtoIndex>(idx);
+		srl.push(task);
+		PullTask<ProtoIndex> tasq = new PullTask<ProtoIndex>(task.meta);
+		srl.pull(tasq);
+		idx = tasq.data;
+		idx.ttab.inflate();
+		assertEquals(keys, new ArrayList<String>(idx.ttab.keySet()));
+	}
+
+}
@@ -0,0 +1,103 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.index;
+
+import junit.framework.TestCase;
+
+import plugins.Library.io.BinaryReaderWriter;
+import plugins.Library.io.YamlReaderWriter;
+import plugins.Library.io.serial.Serialiser.*;
+import plugins.Library.util.Generators;
+import plugins.Library.util.SkeletonBTreeSet;
+import plugins.Library.util.exec.TaskAbortException;
+
+import freenet.keys.FreenetURI;
+
+import java.io.File;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+** Pushes and pulls indexes whose nodes are in the binary format.
+*/
+public class BinaryIndexTest extends TestCase {
+
+	File dir;
+
+	@Override public void setUp() {
+		dir = new File("BinaryIndexTest");
+		rmdir(dir);
+		dir.mkdir();
+	}
+
+	@Override public void tearDown() {
+		rmdir(dir);
+	}
+
+	public static void rmdir(File d) {
+		File[] fs = d.listFiles();
+		if (fs != null) { for (File f: fs) { f.delete(); } }
+		d.delete();
+	}
+
+	public void testFileLocalRoundTrip() throws Exception {
+		roundTrip(ProtoIndexComponentSerialiser.FMT_FILE_LOCAL_BINARY);
+	}
+
+	public void testFreenetRoundTrip() throws Exception {
+		// with an archiver given, the format ID only picks how nodes are encoded
+		roundTrip(ProtoIndexComponentSerialiser.FMT_FREENET_BINARY);
+	}
+
+	protected void roundTrip(int fmtid) throws Exception {
+		ProtoIndexSerialiser srl = ProtoIndexSerialiser.forIndex(dir);
+		ProtoIndexComponentSerialiser csrl = ProtoIndexComponentSerialiser.get(fmtid, srl.getChildSerialiser());
+		ProtoIndex idx = new ProtoIndex(new FreenetURI("CHK@yeah"), "test", null, null, 0, csrl);
+
+		Map<String, SortedSet<TermEntry>> orig = new TreeMap<String, SortedSet<TermEntry>>();
+		for (int i=0; i<0x40; ++i) {
+			String key = Generators.rndKey();
+			SkeletonBTreeSet<TermEntry> entries = new SkeletonBTreeSet<TermEntry>(ProtoIndex.BTREE_NODE_MIN);
+			csrl.setSerialiserFor(entries);
+			for (int j=0; j<0x10; ++j) {
+				entries.add(Generators.rndEntry(key));
+			}
+			orig.put(key, new TreeSet<TermEntry>(entries));
+			idx.ttab.put(key, entries);
+		}
+		for (SkeletonBTreeSet<TermEntry> entries: idx.ttab.values()) {
+			entries.deflate();
+		}
+		idx.ttab.deflate();
+
+		PushTask<ProtoIndex> task1 = new PushTask<ProtoIndex>(idx);
+		srl.push(task1);
+
+		int bin = 0, yml = 0;
+		for (File f: dir.listFiles()) {
+			if (f.getName().endsWith(BinaryReaderWriter.FILE_EXTENSION)) { ++bin; }
+			if (f.getName().endsWith(YamlReaderWriter.FILE_EXTENSION)) { ++yml; }
+		}
+		assertTrue(bin > 0);
+		// only the root is YAML
+		assertEquals(1, yml);
+
+		PullTask<ProtoIndex> task2 = new PullTask<ProtoIndex>(task1.meta);
+		srl.pull(task2);
+		idx = task2.data;
+		assertEquals(fmtid, idx.serialFormatUID);
+		assertTrue(idx.ttab.isBare());
+
+		idx.ttab.inflate();
+		assertEquals(orig.keySet(), idx.ttab.keySet());
+		for (Map.Entry<String, SortedSet<TermEntry>> en: orig.entrySet()) {
+			SkeletonBTreeSet<TermEntry> entries = idx.ttab.get(en.getKey());
+			entries.inflate();
+			assertEquals(en.getValue(), entries);
+		}
+	}
+
+}
@@ -0,0 +1,102 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.index;
+
+import junit.framework.TestCase;
+
+import plugins.Library.client.BlockCache;
+import plugins.Library.client.BlockCacheTest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class TermDictionaryTest extends TestCase {
+
+	public void testSuccessor() {
+		assertEquals("freeneu", TermDictionary.successor("freenet"));
+		assertEquals("b", TermDictionary.successor("a\uffff"));
+		assertNull(TermDictionary.successor("\uffff"));
+		assertNull(TermDictionary.successor(""));
+	}
+
+	public void testCovered() {
+		TermDictionary dict = new TermDictionary(null);
+		assertNull(dict.get("free", 0));
+
+		dict.put("freenet", Arrays.asList("freenet", "freenetproject", "freenets"));
+		assertTrue(dict.isCovered("freenet"));
+		assertTrue(dict.isCovered("freenetp"));
+		assertFalse(dict.isCovered("freene"));
+		assertFalse(dict.isCovered("freenev"));
+		assertEquals(Arrays.asList("freenetproject"), new ArrayList<String>(dict.get("freenetp", 0)));
+		assertEquals(Arrays.asList("freenet", "freenetproject"), new ArrayList<String>(dict.get("freenet", 2)));
+		assertTrue(dict.get("freenetx", 0).isEmpty());
+
+		// a shorter prefix replaces the longer ones it covers
+		dict.put("free", Arrays.asList("free", "freedom", "freenet", "freenetproject", "freenets"));
+		assertEquals(1, dict.covered.length);
+		assertEquals(5, dict.size());
+		assertTrue(dict.isCovered("freed"));
+
+		dict.put("apple", Arrays.asList("apples"));
+		assertTrue(dict.isCovered("apples"));
+		assertTrue(dict.isCovered("freenet"));
+		assertFalse(dict.isCovered("b"));
+		assertNull(dict.get("app", 0));
+		assertEquals(Arrays.asList("apples"), new ArrayList<String>(dict.get("apple", 0)));
+
+		try {
+			dict.put("pear", Arrays.asList("apple"));
+			fail("term does not start with the prefix");
+		} catch (IllegalArgumentException e) { }
+	}
+
+	public void testReadWrite() throws Exception {
+		TermDictionary dict = new TermDictionary("test#3");
+		dict.put("fre", Arrays.asList("free", "freedom", "freenet", "fresh", "freé"));
+		dict.put("zz", new ArrayList<String>());
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		dict.write(bos);
+
+		TermDictionary copy = new TermDictionary("test#3");
+		assertTrue(copy.read(new ByteArrayInputStream(bos.toByteArray())));
+		assertEquals(Arrays.asList(dict.terms), Arrays.asList(copy.terms));
+		assertEquals(Arrays.asList(dict.covered), Arrays.asList(copy.covered));
+		assertTrue(copy.isCovered("zzz"));
+
+		// a dictionary for another edition is not used
+		TermDictionary other = new TermDictionary("test#4");
+		assertFalse(other.read(new ByteArrayInputStream(bos.toByteArray())));
+		assertEquals(0, other.size());
+	}
+
+	public void testBatchedWrites() throws Exception {
+		File dir = new File("TermDictionaryTest");
+		BlockCacheTest.rmdir(dir);
+		BlockCache disk = new BlockCache(dir, 0x10000);
+		TermResultCache.getInstance().setDiskCache(disk);
+		try {
+			TermDictionary dict = new TermDictionary("test#5");
+			dict.put("a", Arrays.asList("ab"));
+			dict.put("b", Arrays.asList("bc"));
+
+			// the second prefix is left for a later write
+			TermDictionary copy = new TermDictionary("test#5");
+			copy.readDisk(disk);
+			assertTrue(copy.isCovered("a"));
+			assertFalse(copy.isCovered("b"));
+
+			dict.flush();
+			copy.readDisk(disk);
+			assertTrue(copy.isCovered("b"));
+		} finally {
+			TermResultCache.getInstance().setDiskCache(null);
+			BlockCacheTest.rmdir(dir);
+		}
+	}
+
+}
@@ -0,0 +1,84 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.index;
+
+import junit.framework.TestCase;
+
+import plugins.Library.client.BlockCacheTest;
+
+import freenet.keys.FreenetURI;
+
+import java.util.*;
+import java.io.*;
+
+public class TermEntrySorterTest extends TestCase {
+
+	final static Random rand = new Random(0x6009);
+
+	File dir;
+
+	@Override public void setUp() {
+		dir = new File("TermEntrySorterTest");
+		BlockCacheTest.rmdir(dir);
+	}
+
+	@Override public void tearDown() {
+		BlockCacheTest.rmdir(dir);
+	}
+
+	protected Map<String, SortedSet<TermEntry>> fill(TermEntrySorter s, int n) throws IOException {
+		Map<String, SortedSet<TermEntry>> expected = new HashMap<String, SortedSet<TermEntry>>();
+		for (int i=0; i<n; ++i) {
+			String term = "term" + rand.nextInt(50);
+			Map<Integer, String> pos = new HashMap<Integer, String>();
+			pos.put(rand.nextInt(1000), (i%3==0)? "frag" + i: null);
+			TermEntry en = new TermPageEntry(term, rand.nextFloat(), FreenetURI.generateRandomCHK(rand), pos);
+			SortedSet<TermEntry> set = expected.get(term);
+			if (set == null) { expected.put(term, set = new TreeSet<TermEntry>()); }
+			set.add(en);
+			s.add(en);
+			// and a duplicate, which should be dropped
+			if (i%10 == 0) { s.add(en); }
+		}
+		s.finish();
+		return expected;
+	}
+
+	public void testInMemory() throws IOException {
+		TermEntrySorter s = new TermEntrySorter(dir, 10000);
+		Map<String, SortedSet<TermEntry>> expected = fill(s, 1000);
+		assertFalse(s.isSpilled());
+		assertFalse(dir.exists());
+		assertEquals(new TreeSet<String>(expected.keySet()), s.terms());
+		for (String term: s.terms()) {
+			assertEquals(expected.get(term), s.take(term));
+		}
+		s.close();
+	}
+
+	public void testSpilled() throws IOException {
+		TermEntrySorter s = new TermEntrySorter(dir, 64);
+		Map<String, SortedSet<TermEntry>> expected = fill(s, 1000);
+		assertTrue(s.isSpilled());
+		assertEquals(new TreeSet<String>(expected.keySet()), s.terms());
+		// the runs have been merged into one file
+		assertEquals(1, dir.listFiles().length);
+		List<String> terms = new ArrayList<String>(s.terms());
+		Collections.shuffle(terms, rand);
+		for (String term: terms) {
+			SortedSet<TermEntry> got = s.take(term);
+			assertEquals(expected.get(term), got);
+			Iterator<TermEntry> it = expected.get(term).iterator();
+			for (TermEntry en: got) {
+				TermPageEntry e0 = (TermPageEntry)it.next(), e1 = (TermPageEntry)en;
+				assertEquals(e0.getFragments(), e1.getFragments());
+				assertTrue(Arrays.equals(e0.positionsRaw(), e1.positionsRaw()));
+			}
+			assertNull(s.take(term));
+		}
+		s.close();
+		assertEquals(0, dir.listFiles().length);
+	}
+
+}
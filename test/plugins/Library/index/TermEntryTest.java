@@ -112,6 +112,117 @@ public class TermEntryTest extends TestCase {
 		assertEqualButNotIdentical(z, z1);
 	}
 
+	public void testPositions() throws IOException {
+		Map<Integer, String> p = new HashMap<Integer, String>();
+		p.put(7, "seven");
+		p.put(2, null);
+		p.put(4, "");
+		TermPageEntry a = new TermPageEntry("lol", 0.5f, z.page, p);
+		assertTrue(Arrays.equals(new int[]{2, 4, 7}, a.positionsRaw()));
+		assertTrue(a.hasFragments());
+		assertEquals("seven", a.fragment(2));
+		assertTrue(a.hasPosition(4));
+		assertFalse(a.hasPosition(5));
+
+		// empty fragments are not kept
+		Map<Integer, String> q = new HashMap<Integer, String>();
+		q.put(5, null);
+		q.put(7, "");
+		TermPageEntry b = new TermPageEntry("lol", 0.5f, z.page, q);
+		assertFalse(b.hasFragments());
+		assertNull(b.getFragments());
+
+		TermPageEntry c = TermPageEntry.merge("lol", 0.5f, a, b);
+		assertTrue(Arrays.equals(new int[]{2, 4, 5, 7}, c.positionsRaw()));
+		assertEquals("seven", c.fragment(3));
+		assertNull(c.fragment(2));
+
+		TermEntryReaderWriter rw = TermEntryReaderWriter.getInstance();
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		DataOutputStream oo = new DataOutputStream(bo);
+		rw.writeObject(c, oo);
+		rw.writeObject(b, oo);
+		oo.close();
+		DataInputStream oi = new DataInputStream(new ByteArrayInputStream(bo.toByteArray()));
+		TermPageEntry c1 = (TermPageEntry)rw.readObject(oi);
+		TermPageEntry b1 = (TermPageEntry)rw.readObject(oi);
+		assertTrue(Arrays.equals(c.positionsRaw(), c1.positionsRaw()));
+		assertEquals(c.getFragments(), c1.getFragments());
+		assertTrue(Arrays.equals(b.positionsRaw(), b1.positionsRaw()));
+		assertFalse(b1.hasFragments());
+	}
+
+	public void testStreamReadWrite() throws IOException {
+		Map<Integer, String> p = new HashMap<Integer, String>();
+		for (int i=0; i<256; ++i) { p.put(i*3+1000, null); }
+		p.put(3, "three");
+		List<TermEntry> l = new ArrayList<TermEntry>();
+		for (int i=0; i<16; ++i) {
+			l.add(new TermPageEntry("lol", 0.1f*i, FreenetURI.generateRandomCHK(new java.util.Random(i)), (i%2==0)? "title": null, p));
+			l.add(new TermPageEntry("lol", 0.5f, FreenetURI.generateRandomCHK(new java.util.Random(-i)), (Map<Integer, String>)null));
+		}
+		l.add(v);
+		l.add(w);
+		l.add(x);
+		l.add(y);
+
+		ByteArrayOutputStream b1 = new ByteArrayOutputStream();
+		DataOutputStream o1 = new DataOutputStream(b1);
+		for (TermEntry en: l) { TermEntryReaderWriter.getInstance().writeObject(en, o1); }
+		o1.close();
+
+		ByteArrayOutputStream b2 = new ByteArrayOutputStream();
+		TermEntryReaderWriter.StreamWriter o2 = new TermEntryReaderWriter.StreamWriter(b2);
+		for (TermEntry en: l) { o2.writeObject(en); }
+		o2.close();
+		assertTrue(b2.size() * 2 < b1.size());
+
+		for (ByteArrayOutputStream b: Arrays.asList(b1, b2)) {
+			TermEntryReaderWriter.StreamReader r = new TermEntryReaderWriter.StreamReader(new ByteArrayInputStream(b.toByteArray()));
+			assertEquals((b == b1)? TermEntryReaderWriter.STREAM_V1: TermEntryReaderWriter.STREAM_V2, r.version);
+			for (TermEntry en: l) {
+				TermEntry en1 = r.readObject();
+				assertEqualButNotIdentical(en, en1);
+				if (en instanceof TermPageEntry) {
+					TermPageEntry e = (TermPageEntry)en, e1 = (TermPageEntry)en1;
+					assertEquals(e.title, e1.title);
+					assertTrue(Arrays.equals(e.positionsRaw(), e1.positionsRaw()) || !e.hasPositions() && e1.positionsSize() == 0);
+					assertEquals(e.getFragments(), e1.getFragments());
+				}
+			}
+			try {
+				r.readObject();
+				fail();
+			} catch (EOFException e) {
+				// expected
+			}
+		}
+	}
+
+	public void testLongFragment() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		while (sb.length() < TermEntryReaderWriter.MAX_FRAGMENT_BYTES) { sb.append("a\u4e2d"); }
+		String big = sb.toString();
+		Map<Integer, String> p = new HashMap<Integer, String>();
+		p.put(1, big);
+		p.put(2, "short");
+		TermPageEntry en = new TermPageEntry("lol", 0.5f, FreenetURI.generateRandomCHK(new java.util.Random(7)), null, p);
+
+		ByteArrayOutputStream b = new ByteArrayOutputStream();
+		TermEntryReaderWriter.StreamWriter o = new TermEntryReaderWriter.StreamWriter(b);
+		o.writeObject(en);
+		o.close();
+		TermEntryReaderWriter.StreamReader r = new TermEntryReaderWriter.StreamReader(new ByteArrayInputStream(b.toByteArray()));
+		TermPageEntry en1 = (TermPageEntry)r.readObject();
+
+		// cut short, at a character boundary, and readable again
+		String frag = en1.getFragments().get(1);
+		assertTrue(frag.getBytes("UTF-8").length <= TermEntryReaderWriter.MAX_FRAGMENT_BYTES);
+		assertTrue(frag.length() > 0);
+		assertTrue(big.startsWith(frag));
+		assertEquals("short", en1.getFragments().get(2));
+	}
+
 	public static void assertEqualButNotIdentical(Object a, Object b) {
 		assertTrue(a != b);
 		assertTrue(a.equals(b));
@@ -0,0 +1,169 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.index;
+
+import junit.framework.TestCase;
+
+import plugins.Library.client.BlockCache;
+import plugins.Library.client.BlockCacheTest;
+import plugins.Library.util.exec.*;
+
+import freenet.keys.FreenetURI;
+
+import java.util.*;
+import java.io.*;
+
+public class TermResultCacheTest extends TestCase {
+
+	final static Random rand = new Random(0x6006);
+
+	File dir;
+
+	@Override public void setUp() {
+		dir = new File("TermResultCacheTest");
+		BlockCacheTest.rmdir(dir);
+	}
+
+	@Override public void tearDown() {
+		BlockCacheTest.rmdir(dir);
+	}
+
+	public static Set<TermEntry> makeResult(String term, int n) {
+		Set<TermEntry> res = new TreeSet<TermEntry>();
+		for (int i=0; i<n; ++i) {
+			res.add(new TermPageEntry(term, rand.nextFloat(), FreenetURI.generateRandomCHK(rand), null));
+		}
+		return res;
+	}
+
+	/**
+	** A lookup which completes when told to.
+	*/
+	public static class TestExecution extends AbstractExecution<Set<TermEntry>> {
+		public TestExecution(String term) { super(term); }
+		@Override public ProgressParts getParts() { return new ProgressParts(0, 1); }
+		@Override public String getStatus() { return "testing"; }
+		public void done(Set<TermEntry> res) { setResult(res); }
+		public void abort() { setError(new TaskAbortException("test", new Exception("test"))); }
+	}
+
+	public void testWeightedEviction() {
+		int w = TermResultCache.ENTRY_WEIGHT;
+		TermResultCache c = new TermResultCache(w * 100);
+		TermResultCache.Key ka = new TermResultCache.Key("idx", 1, "a", 0);
+		TermResultCache.Key kb = new TermResultCache.Key("idx", 1, "b", 0);
+		TermResultCache.Key kc = new TermResultCache.Key("idx", 1, "c", 0);
+
+		TestExecution ea = new TestExecution("a");
+		assertNull(c.putIfAbsent(ka, ea));
+		assertSame(ea, c.putIfAbsent(ka, new TestExecution("a")));
+		Set<TermEntry> ra = makeResult("a", 40);
+		ea.done(ra);
+		Execution<Set<TermEntry>> ca = c.get(ka);
+		assertTrue(ca instanceof TermResultCache.CachedResult);
+		assertEquals(new ArrayList<TermEntry>(ra), ((TermResultCache.CachedResult)ca).getPartialResult());
+		assertEquals(40 * w, c.getWeight());
+
+		c.putIfAbsent(kb, new TermResultCache.CachedResult("b", makeResult("b", 40)));
+		assertNotNull(c.get(ka)); // a is now more recent than b
+		// a running lookup is never evicted
+		TestExecution ec = new TestExecution("c");
+		c.putIfAbsent(kc, ec);
+		ec.done(makeResult("c", 40));
+		assertEquals(2, c.getCount());
+		assertNull(c.get(kb));
+		assertNotNull(c.get(ka));
+		assertNotNull(c.get(kc));
+		assertEquals(80 * w, c.getWeight());
+		assertEquals(1, c.getEvictions());
+
+		// aborted lookups are dropped, so they can be retried
+		TermResultCache.Key kd = new TermResultCache.Key("idx", 1, "d", 0);
+		TestExecution ed = new TestExecution("d");
+		c.putIfAbsent(kd, ed);
+		ed.abort();
+		assertNull(c.get(kd));
+		assertEquals(80 * w, c.getWeight());
+	}
+
+	public void testDisk() {
+		TermResultCache c = new TermResultCache(0);
+		c.setDiskCache(new BlockCache(dir, 1 << 20));
+		TermResultCache.Key ka = new TermResultCache.Key("idx", 1, "a", 0);
+		TestExecution ea = new TestExecution("a");
+		c.putIfAbsent(ka, ea);
+		Set<TermEntry> ra = makeResult("a", 20);
+		ea.done(ra);
+		// evicted from memory straight away
+		assertEquals(0, c.getCount());
+
+		// and read back from disk, even by a new cache
+		c = new TermResultCache(0);
+		c.setDiskCache(new BlockCache(dir, 1 << 20));
+		Execution<Set<TermEntry>> ca = c.get(ka);
+		assertNotNull(ca);
+		assertEquals(1, c.getDiskHits());
+		assertEquals(new ArrayList<TermEntry>(ra), ((TermResultCache.CachedResult)ca).getPartialResult());
+		assertNull(c.get(new TermResultCache.Key("idx", 2, "a", 0)));
+	}
+
+	public void testDiskReadOutsideLock() throws Exception {
+		final java.util.concurrent.CountDownLatch reading = new java.util.concurrent.CountDownLatch(1);
+		final java.util.concurrent.CountDownLatch release = new java.util.concurrent.CountDownLatch(1);
+		final TermResultCache c = new TermResultCache(TermResultCache.DEFAULT_MAX_WEIGHT);
+		final TermResultCache.Key ka = new TermResultCache.Key("idx", 1, "a", 0);
+		c.setDiskCache(new BlockCache(dir, 1 << 20) {
+			@Override public InputStream get(String key) {
+				if (key.equals(TermResultCache.diskKey(ka))) {
+					reading.countDown();
+					try { release.await(); } catch (InterruptedException e) { }
+				}
+				return super.get(key);
+			}
+		});
+		Thread th = new Thread() {
+			@Override public void run() {
+				c.get(ka);
+			}
+		};
+		th.start();
+		reading.await();
+		// the cache can still be used while the disk is being read
+		c.putIfAbsent(new TermResultCache.Key("idx", 1, "b", 0), new TermResultCache.CachedResult("b", makeResult("b", 4)));
+		assertEquals(1, c.getCount());
+		release.countDown();
+		th.join();
+		assertEquals(2, c.getMisses());
+	}
+
+	public void testKeyLimit() {
+		// any non-positive limit means all the entries
+		TermResultCache.Key k0 = new TermResultCache.Key("idx", 1, "a", 0);
+		TermResultCache.Key kn = new TermResultCache.Key("idx", 1, "a", -1);
+		assertEquals(k0, kn);
+		assertEquals(k0.hashCode(), kn.hashCode());
+		assertEquals(0, kn.limit);
+		assertFalse(k0.equals(new TermResultCache.Key("idx", 1, "a", 10)));
+	}
+
+	public void testInvalidate() {
+		TermResultCache c = new TermResultCache(TermResultCache.DEFAULT_MAX_WEIGHT);
+		TermResultCache.Key ka = new TermResultCache.Key("idx", 3, "a", 0);
+		TermResultCache.Key kb = new TermResultCache.Key("other", 1, "a", 0);
+		TermResultCache.Key kc = new TermResultCache.Key("idx", 3, "c", 0);
+		c.putIfAbsent(ka, new TermResultCache.CachedResult("a", makeResult("a", 4)));
+		c.putIfAbsent(kb, new TermResultCache.CachedResult("a", makeResult("a", 4)));
+		TestExecution ec = new TestExecution("c");
+		c.putIfAbsent(kc, ec);
+		c.invalidate("idx", 3);
+		assertEquals(3, c.getCount());
+		c.invalidate("idx", 4);
+		// running lookups are left alone
+		assertEquals(2, c.getCount());
+		assertNull(c.get(ka));
+		assertNotNull(c.get(kb));
+		assertSame(ec, c.get(kc));
+	}
+
+}
@@ -0,0 +1,77 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.index.xml;
+
+import junit.framework.TestCase;
+
+import plugins.Library.index.TermPageEntry;
+
+import freenet.keys.FreenetURI;
+
+import java.io.ByteArrayInputStream;
+import java.util.*;
+
+public class SubIndexTableTest extends TestCase {
+
+	final static Random rand = new Random(0x5ab1d);
+
+	final static String[] keys = new String[3];
+	static {
+		for (int i=0; i<keys.length; ++i) { keys[i] = FreenetURI.generateRandomCHK(rand).toString(); }
+	}
+
+	final static String FILES =
+		"<files totalFileCount=\"100\">\n" +
+		"<file id=\"0\" key=\"" + keys[0] + "\" title=\"zero\" wordCount=\"10\"/>\n" +
+		"<file id=\"1\" key=\"" + keys[1] + "\" title=\"one\" wordCount=\"20\"/>\n" +
+		"<file id=\"2\" key=\"" + keys[2] + "\" wordCount=\"40\"/>\n" +
+		"</files>\n";
+
+	final static String KEYWORDS =
+		"<keywords>\n" +
+		"<word v=\"apple\" fileCount=\"2\"><file id=\"0\">1,4,7</file><file id=\"2\">3</file></word>\n" +
+		"<word v=\"pear\" fileCount=\"1\"><file id=\"1\">2,5</file></word>\n" +
+		"<word v=\"ghost\" fileCount=\"1\"><file id=\"9\">2</file></word>\n" +
+		"</keywords>\n";
+
+	static SubIndexTable parse(String body) throws Exception {
+		String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<main_index>\n" + body + "</main_index>\n";
+		return SubIndexTable.parse(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+	}
+
+	static Map<String, TermPageEntry> byKey(Set<TermPageEntry> entries) {
+		Map<String, TermPageEntry> m = new HashMap<String, TermPageEntry>();
+		for (TermPageEntry en: entries) { m.put(en.page.toString(), en); }
+		return m;
+	}
+
+	public void testLookup() throws Exception {
+		// the files list may come either side of the keywords
+		for (SubIndexTable table: new SubIndexTable[]{parse(FILES + KEYWORDS), parse(KEYWORDS + FILES)}) {
+			assertEquals(3, table.wordCount());
+			assertEquals(3, table.fileCount());
+
+			Map<String, TermPageEntry> apple = byKey(table.lookup("apple"));
+			assertEquals(2, apple.size());
+			TermPageEntry en = apple.get(keys[0]);
+			assertEquals("apple", en.subj);
+			assertEquals("zero", en.title);
+			assertEquals(Arrays.asList(1, 4, 7), en.positions());
+			assertEquals((float)(3/10f * Math.log(100f/2f)), en.rel, 1e-6);
+			assertNull(apple.get(keys[2]).title);
+
+			Map<String, TermPageEntry> pear = byKey(table.lookup("pear"));
+			assertEquals(Collections.singleton(keys[1]), pear.keySet());
+			assertEquals((float)(2/20f * Math.log(100f/1f)), pear.get(keys[1]).rel, 1e-6);
+
+			// ids which aren't in the files list are dropped
+			assertTrue(table.contains("ghost"));
+			assertTrue(table.lookup("ghost").isEmpty());
+
+			assertFalse(table.contains("plum"));
+			assertTrue(table.lookup("plum").isEmpty());
+		}
+	}
+
+}
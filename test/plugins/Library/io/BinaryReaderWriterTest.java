@@ -0,0 +1,205 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.io;
+
+import junit.framework.TestCase;
+
+import plugins.Library.index.*;
+import plugins.Library.io.serial.Packer;
+
+import freenet.keys.FreenetURI;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.LinkedHashMap;
+import java.util.TreeMap;
+import java.util.Random;
+import java.io.*;
+
+public class BinaryReaderWriterTest extends TestCase {
+
+	final static Random rand = new Random(0x42);
+
+	final static BinaryReaderWriter binrw = new BinaryReaderWriter(new YamlReaderWriter());
+
+	public static Map<String, Object> makeNode() throws IOException {
+		Map<String, Object> map = new LinkedHashMap<String, Object>();
+		map.put("lkey", "aardvark");
+		map.put("rkey", null);
+
+		List<TermEntry> l = new ArrayList<TermEntry>();
+		l.add(new TermTermEntry("test", 0.8f, "lol"));
+		l.add(new TermIndexEntry("test", 0.5f, FreenetURI.generateRandomCHK(rand)));
+		l.add(new TermPageEntry("test", 0.25f, FreenetURI.generateRandomCHK(rand), null));
+		Map<Integer, String> frags = new TreeMap<Integer, String>();
+		frags.put(3, "some");
+		frags.put(17, "");
+		frags.put(0x12345, "text \u00e9\u4e2d");
+		l.add(new TermPageEntry("test", 1.0f, FreenetURI.generateRandomCHK(rand), "title", frags));
+		Map<Integer, String> nofrags = new TreeMap<Integer, String>();
+		nofrags.put(1, null);
+		nofrags.put(1000, null);
+		l.add(new TermPageEntry("test", 0.0f, FreenetURI.generateRandomCHK(rand), null, nofrags));
+		map.put("entries", l);
+
+		Map<Object, Integer> subnodes = new LinkedHashMap<Object, Integer>();
+		subnodes.put(FreenetURI.generateRandomCHK(rand), 1024);
+		subnodes.put(new byte[]{1, 2, 3}, 512);
+		subnodes.put("local-file", 0);
+		map.put("subnodes", subnodes);
+
+		map.put("bin", new Packer.BinInfo(FreenetURI.generateRandomCHK(rand), 123));
+		map.put("size", -7);
+		map.put("serialVersionUID", 0xF23194B7F015560CL);
+		map.put("flag", true);
+		return map;
+	}
+
+	public void testRoundTrip() throws IOException {
+		Map<String, Object> map = makeNode();
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		binrw.writeObject(map, bo);
+		Map<String, Object> m = (Map<String, Object>)binrw.readObject(new ByteArrayInputStream(bo.toByteArray()));
+
+		assertEquals(new ArrayList<String>(map.keySet()), new ArrayList<String>(m.keySet()));
+		assertEquals("aardvark", m.get("lkey"));
+		assertNull(m.get("rkey"));
+		assertEquals(-7, m.get("size"));
+		assertEquals(0xF23194B7F015560CL, m.get("serialVersionUID"));
+		assertEquals(Boolean.TRUE, m.get("flag"));
+		assertEquals(map.get("bin"), m.get("bin"));
+
+		List l0 = (List)map.get("entries"), l1 = (List)m.get("entries");
+		assertEquals(l0.size(), l1.size());
+		for (int i=0; i<l0.size(); ++i) {
+			assertEquals(l0.get(i), l1.get(i));
+			if (l0.get(i) instanceof TermPageEntry) {
+				TermPageEntry e0 = (TermPageEntry)l0.get(i), e1 = (TermPageEntry)l1.get(i);
+				assertEquals(e0.title, e1.title);
+				assertEquals(e0.hasPositions(), e1.hasPositions());
+				// fragments which are all null are dropped on construction
+				assertTrue(e0.hasFragments() || !e1.hasFragments());
+				if (e0.hasPositions()) {
+					assertTrue(Arrays.equals(e0.positionsRaw(), e1.positionsRaw()));
+				}
+				if (e1.hasFragments()) {
+					assertEquals(new TreeMap<Integer, String>(e0.getFragments()), new TreeMap<Integer, String>(e1.getFragments()));
+				}
+			}
+		}
+
+		Map<Object, Integer> s0 = (Map<Object, Integer>)map.get("subnodes"), s1 = (Map<Object, Integer>)m.get("subnodes");
+		assertEquals(s0.size(), s1.size());
+		Object[] k1 = s1.keySet().toArray();
+		assertTrue(k1[0] instanceof FreenetURI);
+		assertTrue(k1[1] instanceof byte[]);
+		assertTrue(Arrays.equals(new byte[]{1, 2, 3}, (byte[])k1[1]));
+		assertEquals("local-file", k1[2]);
+		assertEquals(new ArrayList<Integer>(s0.values()), new ArrayList<Integer>(s1.values()));
+	}
+
+	public void testURIEntry() throws IOException {
+		URIEntry en = new URIEntry(FreenetURI.generateRandomCHK(rand));
+		en.setQuality(0.75f);
+		en.getTerms().addAll(Arrays.asList("aardvark", "test", "é中"));
+		Map<String, Object> map = new LinkedHashMap<String, Object>();
+		map.put("entries", Arrays.asList(en, new URIEntry(FreenetURI.generateRandomCHK(rand))));
+
+		ObjectStreamWriter[] ws = new ObjectStreamWriter[]{binrw, new YamlReaderWriter()};
+		for (ObjectStreamWriter w: ws) {
+			ByteArrayOutputStream bo = new ByteArrayOutputStream();
+			w.writeObject(map, bo);
+			Map<String, Object> m = (Map<String, Object>)binrw.readObject(new ByteArrayInputStream(bo.toByteArray()));
+			List l = (List)m.get("entries");
+			assertEquals(2, l.size());
+			URIEntry e0 = (URIEntry)l.get(0), e1 = (URIEntry)l.get(1);
+			assertEquals(en.getSubject(), e0.getSubject());
+			assertEquals(0.75f, e0.getQuality());
+			assertEquals(en.getTerms(), e0.getTerms());
+			assertTrue(e1.getTerms().isEmpty());
+		}
+	}
+
+	public void testYamlFallback() throws IOException {
+		Map<String, Object> map = new LinkedHashMap<String, Object>();
+		map.put("entries", Arrays.asList(new TermTermEntry("test", 0.8f, "lol")));
+		map.put("size", 1);
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		new YamlReaderWriter().writeObject(map, bo);
+		Map<String, Object> m = (Map<String, Object>)binrw.readObject(new ByteArrayInputStream(bo.toByteArray()));
+		assertEquals(map, m);
+
+		try {
+			new BinaryReaderWriter().readObject(new ByteArrayInputStream(bo.toByteArray()));
+			fail("read non-binary stream without a fallback");
+		} catch (DataFormatException e) {
+			// expected
+		}
+	}
+
+	public void testCorrupt() throws IOException {
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		binrw.writeObject(makeNode(), bo);
+		byte[] b = bo.toByteArray();
+		byte[] t = Arrays.copyOf(b, b.length - 10);
+		try {
+			binrw.readObject(new ByteArrayInputStream(t));
+			fail("read truncated document");
+		} catch (IOException e) {
+			// expected
+		}
+		b[BinaryReaderWriter.MAGIC.length] = (byte)(BinaryReaderWriter.VERSION + 1);
+		try {
+			binrw.readObject(new ByteArrayInputStream(b));
+			fail("read document with unknown version");
+		} catch (DataFormatException e) {
+			// expected
+		}
+	}
+
+	public void testOversizedLength() throws IOException {
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(bo);
+		dos.write(BinaryReaderWriter.MAGIC);
+		dos.writeByte(BinaryReaderWriter.VERSION);
+		dos.writeInt(Integer.MAX_VALUE);
+		dos.writeByte(0);
+		try {
+			// this must not try to allocate the whole body first
+			binrw.readObject(new ByteArrayInputStream(bo.toByteArray()));
+			fail("read document with an oversized body length");
+		} catch (DataFormatException e) {
+			// expected
+		}
+	}
+
+	public void testParallelDecode() throws Exception {
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		binrw.writeObject(makeNode(), bo);
+		final byte[] b = bo.toByteArray();
+		final Map<String, Object> ref = (Map<String, Object>)binrw.readObject(new ByteArrayInputStream(b));
+		final Throwable[] err = new Throwable[1];
+		Thread[] ths = new Thread[8];
+		for (int i=0; i<ths.length; ++i) {
+			ths[i] = new Thread() {
+				@Override public void run() {
+					try {
+						for (int j=0; j<0x100; ++j) {
+							Map<String, Object> m = (Map<String, Object>)binrw.readObject(new ByteArrayInputStream(b));
+							assertEquals(ref.get("entries"), m.get("entries"));
+						}
+					} catch (Throwable t) {
+						synchronized (err) { err[0] = t; }
+					}
+				}
+			};
+			ths[i].start();
+		}
+		for (Thread th: ths) { th.join(); }
+		if (err[0] != null) { throw new AssertionError(err[0]); }
+	}
+
+}
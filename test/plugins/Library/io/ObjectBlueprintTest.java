@@ -0,0 +1,110 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.io;
+
+import junit.framework.TestCase;
+
+import plugins.Library.index.TermPageEntry;
+
+import freenet.keys.FreenetURI;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+public class ObjectBlueprintTest extends TestCase {
+
+	public static class Point {
+		final public int x;
+		final public long y;
+		final private String name;
+		public Point(int x, long y, String name) {
+			if (name == null) { throw new IllegalArgumentException("no name"); }
+			this.x = x; this.y = y; this.name = name;
+		}
+		public String getName() { return name; }
+	}
+
+	protected ObjectBlueprint<Point> makeBlueprint() throws Exception {
+		return ObjectBlueprint.init(Point.class).addFields("x", "y").addMethod("name", "getName").build();
+	}
+
+	public void testMapView() throws Exception {
+		ObjectBlueprint<Point> bp = makeBlueprint();
+		Map<String, Object> view = bp.objectAsMap(new Point(3, 4L, "p"));
+		assertEquals(3, view.size());
+		assertEquals(3, view.get("x"));
+		assertEquals(4L, view.get("y"));
+		assertEquals("p", view.get("name"));
+		assertTrue(view.containsKey("name"));
+		assertFalse(view.containsKey("z"));
+		assertNull(view.get("z"));
+
+		// same order as the blueprint
+		Iterator<Map.Entry<String, Object>> it = view.entrySet().iterator();
+		assertEquals("x", it.next().getKey());
+		assertEquals("y", it.next().getKey());
+		assertEquals("name", it.next().getKey());
+		assertFalse(it.hasNext());
+
+		Map<String, Object> copy = new HashMap<String, Object>();
+		copy.put("x", 3); copy.put("y", 4L); copy.put("name", "p");
+		assertEquals(copy, view);
+	}
+
+	public void testConstruct() throws Exception {
+		ObjectBlueprint<Point> bp = makeBlueprint();
+		assertNotNull(bp.ctor_handle);
+		for (Object getter: bp.prop_getters) { assertNotNull(getter); }
+		Map<String, Object> map = new HashMap<String, Object>();
+		map.put("x", 1); map.put("y", 2L); map.put("name", "q");
+		Point p = bp.objectFromMap(map);
+		assertEquals(1, p.x);
+		assertEquals(2L, p.y);
+		assertEquals("q", p.getName());
+
+		// widening is left to reflection
+		p = bp.newInstance(5, 6, "r");
+		assertEquals(6L, p.y);
+
+		try {
+			bp.newInstance(5, 6L);
+			fail("wrong number of arguments");
+		} catch (IllegalArgumentException e) { }
+
+		try {
+			bp.newInstance(5, null, "r");
+			fail("null primitive");
+		} catch (IllegalArgumentException e) { }
+
+		try {
+			bp.newInstance(5, 6L, null);
+			fail("constructor throws");
+		} catch (InvocationTargetException e) {
+			assertTrue(e.getCause() instanceof IllegalArgumentException);
+		}
+	}
+
+	public void testTermEntries() throws Exception {
+		Random rand = new Random(0xB1E);
+		TermPageEntry en = new TermPageEntry("term", 0.5f, FreenetURI.generateRandomCHK(rand), "title",
+		  new HashSet<Integer>(Arrays.asList(1, 5, 9)), null);
+		Map<String, Object> view = YamlReaderWriter.tebp_page.objectAsMap(en);
+		assertEquals("term", view.get("subj"));
+		assertEquals(0.5f, view.get("rel"));
+		assertEquals(en, YamlReaderWriter.tebp_page.objectFromMap(new HashMap<String, Object>(view)));
+
+		YamlReaderWriter yamlrw = new YamlReaderWriter();
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		yamlrw.writeObject(Arrays.asList(en), bos);
+		assertEquals(Arrays.asList(en), yamlrw.readObject(new ByteArrayInputStream(bos.toByteArray())));
+	}
+
+}
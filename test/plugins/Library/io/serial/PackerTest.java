@@ -16,6 +16,12 @@ import java.util.List;
 import java.util.Iterator;
 import java.util.HashSet;
 import java.util.HashMap;
+import java.util.Random;
+import java.util.Set;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 /**
 ** PRIORITY actually write some tests for this...
@@ -78,7 +84,247 @@ public class PackerTest extends TestCase {
 
 	}
 
-	// TODO write some more tests for this...
+	/**
+	** Child serialiser that keeps the bins in memory, by ID.
+	*/
+	public static class MemorySerialiser implements IterableSerialiser<Map<String, HashSet>> {
+
+		final public Map<Object, Map<String, HashSet>> bins = new HashMap<Object, Map<String, HashSet>>();
+
+		public void pull(Iterable<PullTask<Map<String, HashSet>>> t) {
+			for (PullTask<Map<String, HashSet>> task: t) { pull(task); }
+		}
+		public void push(Iterable<PushTask<Map<String, HashSet>>> t) {
+			for (PushTask<Map<String, HashSet>> task: t) { push(task); }
+		}
+
+		public void pull(PullTask<Map<String, HashSet>> t) {
+			t.data = new HashMap<String, HashSet>(bins.get(t.meta));
+		}
+		public void push(PushTask<Map<String, HashSet>> t) {
+			bins.put(t.meta, new HashMap<String, HashSet>(t.data));
+		}
+
+	}
+
+	protected static HashSet<Integer> element(int size) {
+		HashSet<Integer> hs = new HashSet<Integer>(size<<1);
+		for (int i=0; i<size; ++i) { hs.add(i); }
+		return hs;
+	}
+
+	protected static Packer<String, HashSet> makePacker(MemorySerialiser mem, boolean notiny) {
+		Packer<String, HashSet> packer = new Packer<String, HashSet>(mem, new Packer.Scale<HashSet>() {
+			@Override public int weigh(HashSet elem) {
+				return elem.size();
+			}
+		}, NODE_MAX, notiny);
+		packer.setStrategy(Packer.Strategy.LEAST_REWRITE);
+		return packer;
+	}
+
+	/**
+	** Pushes the given changes to the elements whose metadata is in {@code
+	** metas}, as {@link SkeletonTreeMap} does, and updates {@code metas}. A
+	** null element removes its key.
+	*/
+	protected static Map<String, PushTask<HashSet>> update(Packer<String, HashSet> packer, Map<String, Object> metas, Map<String, HashSet> changes) throws TaskAbortException {
+		Map<String, PushTask<HashSet>> tasks = new HashMap<String, PushTask<HashSet>>();
+		for (Map.Entry<String, Object> en: metas.entrySet()) {
+			tasks.put(en.getKey(), new PushTask<HashSet>(null, en.getValue()));
+		}
+		for (Map.Entry<String, HashSet> en: changes.entrySet()) {
+			if (en.getValue() == null) {
+				tasks.remove(en.getKey());
+			} else {
+				tasks.put(en.getKey(), new PushTask<HashSet>(en.getValue(), metas.get(en.getKey())));
+			}
+		}
+		Map<String, PushTask<HashSet>> pushed = new HashMap<String, PushTask<HashSet>>(tasks);
+		packer.push(tasks, null);
+		metas.keySet().retainAll(pushed.keySet());
+		for (Map.Entry<String, PushTask<HashSet>> en: pushed.entrySet()) {
+			metas.put(en.getKey(), en.getValue().meta);
+		}
+		return tasks;
+	}
+
+	/**
+	** Checks that every element can be pulled back with the expected size,
+	** and returns the weights of the bins in use. The packer is not told of
+	** removed elements, so these may still be in bins that were not pushed.
+	*/
+	protected static Map<Object, Integer> verify(Packer<String, HashSet> packer, Map<String, Object> metas, Map<String, Integer> sizes, Set<String> removed) throws TaskAbortException {
+		Map<String, PullTask<HashSet>> tasks = new HashMap<String, PullTask<HashSet>>();
+		Map<Object, Integer> weights = new HashMap<Object, Integer>();
+		for (Map.Entry<String, Object> en: metas.entrySet()) {
+			tasks.put(en.getKey(), new PullTask<HashSet>(en.getValue()));
+			Packer.BinInfo info = (Packer.BinInfo)en.getValue();
+			Integer w = weights.get(info.getID());
+			weights.put(info.getID(), (w == null? 0: w) + info.getWeight());
+		}
+		packer.pull(tasks, null);
+		// no stale copies are left in the bins, or the pull would have loaded them
+		for (Map.Entry<String, Integer> en: sizes.entrySet()) {
+			assertEquals((int)en.getValue(), tasks.get(en.getKey()).data.size());
+		}
+		tasks.keySet().removeAll(sizes.keySet());
+		assertTrue(removed.containsAll(tasks.keySet()));
+		return weights;
+	}
+
+	public void testLeastRewrite() throws TaskAbortException {
+		MemorySerialiser mem = new MemorySerialiser();
+		Packer<String, HashSet> packer = makePacker(mem, false);
+		Map<String, Object> metas = new HashMap<String, Object>();
+		Map<String, Integer> sizes = new HashMap<String, Integer>();
+
+		Map<String, HashSet> changes = new HashMap<String, HashSet>();
+		for (int i=0; i<64; ++i) {
+			String key = String.format("k%03d", i);
+			int size = 1 + (i*7) % 16;
+			changes.put(key, element(size));
+			sizes.put(key, size);
+		}
+		update(packer, metas, changes);
+		Map<Object, Integer> weights = verify(packer, metas, sizes, Collections.<String>emptySet());
+		Packer.PushStats first = packer.getLastPushStats();
+		assertEquals(weights.size(), first.binsTouched);
+		assertEquals(weights.size(), first.binsCreated());
+		assertEquals(0, first.binsReused);
+		assertEquals(0, first.elementsMoved);
+		int light = 0;
+		for (int w: weights.values()) {
+			assertTrue(w <= NODE_MAX);
+			if (w < NODE_MAX>>1) { ++light; }
+		}
+		assertTrue(light <= 1);
+
+		// change one element without changing its weight; only its bin is pushed
+		changes.clear();
+		changes.put("k010", element(sizes.get("k010")));
+		Object home = ((Packer.BinInfo)metas.get("k010")).getID();
+		update(packer, metas, changes);
+		Packer.PushStats stats = packer.getLastPushStats();
+		assertEquals(1, stats.binsTouched);
+		assertEquals(1, stats.binsRewritten);
+		assertEquals(weights.size() - 1, stats.binsReused);
+		assertEquals(0, stats.elementsMoved);
+		assertEquals((long)weights.get(home), stats.weightWritten);
+		assertEquals(home, ((Packer.BinInfo)metas.get("k010")).getID());
+		assertEquals(weights, verify(packer, metas, sizes, Collections.<String>emptySet()));
+
+		assertEquals(2, packer.getTotalPushStats().pushes);
+		assertEquals(first.weightWritten + stats.weightWritten, packer.getTotalPushStats().weightWritten);
+	}
+
+	/**
+	** Returns the keys in each bin, by bin ID.
+	*/
+	protected static String layout(Map<String, Object> metas) {
+		Map<Object, Set<String>> bins = new TreeMap<Object, Set<String>>();
+		for (Map.Entry<String, Object> en: metas.entrySet()) {
+			Object id = ((Packer.BinInfo)en.getValue()).getID();
+			if (!bins.containsKey(id)) { bins.put(id, new TreeSet<String>()); }
+			bins.get(id).add(en.getKey());
+		}
+		return bins.toString();
+	}
+
+	/**
+	** The default strategy must pack as {@link Packer} did before there was a
+	** choice. The weights are chosen so that no two elements, and no two sets
+	** of elements, weigh the same, since ties are broken by identity and so
+	** would make the layout vary between runs. The expected layouts are those
+	** produced by the packer before {@link Packer.Strategy} was added.
+	*/
+	public void testDefaultLayout() throws TaskAbortException {
+		final int base = 1<<14;
+		MemorySerialiser mem = new MemorySerialiser();
+		Packer<String, HashSet> packer = new Packer<String, HashSet>(mem, new Packer.Scale<HashSet>() {
+			@Override public int weigh(HashSet elem) {
+				return (Integer)elem.iterator().next();
+			}
+		}, base*7/2);
+		assertEquals(Packer.Strategy.BEST_FIT_DECREASING, packer.getStrategy());
+		Map<String, Object> metas = new HashMap<String, Object>();
+
+		Map<String, HashSet> changes = new HashMap<String, HashSet>();
+		for (int i=0; i<12; ++i) {
+			changes.put(String.format("k%02d", i), new HashSet<Integer>(Collections.singleton(base + (1<<i))));
+		}
+		update(packer, metas, changes);
+		assertEquals("{0=[k09, k10, k11], 1=[k06, k07, k08], 2=[k03, k04, k05], 3=[k00, k01, k02]}", layout(metas));
+
+		changes.clear();
+		changes.put("k00", new HashSet<Integer>(Collections.singleton(base + (1<<11))));
+		changes.put("k11", new HashSet<Integer>(Collections.singleton(base + 1)));
+		changes.put("k02", new HashSet<Integer>(Collections.singleton(base + (1<<12))));
+		changes.put("k05", new HashSet<Integer>(Collections.singleton(base + (1<<13))));
+		update(packer, metas, changes);
+		assertEquals("{0=[k02, k09, k10], 1=[k06, k07, k08], 2=[k00, k03, k04], 3=[k01, k05, k11]}", layout(metas));
+	}
+
+	public void testLeastRewriteRandom() throws TaskAbortException {
+		for (boolean notiny: new boolean[]{false, true}) {
+			Random rand = new Random(0xB175);
+			MemorySerialiser mem = new MemorySerialiser();
+			Packer<String, HashSet> packer = makePacker(mem, notiny);
+			Map<String, Object> metas = new HashMap<String, Object>();
+			Map<String, Integer> sizes = new HashMap<String, Integer>();
+			Set<String> removed = new HashSet<String>();
+			int next = 0;
+
+			for (int round=0; round<64; ++round) {
+				Map<String, HashSet> changes = new HashMap<String, HashSet>();
+				int n = 1 + rand.nextInt(round == 0? 256: 16);
+				for (int i=0; i<n; ++i) {
+					String key;
+					if (sizes.isEmpty() || rand.nextInt(3) == 0) {
+						key = "k" + next++;
+					} else {
+						// not efficient, but simple
+						List<String> keys = new ArrayList<String>(sizes.keySet());
+						key = keys.get(rand.nextInt(keys.size()));
+					}
+					if (rand.nextInt(8) == 0 && sizes.containsKey(key)) {
+						changes.put(key, null);
+						sizes.remove(key);
+						removed.add(key);
+					} else {
+						int size = 1 + rand.nextInt(NODE_MAX>>2);
+						changes.put(key, element(size));
+						sizes.put(key, size);
+					}
+				}
+
+				Map<String, PushTask<HashSet>> pushed = update(packer, metas, changes);
+				Map<Object, Integer> weights = verify(packer, metas, sizes, removed);
+				Packer.PushStats stats = packer.getLastPushStats();
+
+				// bins which were pushed are within the bounds, bar one
+				Set<Object> touched = new HashSet<Object>();
+				for (Map.Entry<String, PushTask<HashSet>> en: pushed.entrySet()) {
+					touched.add(((Packer.BinInfo)en.getValue().meta).getID());
+				}
+				assertEquals(touched.size(), stats.binsTouched);
+				assertEquals(weights.size(), stats.binsTouched + stats.binsReused);
+				int odd = 0;
+				long written = 0;
+				for (Object id: touched) {
+					int w = weights.get(id);
+					written += w;
+					assertTrue(w <= NODE_MAX + (NODE_MAX>>1));
+					if (w < NODE_MAX>>1 || w > NODE_MAX) { ++odd; }
+				}
+				assertEquals(written, stats.weightWritten);
+				assertTrue("round " + round + ": " + stats, odd <= 1);
+				// only the changed elements, and the rest of the bins they were
+				// put into, are pushed
+				assertTrue(stats.binsTouched <= 2*changes.size() + 1);
+			}
+		}
+	}
 
 
 }
@@ -0,0 +1,236 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.io.serial;
+
+import junit.framework.TestCase;
+
+import plugins.Library.io.serial.Serialiser.*;
+import plugins.Library.util.concurrent.MemoryBudget;
+import plugins.Library.util.concurrent.ObjectProcessor;
+import plugins.Library.util.exec.SimpleProgress;
+import plugins.Library.util.exec.TaskAbortException;
+import plugins.Library.util.func.SafeClosure;
+import static plugins.Library.util.func.Tuples.X2; // also imports the class
+import static plugins.Library.util.func.Tuples.X3; // also imports the class
+
+import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+
+public class ParallelSerialiserTest extends TestCase {
+
+	/**
+	** An archiver whose requests only complete when {@link #complete()} is
+	** called, like a network request completing in some other thread.
+	*/
+	static class PendingArchiver
+	extends ParallelSerialiser<String, SimpleProgress>
+	implements AsyncArchiver<String, SimpleProgress> {
+
+		final List<X3<PullTask<String>, SimpleProgress, SafeClosure<X2<PullTask<String>, TaskAbortException>>>> pending
+		= new ArrayList<X3<PullTask<String>, SimpleProgress, SafeClosure<X2<PullTask<String>, TaskAbortException>>>>();
+
+		int maxPending;
+
+		PendingArchiver() {
+			super(new ProgressTracker<String, SimpleProgress>(SimpleProgress.class));
+		}
+
+		public synchronized void pullAsync(PullTask<String> task, SimpleProgress p, SafeClosure<X2<PullTask<String>, TaskAbortException>> done) {
+			p.enteredSerialiser();
+			pending.add(X3(task, p, done));
+			if (pending.size() > maxPending) { maxPending = pending.size(); }
+			notifyAll();
+		}
+
+		public void pushAsync(PushTask<String> task, SimpleProgress p, SafeClosure<X2<PushTask<String>, TaskAbortException>> done) {
+			throw new UnsupportedOperationException();
+		}
+
+		public void pullLive(PullTask<String> task, SimpleProgress p) {
+			throw new AssertionError("should not block a thread on a pull");
+		}
+
+		public void pushLive(PushTask<String> task, SimpleProgress p) {
+			throw new AssertionError("should not block a thread on a push");
+		}
+
+		synchronized void waitPending(int n) throws InterruptedException {
+			while (pending.size() < n) { wait(); }
+		}
+
+		/**
+		** Completes all the pending requests, in the current thread.
+		*/
+		void complete() {
+			List<X3<PullTask<String>, SimpleProgress, SafeClosure<X2<PullTask<String>, TaskAbortException>>>> reqs;
+			synchronized (this) {
+				reqs = new ArrayList<X3<PullTask<String>, SimpleProgress, SafeClosure<X2<PullTask<String>, TaskAbortException>>>>(pending);
+				pending.clear();
+			}
+			for (X3<PullTask<String>, SimpleProgress, SafeClosure<X2<PullTask<String>, TaskAbortException>>> req: reqs) {
+				req._0.data = "data for " + req._0.meta;
+				req._1.addPartKnown(0, true);
+				req._1.exitingSerialiser();
+				if (req._2 != null) { req._2.invoke(X2(req._0, (TaskAbortException)null)); }
+			}
+		}
+
+	}
+
+	/**
+	** An archiver which pulls in two phases, and records how many fetches
+	** and decodes it has done.
+	*/
+	static class TwoPhase
+	extends ParallelSerialiser<String, SimpleProgress>
+	implements TwoPhaseArchiver<String, SimpleProgress> {
+
+		final int n;
+		int fetched;
+		int fetchedAtFirstDecode = -1;
+		int decoding;
+		int maxDecoding;
+
+		TwoPhase(int n) {
+			super(new ProgressTracker<String, SimpleProgress>(SimpleProgress.class));
+			this.n = n;
+		}
+
+		public Fetched fetchLive(PullTask<String> task, SimpleProgress p) {
+			p.enteredSerialiser();
+			synchronized (this) { ++fetched; notifyAll(); }
+			return new Fetched() {
+				public long size() { return 1; }
+				public void free() { }
+			};
+		}
+
+		public void decodeLive(PullTask<String> task, Fetched raw, SimpleProgress p) throws TaskAbortException {
+			synchronized (this) {
+				if (++decoding > maxDecoding) { maxDecoding = decoding; }
+				if (fetchedAtFirstDecode < 0) {
+					// the other fetches go on while this holds the budget
+					long end = System.currentTimeMillis() + 5000;
+					while (fetched < n && System.currentTimeMillis() < end) {
+						try { wait(100); } catch (InterruptedException e) { throw new TaskAbortException("interrupted", e); }
+					}
+					fetchedAtFirstDecode = fetched;
+				}
+			}
+			raw.free();
+			task.data = "data for " + task.meta;
+			synchronized (this) { --decoding; }
+			p.addPartKnown(0, true);
+			p.exitingSerialiser();
+		}
+
+		public void pullLive(PullTask<String> task, SimpleProgress p) {
+			throw new AssertionError("should be pulled in two phases");
+		}
+
+		public void pushLive(PushTask<String> task, SimpleProgress p) {
+			throw new UnsupportedOperationException();
+		}
+
+	}
+
+	public void testTwoPhasePull() throws Exception {
+		int n = 8;
+		TwoPhase arx = new TwoPhase(n);
+		List<PullTask<String>> tasks = new ArrayList<PullTask<String>>();
+		for (int i=0; i<n; ++i) {
+			tasks.add(new PullTask<String>("two-phase-" + i));
+		}
+		MemoryBudget budget = ParallelSerialiser.getDecodeBudget();
+		long cap = budget.getCapacity();
+		boolean weighted = budget.isWeighted();
+		long waits = budget.getWaits();
+		budget.setCapacity(1, false);
+		try {
+			arx.pull(new ArrayList<PullTask<String>>(tasks));
+		} finally {
+			budget.setCapacity(cap, weighted);
+		}
+
+		// every fetch was done before the first decode finished, but only one
+		// decode ran at once
+		assertEquals(n, arx.fetchedAtFirstDecode);
+		assertEquals(1, arx.maxDecoding);
+		assertTrue(budget.getWaits() > waits);
+		// the last jobs may still be releasing their share after pull() returns
+		for (int i=0; i<50 && budget.getHolders() > 0; ++i) { Thread.sleep(100); }
+		assertEquals(0, budget.getUsed());
+		assertEquals(0, budget.getHolders());
+		for (PullTask<String> t: tasks) {
+			assertEquals("data for " + t.meta, t.data);
+		}
+	}
+
+	public void testScheduleAsync() throws Exception {
+		PendingArchiver arx = new PendingArchiver();
+		// much smaller than the number of requests we will have in flight
+		ObjectProcessor<PullTask<String>, Integer, TaskAbortException> proc = arx.pullSchedule(
+			new LinkedBlockingQueue<PullTask<String>>(),
+			new LinkedBlockingQueue<X2<PullTask<String>, TaskAbortException>>(2),
+			new HashMap<PullTask<String>, Integer>()
+		);
+		int n = ObjectProcessor.default_maxconc + 8;
+		for (int i=0; i<n; ++i) {
+			proc.submit(new PullTask<String>("schedule-" + i), i);
+		}
+
+		// every request up to maxconc is started, without waiting for the others
+		arx.waitPending(ObjectProcessor.default_maxconc);
+		assertEquals(ObjectProcessor.default_maxconc, arx.maxPending);
+
+		// completing them must not block this thread, even though the output
+		// queue is too small to hold all the results
+		Set<Integer> seen = new HashSet<Integer>();
+		while (seen.size() < n) {
+			arx.complete();
+			while (proc.hasCompleted()) {
+				X3<PullTask<String>, Integer, TaskAbortException> res = proc.accept();
+				assertNull(res._2);
+				assertEquals("data for schedule-" + res._1, res._0.data);
+				assertTrue(seen.add(res._1));
+			}
+			Thread.sleep(10);
+		}
+		assertFalse(proc.hasPending());
+		assertTrue(arx.maxPending <= ObjectProcessor.default_maxconc);
+		proc.close();
+	}
+
+	public void testPullAsync() throws Exception {
+		final PendingArchiver arx = new PendingArchiver();
+		final int n = 0x100;
+		final List<PullTask<String>> tasks = new ArrayList<PullTask<String>>();
+		for (int i=0; i<n; ++i) {
+			tasks.add(new PullTask<String>("pull-" + i));
+		}
+		long jobs = ParallelSerialiser.exec.getTaskCount();
+
+		Thread network = new Thread() {
+			@Override public void run() {
+				try {
+					arx.waitPending(n);
+				} catch (InterruptedException e) {
+					return;
+				}
+				arx.complete();
+			}
+		};
+		network.start();
+		// all the requests are started by this thread before any completes
+		arx.pull(new ArrayList<PullTask<String>>(tasks));
+		network.join();
+
+		assertEquals(n, arx.maxPending);
+		assertEquals(jobs, ParallelSerialiser.exec.getTaskCount());
+		for (PullTask<String> t: tasks) {
+			assertEquals("data for " + t.meta, t.data);
+		}
+	}
+
+}
@@ -0,0 +1,271 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.io.serial;
+
+import junit.framework.TestCase;
+
+import plugins.Library.io.YamlReaderWriter;
+import plugins.Library.io.serial.Serialiser.*;
+import plugins.Library.util.concurrent.MemoryBudget;
+import plugins.Library.util.exec.ProgressParts;
+import plugins.Library.util.exec.SimpleProgress;
+import plugins.Library.util.exec.TaskAbortException;
+import plugins.Library.util.func.SafeClosure;
+import plugins.Library.util.func.Tuples.X2;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SimulatedArchiverTest extends TestCase {
+
+	File dir;
+	FileArchiver<Map<String, Object>> files;
+
+	@Override public void setUp() {
+		dir = new File("SimulatedArchiverTest");
+		rmdir(dir);
+		dir.mkdir();
+		files = new FileArchiver<Map<String, Object>>(new YamlReaderWriter(), "", "", ".yml", dir);
+	}
+
+	@Override public void tearDown() {
+		rmdir(dir);
+	}
+
+	public static void rmdir(File d) {
+		File[] fs = d.listFiles();
+		if (fs != null) { for (File f: fs) { f.delete(); } }
+		d.delete();
+	}
+
+	protected Map<String, Object> data(int size) {
+		Map<String, Object> map = new HashMap<String, Object>();
+		StringBuilder s = new StringBuilder(size);
+		for (int i=0; i<size; ++i) { s.append((char)('a' + i % 26)); }
+		map.put("data", s.toString());
+		return map;
+	}
+
+	protected void store(String key, int size) throws TaskAbortException {
+		files.push(new PushTask<Map<String, Object>>(data(size), key));
+	}
+
+	public void testRoundTrip() throws TaskAbortException {
+		SimulatedArchiver<Map<String, Object>> arx = new SimulatedArchiver<Map<String, Object>>(files, 0);
+		Map<String, Object> data = data(3 * SimulatedArchiver.BLOCK_SIZE + 100);
+
+		SimpleProgress p = new SimpleProgress();
+		arx.pushLive(new PushTask<Map<String, Object>>(data, "a"), p);
+		ProgressParts parts = p.getParts();
+		assertTrue(p.isDone());
+		assertEquals(4, parts.known);
+		assertEquals(4, parts.done);
+
+		PullTask<Map<String, Object>> task = new PullTask<Map<String, Object>>("a");
+		p = new SimpleProgress();
+		arx.pullLive(task, p);
+		assertTrue(p.isDone());
+		assertEquals(4, p.getParts().done);
+		assertEquals(data, task.data);
+
+		assertEquals(2, arx.getRequests());
+		assertEquals(arx.getBytesPulled(), arx.getBytesPushed());
+		assertEquals(new File(dir, "a.yml").length(), arx.getBytesPulled());
+	}
+
+	public void testLatencyAndBandwidth() throws TaskAbortException {
+		store("a", 0x2000);
+		long size = new File(dir, "a.yml").length();
+		SimulatedArchiver<Map<String, Object>> arx = new SimulatedArchiver<Map<String, Object>>(files, 0);
+		arx.setLatency(SimulatedArchiver.Latency.constant(50), SimulatedArchiver.Latency.constant(0));
+		// 100ms to transfer
+		arx.setBandwidth(size * 10, 0);
+
+		long start = System.nanoTime();
+		arx.pull(new PullTask<Map<String, Object>>("a"));
+		long ms = (System.nanoTime() - start) / 1000000;
+		assertTrue("took " + ms + "ms", ms >= 145);
+	}
+
+	public void testFailures() throws TaskAbortException {
+		store("a", 16);
+		store("b", 16);
+		SimulatedArchiver<Map<String, Object>> arx = new SimulatedArchiver<Map<String, Object>>(files, 0);
+		arx.setFailures(0, 2);
+
+		arx.injectFailures("a", 2);
+		arx.pull(new PullTask<Map<String, Object>>("a"));
+		assertEquals(2, arx.getRetries());
+
+		arx.injectFailures("a", 3);
+		try {
+			arx.pull(new PullTask<Map<String, Object>>("a"));
+			fail("more failures than retries");
+		} catch (TaskAbortException e) {
+			assertTrue(e.shouldRetry());
+		}
+		assertEquals(4, arx.getRetries());
+
+		arx.setMissing("b");
+		SimpleProgress p = new SimpleProgress();
+		try {
+			arx.pullLive(new PullTask<Map<String, Object>>("b"), p);
+			fail("missing");
+		} catch (TaskAbortException e) {
+			assertFalse(e.shouldRetry());
+		}
+		try {
+			p.join();
+			fail("progress not aborted");
+		} catch (TaskAbortException e) {
+		} catch (InterruptedException e) {
+			throw new AssertionError(e);
+		}
+		assertEquals(4, arx.getRetries());
+		assertEquals(2, arx.getFailures());
+	}
+
+	public void testFailedPush() throws TaskAbortException, InterruptedException {
+		store("a", 16);
+		Map<String, Object> old = data(16), data = data(32);
+		SimulatedArchiver<Map<String, Object>> arx = new SimulatedArchiver<Map<String, Object>>(files, 0);
+		arx.setFailures(0, 0);
+
+		arx.injectFailures("a", 1);
+		try {
+			arx.push(new PushTask<Map<String, Object>>(data, "a"));
+			fail("push should have failed");
+		} catch (TaskAbortException e) {
+			assertTrue(e.shouldRetry());
+		}
+		PullTask<Map<String, Object>> task = new PullTask<Map<String, Object>>("a");
+		files.pull(task);
+		assertEquals(old, task.data);
+
+		arx.setMissing("b");
+		final CountDownLatch latch = new CountDownLatch(1);
+		final TaskAbortException[] result = new TaskAbortException[1];
+		SimpleProgress p = new SimpleProgress();
+		arx.pushAsync(new PushTask<Map<String, Object>>(data, "b"), p, new SafeClosure<X2<PushTask<Map<String, Object>>, TaskAbortException>>() {
+			/*@Override**/ public void invoke(X2<PushTask<Map<String, Object>>, TaskAbortException> res) {
+				result[0] = res._1;
+				latch.countDown();
+			}
+		});
+		latch.await();
+		assertNotNull(result[0]);
+		assertFalse(new File(dir, "b.yml").exists());
+
+		// the write happens once the transfer is done
+		arx.push(new PushTask<Map<String, Object>>(data, "a"));
+		files.pull(task);
+		assertEquals(data, task.data);
+	}
+
+	public void testDecodeBudget() throws TaskAbortException, InterruptedException {
+		store("a", 0x1000);
+		final long size = new File(dir, "a.yml").length();
+		final MemoryBudget budget = ParallelSerialiser.getDecodeBudget();
+		List<AsyncArchiver<Map<String, Object>, SimpleProgress>> arxs = new ArrayList<AsyncArchiver<Map<String, Object>, SimpleProgress>>();
+		arxs.add(files);
+		arxs.add(new SimulatedArchiver<Map<String, Object>>(files, 0));
+		long cap = budget.getCapacity();
+		boolean weighted = budget.isWeighted();
+		try {
+			budget.setCapacity(size, true);
+			for (AsyncArchiver<Map<String, Object>, SimpleProgress> arx: arxs) {
+				final long[] held = new long[2];
+				final CountDownLatch latch = new CountDownLatch(1);
+				final SafeClosure<X2<PullTask<Map<String, Object>>, TaskAbortException>> done = new SafeClosure<X2<PullTask<Map<String, Object>>, TaskAbortException>>() {
+					/*@Override**/ public void invoke(X2<PullTask<Map<String, Object>>, TaskAbortException> res) {
+						held[0] = budget.getUsed();
+						held[1] = budget.getHolders();
+						latch.countDown();
+					}
+				};
+
+				// the budget is full, so the decode has to wait
+				final long w = budget.acquireUninterruptibly(size);
+				final PullTask<Map<String, Object>> task = new PullTask<Map<String, Object>>("a");
+				final AsyncArchiver<Map<String, Object>, SimpleProgress> a = arx;
+				Thread th = new Thread() {
+					@Override public void run() {
+						a.pullAsync(task, new SimpleProgress(), done);
+					}
+				};
+				th.start();
+				assertFalse(latch.await(200, TimeUnit.MILLISECONDS));
+				assertNull(task.data);
+				budget.release(w);
+				latch.await();
+				th.join();
+
+				// the callback ran while the budget was still held
+				assertEquals(size, held[0]);
+				assertEquals(1, held[1]);
+				assertEquals(data(0x1000), task.data);
+				for (int i=0; i<50 && budget.getHolders() > 0; ++i) { Thread.sleep(20); }
+				assertEquals(0, budget.getUsed());
+			}
+		} finally {
+			budget.setCapacity(cap, weighted);
+		}
+	}
+
+	public void testDeterministicFailures() throws TaskAbortException {
+		for (int i=0; i<32; ++i) { store("k" + i, 16); }
+		Set<String> failed = null;
+		for (int run=0; run<2; ++run) {
+			SimulatedArchiver<Map<String, Object>> arx = new SimulatedArchiver<Map<String, Object>>(files, 42);
+			arx.setFailures(0.5, 0);
+			Set<String> f = new HashSet<String>();
+			// a different order each run
+			for (int i=0; i<32; ++i) {
+				String key = "k" + (run == 0? i: 31 - i);
+				try {
+					arx.pull(new PullTask<Map<String, Object>>(key));
+				} catch (TaskAbortException e) {
+					f.add(key);
+				}
+			}
+			assertFalse(f.isEmpty());
+			assertTrue(f.size() < 32);
+			if (failed == null) { failed = f; } else { assertEquals(failed, f); }
+		}
+	}
+
+	public void testMaxRequests() throws TaskAbortException, InterruptedException {
+		for (int i=0; i<8; ++i) { store("k" + i, 16); }
+		SimulatedArchiver<Map<String, Object>> arx = new SimulatedArchiver<Map<String, Object>>(files, 0);
+		arx.setLatency(SimulatedArchiver.Latency.constant(30), SimulatedArchiver.Latency.constant(0));
+		arx.setMaxRequests(2);
+
+		final CountDownLatch latch = new CountDownLatch(8);
+		final AtomicInteger errors = new AtomicInteger();
+		SafeClosure<X2<PullTask<Map<String, Object>>, TaskAbortException>> done = new SafeClosure<X2<PullTask<Map<String, Object>>, TaskAbortException>>() {
+			/*@Override**/ public void invoke(X2<PullTask<Map<String, Object>>, TaskAbortException> res) {
+				if (res._1 != null || res._0.data == null) { errors.incrementAndGet(); }
+				latch.countDown();
+			}
+		};
+		long start = System.nanoTime();
+		for (int i=0; i<8; ++i) {
+			arx.pullAsync(new PullTask<Map<String, Object>>("k" + i), new SimpleProgress(), done);
+		}
+		latch.await();
+		long ms = (System.nanoTime() - start) / 1000000;
+		assertEquals(0, errors.get());
+		assertEquals(2, arx.getPeakRequests());
+		assertTrue("took " + ms + "ms", ms >= 115);
+	}
+
+}
@@ -0,0 +1,100 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.search;
+
+import junit.framework.TestCase;
+
+import plugins.Library.PrefixIndex;
+import plugins.Library.index.*;
+import plugins.Library.util.exec.*;
+
+import freenet.keys.FreenetURI;
+
+import java.util.*;
+
+public class PrefixLookupTest extends TestCase {
+
+	static class Pending extends AbstractExecution<Set<TermEntry>> {
+		Pending(String term) { super(term); }
+		void complete(Set<TermEntry> result) { setResult(result); }
+		void fail() { setError(new TaskAbortException("failed", new Exception())); }
+		@Override public String getStatus() { return "pending"; }
+		@Override public ProgressParts getParts() { return ProgressParts.normalise(0, 1); }
+	}
+
+	/**
+	** Index whose lookups only finish when the test says so.
+	*/
+	static class Waiting extends QueryPlannerTest.Recorder implements PrefixIndex {
+		final List<Pending> started = new ArrayList<Pending>();
+
+		@Override public Execution<Set<TermEntry>> getTermEntries(String term) {
+			Pending rq = new Pending(term);
+			started.add(rq);
+			return rq;
+		}
+
+		public Execution<SortedSet<String>> getTerms(String prefix, int limit) {
+			final SortedSet<String> found = new TreeSet<String>();
+			for (String term: terms.keySet()) {
+				if (term.startsWith(prefix)) { found.add(term); }
+			}
+			return new AbstractExecution<SortedSet<String>>(prefix) {
+				{ setResult(found); }
+				@Override public String getStatus() { return "done"; }
+				@Override public ProgressParts getParts() { return ProgressParts.normalise(1, 1); }
+			};
+		}
+	}
+
+	public void testOneLookupAtOnce() throws TaskAbortException {
+		Waiting index = new Waiting();
+		index.terms.put("free", ResultSetTest.makeResult("free", 10));
+		index.terms.put("freedom", ResultSetTest.makeResult("freedom", 10));
+		index.terms.put("freenet", ResultSetTest.makeResult("freenet", 10));
+		index.terms.put("other", ResultSetTest.makeResult("other", 10));
+
+		PrefixLookup rq = new PrefixLookup(index, "free");
+		for (int i=0; i<3; ++i) {
+			// the next term is only looked up once the last one is done
+			assertEquals(i + 1, index.started.size());
+			assertFalse(rq.isDone());
+			Pending lookup = index.started.get(i);
+			if (i == 1) {
+				lookup.fail();
+			} else {
+				lookup.complete(index.terms.get(lookup.getSubject()));
+			}
+		}
+		assertEquals(3, index.started.size());
+		// shortest first
+		assertEquals("free", index.started.get(0).getSubject());
+
+		// each page once, with its most relevant entry
+		Map<FreenetURI, TermPageEntry> expected = new HashMap<FreenetURI, TermPageEntry>();
+		for (String term: Arrays.asList("free", "freenet")) {
+			for (TermEntry en: index.terms.get(term)) {
+				TermPageEntry pe = (TermPageEntry)en;
+				TermPageEntry old = expected.get(pe.page);
+				if (old == null || old.rel < pe.rel) { expected.put(pe.page, pe); }
+			}
+		}
+		assertEquals(new HashSet<TermEntry>(expected.values()), rq.getResult());
+	}
+
+	public void testAllFailed() {
+		Waiting index = new Waiting();
+		index.terms.put("free", ResultSetTest.makeResult("free", 10));
+		index.terms.put("freenet", ResultSetTest.makeResult("freenet", 10));
+
+		PrefixLookup rq = new PrefixLookup(index, "free");
+		index.started.get(0).fail();
+		index.started.get(1).fail();
+		try {
+			rq.getResult();
+			fail("every term failed");
+		} catch (TaskAbortException e) { }
+	}
+
+}
@@ -0,0 +1,195 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.search;
+
+import junit.framework.TestCase;
+
+import plugins.Library.FilterableIndex;
+import plugins.Library.index.*;
+import plugins.Library.util.exec.*;
+
+import freenet.keys.FreenetURI;
+
+import java.util.*;
+
+public class QueryPlannerTest extends TestCase {
+
+	/**
+	** Index which answers lookups straight away, and records them.
+	*/
+	static class Recorder implements FilterableIndex {
+		final Map<String, Set<TermEntry>> terms = new HashMap<String, Set<TermEntry>>();
+		final List<String> full = new ArrayList<String>();
+		final Map<String, Set<FreenetURI>> filtered = new LinkedHashMap<String, Set<FreenetURI>>();
+
+		Set<TermEntry> get(String term) throws TaskAbortException {
+			Set<TermEntry> res = terms.get(term);
+			if (res == null) { throw new TaskAbortException("Index does not contain term " + term, new Exception()); }
+			return res;
+		}
+
+		Execution<Set<TermEntry>> failed(String term, final TaskAbortException e) {
+			return new AbstractExecution<Set<TermEntry>>(term) {
+				{ setError(e); }
+				@Override public String getStatus() { return "failed"; }
+				@Override public ProgressParts getParts() { return ProgressParts.normalise(0, 1); }
+			};
+		}
+
+		public Execution<Set<TermEntry>> getTermEntries(String term) {
+			full.add(term);
+			try {
+				return new TermResultCache.CachedResult(term, get(term));
+			} catch (TaskAbortException e) {
+				return failed(term, e);
+			}
+		}
+
+		public Execution<Set<TermEntry>> getTermEntries(String term, Set<FreenetURI> pages) {
+			filtered.put(term, pages);
+			try {
+				Set<TermEntry> res = new HashSet<TermEntry>();
+				for (TermEntry en: get(term)) {
+					if (pages.contains(((TermPageEntry)en).page)) { res.add(en); }
+				}
+				return new TermResultCache.CachedResult(term, res);
+			} catch (TaskAbortException e) {
+				return failed(term, e);
+			}
+		}
+
+		public Execution<Long> getTermSize(final String term) {
+			return new AbstractExecution<Long>(term) {
+				{
+					try {
+						setResult((long)get(term).size());
+					} catch (TaskAbortException e) {
+						setError(e);
+					}
+				}
+				@Override public String getStatus() { return "done"; }
+				@Override public ProgressParts getParts() { return ProgressParts.normalise(1, 1); }
+			};
+		}
+
+		public Execution<URIEntry> getURIEntry(FreenetURI uri) {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	static Set<TermEntry> results(Execution<Set<TermEntry>> rq) throws TaskAbortException {
+		assertTrue(rq.isDone());
+		return rq.getResult();
+	}
+
+	public void testIntersect() throws TaskAbortException {
+		Recorder index = new Recorder();
+		index.terms.put("common", ResultSetTest.makeResult("common", 60));
+		index.terms.put("rare", ResultSetTest.makeResult("rare", 8));
+		index.terms.put("middling", ResultSetTest.makeResult("middling", 30));
+
+		List<Execution<Set<TermEntry>>> reqs = QueryPlanner.intersect(index, Arrays.asList("common", null, "rare", "middling"));
+		assertEquals(4, reqs.size());
+		assertNull(reqs.get(1));
+
+		// only the rarest term is looked up in full; the others in order of size
+		assertEquals(Collections.singletonList("rare"), index.full);
+		assertEquals(Arrays.asList("middling", "common"), new ArrayList<String>(index.filtered.keySet()));
+		Set<FreenetURI> rare = QueryPlanner.pagesOf(index.terms.get("rare"));
+		assertEquals(rare, index.filtered.get("middling"));
+		rare.retainAll(QueryPlanner.pagesOf(index.terms.get("middling")));
+		assertEquals(rare, index.filtered.get("common"));
+
+		// the intersection is the same as that of the full lookups
+		ResultSet planned = ResultSetTest.run(ResultSet.ResultOperation.INTERSECTION,
+		  results(reqs.get(0)), results(reqs.get(2)), results(reqs.get(3)));
+		ResultSet full = ResultSetTest.run(ResultSet.ResultOperation.INTERSECTION,
+		  index.terms.get("common"), index.terms.get("rare"), index.terms.get("middling"));
+		assertEquals(ResultSetTest.byPage(full), ResultSetTest.byPage(planned));
+	}
+
+	public void testNoCandidates() throws TaskAbortException {
+		Recorder index = new Recorder();
+		index.terms.put("common", ResultSetTest.makeResult("common", 60));
+		index.terms.put("rare", new HashSet<TermEntry>());
+
+		List<Execution<Set<TermEntry>>> reqs = QueryPlanner.intersect(index, Arrays.asList("common", "rare"));
+		assertTrue(results(reqs.get(0)).isEmpty());
+		assertTrue(results(reqs.get(1)).isEmpty());
+		assertEquals(Collections.singletonList("rare"), index.full);
+		assertTrue(index.filtered.isEmpty());
+	}
+
+	public void testMissingTerm() throws TaskAbortException {
+		Recorder index = new Recorder();
+		index.terms.put("common", ResultSetTest.makeResult("common", 60));
+
+		List<Execution<Set<TermEntry>>> reqs = QueryPlanner.intersect(index, Arrays.asList("common", "missing"));
+		try {
+			reqs.get(1).isDone();
+			fail("term should have failed");
+		} catch (TaskAbortException e) { }
+		assertTrue(results(reqs.get(0)).isEmpty());
+		assertTrue(index.full.isEmpty());
+	}
+
+	/**
+	** Execution which is completed by the test.
+	*/
+	static class Pending extends AbstractExecution<Long> {
+		Pending(String term) { super(term); }
+		void complete(long size) { setResult(size); }
+		@Override public String getStatus() { return "pending"; }
+		@Override public ProgressParts getParts() { return ProgressParts.normalise(0, 1); }
+	}
+
+	public void testOneLookupAtOnce() throws TaskAbortException {
+		final List<Pending> sizing = new ArrayList<Pending>();
+		Recorder index = new Recorder() {
+			@Override public Execution<Long> getTermSize(String term) {
+				Pending size = new Pending(term);
+				sizing.add(size);
+				return size;
+			}
+		};
+		index.terms.put("common", ResultSetTest.makeResult("common", 60));
+		index.terms.put("rare", ResultSetTest.makeResult("rare", 8));
+		index.terms.put("middling", ResultSetTest.makeResult("middling", 30));
+
+		List<Execution<Set<TermEntry>>> reqs = QueryPlanner.intersect(index, Arrays.asList("common", "rare", "middling"));
+		for (int i=0; i<3; ++i) {
+			// the next size is only asked for once the last one is known
+			assertEquals(i + 1, sizing.size());
+			Pending size = sizing.get(i);
+			size.complete(index.terms.get(size.getSubject()).size());
+		}
+		assertEquals(Collections.singletonList("rare"), index.full);
+		for (Execution<Set<TermEntry>> rq: reqs) { assertTrue(rq.isDone()); }
+	}
+
+	public void testFilter() throws TaskAbortException {
+		Recorder index = new Recorder();
+		index.terms.put("add", ResultSetTest.makeResult("add", 10));
+		index.terms.put("remove", ResultSetTest.makeResult("remove", 60));
+
+		Execution<Set<TermEntry>> add = index.getTermEntries("add");
+		Execution<Set<TermEntry>> remove = QueryPlanner.filter(index, "remove", add);
+		assertEquals(QueryPlanner.pagesOf(index.terms.get("add")), index.filtered.get("remove"));
+
+		ResultSet planned = ResultSetTest.run(ResultSet.ResultOperation.REMOVE, results(add), results(remove));
+		ResultSet full = ResultSetTest.run(ResultSet.ResultOperation.REMOVE, index.terms.get("add"), index.terms.get("remove"));
+		assertEquals(ResultSetTest.byPage(full), ResultSetTest.byPage(planned));
+	}
+
+	public void testPlainTerm() {
+		assertTrue(QueryPlanner.isPlainTerm("apple"));
+		assertFalse(QueryPlanner.isPlainTerm("the"));
+		assertFalse(QueryPlanner.isPlainTerm("big-apple"));
+		assertFalse(QueryPlanner.isPlainTerm("\"big apple\""));
+		assertFalse(QueryPlanner.isPlainTerm("big&&apple"));
+		assertFalse(QueryPlanner.isPlainTerm("big||apple"));
+		assertFalse(QueryPlanner.isPlainTerm(""));
+	}
+
+}
@@ -0,0 +1,196 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.search;
+
+import junit.framework.TestCase;
+
+import plugins.Library.index.*;
+import plugins.Library.util.exec.*;
+
+import freenet.keys.FreenetURI;
+
+import java.util.*;
+
+public class ResultSetTest extends TestCase {
+
+	final static Random rand = new Random(0x2E5017);
+
+	final static FreenetURI[] pages = new FreenetURI[64];
+	static {
+		for (int i=0; i<pages.length; ++i) { pages[i] = FreenetURI.generateRandomCHK(rand); }
+	}
+
+	/**
+	** Makes a result for a term, with entries for a random subset of the
+	** pages, each at a random subset of positions.
+	*/
+	public static Set<TermEntry> makeResult(String term, int n) {
+		Set<TermEntry> res = new HashSet<TermEntry>();
+		List<FreenetURI> ps = new ArrayList<FreenetURI>(Arrays.asList(pages));
+		Collections.shuffle(ps, rand);
+		for (int i=0; i<n; ++i) {
+			Set<Integer> pos = new HashSet<Integer>();
+			for (int j=0; j<8; ++j) { pos.add(rand.nextInt(16)); }
+			res.add(new TermPageEntry(term, rand.nextFloat(), ps.get(i), null, pos, null));
+		}
+		return res;
+	}
+
+	public static ResultSet run(ResultSet.ResultOperation op, Set<TermEntry>... results) throws TaskAbortException {
+		return run(op, 0, results);
+	}
+
+	public static ResultSet run(ResultSet.ResultOperation op, int limit, Set<TermEntry>... results) throws TaskAbortException {
+		List<Execution<Set<TermEntry>>> reqs = new ArrayList<Execution<Set<TermEntry>>>();
+		for (Set<TermEntry> r: results) {
+			reqs.add(r == null? null: new TermResultCache.CachedResult("sub", r));
+		}
+		ResultSet rs = new ResultSet("query", op, reqs, false, limit);
+		rs.run();
+		return rs;
+	}
+
+	/**
+	** Returns the relevances of the best k entries, most relevant first.
+	*/
+	public static List<Float> best(Collection<TermEntry> res, int k) {
+		List<Float> rels = new ArrayList<Float>();
+		for (TermEntry en: res) { rels.add(en.rel); }
+		Collections.sort(rels, Collections.reverseOrder());
+		return rels.subList(0, Math.min(k, rels.size()));
+	}
+
+	public static Map<FreenetURI, TermPageEntry> byPage(Collection<TermEntry> res) {
+		Map<FreenetURI, TermPageEntry> m = new HashMap<FreenetURI, TermPageEntry>();
+		for (TermEntry en: res) {
+			assertNull(m.put(((TermPageEntry)en).page, (TermPageEntry)en));
+		}
+		return m;
+	}
+
+	public void testSetOperations() throws TaskAbortException {
+		for (int round=0; round<16; ++round) {
+			Set<TermEntry> a = makeResult("a", rand.nextInt(pages.length)), b = makeResult("b", rand.nextInt(pages.length)),
+			  c = makeResult("c", rand.nextInt(pages.length));
+			Map<FreenetURI, TermPageEntry> ma = byPage(a), mb = byPage(b), mc = byPage(c);
+
+			Map<FreenetURI, TermPageEntry> in = byPage(run(ResultSet.ResultOperation.INTERSECTION, a, b, c));
+			Set<FreenetURI> expect = new HashSet<FreenetURI>(ma.keySet());
+			expect.retainAll(mb.keySet());
+			expect.retainAll(mc.keySet());
+			assertEquals(expect, in.keySet());
+			for (TermPageEntry en: in.values()) {
+				assertEquals("query", en.subj);
+				assertEquals((ma.get(en.page).rel + mb.get(en.page).rel + mc.get(en.page).rel)/3, en.rel, 1e-6f);
+				assertEquals(ma.get(en.page).positions(), en.positions());
+			}
+
+			Map<FreenetURI, TermPageEntry> un = byPage(run(ResultSet.ResultOperation.UNION, a, b, c));
+			expect = new HashSet<FreenetURI>(ma.keySet());
+			expect.addAll(mb.keySet());
+			expect.addAll(mc.keySet());
+			assertEquals(expect, un.keySet());
+			for (TermPageEntry en: un.values()) {
+				Set<Integer> pos = new TreeSet<Integer>();
+				for (Map<FreenetURI, TermPageEntry> m: Arrays.asList(ma, mb, mc)) {
+					if (m.containsKey(en.page)) { pos.addAll(m.get(en.page).positions()); }
+				}
+				assertEquals(pos, new TreeSet<Integer>(en.positions()));
+			}
+
+			Map<FreenetURI, TermPageEntry> ex = byPage(run(ResultSet.ResultOperation.REMOVE, a, b));
+			expect = new HashSet<FreenetURI>(ma.keySet());
+			expect.removeAll(mb.keySet());
+			assertEquals(expect, ex.keySet());
+		}
+	}
+
+	public void testPhrase() throws TaskAbortException {
+		for (int round=0; round<16; ++round) {
+			Set<TermEntry> a = makeResult("a", pages.length/2 + rand.nextInt(pages.length/2)), b = makeResult("b", pages.length/2 + rand.nextInt(pages.length/2)),
+			  c = makeResult("c", pages.length/2 + rand.nextInt(pages.length/2));
+			Map<FreenetURI, TermPageEntry> ma = byPage(a), mb = byPage(b), mc = byPage(c);
+
+			// "a b <stopword> c"
+			Map<FreenetURI, TermPageEntry> ph = byPage(run(ResultSet.ResultOperation.PHRASE, a, b, null, c));
+			int found = 0;
+			for (TermPageEntry ea: ma.values()) {
+				TermPageEntry eb = mb.get(ea.page), ec = mc.get(ea.page);
+				Set<Integer> pos = new TreeSet<Integer>();
+				if (eb != null && ec != null) {
+					for (int p: ea.positions()) {
+						if (eb.hasPosition(p+1) && ec.hasPosition(p+3)) { pos.add(p); }
+					}
+				}
+				TermPageEntry en = ph.get(ea.page);
+				if (pos.isEmpty()) {
+					assertNull(en);
+				} else {
+					assertEquals(pos, new TreeSet<Integer>(en.positions()));
+					assertEquals(ea.rel, en.rel);
+					++found;
+				}
+			}
+			assertEquals(found, ph.size());
+		}
+	}
+
+	public void testTopK() throws TaskAbortException {
+		for (int round=0; round<16; ++round) {
+			Set<TermEntry> a = makeResult("a", pages.length/2 + rand.nextInt(pages.length/2)), b = makeResult("b", pages.length/2 + rand.nextInt(pages.length/2));
+			int k = 1 + rand.nextInt(16);
+			for (ResultSet.ResultOperation op: Arrays.asList(ResultSet.ResultOperation.UNION,
+			  ResultSet.ResultOperation.INTERSECTION, ResultSet.ResultOperation.REMOVE, ResultSet.ResultOperation.PHRASE)) {
+				ResultSet full = run(op, a, b);
+				ResultSet top = run(op, k, a, b);
+				assertEquals(op.toString(), Math.min(k, full.size()), top.size());
+				assertEquals(op.toString(), best(full, k), best(top, k));
+				Map<FreenetURI, TermPageEntry> mf = byPage(full);
+				for (TermPageEntry en: byPage(top).values()) {
+					TermPageEntry ef = mf.get(en.page);
+					assertEquals(ef.rel, en.rel);
+					assertEquals(new TreeSet<Integer>(ef.positions()), new TreeSet<Integer>(en.positions()));
+				}
+				if (top.isMatchCountExact()) {
+					assertEquals(op.toString(), full.size(), top.getMatchCount());
+				} else {
+					assertTrue(top.getMatchCount() <= full.size());
+				}
+				assertEquals(full.size(), full.getMatchCount());
+			}
+
+			ResultSet top = run(ResultSet.ResultOperation.SINGLE, k, a);
+			assertEquals(best(a, k), best(top, k));
+			assertEquals(a.size(), top.getMatchCount());
+		}
+	}
+
+	public void testCutSubresults() throws TaskAbortException {
+		Set<TermEntry> a = makeResult("a", pages.length/2), b = makeResult("b", pages.length/2);
+		int k = 8;
+
+		// a lookup of only the best k entries of a term
+		Set<TermEntry> cut = new HashSet<TermEntry>();
+		for (TermEntry en: a) {
+			if (best(a, k).get(k-1) <= en.rel) { cut.add(en); }
+		}
+		assertEquals(k, cut.size());
+		ResultSet single = run(ResultSet.ResultOperation.SINGLE, k, cut);
+		assertEquals(k, single.getMatchCount());
+		assertFalse(single.isMatchCountExact());
+		assertTrue(run(ResultSet.ResultOperation.SINGLE, k, a).isMatchCountExact());
+		assertTrue(run(ResultSet.ResultOperation.SINGLE, 0, cut).isMatchCountExact());
+
+		// the union of subsearches which were each cut down to their best k
+		List<Execution<Set<TermEntry>>> reqs = new ArrayList<Execution<Set<TermEntry>>>();
+		reqs.add(new TermResultCache.CachedResult("sub", run(ResultSet.ResultOperation.SINGLE, k, a)));
+		reqs.add(new TermResultCache.CachedResult("sub", run(ResultSet.ResultOperation.SINGLE, k, b)));
+		ResultSet union = new ResultSet("query", ResultSet.ResultOperation.UNION, reqs, false, k);
+		union.run();
+		assertEquals(k, union.size());
+		assertFalse(union.isMatchCountExact());
+		assertTrue(union.getMatchCount() <= run(ResultSet.ResultOperation.UNION, a, b).size());
+	}
+
+}
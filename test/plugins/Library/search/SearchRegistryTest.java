@@ -0,0 +1,108 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.search;
+
+import junit.framework.TestCase;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+public class SearchRegistryTest extends TestCase {
+
+	static class Clock extends SearchRegistry<String> {
+		long time = 1000000;
+		@Override protected long now() { return time; }
+	}
+
+	public void testDeduplicate() throws Exception {
+		final SearchRegistry<String> reg = new SearchRegistry<String>();
+		final int n = 0x20;
+		final CyclicBarrier start = new CyclicBarrier(n);
+		final Set<String> winners = Collections.synchronizedSet(new HashSet<String>());
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i=0; i<n; ++i) {
+			final String s = "search-" + i;
+			Thread t = new Thread() {
+				@Override public void run() {
+					try { start.await(); } catch (Exception e) { return; }
+					winners.add(reg.register("query@index", s.hashCode(), s, -1));
+				}
+			};
+			threads.add(t);
+			t.start();
+		}
+		for (Thread t: threads) { t.join(); }
+		assertEquals(1, winners.size());
+		assertEquals(1, reg.size());
+		String s = winners.iterator().next();
+		assertSame(s, reg.get("query@index"));
+		assertSame(s, reg.get(s.hashCode()));
+	}
+
+	public void testTTL() {
+		Clock reg = new Clock();
+		reg.setTTL(60000);
+		reg.register("done", 1, "done", 100);
+		reg.register("running", 2, "running", -1);
+		assertEquals(100, reg.getRetained());
+
+		reg.time += 30000;
+		assertEquals("done", reg.get(1));
+		reg.time += 45000;
+		reg.expire(true);
+		// looked up 45s ago
+		assertTrue(reg.contains("done"));
+
+		reg.time += 60001;
+		reg.expire(true);
+		assertFalse(reg.contains("done"));
+		assertFalse(reg.contains(1));
+		// searches in progress are never expired
+		assertTrue(reg.contains("running"));
+		assertEquals(0, reg.getRetained());
+		assertEquals(1, reg.getExpired());
+
+		reg.completed(2, 50);
+		assertEquals(50, reg.getRetained());
+		reg.remove(2);
+		assertEquals(0, reg.getRetained());
+		assertEquals(0, reg.size());
+	}
+
+	public void testContainsDoesNotTouch() {
+		Clock reg = new Clock();
+		reg.setTTL(60000);
+		reg.register("done", 1, "done", 100);
+		reg.time += 40000;
+		assertTrue(reg.contains("done"));
+		assertTrue(reg.contains(1));
+		reg.time += 40000;
+		assertFalse(reg.contains("done"));
+		assertEquals(1, reg.getExpired());
+	}
+
+	public void testCapacity() {
+		Clock reg = new Clock();
+		reg.setCapacity(1000);
+		for (int i=0; i<4; ++i) {
+			reg.time += 10;
+			reg.register("s" + i, i, "s" + i, 300);
+		}
+		// s0 was the least recently used
+		assertFalse(reg.contains(0));
+		assertEquals(900, reg.getRetained());
+
+		reg.time += 10;
+		reg.get(1);
+		reg.time += 10;
+		reg.register("s4", 4, "s4", 300);
+		// s1 was used more recently than s2
+		assertTrue(reg.contains(1));
+		assertFalse(reg.contains(2));
+		assertTrue(reg.getRetained() <= 1000);
+		assertEquals(3, reg.size());
+		assertEquals(2, reg.getExpired());
+	}
+
+}
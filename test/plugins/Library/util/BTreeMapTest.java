@@ -64,6 +64,7 @@ public class BTreeMapTest extends SortedMapTestSkeleton {
 			BTreeMap<String, String> testmap = new BTreeMap<String, String>(2);
 			testmap.putAll(backmap);
 			testmap.verifyTreeIntegrity();
+			assertEquals(n, testmap.size());
 			//if (n<10) { System.out.println(testmap.toTreeString()); }
 		}
 
@@ -3,8 +3,6 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package plugins.Library.util;
 
-import junit.framework.TestCase;
-
 import plugins.Library.index.*;
 
 import freenet.keys.FreenetURI;
@@ -40,4 +38,20 @@ final public class Generators {
 		return new TermPageEntry(key, (float)Math.random(), FreenetURI.generateRandomCHK(rand), null);
 	}
 
+	/**
+	** Like {@link #rndStr()}, but drawn from the given source, so that the
+	** same seed always gives the same strings.
+	*/
+	public static String rndStr(Random r) {
+		return new UUID(r.nextLong(), r.nextLong()).toString();
+	}
+
+	public static String rndKey(Random r) {
+		return rndStr(r).substring(0,8);
+	}
+
+	public static TermPageEntry rndEntry(String key, Random r) {
+		return new TermPageEntry(key, r.nextFloat(), FreenetURI.generateRandomCHK(r), null);
+	}
+
 }
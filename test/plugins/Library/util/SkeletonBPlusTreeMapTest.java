@@ -0,0 +1,174 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.util;
+
+import junit.framework.TestCase;
+
+import plugins.Library.util.exec.TaskAbortException;
+import plugins.Library.util.func.Closure;
+
+import java.util.*;
+
+public class SkeletonBPlusTreeMapTest extends SortedMapTestSkeleton {
+
+	@Override public SortedMap<String, Integer> makeTestMap() {
+		return new SkeletonBPlusTreeMap<String, Integer>(4, 8);
+	}
+
+	final public static int sz0 = 0x400;
+	final public static int sz1 = sz0<<2;
+
+	public void testBasic() {
+
+		SkeletonBPlusTreeMap<String, String> testmap = new SkeletonBPlusTreeMap<String, String>(4, 8);
+		Map<String, String> backmap = new HashMap<String, String>();
+		try {
+			for (int i=0; i<sz1;) {
+				for (int j=0; j<sz0; ++j, ++i) {
+					String k = Generators.rndKey(), v = Generators.rndStr();
+					testmap.put(k, v);
+					backmap.put(k, v);
+				}
+				testmap.verifyTreeIntegrity();
+			}
+			int s = testmap.size(); // random there so could be dupes
+			assertTrue(s <= sz1 && testmap.size() == backmap.size());
+			for (Map.Entry<String, String> en: backmap.entrySet()) {
+				assertEquals(en.getValue(), testmap.get(en.getKey()));
+			}
+			assertEquals(new TreeMap<String, String>(backmap), new TreeMap<String, String>(testmap));
+
+			Iterator<String> it = backmap.keySet().iterator();
+			for (int i=0; i<s;) {
+				for (int j=0; j<sz0 && i<s; ++j, ++i) {
+					testmap.remove(it.next());
+					it.remove();
+				}
+				testmap.verifyTreeIntegrity();
+			}
+			assertTrue(testmap.size() == 0 && backmap.size() == 0);
+
+		} catch (AssertionError e) {
+			System.out.println(testmap);
+			throw e;
+		}
+
+	}
+
+	public void testDescending() {
+		// every insert is below the first separator
+		SkeletonBPlusTreeMap<Integer, Integer> testmap = new SkeletonBPlusTreeMap<Integer, Integer>(2, 2);
+		for (int i=sz0; i>0; --i) {
+			testmap.put(i, i);
+		}
+		testmap.verifyTreeIntegrity();
+		assertEquals(sz0, testmap.size());
+		assertEquals(1, (int)testmap.firstKey());
+		assertEquals(sz0, (int)testmap.lastKey());
+
+		int i = 0;
+		for (Integer k: testmap.keySet()) { assertEquals(++i, (int)k); }
+		assertEquals(sz0, i);
+
+		for (i=1; i<=sz0; i+=2) { testmap.remove(i); }
+		testmap.verifyTreeIntegrity();
+		assertEquals(sz0/2, testmap.size());
+		assertEquals(2, (int)testmap.firstKey());
+	}
+
+	public void testNumericIndexes() {
+
+		SkeletonBPlusTreeMap<Integer, Integer> testmap = new SkeletonBPlusTreeMap<Integer, Integer>(0x10, 0x40);
+		int i=0;
+
+		for (i=0; i<sz1; ++i) {
+			testmap.put(i, i);
+		}
+
+		for (i=0; i<sz1; ++i) {
+			assertTrue(testmap.get(i).equals(i));
+		}
+		testmap.verifyTreeIntegrity();
+		assertTrue(testmap.heightEstimate() >= 2);
+
+	}
+
+	public void testScan() throws TaskAbortException {
+		SkeletonBPlusTreeMap<Integer, Integer> testmap = new SkeletonBPlusTreeMap<Integer, Integer>(2, 4);
+		TreeMap<Integer, Integer> backmap = new TreeMap<Integer, Integer>();
+		for (int i=0; i<sz0; ++i) {
+			testmap.put(i*3, i);
+			backmap.put(i*3, i);
+		}
+		final TreeMap<Integer, Integer> got = new TreeMap<Integer, Integer>();
+		Closure<Map<Integer, Integer>, TaskAbortException> acc = new Closure<Map<Integer, Integer>, TaskAbortException>() {
+			/*@Override**/ public void invoke(Map<Integer, Integer> entries) {
+				got.putAll(entries);
+			}
+		};
+		testmap.scan(null, acc);
+		assertEquals(backmap, got);
+
+		// keys on and between separators, and outside the map
+		got.clear();
+		SortedSet<Integer> keys = new TreeSet<Integer>();
+		Random rand = new Random(0x42);
+		for (int i=0; i<0x40; ++i) { keys.add(rand.nextInt(sz0*3)); }
+		keys.add(-1);
+		keys.add(sz0*3);
+		testmap.scan(keys, acc);
+		SortedMap<Integer, Integer> expect = new TreeMap<Integer, Integer>();
+		for (Integer k: keys) { if (backmap.containsKey(k)) { expect.put(k, backmap.get(k)); } }
+		assertEquals(expect, got);
+	}
+
+	public void testSubMaps() {
+		SkeletonBPlusTreeMap<Integer, Integer> testmap = new SkeletonBPlusTreeMap<Integer, Integer>(2, 4);
+		TreeMap<Integer, Integer> backmap = new TreeMap<Integer, Integer>();
+		for (int i=0; i<sz0; ++i) {
+			// gaps, so the bounds fall between keys as well as on them
+			testmap.put(i*3, i);
+			backmap.put(i*3, i);
+		}
+		Random rand = new Random(0x42);
+		for (int i=0; i<0x40; ++i) {
+			int lo = rand.nextInt(sz0*3), hi = lo + rand.nextInt(0x100);
+			assertEquals(backmap.subMap(lo, hi), testmap.subMap(lo, hi));
+			assertEquals(new ArrayList<Integer>(backmap.subMap(lo, hi).keySet()), new ArrayList<Integer>(testmap.subMap(lo, hi).keySet()));
+			assertEquals(backmap.headMap(lo).size(), testmap.headMap(lo).size());
+			assertEquals(backmap.tailMap(hi).size(), testmap.tailMap(hi).size());
+			SortedMap<Integer, Integer> sub = testmap.subMap(lo, hi), backsub = backmap.subMap(lo, hi);
+			if (backsub.isEmpty()) {
+				assertTrue(sub.isEmpty());
+				continue;
+			}
+			assertEquals(backsub.firstKey(), sub.firstKey());
+			assertEquals(backsub.lastKey(), sub.lastKey());
+			int mid = Math.min(lo + 0x20, hi - 1);
+			assertEquals(backsub.headMap(mid), sub.headMap(mid));
+			assertEquals(backsub.tailMap(mid), sub.tailMap(mid));
+		}
+
+		SortedMap<Integer, Integer> sub = testmap.subMap(300, 600);
+		assertNull(sub.get(0));
+		assertFalse(sub.containsKey(600));
+		try {
+			sub.put(600, 0);
+			fail("put a key out of range");
+		} catch (IllegalArgumentException e) { }
+		try {
+			sub.subMap(0, 400);
+			fail("made a view out of range");
+		} catch (IllegalArgumentException e) { }
+
+		sub.put(301, -1);
+		assertEquals(-1, (int)testmap.get(301));
+		sub.clear();
+		assertTrue(sub.isEmpty());
+		backmap.subMap(300, 600).clear();
+		assertEquals(backmap, testmap);
+		testmap.verifyTreeIntegrity();
+	}
+
+}
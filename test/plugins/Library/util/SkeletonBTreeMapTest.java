@@ -0,0 +1,359 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.util;
+
+import junit.framework.TestCase;
+
+import plugins.Library.index.ProtoIndexComponentSerialiser.BTreeNodeSerialiser;
+import plugins.Library.index.ProtoIndexComponentSerialiser.DummySerialiser;
+import plugins.Library.io.YamlReaderWriter;
+import plugins.Library.io.serial.FileArchiver;
+import plugins.Library.io.serial.Serialiser.*;
+import plugins.Library.util.exec.SimpleProgress;
+import plugins.Library.util.exec.TaskAbortException;
+import plugins.Library.util.func.Closure;
+import plugins.Library.util.func.SafeClosure;
+import static plugins.Library.util.func.Tuples.X2; // also imports the class
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SkeletonBTreeMapTest extends TestCase {
+
+	final public static int node_min = 2;
+	final public static int parallelism = 3;
+
+	File dir;
+	SkeletonBTreeMap<String, String> map;
+	Recorder nsrl;
+	SortedMap<String, String> backmap;
+
+	/** Depth of each node, by its range */
+	Map<String, Integer> depths;
+	/** Number of nodes on each level */
+	List<Integer> widths;
+
+	/**
+	** Node serialiser which records the ranges of the nodes in each batch
+	** that it is given, and which can be made to fail the n-th pull or push.
+	*/
+	static class Recorder extends BTreeNodeSerialiser<String, String> {
+
+		final List<List<String>> pulls = new ArrayList<List<String>>();
+		final List<List<String>> pushes = new ArrayList<List<String>>();
+		final AtomicInteger pulled = new AtomicInteger();
+		final AtomicInteger pushed = new AtomicInteger();
+		volatile int failPull = -1;
+		volatile int failPush = -1;
+
+		Recorder(FileArchiver<Map<String, Object>> arx, SkeletonBTreeMap<String, String> map) {
+			super("test nodes", arx, map.makeNodeTranslator(null, new SkeletonBTreeSet.TreeSetTranslator<String>()));
+		}
+
+		void clear() {
+			pulls.clear();
+			pushes.clear();
+			pulled.set(0);
+			pushed.set(0);
+			failPull = failPush = -1;
+		}
+
+		@Override public void pull(Iterable<PullTask<SkeletonBTreeMap<String, String>.SkeletonNode>> tasks) throws TaskAbortException {
+			List<PullTask<SkeletonBTreeMap<String, String>.SkeletonNode>> batch = new ArrayList<PullTask<SkeletonBTreeMap<String, String>.SkeletonNode>>();
+			List<String> ranges = new ArrayList<String>();
+			for (PullTask<SkeletonBTreeMap<String, String>.SkeletonNode> task: tasks) {
+				batch.add(task);
+				ranges.add(((SkeletonBTreeMap<String, String>.GhostNode)task.meta).getRange());
+			}
+			pulls.add(ranges);
+			super.pull(batch);
+		}
+
+		@Override public void push(Iterable<PushTask<SkeletonBTreeMap<String, String>.SkeletonNode>> tasks) throws TaskAbortException {
+			List<PushTask<SkeletonBTreeMap<String, String>.SkeletonNode>> batch = new ArrayList<PushTask<SkeletonBTreeMap<String, String>.SkeletonNode>>();
+			List<String> ranges = new ArrayList<String>();
+			for (PushTask<SkeletonBTreeMap<String, String>.SkeletonNode> task: tasks) {
+				batch.add(task);
+				ranges.add(task.data.getRange());
+			}
+			pushes.add(ranges);
+			super.push(batch);
+		}
+
+		@Override public void pullAsync(PullTask<SkeletonBTreeMap<String, String>.SkeletonNode> task, SimpleProgress p, SafeClosure<X2<PullTask<SkeletonBTreeMap<String, String>.SkeletonNode>, TaskAbortException>> done) {
+			if (pulled.incrementAndGet() == failPull) {
+				fail(task, p, new TaskAbortException("Simulated pull failure", new Exception()), done);
+				return;
+			}
+			super.pullAsync(task, p, done);
+		}
+
+		@Override public void pushAsync(PushTask<SkeletonBTreeMap<String, String>.SkeletonNode> task, SimpleProgress p, SafeClosure<X2<PushTask<SkeletonBTreeMap<String, String>.SkeletonNode>, TaskAbortException>> done) {
+			if (pushed.incrementAndGet() == failPush) {
+				fail(task, p, new TaskAbortException("Simulated push failure", new Exception()), done);
+				return;
+			}
+			super.pushAsync(task, p, done);
+		}
+
+		protected <T extends Task<?>> void fail(T task, SimpleProgress p, TaskAbortException ex, SafeClosure<X2<T, TaskAbortException>> done) {
+			try {
+				p.abort(ex);
+			} catch (TaskAbortException e) {
+				// abort() always rethrows its argument
+			}
+			if (done != null) { done.invoke(X2(task, ex)); }
+		}
+
+	}
+
+	@Override public void setUp() {
+		dir = new File("SkeletonBTreeMapTest");
+		rmdir(dir);
+		dir.mkdir();
+		YamlReaderWriter yamlrw = new YamlReaderWriter();
+		FileArchiver<Map<String, Object>> arx = new FileArchiver<Map<String, Object>>(yamlrw, yamlrw, true, ".yml", "", "", dir);
+
+		map = new SkeletonBTreeMap<String, String>(node_min);
+		nsrl = new Recorder(arx, map);
+		map.setSerialiser(nsrl, new DummySerialiser<String, String>());
+		map.setParallelism(parallelism);
+
+		backmap = new TreeMap<String, String>();
+		for (int i=0; i<0x200; ++i) {
+			String k = Generators.rndKey();
+			map.put(k, k);
+			backmap.put(k, k);
+		}
+
+		depths = new HashMap<String, Integer>();
+		widths = new ArrayList<Integer>();
+		measure(map.root, 0);
+		assertTrue("tree is too shallow for this test", widths.size() >= 3);
+		// enough leaves for several batches
+		assertTrue(widths.get(widths.size()-1) > 2*parallelism);
+	}
+
+	@Override public void tearDown() {
+		rmdir(dir);
+	}
+
+	public static void rmdir(File d) {
+		File[] fs = d.listFiles();
+		if (fs != null) { for (File f: fs) { f.delete(); } }
+		d.delete();
+	}
+
+	protected void measure(BTreeMap<String, String>.Node node, int d) {
+		depths.put(node.getRange(), d);
+		if (widths.size() <= d) { widths.add(0); }
+		widths.set(d, widths.get(d) + 1);
+		if (node.isLeaf()) { return; }
+		for (BTreeMap<String, String>.Node sub: node.iterNodes()) { measure(sub, d+1); }
+	}
+
+	/**
+	** Counts the loaded nodes on each level of the tree.
+	*/
+	protected List<Integer> loaded() {
+		List<Integer> counts = new ArrayList<Integer>(Collections.nCopies(widths.size(), 0));
+		loaded(map.root, 0, counts);
+		return counts;
+	}
+
+	protected void loaded(BTreeMap<String, String>.Node node, int d, List<Integer> counts) {
+		if (node.isGhost()) { return; }
+		counts.set(d, counts.get(d) + 1);
+		if (node.isLeaf()) { return; }
+		for (BTreeMap<String, String>.Node sub: node.iterNodes()) { loaded(sub, d+1, counts); }
+	}
+
+	/**
+	** Checks that the given batches are no bigger than {@link #parallelism},
+	** that each only holds nodes from one level, and that the levels come in
+	** the given order. Returns the number of batches for each level.
+	*/
+	protected List<Integer> checkBatches(List<List<String>> batches, boolean down) {
+		List<Integer> count = new ArrayList<Integer>(Collections.nCopies(widths.size(), 0));
+		int last = down? 0: widths.size();
+		for (List<String> batch: batches) {
+			assertTrue(batch.size() > 0 && batch.size() <= parallelism);
+			int d = depths.get(batch.get(0));
+			for (String range: batch) { assertEquals(d, (int)depths.get(range)); }
+			assertTrue("levels out of order", down? d >= last: d <= last);
+			last = d;
+			count.set(d, count.get(d) + 1);
+		}
+		return count;
+	}
+
+	protected int batchesFor(int n) {
+		return (n + parallelism - 1) / parallelism;
+	}
+
+	protected int count(List<List<String>> batches) {
+		int n = 0;
+		for (List<String> batch: batches) { n += batch.size(); }
+		return n;
+	}
+
+	public void testLevels() throws TaskAbortException {
+		map.deflate();
+		assertTrue(map.isBare());
+		List<Integer> pushed = checkBatches(nsrl.pushes, false);
+		assertEquals(0, (int)pushed.get(0));
+		for (int d=1; d<widths.size(); ++d) {
+			assertEquals(batchesFor(widths.get(d)), (int)pushed.get(d));
+		}
+
+		nsrl.clear();
+		map.inflate();
+		assertTrue(map.isLive());
+		List<Integer> pulled = checkBatches(nsrl.pulls, true);
+		for (int d=1; d<widths.size(); ++d) {
+			assertEquals(batchesFor(widths.get(d)), (int)pulled.get(d));
+		}
+		assertEquals(backmap, new TreeMap<String, String>(map));
+	}
+
+	public void testAbortInflate() throws TaskAbortException {
+		map.deflate();
+		nsrl.clear();
+
+		// fail a node in the second batch of the bottom level
+		int leaf = widths.size() - 1, above = 0;
+		for (int d=1; d<leaf; ++d) { above += widths.get(d); }
+		nsrl.failPull = above + parallelism + 1;
+		try {
+			map.inflate();
+			fail("inflate should have been aborted");
+		} catch (TaskAbortException e) {
+			// expected
+		}
+		List<Integer> pulled = checkBatches(nsrl.pulls, true);
+		assertEquals(2, (int)pulled.get(leaf));
+
+		// the levels above are complete, and of the bottom level, the first
+		// batch and the rest of the failed batch were attached
+		int done = 2*parallelism - 1;
+		List<Integer> counts = loaded();
+		for (int d=0; d<leaf; ++d) { assertEquals(widths.get(d), counts.get(d)); }
+		assertEquals(done, (int)counts.get(leaf));
+		assertFalse(map.isLive());
+
+		// carry on from where it stopped
+		nsrl.clear();
+		map.inflate();
+		assertTrue(map.isLive());
+		assertEquals(batchesFor(widths.get(leaf) - done), nsrl.pulls.size());
+		assertEquals(widths.get(leaf) - done, count(nsrl.pulls));
+		assertEquals(backmap, new TreeMap<String, String>(map));
+	}
+
+	public void testAbortDeflate() throws TaskAbortException {
+		// fail a node in the second batch of the bottom level
+		int leaf = widths.size() - 1;
+		nsrl.failPush = parallelism + 1;
+		try {
+			map.deflate();
+			fail("deflate should have been aborted");
+		} catch (TaskAbortException e) {
+			// expected
+		}
+		assertEquals(2, nsrl.pushes.size());
+		checkBatches(nsrl.pushes, false);
+
+		// the first batch and the rest of the failed batch were replaced with
+		// ghosts, but nothing above them was pushed
+		int done = 2*parallelism - 1;
+		List<Integer> counts = loaded();
+		for (int d=0; d<leaf; ++d) { assertEquals(widths.get(d), counts.get(d)); }
+		assertEquals(widths.get(leaf) - done, (int)counts.get(leaf));
+		assertFalse(map.isBare());
+
+		nsrl.clear();
+		map.deflate();
+		assertTrue(map.isBare());
+		int rest = widths.get(leaf) - done;
+		for (int d=1; d<leaf; ++d) { rest += widths.get(d); }
+		assertEquals(rest, count(nsrl.pushes));
+
+		map.inflate();
+		assertEquals(backmap, new TreeMap<String, String>(map));
+	}
+
+
+	public void testScan() throws TaskAbortException {
+		map.deflate();
+		nsrl.clear();
+
+		final SortedMap<String, String> all = new TreeMap<String, String>();
+		map.scan(null, new Closure<Map<String, String>, TaskAbortException>() {
+			/*@Override**/ public void invoke(Map<String, String> node) {
+				all.putAll(node);
+			}
+		});
+		assertEquals(backmap, all);
+		assertTrue(map.isBare());
+		assertEquals(0, nsrl.pushes.size());
+		int nodes = 0;
+		for (int d=1; d<widths.size(); ++d) { nodes += widths.get(d); }
+		assertEquals(nodes, count(nsrl.pulls));
+		checkBatches(nsrl.pulls, true);
+
+		// only the paths to the given keys are pulled
+		nsrl.clear();
+		SortedSet<String> keys = new TreeSet<String>();
+		for (String k: backmap.keySet()) { if (keys.size() < 3) { keys.add(k); } }
+		keys.add(backmap.lastKey());
+		keys.add("not in the map");
+		final SortedMap<String, String> some = new TreeMap<String, String>();
+		map.scan(keys, new Closure<Map<String, String>, TaskAbortException>() {
+			/*@Override**/ public void invoke(Map<String, String> node) {
+				some.putAll(node);
+			}
+		});
+		keys.remove("not in the map");
+		assertEquals(keys, some.keySet());
+		assertTrue(map.isBare());
+		assertEquals(0, nsrl.pushes.size());
+		assertTrue(count(nsrl.pulls) <= 5*(widths.size()-1));
+	}
+
+	public void testRemove() throws TaskAbortException {
+		map.deflate();
+		nsrl.clear();
+
+		// a few keys only touch a few nodes
+		SortedSet<String> remkey = new TreeSet<String>();
+		Iterator<String> it = backmap.keySet().iterator();
+		for (int i=0; i<3; ++i) { remkey.add(it.next()); it.next(); }
+		map.update(new TreeMap<String, String>(), remkey);
+		assertTrue(map.isBare());
+		int nodes = 0;
+		for (int d=1; d<widths.size(); ++d) { nodes += widths.get(d); }
+		// siblings needed for merges and rotations are pulled one at a time
+		assertTrue(nsrl.pulled.get() < nodes/2);
+		assertTrue(nsrl.pushed.get() <= nsrl.pulled.get());
+		backmap.keySet().removeAll(remkey);
+
+		// many keys, with each node that changes pushed once
+		nsrl.clear();
+		remkey.clear();
+		for (String k: backmap.keySet()) { if (remkey.size() < 0x140) { remkey.add(k); } }
+		map.update(new TreeMap<String, String>(), remkey);
+		assertTrue(map.isBare());
+		Set<String> ranges = new HashSet<String>();
+		for (List<String> batch: nsrl.pushes) {
+			for (String range: batch) { assertTrue("pushed twice: " + range, ranges.add(range)); }
+		}
+		backmap.keySet().removeAll(remkey);
+
+		map.inflate();
+		assertEquals(backmap, new TreeMap<String, String>(map));
+		map.verifyTreeIntegrity();
+	}
+
+}
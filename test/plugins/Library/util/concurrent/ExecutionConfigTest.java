@@ -0,0 +1,141 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.util.concurrent;
+
+import junit.framework.TestCase;
+
+import plugins.Library.util.TaskAbortExceptionConvertor;
+import plugins.Library.util.exec.TaskAbortException;
+import plugins.Library.util.func.Closure;
+import static plugins.Library.util.func.Tuples.X2; // also imports the class
+import static plugins.Library.util.func.Tuples.X3; // also imports the class
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+public class ExecutionConfigTest extends TestCase {
+
+	final static ThreadFactory THREADS = new ThreadFactory() {
+		public Thread newThread(Runnable r) { return new Thread(r); }
+	};
+
+	static Runnable waitFor(final CountDownLatch latch) {
+		return new Runnable() {
+			public void run() {
+				try { latch.await(); } catch (InterruptedException e) { }
+			}
+		};
+	}
+
+	public void testBounded() throws InterruptedException {
+		CountDownLatch latch = new CountDownLatch(1);
+		MeteredExecutor x = new MeteredExecutor("test", 2, 2, false, THREADS);
+		for (int i=0; i<4; ++i) { x.execute(waitFor(latch)); }
+		assertEquals(2, x.getQueue().size());
+		try {
+			x.execute(waitFor(latch));
+			fail("queue should be full");
+		} catch (RejectedExecutionException e) { }
+		assertEquals(5, x.getSubmitted());
+		assertEquals(1, x.getRejected());
+		assertEquals(0, x.getRanByCaller());
+		assertEquals(2, x.getMaxQueued());
+
+		latch.countDown();
+		x.shutdown();
+		while (!x.isTerminated()) { Thread.sleep(10); }
+		assertEquals(4, x.getCompleted());
+	}
+
+	public void testCallerRuns() {
+		CountDownLatch latch = new CountDownLatch(1);
+		MeteredExecutor x = new MeteredExecutor("test", 1, 1, true, THREADS);
+		x.execute(waitFor(latch));
+		x.execute(waitFor(latch));
+		final Thread caller = Thread.currentThread();
+		final Thread[] ran = new Thread[1];
+		x.execute(new Runnable() {
+			public void run() { ran[0] = Thread.currentThread(); }
+		});
+		assertSame(caller, ran[0]);
+		assertEquals(1, x.getRanByCaller());
+		latch.countDown();
+		x.shutdown();
+	}
+
+	public void testProcessorRetriesRejected() throws InterruptedException {
+		MeteredExecutor x = new MeteredExecutor("test", 1, 1, false, THREADS);
+		ObjectProcessor<Integer, Integer, TaskAbortException> proc = new ObjectProcessor<Integer, Integer, TaskAbortException>(
+			new LinkedBlockingQueue<Integer>(),
+			new LinkedBlockingQueue<X2<Integer, TaskAbortException>>(),
+			new HashMap<Integer, Integer>(),
+			new Closure<Integer, TaskAbortException>() {
+				public void invoke(Integer i) {
+					try { Thread.sleep(1); } catch (InterruptedException e) { }
+				}
+			}, x, new TaskAbortExceptionConvertor()
+		).autostart();
+
+		int n = 0x40;
+		for (int i=0; i<n; ++i) { proc.submit(i, -i); }
+		Set<Integer> seen = new HashSet<Integer>();
+		for (int i=0; i<n; ++i) {
+			X3<Integer, Integer, TaskAbortException> res = proc.accept();
+			assertNull(res._2);
+			assertEquals(-res._0, (int)res._1);
+			assertTrue(seen.add(res._0));
+		}
+		assertFalse(proc.hasPending());
+		proc.close();
+		x.shutdown();
+		while (!x.isTerminated()) { Thread.sleep(10); }
+		// more items than the pool could take at once
+		assertTrue(x.getRejected() > 0);
+		assertEquals(n, x.getCompleted());
+	}
+
+	public void testRoles() {
+		MeteredExecutor x = ExecutionConfig.get(ExecutionConfig.Role.RENDER);
+		assertSame(x, ExecutionConfig.get(ExecutionConfig.Role.RENDER));
+		assertEquals(ExecutionConfig.getThreads(ExecutionConfig.Role.RENDER), x.getMaximumPoolSize());
+		try {
+			ExecutionConfig.setQueueCapacity(ExecutionConfig.Role.RENDER, 1);
+			fail("pool is already running");
+		} catch (IllegalStateException e) { }
+
+		int t = ExecutionConfig.getThreads(ExecutionConfig.Role.RENDER);
+		ExecutionConfig.setThreads(ExecutionConfig.Role.RENDER, t + 1);
+		assertEquals(t + 1, x.getMaximumPoolSize());
+		ExecutionConfig.setThreads(ExecutionConfig.Role.RENDER, t);
+		assertEquals(t, x.getMaximumPoolSize());
+		assertTrue(ExecutionConfig.status().contains(x.name));
+	}
+
+	public void testVirtualThreads() throws InterruptedException {
+		boolean supported = ExecutionConfig.virtualThreadsSupported();
+		assertEquals(supported, ExecutionConfig.virtualThreadFactory("test") != null);
+		MeteredExecutor fetch = ExecutionConfig.get(ExecutionConfig.Role.FETCH);
+		try {
+			assertEquals(supported, ExecutionConfig.setVirtualThreads(true));
+			assertEquals(supported, ExecutionConfig.isVirtual(ExecutionConfig.Role.FETCH));
+			assertFalse(ExecutionConfig.isVirtual(ExecutionConfig.Role.DECODE));
+			if (!supported) { return; }
+			assertEquals(ExecutionConfig.Role.FETCH.virtualThreads, fetch.getMaximumPoolSize());
+			final String[] name = new String[1];
+			final CountDownLatch done = new CountDownLatch(1);
+			fetch.getThreadFactory().newThread(new Runnable() {
+				public void run() { name[0] = Thread.currentThread().toString(); done.countDown(); }
+			}).start();
+			done.await();
+			assertTrue(name[0], name[0].startsWith("VirtualThread"));
+		} finally {
+			ExecutionConfig.setVirtualThreads(false);
+		}
+		assertEquals(ExecutionConfig.Role.FETCH.threads, fetch.getMaximumPoolSize());
+	}
+
+}
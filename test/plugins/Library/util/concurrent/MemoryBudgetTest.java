@@ -0,0 +1,87 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.util.concurrent;
+
+import junit.framework.TestCase;
+
+public class MemoryBudgetTest extends TestCase {
+
+	/**
+	** Acquires the given size from the budget in another thread.
+	*/
+	static class Acquirer extends Thread {
+		final MemoryBudget budget;
+		final long size;
+		volatile long charged = -1;
+		volatile boolean interrupted;
+		Acquirer(MemoryBudget b, long s) { budget = b; size = s; }
+		@Override public void run() {
+			charged = budget.acquireUninterruptibly(size);
+			interrupted = Thread.currentThread().isInterrupted();
+		}
+	}
+
+	public void testBlockAndRelease() throws InterruptedException {
+		MemoryBudget budget = new MemoryBudget(100, true);
+		long a = budget.acquireUninterruptibly(60);
+		assertEquals(60, a);
+		assertEquals(1, budget.acquireUninterruptibly(-1)); // unknown size
+
+		Acquirer t = new Acquirer(budget, 50);
+		t.start();
+		Thread.sleep(100);
+		assertTrue(t.isAlive()); // waiting for room
+		assertEquals(61, budget.getUsed());
+		assertEquals(1, budget.getWaits());
+
+		budget.release(a);
+		t.join();
+		assertEquals(50, t.charged);
+		assertEquals(51, budget.getUsed());
+		assertEquals(2, budget.getHolders());
+		assertFalse(t.interrupted);
+	}
+
+	public void testOversized() {
+		MemoryBudget budget = new MemoryBudget(100, true);
+		// nothing else is held, so this does not block forever
+		long w = budget.acquireUninterruptibly(1000);
+		assertEquals(1000, w);
+		budget.release(w);
+		assertEquals(0, budget.getUsed());
+		assertEquals(0, budget.getHolders());
+		assertEquals(0, budget.getWaits());
+	}
+
+	public void testPermits() throws InterruptedException {
+		MemoryBudget budget = new MemoryBudget(2, false);
+		assertEquals(1, budget.acquireUninterruptibly(1000));
+		assertEquals(1, budget.acquireUninterruptibly(1000));
+		Acquirer t = new Acquirer(budget, 1);
+		t.start();
+		Thread.sleep(100);
+		assertTrue(t.isAlive());
+		// a larger capacity lets it through straight away
+		budget.setCapacity(3, false);
+		t.join();
+		assertEquals(3, budget.getUsed());
+	}
+
+	public void testInterrupt() throws InterruptedException {
+		MemoryBudget budget = new MemoryBudget(10, true);
+		long w = budget.acquireUninterruptibly(10);
+		Acquirer t = new Acquirer(budget, 5);
+		t.start();
+		Thread.sleep(100);
+		t.interrupt();
+		Thread.sleep(100);
+		// still waiting, but the interrupt is not lost
+		assertTrue(t.isAlive());
+		budget.release(w);
+		t.join();
+		assertEquals(5, t.charged);
+		assertTrue(t.interrupted);
+	}
+
+}
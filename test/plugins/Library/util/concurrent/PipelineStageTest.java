@@ -0,0 +1,133 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Library.util.concurrent;
+
+import junit.framework.TestCase;
+
+import java.util.*;
+import java.util.concurrent.Executor;
+
+public class PipelineStageTest extends TestCase {
+
+	final static Executor THREADS = new Executor() {
+		public void execute(Runnable r) { new Thread(r, r.toString()).start(); }
+	};
+
+	/**
+	** A stage which holds each batch until released, and then passes on its
+	** total to the next stage.
+	*/
+	static class GateStage extends PipelineStage<Integer> {
+		final PipelineStage<Integer> next;
+		boolean open;
+		final List<Integer> batches = new ArrayList<Integer>();
+		GateStage(int cap, PipelineStage<Integer> n) { super("gate", cap, 1, THREADS); next = n; }
+		@Override protected List<Integer> takeBatch(LinkedList<Integer> q) {
+			List<Integer> batch = new ArrayList<Integer>(q);
+			q.clear();
+			return batch;
+		}
+		@Override protected void process(List<Integer> batch) throws InterruptedException {
+			synchronized (this) {
+				while (!open) { wait(); }
+				batches.add(batch.size());
+			}
+			int sum = 0;
+			for (int i: batch) { sum += i; }
+			if (next != null) { next.put(sum); }
+		}
+		synchronized void open() { open = true; notifyAll(); }
+	}
+
+	public void testBackpressure() throws InterruptedException {
+		final List<Integer> out = Collections.synchronizedList(new ArrayList<Integer>());
+		PipelineStage<Integer> sink = new PipelineStage<Integer>("sink", 1, 1, THREADS) {
+			@Override protected void process(List<Integer> batch) { out.addAll(batch); }
+		};
+		final GateStage gate = new GateStage(2, sink);
+
+		// the first item is taken straight away, and then blocks the stage
+		assertTrue(gate.put(1));
+		while (gate.size() > 0) { Thread.sleep(10); }
+		assertTrue(gate.put(2));
+		assertTrue(gate.put(3));
+		assertEquals(2, gate.size());
+
+		Thread t = new Thread() {
+			@Override public void run() { gate.put(4); }
+		};
+		t.start();
+		Thread.sleep(100);
+		assertTrue(t.isAlive()); // waiting for space
+		gate.open();
+		t.join();
+		gate.waitIdle();
+		sink.waitIdle();
+
+		assertEquals(1, gate.getPutWaits());
+		assertEquals(4, gate.getAccepted());
+		assertEquals(4, gate.getProcessed());
+		assertTrue(gate.getMaxQueued() <= 2);
+		// queued items were coalesced into fewer batches
+		assertTrue(gate.batches.size() < 4);
+		int sum = 0;
+		for (int i: out) { sum += i; }
+		assertEquals(10, sum);
+	}
+
+	public void testFailureAndClose() throws InterruptedException {
+		final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+		PipelineStage<Integer> stage = new PipelineStage<Integer>("fail", 4, 2, THREADS) {
+			@Override protected void process(List<Integer> batch) {
+				if (batch.get(0) < 0) { throw new IllegalArgumentException("negative"); }
+			}
+			@Override protected void failed(List<Integer> batch, Throwable t) { errors.add(t); }
+		};
+		stage.put(-1);
+		stage.put(1);
+		stage.waitIdle();
+		assertEquals(1, errors.size());
+		assertEquals(1, stage.getFailed());
+		assertEquals(1, stage.getProcessed());
+		stage.close();
+		assertFalse(stage.put(2));
+		assertFalse(stage.force(2));
+	}
+
+	public void testInterruptedPut() throws InterruptedException {
+		final List<Integer> out = Collections.synchronizedList(new ArrayList<Integer>());
+		PipelineStage<Integer> sink = new PipelineStage<Integer>("sink", 1, 1, THREADS) {
+			@Override protected void process(List<Integer> batch) { out.addAll(batch); }
+		};
+		final GateStage gate = new GateStage(1, sink);
+		assertTrue(gate.put(1));
+		while (gate.size() > 0) { Thread.sleep(10); }
+		assertTrue(gate.put(2));
+
+		final boolean[] res = new boolean[2];
+		Thread t = new Thread() {
+			@Override public void run() {
+				res[0] = gate.put(3);
+				res[1] = Thread.currentThread().isInterrupted();
+			}
+		};
+		t.start();
+		Thread.sleep(100);
+		assertTrue(t.isAlive()); // waiting for space
+		t.interrupt();
+		t.join();
+		// not added, and the interrupt is not lost
+		assertFalse(res[0]);
+		assertTrue(res[1]);
+		assertEquals(2, gate.getAccepted());
+
+		gate.open();
+		gate.waitIdle();
+		sink.waitIdle();
+		int sum = 0;
+		for (int i: out) { sum += i; }
+		assertEquals(3, sum);
+	}
+
+}